@@ -7,12 +7,17 @@ package com.craiglowery.java.vlib.api;
  *         Binary Large Object Store system.
  *         
  */
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
 
 import com.craiglowery.java.vlib.common.U_Exception;
+import com.craiglowery.java.vlib.common.Util;
+import com.craiglowery.java.vlib.repository.HealthSweeper;
 import com.craiglowery.java.vlib.repository.RepositoryManager;
 
 /**
@@ -53,7 +58,55 @@ public class AdminResourceInterface {
 			return response.Failure(e);
 		}
 	}
-		
 	
+	@GET
+	@Path("HealthSweep")
+	@Produces("application/xml")
+	public Response getHealthSweepStatus() 
+	{
+		XmlResponse response = new XmlResponse();
+		try {
+			return response.Success(HealthSweeper.getHealthSweeper().statusXml(response.doc));
+		} catch (U_Exception e) {
+			return response.Failure(e);
+		}
+	}
+	
+	@GET
+	@Path("StartHealthSweep")
+	@Produces("application/xml")
+	public Response startHealthSweep(
+			@QueryParam("fullvalidation") @DefaultValue("no") String sfullvalidation) 
+	{
+		XmlResponse response = new XmlResponse();
+		boolean fullvalidation;
+		try {
+			fullvalidation = Util.parseBoolean(sfullvalidation);
+		} catch (U_Exception e) {
+			return response.Failure(AE.ae(AE.ERR_BAD_PARAMETER,"fullvalidation='"+sfullvalidation+"'"),Status.BAD_REQUEST);
+		}
+		try {
+			HealthSweeper hs = HealthSweeper.getHealthSweeper();
+			hs.start(fullvalidation);
+			return response.Success(hs.statusXml(response.doc));
+		} catch (U_Exception e) {
+			return response.Failure(e);
+		}
+	}
+	
+	@GET
+	@Path("StopHealthSweep")
+	@Produces("application/xml")
+	public Response stopHealthSweep() 
+	{
+		XmlResponse response = new XmlResponse();
+		try {
+			HealthSweeper hs = HealthSweeper.getHealthSweeper();
+			hs.stop();
+			return response.Success(hs.statusXml(response.doc));
+		} catch (U_Exception e) {
+			return response.Failure(e);
+		}
+	}
 	
 }
@@ -0,0 +1,143 @@
+package com.craiglowery.java.vlib.api;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The byte ranges requested by an HTTP {@code Range} header (RFC 7233), resolved against the
+ * length of the content, and the layout of the {@code multipart/byteranges} body that returns
+ * more than one of them.<p>
+ *
+ * A header that is not a well formed byte range request, or that asks for more than
+ * {@link #MAX_RANGES} ranges, is ignored as the RFC permits, and the whole content is returned.
+ * Ranges that start beyond the end of the content are dropped; if none are left, the request
+ * cannot be satisfied.
+ */
+class ByteRanges {
+
+	/** The most ranges honored in one request **/
+	static final int MAX_RANGES = 32;
+
+	/** Thrown when no requested range overlaps the content **/
+	static class UnsatisfiableException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/** The content type of each part of a multiple range response **/
+	static final String PART_TYPE = "application/octet-stream";
+
+	final long length;
+	/** First and last byte positions, inclusive, of each range in the order requested **/
+	final List<long[]> ranges = new ArrayList<long[]>();
+	/** Separates the parts of a multiple range response **/
+	final String boundary = UUID.randomUUID().toString().replace("-", "");
+
+	private ByteRanges(long length) {
+		this.length = length;
+	}
+
+	/**
+	 * Resolves a {@code Range} header against the length of the content.
+	 * @param header The value of the header, or null if there is none.
+	 * @param length The length of the content.
+	 * @return The ranges, or null if the whole content should be returned.
+	 * @throws UnsatisfiableException If no range overlaps the content.
+	 */
+	static ByteRanges parse(String header, long length) throws UnsatisfiableException {
+		if (header==null)
+			return null;
+		header = header.trim();
+		if (!header.regionMatches(true, 0, "bytes=", 0, 6))
+			return null;
+		String[] specs = header.substring(6).split(",");
+		if (specs.length>MAX_RANGES)
+			return null;
+		ByteRanges br = new ByteRanges(length);
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash<0)
+				return null;
+			long first, last;
+			try {
+				if (dash==0) {
+					//A suffix: the last n bytes
+					long n = Long.parseLong(spec.substring(1));
+					if (n<0)
+						return null;
+					if (n==0)
+						continue;
+					first = Math.max(0, length-n);
+					last = length-1;
+				} else {
+					first = Long.parseLong(spec.substring(0,dash).trim());
+					String slast = spec.substring(dash+1).trim();
+					last = slast.isEmpty() ? Long.MAX_VALUE : Long.parseLong(slast);
+					if (first<0 || last<first)
+						return null;
+					last = Math.min(last, length-1);
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (first>=length)
+				continue;
+			br.ranges.add(new long[] {first,last});
+		}
+		if (br.ranges.isEmpty())
+			throw new UnsatisfiableException();
+		return br;
+	}
+
+	/**
+	 * @param range A range.
+	 * @return The value of the {@code Content-Range} header for the range.
+	 */
+	String contentRange(long[] range) {
+		return String.format("bytes %d-%d/%d", range[0], range[1], length);
+	}
+
+	/**
+	 * @return The value of the {@code Content-Type} header of a multiple range response.
+	 */
+	String multipartType() {
+		return "multipart/byteranges; boundary="+boundary;
+	}
+
+	/**
+	 * @param range A range.
+	 * @return The delimiter and headers that precede the range in a multiple range response.
+	 */
+	byte[] partHeader(long[] range) {
+		return new StringBuilder("\r\n--").append(boundary)
+			.append("\r\nContent-Type: ").append(PART_TYPE)
+			.append("\r\nContent-Range: ").append(contentRange(range))
+			.append("\r\n\r\n").toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return The delimiter that ends a multiple range response.
+	 */
+	byte[] trailer() {
+		return ("\r\n--"+boundary+"--\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return The length of the body of a multiple range response.
+	 */
+	long multipartLength() {
+		long total = trailer().length;
+		for (long[] range : ranges)
+			total += partHeader(range).length + range[1]-range[0]+1;
+		return total;
+	}
+
+}
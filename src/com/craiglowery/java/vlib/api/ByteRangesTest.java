@@ -0,0 +1,78 @@
+package com.craiglowery.java.vlib.api;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Unit test for resolving HTTP Range headers.
+ *
+ */
+public class ByteRangesTest {
+
+	private static String resolve(String header, long length) throws Exception {
+		ByteRanges br = ByteRanges.parse(header, length);
+		if (br==null)
+			return null;
+		StringBuilder sb = new StringBuilder();
+		for (long[] range : br.ranges)
+			sb.append(sb.length()==0?"":",").append(range[0]).append("-").append(range[1]);
+		return sb.toString();
+	}
+
+	@Test
+	public void rangesAreResolved() throws Exception {
+		assertEquals("0-499", resolve("bytes=0-499", 10000));
+		assertEquals("500-999", resolve("bytes=500-999", 10000));
+		assertEquals("9500-9999", resolve("bytes=-500", 10000));
+		assertEquals("9500-9999", resolve("bytes=9500-", 10000));
+		assertEquals("0-0,9999-9999", resolve("bytes=0-0,-1", 10000));
+		assertEquals("500-600,601-999", resolve("Bytes= 500-600 , 601-999", 10000));
+		assertEquals("9000-9999", resolve("bytes=9000-20000", 10000));
+		assertEquals("0-9999", resolve("bytes=-20000", 10000));
+		assertEquals("0-9", resolve("bytes=0-9,20000-", 10000));
+	}
+
+	@Test
+	public void malformedHeadersAreIgnored() throws Exception {
+		assertNull(resolve(null, 10000));
+		assertNull(resolve("items=0-9", 10000));
+		assertNull(resolve("bytes=9-0", 10000));
+		assertNull(resolve("bytes=a-b", 10000));
+		assertNull(resolve("bytes=100", 10000));
+		StringBuilder many = new StringBuilder("bytes=0-0");
+		for (int x=1; x<=ByteRanges.MAX_RANGES; x++)
+			many.append(",").append(x).append("-").append(x);
+		assertNull(resolve(many.toString(), 10000));
+	}
+
+	@Test
+	public void rangesBeyondTheContentAreUnsatisfiable() throws Exception {
+		for (String header : new String[] {"bytes=10000-", "bytes=20000-30000", "bytes=-0", "bytes=0-"}) {
+			try {
+				resolve(header, header.equals("bytes=0-") ? 0 : 10000);
+				fail(header);
+			} catch (ByteRanges.UnsatisfiableException e) {
+				/* expected */
+			}
+		}
+	}
+
+	@Test
+	public void multipartLengthMatchesBody() throws Exception {
+		ByteRanges br = ByteRanges.parse("bytes=0-9,100-199,-5", 1000);
+		long body = br.trailer().length;
+		for (long[] range : br.ranges)
+			body += br.partHeader(range).length + range[1]-range[0]+1;
+		assertEquals(body, br.multipartLength());
+		assertEquals("bytes 995-999/1000", br.contentRange(br.ranges.get(2)));
+		assertTrue(new String(br.partHeader(br.ranges.get(0)),"US-ASCII").startsWith("\r\n--"+br.boundary+"\r\n"));
+	}
+
+}
@@ -0,0 +1,558 @@
+package com.craiglowery.java.vlib.api;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.craiglowery.java.vlib.common.Config;
+import com.craiglowery.java.vlib.common.ConfigurationKey;
+import com.craiglowery.java.vlib.common.L;
+import com.craiglowery.java.vlib.common.LambdaTwoStrings;
+import com.craiglowery.java.vlib.common.U_Exception;
+import com.craiglowery.java.vlib.common.U_Exception.ERROR;
+import com.craiglowery.java.vlib.repository.RepositoryManager;
+
+/**
+ * Imports finalized uploads into the library in the background, so that finalizing an
+ * upload of many gigabytes does not hold its HTTP request open while the content is moved,
+ * hashed and checked for duplicates.<p>
+ *
+ * A job is submitted with {@link #submit(String, int, String, String, String, boolean, String)}
+ * and waits in a queue of at most {@code IMPORT_JOB_QUEUE_LIMIT} jobs.  A pool of
+ * {@code IMPORT_JOB_WORKERS} threads takes jobs in the order they were submitted, except that a
+ * job is passed over while {@code IMPORT_JOB_VOLUME_CONCURRENCY} jobs are already running from
+ * the storage volume that holds its content.  Volumes are identified by the {@code unix:dev}
+ * attribute if it is available, and otherwise by file store.<p>
+ *
+ * The state of each job is kept in its own file in {@code IMPORT_JOB_DIR}, rewritten as the job
+ * moves from phase to phase.  {@link #resume()} reads them when the application starts: jobs
+ * that had not finished are queued again if their content is still in the upload area.  Finished
+ * jobs are forgotten {@code IMPORT_JOB_RETENTION_HOURS} after they finish.
+ */
+public class ImportJobs {
+
+	/** The single scheduler for this process **/
+	private static ImportJobs instance = null;
+
+	/**
+	 * Returns the process-wide scheduler, starting its workers the first time.
+	 * @return The scheduler.
+	 * @throws U_Exception if the scheduler is not properly configured.
+	 */
+	public static synchronized ImportJobs getJobs()
+		throws U_Exception
+	{
+		if (instance==null) {
+			instance = new ImportJobs();
+			instance.load();
+			instance.startWorkers();
+		}
+		return instance;
+	}
+
+	/**
+	 * Reloads the jobs that were known when the application last stopped, and restarts those
+	 * that had not finished.  Failures are logged rather than thrown, since this is called during
+	 * start up.
+	 */
+	public static void resume() {
+		try {
+			getJobs();
+		} catch (Exception e) {
+			L.log(L.E,ImportJobs.class,"could not resume import jobs: %s",e.getMessage());
+		}
+	}
+
+	public enum State { queued, running, succeeded, failed }
+
+	/**
+	 * One import of a finalized upload.
+	 */
+	public static class Job {
+		/** The fields a job is submitted with **/
+		public final String id;
+		public final String key;
+		public final int handle;
+		public final String source;
+		public final String filename;
+		public final String title;
+		public final boolean duplicateCheck;
+		public final String checksum;
+		public final Instant submitted;
+
+		/** Its progress **/
+		volatile State state = State.queued;
+		volatile String phase = "queued";
+		volatile Instant started = null;
+		volatile Instant finished = null;
+		final AtomicLong hashed = new AtomicLong(0);
+		volatile long length = 0;
+		volatile int resultHandle = 0;
+		volatile int errorCode = 0;
+		volatile String errorMessage = null;
+
+		/** The volume holding {@code source}, used only while queued **/
+		Object volume;
+
+		Job(String id, String key, int handle, String source, String filename, String title,
+				boolean duplicateCheck, String checksum, Instant submitted) {
+			this.id=id;
+			this.key=key;
+			this.handle=handle;
+			this.source=source;
+			this.filename=filename;
+			this.title=title;
+			this.duplicateCheck=duplicateCheck;
+			this.checksum=checksum;
+			this.submitted=submitted;
+		}
+
+		public State getState() {
+			return state;
+		}
+
+		/**
+		 * @return The handle of the imported object, or 0 if the job has not succeeded.
+		 */
+		public int getResultHandle() {
+			return resultHandle;
+		}
+
+		boolean isFinished() {
+			return state==State.succeeded || state==State.failed;
+		}
+
+		/**
+		 * Renders the job as XML.
+		 * @param doc The {@code Document} that owns the nodes which will be created.
+		 * @return The {@code <job>} element, which must be inserted into {@code doc} by the caller.
+		 */
+		public Element xml(Document doc) {
+			Element elJob = doc.createElement("job");
+			LambdaTwoStrings add = (name,value) -> {
+				Element el = doc.createElement(name);
+				el.appendChild(doc.createTextNode(value));
+				elJob.appendChild(el);
+			};
+			add.op("id", id);
+			add.op("key", key);
+			add.op("handle", Integer.toString(handle));
+			add.op("filename", filename);
+			add.op("state", state.name());
+			add.op("phase", phase);
+			add.op("submitted", submitted.toString());
+			if (started!=null)
+				add.op("started", started.toString());
+			if (finished!=null)
+				add.op("finished", finished.toString());
+			add.op("length", Long.toString(length));
+			add.op("byteshashed", Long.toString(hashed.get()));
+			if (state==State.succeeded)
+				add.op("resulthandle", Integer.toString(resultHandle));
+			if (state==State.failed) {
+				Element elError = doc.createElement("error");
+				elError.setAttribute("code", Integer.toString(errorCode));
+				elError.appendChild(doc.createTextNode(errorMessage==null ? "" : errorMessage));
+				elJob.appendChild(elError);
+			}
+			return elJob;
+		}
+
+		private Properties toProperties() {
+			Properties p = new Properties();
+			p.setProperty("id", id);
+			p.setProperty("key", key);
+			p.setProperty("handle", Integer.toString(handle));
+			p.setProperty("source", source);
+			p.setProperty("filename", filename);
+			p.setProperty("title", title);
+			p.setProperty("duplicatecheck", Boolean.toString(duplicateCheck));
+			p.setProperty("checksum", checksum==null ? "" : checksum);
+			p.setProperty("submitted", submitted.toString());
+			p.setProperty("state", state.name());
+			p.setProperty("phase", phase);
+			if (started!=null)
+				p.setProperty("started", started.toString());
+			if (finished!=null)
+				p.setProperty("finished", finished.toString());
+			p.setProperty("length", Long.toString(length));
+			p.setProperty("hashed", Long.toString(hashed.get()));
+			p.setProperty("resulthandle", Integer.toString(resultHandle));
+			p.setProperty("errorcode", Integer.toString(errorCode));
+			if (errorMessage!=null)
+				p.setProperty("errormessage", errorMessage);
+			return p;
+		}
+
+		private static Job fromProperties(Properties p) {
+			String checksum = p.getProperty("checksum","");
+			Job job = new Job(
+					p.getProperty("id"),
+					p.getProperty("key"),
+					Integer.parseInt(p.getProperty("handle","0")),
+					p.getProperty("source"),
+					p.getProperty("filename",""),
+					p.getProperty("title",""),
+					Boolean.parseBoolean(p.getProperty("duplicatecheck","true")),
+					checksum.equals("") ? null : checksum,
+					Instant.parse(p.getProperty("submitted")));
+			job.state = State.valueOf(p.getProperty("state"));
+			job.phase = p.getProperty("phase",job.state.name());
+			if (p.getProperty("started")!=null)
+				job.started = Instant.parse(p.getProperty("started"));
+			if (p.getProperty("finished")!=null)
+				job.finished = Instant.parse(p.getProperty("finished"));
+			job.length = Long.parseLong(p.getProperty("length","0"));
+			job.hashed.set(Long.parseLong(p.getProperty("hashed","0")));
+			job.resultHandle = Integer.parseInt(p.getProperty("resulthandle","0"));
+			job.errorCode = Integer.parseInt(p.getProperty("errorcode","0"));
+			job.errorMessage = p.getProperty("errormessage");
+			return job;
+		}
+	}
+
+	/** Configuration **/
+	private final int workers;
+	private final int volumeConcurrency;
+	private final int queueLimit;
+	private final File dir;
+	private final Duration retention;
+
+	/** Every job not yet forgotten, by id, in the order submitted **/
+	private final Map<String,Job> jobs = new LinkedHashMap<String,Job>();
+	/** Jobs waiting for a worker, oldest first **/
+	private final LinkedList<Job> queue = new LinkedList<Job>();
+	/** The number of jobs running from each volume **/
+	private final Map<Object,Integer> runningPerVolume = new HashMap<Object,Integer>();
+
+	private ImportJobs()
+		throws U_Exception
+	{
+		workers = Config.getInt(ConfigurationKey.IMPORT_JOB_WORKERS);
+		if (workers<1)
+			throw new U_Exception(ERROR.ConfigurationError,"IMPORT_JOB_WORKERS must be at least 1");
+		volumeConcurrency = Config.getInt(ConfigurationKey.IMPORT_JOB_VOLUME_CONCURRENCY);
+		if (volumeConcurrency<1)
+			throw new U_Exception(ERROR.ConfigurationError,"IMPORT_JOB_VOLUME_CONCURRENCY must be at least 1");
+		queueLimit = Math.max(1,Config.getInt(ConfigurationKey.IMPORT_JOB_QUEUE_LIMIT));
+		retention = Duration.ofHours(Math.max(0,Config.getLong(ConfigurationKey.IMPORT_JOB_RETENTION_HOURS)));
+		dir = new File(Config.getString(ConfigurationKey.IMPORT_JOB_DIR));
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new U_Exception(ERROR.ConfigurationError,"IMPORT_JOB_DIR cannot be created: "+dir);
+	}
+
+	/**
+	 * Queues the import of a finalized upload.  If the upload already has a job that has not
+	 * finished, that job is returned instead.
+	 * @param key The key of the upload.
+	 * @param handle The object of which the upload is a new version, or 0 for a new object.
+	 * @param source The upload's content file, which is moved into the library.
+	 * @param filename The filename for the version.
+	 * @param title The title for the version.
+	 * @param duplicateCheck If true, the import fails if the content is a potential duplicate.
+	 * @param checksum The checksum of the content, or null if it must be computed.
+	 * @return The job.
+	 * @throws U_Exception with Timeout if the queue is full.
+	 */
+	public synchronized Job submit(String key, int handle, String source, String filename, String title,
+			boolean duplicateCheck, String checksum)
+		throws U_Exception
+	{
+		purge();
+		Job active = activeJobFor(key);
+		if (active!=null)
+			return active;
+		if (queue.size()>=queueLimit)
+			throw new U_Exception(ERROR.Timeout,"The import queue is full ("+queueLimit+" jobs)");
+		Job job = new Job(UUID.randomUUID().toString(), key, handle, source, filename, title,
+				duplicateCheck, checksum, Instant.now());
+		job.length = new File(source).length();
+		persist(job);
+		jobs.put(job.id, job);
+		enqueue(job);
+		L.log(L.I,this,"queued import job %s for upload %s",job.id,key);
+		return job;
+	}
+
+	/**
+	 * @param id A job id.
+	 * @return The job, or null if there is no such job or it has been forgotten.
+	 */
+	public synchronized Job get(String id) {
+		purge();
+		return jobs.get(id);
+	}
+
+	/**
+	 * @return Every job not yet forgotten, in the order submitted.
+	 */
+	public synchronized List<Job> list() {
+		purge();
+		return new ArrayList<Job>(jobs.values());
+	}
+
+	/**
+	 * @param key The key of an upload.
+	 * @return The upload's job that is queued or running, or null if there is none.
+	 */
+	public synchronized Job activeJobFor(String key) {
+		for (Job job : jobs.values())
+			if (job.key.equals(key) && !job.isFinished())
+				return job;
+		return null;
+	}
+
+	//------------------------------------------------------------------------------------------
+	//-- Scheduling
+	//------------------------------------------------------------------------------------------
+
+	private void enqueue(Job job) {
+		job.volume = volumeOf(job.source);
+		queue.add(job);
+		notifyAll();
+	}
+
+	private void startWorkers() {
+		for (int i=0; i<workers; i++) {
+			Thread t = new Thread(this::work,"ImportJobs-worker-"+i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private void work() {
+		while (true) {
+			Job job;
+			synchronized (this) {
+				while ((job=next())==null)
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+			}
+			try {
+				run(job);
+			} finally {
+				synchronized (this) {
+					runningPerVolume.merge(job.volume, -1, Integer::sum);
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes the oldest queued job whose volume is not already at its limit, and counts it as
+	 * running.  Called while synchronized.
+	 * @return The job, or null if none can run now.
+	 */
+	private Job next() {
+		for (Iterator<Job> i = queue.iterator(); i.hasNext(); ) {
+			Job job = i.next();
+			if (runningPerVolume.getOrDefault(job.volume,0)<volumeConcurrency) {
+				i.remove();
+				runningPerVolume.merge(job.volume, 1, Integer::sum);
+				job.state = State.running;
+				job.started = Instant.now();
+				return job;
+			}
+		}
+		return null;
+	}
+
+	private static Object volumeOf(String path) {
+		Path p = new File(path).toPath();
+		try {
+			return Files.getAttribute(p, "unix:dev");
+		} catch (Exception e) {
+			try {
+				return Files.getFileStore(p).name();
+			} catch (IOException e1) {
+				return "unknown";
+			}
+		}
+	}
+
+	private void run(Job job) {
+		job.phase = "starting";
+		job.hashed.set(0);
+		persistQuietly(job);
+		RepositoryManager.ImportProgress progress = new RepositoryManager.ImportProgress() {
+			@Override
+			public void phase(String phase) {
+				job.phase = phase;
+				persistQuietly(job);
+			}
+			@Override
+			public void hashed(long bytes) {
+				job.hashed.addAndGet(bytes);
+			}
+		};
+		try (RepositoryManager rm = RepositoryManager.getRepositoryManager()) {
+			job.resultHandle = rm.importObject(job.handle, job.source, job.filename, job.title,
+					job.duplicateCheck, true, job.checksum, progress);
+			job.state = State.succeeded;
+			job.phase = "done";
+		} catch (U_Exception e) {
+			fail(job, e.errorCode==ERROR.PotentialDuplicate ? AE.ERR_DUPLICATE
+					: e.errorCode==ERROR.NoSuchHandle ? AE.ERR_UNKNOWN_HANDLE
+					: AE.ERR_UNEXPECTED, e.getMessage());
+		} catch (Exception e) {
+			fail(job, AE.ERR_UNEXPECTED, e.toString());
+		}
+		job.finished = Instant.now();
+		persistQuietly(job);
+		if (job.state==State.succeeded) {
+			// The upload is no longer needed; a failed one is kept so it can be finalized again
+			new File(job.source).delete();
+			try {
+				UploadStateStore.getStore().remove(job.key);
+			} catch (U_Exception e) {
+				L.log(L.W,this,"import job %s could not discard upload %s: %s",job.id,job.key,e.getMessage());
+			}
+			L.log(L.I,this,"import job %s imported upload %s as object %d",job.id,job.key,job.resultHandle);
+		} else
+			L.log(L.W,this,"import job %s for upload %s failed: %s",job.id,job.key,job.errorMessage);
+	}
+
+	private static void fail(Job job, int errorCode, String message) {
+		job.state = State.failed;
+		job.errorCode = errorCode;
+		job.errorMessage = message;
+	}
+
+	//------------------------------------------------------------------------------------------
+	//-- Persistence
+	//------------------------------------------------------------------------------------------
+
+	private File fileFor(String id) {
+		return new File(dir, id+".job");
+	}
+
+	private void persist(Job job)
+		throws U_Exception
+	{
+		File f = fileFor(job.id);
+		File tmp = new File(f.getAbsolutePath()+".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			job.toProperties().store(out, "vlib import job");
+		} catch (IOException e) {
+			throw new U_Exception(ERROR.IOError,"Writing import job "+job.id,e);
+		}
+		try {
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new U_Exception(ERROR.FileRenameFailed,"Writing import job "+job.id,e);
+		}
+	}
+
+	private void persistQuietly(Job job) {
+		try {
+			persist(job);
+		} catch (U_Exception e) {
+			L.log(L.W,this,"could not record state of import job %s: %s",job.id,e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads every job file.  Jobs that were queued or running are queued again if their content
+	 * is still there, and otherwise are marked failed.
+	 */
+	private synchronized void load() {
+		File[] files = dir.listFiles((d,name) -> name.endsWith(".job"));
+		if (files==null)
+			return;
+		List<Job> loaded = new ArrayList<Job>();
+		for (File f : files) {
+			Properties p = new Properties();
+			try (FileInputStream in = new FileInputStream(f)) {
+				p.load(in);
+				loaded.add(Job.fromProperties(p));
+			} catch (Exception e) {
+				L.log(L.W,this,"ignoring unreadable import job file %s: %s",f,e.getMessage());
+			}
+		}
+		loaded.sort((a,b) -> a.submitted.compareTo(b.submitted));
+		int requeued = 0;
+		for (Job job : loaded) {
+			jobs.put(job.id, job);
+			if (job.isFinished())
+				continue;
+			if (new File(job.source).isFile()) {
+				job.state = State.queued;
+				job.phase = "queued";
+				job.started = null;
+				enqueue(job);
+				requeued++;
+			} else {
+				fail(job, AE.ERR_UNEXPECTED, "Interrupted by a restart after the content left the upload area; "
+						+ "check whether the object was imported");
+				job.finished = Instant.now();
+			}
+			persistQuietly(job);
+		}
+		purge();
+		if (requeued>0)
+			L.log(L.I,this,"resuming %d import job(s)",requeued);
+	}
+
+	/**
+	 * Forgets finished jobs older than the retention period.  Called while synchronized.
+	 */
+	private void purge() {
+		Instant cutoff = Instant.now().minus(retention);
+		for (Iterator<Job> i = jobs.values().iterator(); i.hasNext(); ) {
+			Job job = i.next();
+			if (job.isFinished() && job.finished!=null && job.finished.isBefore(cutoff)) {
+				i.remove();
+				fileFor(job.id).delete();
+			}
+		}
+	}
+
+	/**
+	 * Creates a report on the scheduler and every job not yet forgotten.
+	 * @param doc The {@code Document} that owns the report nodes.
+	 * @return The {@code <importjobs>} element, to be inserted by the caller.
+	 */
+	public synchronized Element statusXml(Document doc) {
+		Element elJobs = doc.createElement("importjobs");
+		elJobs.setAttribute("workers", Integer.toString(workers));
+		elJobs.setAttribute("queued", Integer.toString(queue.size()));
+		int running = 0;
+		for (int n : runningPerVolume.values())
+			running += n;
+		elJobs.setAttribute("running", Integer.toString(running));
+		purge();
+		for (Job job : jobs.values())
+			elJobs.appendChild(job.xml(doc));
+		return elJobs;
+	}
+}
@@ -0,0 +1,80 @@
+package com.craiglowery.java.vlib.api;
+
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.UriInfo;
+
+import org.w3c.dom.Element;
+
+import com.craiglowery.java.vlib.common.U_Exception;
+
+/**
+ * Implements the REST API: Job Resource Interface, through which the progress of the
+ * imports started by finalizing uploads is followed.
+ *
+ */
+
+@Path("jobs")
+public class JobResourceInterface {
+
+	@Context
+	UriInfo uriInfo;
+
+	@GET
+	@Produces("application/xml")
+	public Response getJobs()
+	{
+		XmlResponse response = new XmlResponse();
+		try {
+			return response.Success(ImportJobs.getJobs().statusXml(response.doc));
+		} catch (U_Exception e) {
+			return response.Failure(e);
+		}
+	}
+
+	@GET
+	@Path("{id}")
+	@Produces("application/xml")
+	public Response getJob(
+			@PathParam("id") String id)
+	{
+		XmlResponse response = new XmlResponse();
+		ImportJobs.Job job;
+		try {
+			job = ImportJobs.getJobs().get(id);
+		} catch (U_Exception e) {
+			return response.Failure(e);
+		}
+		if (job==null)
+			return response.Failure(AE.ae(AE.ERR_BAD_PARAMETER,"No such job: "+id),Status.NOT_FOUND);
+		Element elJob = job.xml(response.doc);
+		if (job.getState()==ImportJobs.State.succeeded)
+			try {
+				Element elObject = response.doc.createElement("object");
+				elObject.appendChild(response.doc.createTextNode(
+						uriInfo
+						.getBaseUriBuilder()
+						.path(ObjectResourceInterface.class)
+						.path(ObjectResourceInterface.class.getMethod("getObject", String.class))
+						.build(job.getResultHandle())
+						.toString()));
+				elJob.appendChild(elObject);
+			} catch (NoSuchMethodException e) {
+				return response.Failure(AE.ae(AE.ERR_UNEXPECTED,"URI building failed",e));
+			}
+		return response.Success(elJob);
+	}
+
+}
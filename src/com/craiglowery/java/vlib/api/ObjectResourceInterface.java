@@ -8,11 +8,19 @@ package com.craiglowery.java.vlib.api;
  *         
  */
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
 import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 
@@ -20,13 +28,16 @@ import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
@@ -34,6 +45,7 @@ import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathFactory;
@@ -52,6 +64,7 @@ import com.craiglowery.java.vlib.repository.ObjectsTuple;
 import com.craiglowery.java.vlib.repository.RepositoryManager;
 import com.craiglowery.java.vlib.repository.VersionsTuple;
 import com.craiglowery.java.vlib.repository.Object_tagsTuple;
+import com.craiglowery.java.vlib.repository.Tag_valuesTuple;
 import com.craiglowery.java.vlib.tuple.SelectionTransformer;
 
 /**
@@ -122,22 +135,25 @@ public class ObjectResourceInterface {
 	 * @return An XML {@code <objects/>} element.
 	 */
 	public Response getAllObjects() {
-		XmlResponse response = new XmlResponse();
-		Element elObjects = response.doc.createElement("objects");
-		
-		try (RepositoryManager rm = RepositoryManager.getRepositoryManager()){
-			SelectionTransformer<ObjectsTuple> st = new SelectionTransformer<ObjectsTuple>() {
-				public boolean action(ObjectsTuple ot) throws U_Exception {
-					elObjects.appendChild(describeObjectIntoXml(ot.handle, rm, response.doc));
-				return true;
-				}
-			};
-			
-			rm.applyToObjects("true", st);
-		} catch (Exception e) {
-			return response.Failure(e);
-		} 
-		return response.Success(elObjects);
+		//Each object is written as it is read, so the whole library is never held in memory
+		return new XmlStreamingResponse().Success((out) -> {
+			out.writer().writeStartElement("objects");
+			try (RepositoryManager rm = RepositoryManager.getRepositoryManager()){
+				SelectionTransformer<ObjectsTuple> st = new SelectionTransformer<ObjectsTuple>() {
+					public boolean action(ObjectsTuple ot) throws U_Exception {
+						try {
+							out.write(describeObjectIntoXml(ot.handle, rm, out.doc));
+						} catch (XMLStreamException e) {
+							throw new U_Exception(ERROR.Unexpected,e);
+						}
+					return true;
+					}
+				};
+				
+				rm.applyToObjects("true", st);
+			}
+			out.writer().writeEndElement();
+		});
 	}
 	
 	@GET
@@ -195,14 +211,26 @@ public class ObjectResourceInterface {
 	@Path("{shandle:[0-9]+}/download")
 	@Produces("application/octet-stream")
 	/**
-	 * REST API entry point for the GET /object/handle/download URI.
+	 * REST API entry point for the GET /object/handle/download URI.<p>
+	 * 
+	 * The content of a version never changes, so its SHA1 digest is returned as a strong
+	 * {@code ETag}, and the time it was imported as {@code Last-Modified}.  Conditional requests
+	 * ({@code If-None-Match}, {@code If-Modified-Since}, ...) are evaluated against them.  A
+	 * {@code Range} header is honored with a 206 (Partial Content) response, as a
+	 * {@code multipart/byteranges} body if more than one range is asked for.  See {@link ByteRanges}.
 	 * @param shandle The injected path parameter of the object sought.
 	 * @param sversioncount The optional injected query parameter of 
 	 * the version number.
+	 * @param range The injected {@code Range} header, if any.
+	 * @param ifRange The injected {@code If-Range} header, if any.
+	 * @param request The injected request, for evaluating preconditions.
 	 * @return
 	 */
 	public Response getObjectContent(@PathParam("shandle") String shandle,
-						 	  @QueryParam("versioncount") @DefaultValue("") String sversioncount) {
+						 	  @QueryParam("versioncount") @DefaultValue("") String sversioncount,
+						 	  @HeaderParam("Range") String range,
+						 	  @HeaderParam("If-Range") String ifRange,
+						 	  @Context Request request) {
 		XmlResponse response = new XmlResponse();
 		int handle = 0;
 		Integer versioncount = null;
@@ -237,35 +265,65 @@ public class ObjectResourceInterface {
 				throw new U_Exception(ERROR.NoSuchVersion,"versioncount='"+sversioncount+"'");
 			//We have located the version record.  Now to stream the contents
 			//of the file as our result.
-			//1. Does the file exist and can we open it?
+			//1. Does the file exist and can we read it?
 			File f=new File(vt.path);
-			InputStream tempis = null;
-			try {
-				tempis = new FileInputStream(vt.path);
-			} catch (Exception e) {
+			if (!f.isFile() || !f.canRead())
 				throw new U_Exception(ERROR.Unexpected,"content file is missing");
+			final String path = vt.path;
+			final long length = f.length();
+			
+			//2. Evaluate preconditions. HTTP dates have a resolution of one second.
+			EntityTag etag = vt.sha1sum==null || vt.sha1sum.isEmpty() ? null : new EntityTag(vt.sha1sum);
+			Date lastModified = Date.from(vt.imported.truncatedTo(ChronoUnit.SECONDS));
+			ResponseBuilder builder = etag==null ? request.evaluatePreconditions(lastModified) 
+												 : request.evaluatePreconditions(lastModified,etag);
+			if (builder!=null)   //304 Not Modified or 412 Precondition Failed
+				return builder.build();
+			
+			//3. Resolve the ranges, unless If-Range says the client's copy is out of date
+			ByteRanges ranges;
+			try {
+				ranges = ifRangeMatches(ifRange,etag,lastModified) ? ByteRanges.parse(range,length) : null;
+			} catch (ByteRanges.UnsatisfiableException e) {
+				return Response.status(Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+						.header("Content-Range", "bytes */"+length).header("Accept-Ranges", "bytes").build();
 			}
-			final InputStream is = tempis; 
-			//2. Create a lambda function to do the copy
-			final int BUFSZ = 5096;
-			StreamingOutput output = (OutputStream os) -> {				
-				byte[] buf = new byte[BUFSZ];
-				int bytesread = 0;
-				try {
-				while ( (bytesread=is.read(buf)) >=0 ) {
-					os.write(buf,0,bytesread);
-				}
-				//The above exits only on end-of-file
-				is.close();
-				os.close();
-				} catch (Exception e) {
-					throw new RuntimeException("Unexpected runtime exception",e);
-				}
-				
-			};
 			
-			//Build the response
-			ResponseBuilder builder = Response.ok().type(MediaType.APPLICATION_OCTET_STREAM).entity(output);
+			//4. Build the response
+			if (ranges==null) {
+				builder = Response.ok().type(MediaType.APPLICATION_OCTET_STREAM)
+						.header("Content-Length", Long.toString(length))
+						.entity((StreamingOutput)(OutputStream os) -> {
+							try (FileChannel fc = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+								transfer(fc,0,length-1,os);
+							}
+						});
+			} else if (ranges.ranges.size()==1) {
+				long[] only = ranges.ranges.get(0);
+				builder = Response.status(Status.PARTIAL_CONTENT).type(MediaType.APPLICATION_OCTET_STREAM)
+						.header("Content-Range", ranges.contentRange(only))
+						.header("Content-Length", Long.toString(only[1]-only[0]+1))
+						.entity((StreamingOutput)(OutputStream os) -> {
+							try (FileChannel fc = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+								transfer(fc,only[0],only[1],os);
+							}
+						});
+			} else {
+				builder = Response.status(Status.PARTIAL_CONTENT).type(ranges.multipartType())
+						.header("Content-Length", Long.toString(ranges.multipartLength()))
+						.entity((StreamingOutput)(OutputStream os) -> {
+							try (FileChannel fc = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+								for (long[] part : ranges.ranges) {
+									os.write(ranges.partHeader(part));
+									transfer(fc,part[0],part[1],os);
+								}
+								os.write(ranges.trailer());
+							}
+						});
+			}
+			if (etag!=null)
+				builder.tag(etag);
+			builder.lastModified(lastModified).header("Accept-Ranges", "bytes");
 			String filename = Util.sanitizedFilename(f.getName());
 			if (filename.length()==0)
 				filename="download.bin";
@@ -283,6 +341,47 @@ public class ObjectResourceInterface {
 		}
 	}
 	
+	/**
+	 * Determines if an {@code If-Range} header, which holds either an entity tag or a date, 
+	 * matches the current version, so that the ranges requested may be returned.
+	 * @return True if there is no header, or it matches.
+	 */
+	private static boolean ifRangeMatches(String ifRange, EntityTag etag, Date lastModified) {
+		if (ifRange==null)
+			return true;
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+			//Only a strong comparison is allowed
+			return etag!=null && ifRange.equals("\""+etag.getValue()+"\"");
+		try {
+			return Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(ifRange)).equals(lastModified.toInstant());
+		} catch (DateTimeException e) {
+			return false;
+		}
+	}
+	
+	/** The size of the buffer content is copied through **/
+	private static final int TRANSFER_BUFFER_SIZE = 256*1024;
+	
+	/**
+	 * Copies bytes {@code first} to {@code last}, inclusive, of a file to an output stream with
+	 * positional reads, so any number of ranges can be copied from one open channel.
+	 */
+	private static void transfer(FileChannel fc, long first, long last, OutputStream os) throws IOException {
+		if (last<first)
+			return;
+		ByteBuffer buf = ByteBuffer.allocate((int)Math.min(TRANSFER_BUFFER_SIZE, last-first+1));
+		for (long position=first; position<=last; ) {
+			buf.clear();
+			buf.limit((int)Math.min(buf.capacity(), last-position+1));
+			int bytesread = fc.read(buf, position);
+			if (bytesread<0)
+				throw new IOException("content file is shorter than expected");
+			os.write(buf.array(), 0, bytesread);
+			position += bytesread;
+		}
+	}
+	
 	
 	@PUT
 	@Path("{shandle:[0-9]+}")
@@ -307,6 +406,7 @@ public class ObjectResourceInterface {
 			return response.Failure(new AE(AE.ERR_BAD_PARAMETER,shandle,e),Status.BAD_REQUEST);
 		}
 		String transUuid = "-noid-";   //This is for debugging via stderr
+		RepositoryManager.TagDelta tagDelta = null;
 		try (RepositoryManager rm = RepositoryManager.getRepositoryManager()) {
 			VersionsTuple vt = rm.getLatestVersion(handle);
 			//Validate incoming content
@@ -349,10 +449,8 @@ public class ObjectResourceInterface {
 			// 4. If it has a <tags> element
 				node = (Node) xp.compile("/object/tags").evaluate(docin, XPathConstants.NODE);
 				if (node!=null) {
-			// 		 Delete all tag pairs for this handle
-					 for (Object_tagsTuple vtt : rm.getTagValuesForObject(handle))
-						 rm.untagObject(handle, vtt.name, vtt.value);
-			//       For each <tag> element, attempt to apply the tag.
+			//       Gather the pairs from each <tag> element
+					 List<Tag_valuesTuple> pairs = new ArrayList<Tag_valuesTuple>();
 					 NodeList nodes = (NodeList) xp.compile("tag").evaluate(node,XPathConstants.NODESET);
 					 if (nodes!=null) {
 						 for (int x=0; x<nodes.getLength(); x++) {
@@ -368,10 +466,14 @@ public class ObjectResourceInterface {
 							   | (value=nvalue.getNodeValue()).equals("")
 							   )
 								 throw new U_Exception(ERROR.BadParameter,"Malformed tag element");
-							 rm.tagObject(handle, name, value);
+							 Tag_valuesTuple tvt = new Tag_valuesTuple();
+							 tvt.name = name;
+							 tvt.value = value;
+							 pairs.add(tvt);
 						 }
 					 }
-
+			//       Replace the object's tags with them, writing only the differences
+					 tagDelta = rm.replaceTags(handle, pairs);
 				}
 			// 5. Commit the transaction
 				rm.commitTransaction();
@@ -405,6 +507,12 @@ public class ObjectResourceInterface {
 			return response.Failure(e);
 		}
 		Element elSuccess = response.doc.createElement("success");
+		if (tagDelta!=null) {
+			Element elTags = response.doc.createElement("tags");
+			elTags.setAttribute("added", Integer.toString(tagDelta.added));
+			elTags.setAttribute("removed", Integer.toString(tagDelta.removed));
+			elSuccess.appendChild(elTags);
+		}
 		return response.Success(elSuccess);
 	}
 
@@ -2,6 +2,8 @@ package com.craiglowery.java.vlib.api;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.regex.Pattern;
@@ -20,6 +22,8 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 import org.w3c.dom.Element;
 
@@ -84,48 +88,89 @@ public class QueryResourceInterface {
 			} catch(U_Exception e) {
 				return response.Failure(AE.ae(AE.ERR_BAD_PARAMETER,"includetags",e),Status.BAD_REQUEST);
 			}
-			Element elQuery=response.doc.createElement("query");
-			elQuery.setAttribute("select", String.join(", ",selectedAttributesS));
-			elQuery.setAttribute("where",where);
-			elQuery.setAttribute("orderby", orderby);
-			elQuery.setAttribute("includetags", includetags?"yes":"no");
+			rm.checkQuery(where, orderby);
 			
-			Element elObjects=response.doc.createElement("objects");
-			elQuery.appendChild(elObjects);
+			final Set<String> selectedAttributes = selectedAttributesS;
+			final String fwhere = where;
+			final String forderby = orderby;
+			final boolean fincludetags = includetags;
 			
-			for (VersionsTuple vt : rm.processQuery(where, orderby)) {
-				Element elObject=response.doc.createElement("object");
-				elObjects.appendChild(elObject);
-				Element elAttributes=response.doc.createElement("attributes");
+			//Stream the results as they are read, rather than building them into one document
+			return new XmlStreamingResponse().Success((out) -> {
+				XMLStreamWriter w = out.writer();
+				w.writeStartElement("query");
+				w.writeAttribute("select", String.join(", ",selectedAttributes));
+				w.writeAttribute("where",fwhere);
+				w.writeAttribute("orderby", forderby);
+				w.writeAttribute("includetags", fincludetags?"yes":"no");
+				w.writeStartElement("objects");
+				try (RepositoryManager qrm = RepositoryManager.getRepositoryManager()) {
+					List<VersionsTuple> batch = new ArrayList<VersionsTuple>(BATCH);
+					qrm.processQuery(fwhere, forderby, (vt) -> {
+						batch.add(vt);
+						if (batch.size()==BATCH)
+							writeObjects(out, qrm, batch, selectedAttributes, fincludetags);
+						return true;
+					});
+					writeObjects(out, qrm, batch, selectedAttributes, fincludetags);
+				}
+				w.writeEndElement();
+				w.writeEndElement();
+			});
+		} catch (U_Exception e) {
+			if (e.errorCode==ERROR.ExpressionError)
+				return response.Failure(AE.ae(AE.ERR_BAD_PARAMETER,e),Status.BAD_REQUEST);
+			return response.Failure(e);
+		} catch (Exception e) {
+			return response.Failure(AE.ae(AE.ERR_UNEXPECTED,e));
+		}
+	}
+	
+	/** The number of results written together, and whose tags are fetched together **/
+	private static final int BATCH = 500;
+	
+	/**
+	 * Writes a batch of results as {@code <object>} elements and empties the batch.
+	 */
+	private static void writeObjects(XmlStreamingResponse out, RepositoryManager rm, List<VersionsTuple> batch,
+			Set<String> selectedAttributes, boolean includetags) throws U_Exception
+	{
+		//Fetch the tags for the whole batch at once, rather than object by object
+		Map<Integer,List<Object_tagsTuple>> tags = null;
+		if (includetags) {
+			List<Integer> handles = new ArrayList<Integer>(batch.size());
+			for (VersionsTuple vt : batch)
+				handles.add(vt.handle);
+			tags = rm.getTagValuesForObjects(handles);
+		}
+		try {
+			for (VersionsTuple vt : batch) {
+				Element elObject=out.doc.createElement("object");
+				Element elAttributes=out.doc.createElement("attributes");
 				elObject.appendChild(elAttributes);
-				for (String attribute : selectedAttributesS) {
-					Element elAttribute = response.doc.createElement(attribute);
+				for (String attribute : selectedAttributes) {
+					Element elAttribute = out.doc.createElement(attribute);
 					Object value = vt.getAttributeValue(attribute);
 					if (value!=null)
 						elAttribute.setTextContent(value.toString());
 					elAttributes.appendChild(elAttribute);
 				}
 				if (includetags) {
-					Element elTags = response.doc.createElement("tags");
+					Element elTags = out.doc.createElement("tags");
 					elObject.appendChild(elTags);
-					for (Object_tagsTuple ott : rm.getTagValuesForObject(vt.handle)) {
-						Element elTag=response.doc.createElement("tag");
+					for (Object_tagsTuple ott : tags.get(vt.handle)) {
+						Element elTag=out.doc.createElement("tag");
 						elTag.setAttribute("name",ott.name);
 						elTag.setAttribute("value",ott.value);
 						elTags.appendChild(elTag);
 					}
 				}
+				out.write(elObject);
 			}
-			
-			return response.Success(elQuery);
-		} catch (U_Exception e) {
-			if (e.errorCode==ERROR.ExpressionError)
-				return response.Failure(AE.ae(AE.ERR_BAD_PARAMETER,e),Status.BAD_REQUEST);
-			return response.Failure(e);
-		} catch (Exception e) {
-			return response.Failure(AE.ae(AE.ERR_UNEXPECTED,e));
+		} catch (XMLStreamException e) {
+			throw new U_Exception(ERROR.Unexpected,e);
 		}
+		batch.clear();
 	}
-
 	
 }
@@ -8,6 +8,7 @@ import java.io.IOException;
  *         
  */
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
@@ -182,6 +183,7 @@ public class TagResourceInterface {
 			// Get all the tag subordinate elements
 			NodeList tags = (NodeList)xp.compile("/tags/tag").evaluate(docin, XPathConstants.NODESET);
 			try {
+				int newvalues=0;
 				rm.startTransaction();
 				for (int x=0; x<tags.getLength(); x++) {
 					Element elTag = (Element)(tags.item(x));
@@ -208,6 +210,7 @@ public class TagResourceInterface {
 					rm.createTag(name, type, description, browsing_priority);
 					//If there are value elements, add them
 					NodeList values = (NodeList)xp.compile("value").evaluate(elTag, XPathConstants.NODESET);
+					List<String> valueList = new ArrayList<String>(values.getLength());
 					for (int y=0; y<values.getLength(); y++) {
 						Node nodeValue = values.item(y).getFirstChild();
 						if (nodeValue==null || nodeValue.getNodeType()!=Node.TEXT_NODE)
@@ -215,11 +218,13 @@ public class TagResourceInterface {
 						String value = nodeValue.getNodeValue().trim();
 						if (value==null || value.length()==0 || !Util.isPrintableCharacters(value))
 							throw new U_Exception(ERROR.BadParameter,"value is null or has invalid characters",null);
-						rm.createTagValue(name, value);
+						valueList.add(value);
 					}
+					newvalues += rm.createTagValues(name, valueList);
 				}
 				rm.commitTransaction();
 				Element elSuccess = response.doc.createElement("success");
+				elSuccess.setAttribute("newvalues", Integer.toString(newvalues));
 				return response.Success(elSuccess,Status.OK);
 			} finally {
 				if (rm.transactionInProgress()) {
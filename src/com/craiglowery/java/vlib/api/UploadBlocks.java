@@ -0,0 +1,398 @@
+package com.craiglowery.java.vlib.api;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import com.craiglowery.java.vlib.common.U_Exception;
+import com.craiglowery.java.vlib.common.U_Exception.ERROR;
+import com.craiglowery.java.vlib.common.Util;
+
+/**
+ * Which parts of an upload's content have arrived, and what is known of their digests.<p>
+ *
+ * The byte ranges written so far are kept merged and in order, so the ranges still missing
+ * below the highest byte received can be reported, and blocks may be written in any order
+ * and in parallel.  The content is divided into blocks of a fixed size, and a block's SHA1
+ * digest is recorded once all of it has arrived.  Those blocks make up the bitmap of
+ * complete blocks.<p>
+ *
+ * A running SHA1 digest of the content is also kept, over the longest prefix of it that
+ * has arrived.  Blocks written in order are digested as they stream in, and blocks that
+ * close a gap are digested from the file.  When the content is finalized with no gaps, the
+ * running digest already holds the checksum of the whole of it, and the file need not be
+ * read again.  The running digest is held only in memory.  After a restart it begins again
+ * from the start of the content.<p>
+ *
+ * Instances are safe for use by concurrent requests.
+ */
+public class UploadBlocks {
+
+	/** The size of a block in bytes **/
+	public final int blockSize;
+
+	/** Received ranges, each {first, end} with end exclusive, in order and not touching **/
+	private final ArrayList<long[]> ranges = new ArrayList<long[]>();
+	/** The digest of each complete block, by block index **/
+	private final TreeMap<Integer,byte[]> digests = new TreeMap<Integer,byte[]>();
+
+	/** The running digest, covering bytes [0,prefixEnd) of the content **/
+	private MessageDigest prefix = null;
+	private long prefixEnd = 0;
+	/** Set while a request is adding to the running digest outside the lock **/
+	private boolean prefixBusy = false;
+	/** The end of the bytes the busy request will add **/
+	private long prefixClaimEnd = 0;
+	/** Set if bytes the running digest covers were written again while it was busy **/
+	private boolean prefixStale = false;
+
+	public UploadBlocks(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @return The position after the highest byte received.
+	 */
+	public synchronized long end() {
+		return ranges.isEmpty() ? 0 : ranges.get(ranges.size()-1)[1];
+	}
+
+	/**
+	 * @return True if every byte below {@link #end()} has been received.
+	 */
+	public synchronized boolean contiguous() {
+		return ranges.isEmpty() || (ranges.size()==1 && ranges.get(0)[0]==0);
+	}
+
+	/**
+	 * @return The ranges below {@link #end()} that have not been received, each {first, end}
+	 * with end exclusive.
+	 */
+	public synchronized List<long[]> missing() {
+		List<long[]> gaps = new ArrayList<long[]>();
+		long position = 0;
+		for (long[] r : ranges) {
+			if (r[0]>position)
+				gaps.add(new long[] {position, r[0]});
+			position = r[1];
+		}
+		return gaps;
+	}
+
+	/**
+	 * @return The digests of the complete blocks, by block index.
+	 */
+	public synchronized Map<Integer,byte[]> digests() {
+		return new TreeMap<Integer,byte[]>(digests);
+	}
+
+	/**
+	 * @return The complete blocks whose digests are known.
+	 */
+	public synchronized BitSet complete() {
+		BitSet bits = new BitSet();
+		for (int block : digests.keySet())
+			bits.set(block);
+		return bits;
+	}
+
+	/**
+	 * Records that a range has been written.  The digests of blocks it overlaps are forgotten,
+	 * and the running digest begins again if the range rewrites bytes it covers.
+	 * @param first The position of the first byte written.
+	 * @param end The position after the last byte written.
+	 * @param digested True if the range was added to the running digest by the request that
+	 * holds it.
+	 * @return The blocks the range overlaps that are now complete, and so need their digests
+	 * recorded.
+	 */
+	synchronized List<Integer> add(long first, long end, boolean digested) {
+		List<Integer> full = new ArrayList<Integer>();
+		if (end<=first)
+			return full;
+		if (!digested)
+			rewritten(first);
+		//Merge with every range that overlaps or touches
+		long mfirst = first, mend = end;
+		int at = 0;
+		while (at<ranges.size() && ranges.get(at)[1]<first)
+			at++;
+		while (at<ranges.size() && ranges.get(at)[0]<=end) {
+			long[] r = ranges.remove(at);
+			mfirst = Math.min(mfirst, r[0]);
+			mend = Math.max(mend, r[1]);
+		}
+		ranges.add(at, new long[] {mfirst, mend});
+		for (int b=(int)(first/blockSize); b<=(int)((end-1)/blockSize); b++) {
+			digests.remove(b);
+			if ((long)b*blockSize>=mfirst && (long)(b+1)*blockSize<=mend)
+				full.add(b);
+		}
+		return full;
+	}
+
+	/**
+	 * Records that a range may have been partly written without being received, as when a
+	 * write fails part way.  The digests of blocks it overlaps are forgotten, and the running
+	 * digest begins again if the range rewrites bytes it covers, so that the checksum is
+	 * computed from the file.
+	 * @param first The position of the first byte that may have been written.
+	 * @param end The position after the last byte that may have been written.
+	 */
+	synchronized void overwritten(long first, long end) {
+		if (end<=first)
+			return;
+		rewritten(first);
+		for (int b=(int)(first/blockSize); b<=(int)((end-1)/blockSize); b++)
+			digests.remove(b);
+	}
+
+	/**
+	 * Begins the running digest again if bytes from {@code first} on may be covered by it, or
+	 * will be once the request holding it is done.
+	 */
+	private void rewritten(long first) {
+		if (first < (prefixBusy ? Math.max(prefixEnd,prefixClaimEnd) : prefixEnd)) {
+			if (prefixBusy)
+				prefixStale = true;
+			else
+				resetPrefix();
+		}
+	}
+
+	/**
+	 * Records the digest of a complete block.
+	 */
+	synchronized void digest(int block, byte[] digest) {
+		digests.put(block, digest);
+	}
+
+	/**
+	 * Claims the running digest for a request that is about to write from {@code offset}, so
+	 * that the bytes can be digested as they stream in.  The claim must be ended with
+	 * {@link #releasePrefix(long)}.
+	 * @param offset Where the write begins.
+	 * @param end Where the write is expected to end.
+	 * @return The running digest, or null if the write does not continue the digested prefix or
+	 * another request holds the digest.
+	 */
+	synchronized MessageDigest claimPrefix(long offset, long end) {
+		if (prefix==null && !prefixBusy)
+			resetPrefix();
+		if (prefix==null || prefixBusy || offset!=prefixEnd)
+			return null;
+		prefixBusy = true;
+		prefixClaimEnd = end;
+		return prefix;
+	}
+
+	/**
+	 * Ends a claim on the running digest.
+	 * @param end The position after the last byte added to the digest, or a negative number
+	 * if the bytes added cannot be relied on.
+	 */
+	synchronized void releasePrefix(long end) {
+		prefixBusy = false;
+		if (prefixStale || end<0)
+			resetPrefix();
+		else
+			prefixEnd = end;
+	}
+
+	private void resetPrefix() {
+		prefix = null;
+		prefixEnd = 0;
+		prefixStale = false;
+		try {
+			prefix = Util.newChecksumDigest();
+		} catch (U_Exception e) {
+			/* leaves the content to be digested from the file */
+		}
+	}
+
+	/**
+	 * Extends the running digest over any bytes that have arrived contiguously beyond it, by
+	 * reading them from the file.
+	 * @param content The upload's content file.
+	 * @throws U_Exception
+	 */
+	void advancePrefix(File content) throws U_Exception {
+		long from, to;
+		MessageDigest md;
+		synchronized (this) {
+			if (ranges.isEmpty() || ranges.get(0)[0]!=0)
+				return;
+			to = ranges.get(0)[1];
+			if ((md=claimPrefix(prefixEnd,to))==null)
+				return;
+			from = prefixEnd;
+			if (from>=to) {
+				prefixBusy = false;
+				return;
+			}
+		}
+		try {
+			digestRange(content, from, to, md);
+		} catch (U_Exception e) {
+			releasePrefix(-1);
+			throw e;
+		}
+		releasePrefix(to);
+	}
+
+	/**
+	 * @return The checksum of the content if the running digest covers all of it with no gaps,
+	 * otherwise null.
+	 */
+	synchronized String checksum() {
+		if (prefix==null || prefixBusy || !contiguous() || prefixEnd!=end())
+			return null;
+		try {
+			return Util.checksumFromDigest((MessageDigest)prefix.clone());
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Computes the digest of one block from the file.
+	 */
+	byte[] digestBlock(File content, int block) throws U_Exception {
+		MessageDigest md = Util.newChecksumDigest();
+		digestRange(content, (long)block*blockSize, (long)(block+1)*blockSize, md);
+		return md.digest();
+	}
+
+	private static void digestRange(File content, long from, long to, MessageDigest md) throws U_Exception {
+		try (FileChannel fc = FileChannel.open(content.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(256*1024);
+			long position = from;
+			while (position<to) {
+				buffer.clear();
+				buffer.limit((int)Math.min(buffer.capacity(), to-position));
+				int n = fc.read(buffer, position);
+				if (n<0)
+					throw new U_Exception(ERROR.IOError,"Upload content is shorter than the bytes received");
+				buffer.flip();
+				md.update(buffer);
+				position += n;
+			}
+		} catch (IOException e) {
+			throw new U_Exception(ERROR.IOError,e);
+		}
+	}
+
+	/**
+	 * Digests the content of one write as it streams to the file: into the running digest if
+	 * the request holds it, and into a digest for each whole block the write covers.
+	 */
+	class Receiver implements Consumer<ByteBuffer> {
+		private final MessageDigest prefix;
+		private long position;
+		private MessageDigest block = null;
+		/** The digests of the whole blocks written, by block index **/
+		final Map<Integer,byte[]> digests = new HashMap<Integer,byte[]>();
+
+		/**
+		 * @param offset Where the write begins.
+		 * @param prefix The running digest, if claimed for this write, or null.
+		 */
+		Receiver(long offset, MessageDigest prefix) {
+			this.position = offset;
+			this.prefix = prefix;
+		}
+
+		/**
+		 * @return The position after the last byte passed to the receiver, which is past every
+		 * byte that may have reached the file.
+		 */
+		long end() {
+			return position;
+		}
+
+		@Override
+		public void accept(ByteBuffer chunk) {
+			if (prefix!=null)
+				prefix.update(chunk.duplicate());
+			while (chunk.hasRemaining()) {
+				int into = (int)(position % blockSize);
+				if (into==0) {
+					try {
+						block = Util.newChecksumDigest();
+					} catch (U_Exception e) {
+						block = null;
+					}
+				}
+				int n = Math.min(chunk.remaining(), blockSize-into);
+				if (block!=null) {
+					ByteBuffer part = chunk.duplicate();
+					part.limit(part.position()+n);
+					block.update(part);
+				}
+				chunk.position(chunk.position()+n);
+				position += n;
+				if (position % blockSize == 0 && block!=null) {
+					digests.put((int)(position/blockSize-1), block.digest());
+					block = null;
+				}
+			}
+		}
+	}
+
+	synchronized void write(DataOutputStream dos) throws IOException {
+		dos.writeInt(blockSize);
+		dos.writeInt(ranges.size());
+		for (long[] r : ranges) {
+			dos.writeLong(r[0]);
+			dos.writeLong(r[1]);
+		}
+		writeDigests(dos, digests);
+	}
+
+	static UploadBlocks read(DataInputStream dis) throws IOException {
+		UploadBlocks blocks = new UploadBlocks(dis.readInt());
+		for (int n=dis.readInt(); n>0; n--)
+			blocks.ranges.add(new long[] {dis.readLong(), dis.readLong()});
+		blocks.digests.putAll(readDigests(dis));
+		return blocks;
+	}
+
+	static void writeDigests(DataOutputStream dos, Map<Integer,byte[]> digests) throws IOException {
+		dos.writeInt(digests.size());
+		for (Map.Entry<Integer,byte[]> e : digests.entrySet()) {
+			dos.writeInt(e.getKey());
+			dos.writeByte(e.getValue().length);
+			dos.write(e.getValue());
+		}
+	}
+
+	static Map<Integer,byte[]> readDigests(DataInputStream dis) throws IOException {
+		Map<Integer,byte[]> digests = new HashMap<Integer,byte[]>();
+		for (int n=dis.readInt(); n>0; n--) {
+			int block = dis.readInt();
+			byte[] digest = new byte[dis.readUnsignedByte()];
+			dis.readFully(digest);
+			digests.put(block, digest);
+		}
+		return digests;
+	}
+
+}
@@ -0,0 +1,136 @@
+package com.craiglowery.java.vlib.api;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.craiglowery.java.vlib.common.Util;
+
+/**
+ * Unit test for tracking the blocks of an upload.  Writes go to a temporary file the way
+ * the upload resource writes them, without the journal.
+ *
+ */
+public class UploadBlocksTest {
+
+	private static final int BLOCK = 1000;
+
+	@Test
+	public void ranges() {
+		UploadBlocks blocks = new UploadBlocks(BLOCK);
+		assertTrue(blocks.contiguous());
+		assertTrue(blocks.add(1500, 2500, false).isEmpty());
+		assertEquals(2500, blocks.end());
+		assertFalse(blocks.contiguous());
+		assertEquals(Arrays.asList(1), blocks.add(500, 1500, false));
+		assertArrayEquals(new long[] {0,500}, blocks.missing().get(0));
+		assertEquals(Arrays.asList(0), blocks.add(0, 500, false));
+		assertTrue(blocks.contiguous());
+		assertTrue(blocks.missing().isEmpty());
+		//Rewriting a block forgets its digest and offers it again
+		blocks.digest(0, new byte[] {0});
+		blocks.digest(1, new byte[] {1});
+		assertEquals(Arrays.asList(0), blocks.add(100, 200, false));
+		assertEquals(1, blocks.digests().size());
+		assertTrue(blocks.complete().get(1));
+	}
+
+	/**
+	 * Writes the content in blocks of random sizes, in order and then shuffled, and checks the
+	 * block digests and the checksum against those of the whole file.
+	 */
+	@Test
+	public void digests() throws Exception {
+		byte[] content = new byte[10*BLOCK+321];
+		new Random(2).nextBytes(content);
+		for (boolean shuffle : new boolean[] {false, true}) {
+			File f = File.createTempFile("upload", "");
+			f.deleteOnExit();
+			UploadBlocks blocks = new UploadBlocks(BLOCK);
+			List<int[]> writes = new ArrayList<int[]>();
+			Random r = new Random(3);
+			for (int at=0; at<content.length; ) {
+				int n = Math.min(content.length-at, 1+r.nextInt(2500));
+				writes.add(new int[] {at, n});
+				at += n;
+			}
+			if (shuffle)
+				Collections.shuffle(writes, r);
+			for (int[] w : writes) {
+				MessageDigest prefix = blocks.claimPrefix(w[0], w[0]+w[1]);
+				UploadBlocks.Receiver receiver = blocks.new Receiver(w[0], prefix);
+				long written = Util.copyStreamToFileAtPosition(new ByteArrayInputStream(content, w[0], w[1]), f, w[0], receiver);
+				assertEquals(w[1], written);
+				for (int block : blocks.add(w[0], w[0]+written, prefix!=null)) {
+					byte[] digest = receiver.digests.get(block);
+					blocks.digest(block, digest!=null ? digest : blocks.digestBlock(f, block));
+				}
+				if (prefix!=null)
+					blocks.releasePrefix(w[0]+written);
+				blocks.advancePrefix(f);
+			}
+			assertTrue(blocks.contiguous());
+			assertEquals(content.length, blocks.end());
+			assertArrayEquals(content, Files.readAllBytes(f.toPath()));
+			assertEquals(Util.computeChecksum(f.getAbsolutePath()), blocks.checksum());
+			assertEquals(10, blocks.digests().size());
+			for (int b=0; b<10; b++) {
+				MessageDigest md = Util.newChecksumDigest();
+				md.update(content, b*BLOCK, BLOCK);
+				assertArrayEquals(md.digest(), blocks.digests().get(b));
+			}
+		}
+	}
+
+	@Test
+	public void rewriteRestartsChecksum() throws Exception {
+		UploadBlocks blocks = new UploadBlocks(BLOCK);
+		MessageDigest prefix = blocks.claimPrefix(0, 100);
+		prefix.update(new byte[100]);
+		blocks.add(0, 100, true);
+		blocks.releasePrefix(100);
+		assertNotNull(blocks.checksum());
+		blocks.add(50, 60, false);
+		assertNull(blocks.checksum());
+	}
+
+	/**
+	 * A write that fails part way over digested bytes must not leave their digests standing.
+	 */
+	@Test
+	public void failedWriteForgetsDigests() throws Exception {
+		UploadBlocks blocks = new UploadBlocks(BLOCK);
+		MessageDigest prefix = blocks.claimPrefix(0, 3*BLOCK);
+		prefix.update(new byte[3*BLOCK]);
+		for (int b : blocks.add(0, 3*BLOCK, true))
+			blocks.digest(b, new byte[] {(byte)b});
+		blocks.releasePrefix(3*BLOCK);
+		assertNotNull(blocks.checksum());
+		assertEquals(3, blocks.digests().size());
+
+		blocks.overwritten(BLOCK+10, BLOCK+20);
+		assertNull(blocks.checksum());
+		assertEquals(Arrays.asList(0,2), new ArrayList<Integer>(blocks.digests().keySet()));
+		assertTrue("the range is not received again", blocks.missing().isEmpty());
+		assertEquals(3*BLOCK, blocks.end());
+		//The running digest starts over and is rebuilt from the file
+		assertNotNull(blocks.claimPrefix(0, BLOCK));
+	}
+
+}
@@ -1,14 +1,18 @@
 package com.craiglowery.java.vlib.api;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URI;
+import java.security.MessageDigest;
 import java.time.Instant;
-import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
@@ -29,31 +33,16 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
-import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
-import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriInfo;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
 
 import com.craiglowery.java.vlib.common.Config;
 import com.craiglowery.java.vlib.common.ConfigurationKey;
+import com.craiglowery.java.vlib.common.L;
 import com.craiglowery.java.vlib.common.LambdaTwoStrings;
 import com.craiglowery.java.vlib.common.U_Exception;
 import com.craiglowery.java.vlib.common.U_Exception.ERROR;
@@ -77,6 +66,25 @@ public class UploadResourceInterface {
 	private UriInfo uriInfo;
 
 	private String callerid = "user0";  //Need to replace with injected caller ID
+
+	/** Serializes writes to each upload with finalizing and cancelling it; see {@link #uploadLock(String)} **/
+	private static final ReadWriteLock[] uploadLocks = new ReadWriteLock[64];
+	static {
+		for (int i=0; i<uploadLocks.length; i++)
+			uploadLocks[i] = new ReentrantReadWriteLock();
+	}
+
+	/**
+	 * Returns the lock for an upload.  Block writes hold it shared from checking that the upload
+	 * is not being imported until the write is recorded.  Finalizing, cancelling and computing
+	 * the checksum hold it exclusively, so they wait for writes under way, and no write begins
+	 * until the import job has been submitted or the checksum recorded.  Uploads whose keys hash alike share a lock.
+	 * @param key The key of the upload.
+	 * @return The lock.
+	 */
+	private static ReadWriteLock uploadLock(String key) {
+		return uploadLocks[(key.hashCode() & 0x7fffffff) % uploadLocks.length];
+	}
 	
 
 	
@@ -90,7 +98,6 @@ public class UploadResourceInterface {
 		XmlResponse response = new XmlResponse();
 		try {
 			UR ur = new UR(handle);
-			ur.copyToXml();
 			String redirect = uriInfo.getAbsolutePath().toString()+"/"+ur.key;
 			return response.Redirect(redirect,ur.getXmlRoot(response.doc));
 		} catch (U_Exception e) {
@@ -119,14 +126,26 @@ public class UploadResourceInterface {
 			UR ur = new UR(key);
 			boolean computechecksum=Util.parseBoolean(scomputechecksum);
 			if (computechecksum && (ur.checksum==null || ur.checksum.equals(""))) {
+				// No write may change the content between hashing it and recording the checksum,
+				// or the checksum recorded would overwrite the reset made for the write
+				Lock hashing = uploadLock(key).writeLock();
+				hashing.lock();
 				try {
-					ur.checksum=Util.computeChecksum(URBaseFilename(key));
-				} catch (Exception e) {
-					return response.Failure(AE.ae(AE.ERR_UNEXPECTED,"While computing checksum",e));
+					ur = new UR(key);
+					if (ur.checksum==null || ur.checksum.equals("")) {
+						try {
+							String known = ur.blocks.checksum();
+							ur.checksum = known!=null ? known : Util.computeChecksum(URBaseFilename(key));
+						} catch (Exception e) {
+							return response.Failure(AE.ae(AE.ERR_UNEXPECTED,"While computing checksum",e));
+						}
+						ur.persist();
+					}
+				} finally {
+					hashing.unlock();
 				}
 			}
-			ur.persist();
-			Element elUr = ur.getXmlRoot(response.doc);
+			Element elUr = ur.getXmlRoot(response.doc,true);
 			return response.Success(elUr);
 		} catch (U_Exception e) {
 			if (e.errorCode==ERROR.ParserError)
@@ -149,7 +168,7 @@ public class UploadResourceInterface {
 	@Produces("application/xml")
 	public Response putBlock(
 			@PathParam("key") String key,
-			@PathParam("offset") int offset,
+			@PathParam("offset") long offset,
 			@QueryParam("computechecksum") @DefaultValue("no") String scomputechecksum,
 			InputStream input
 			) {
@@ -183,27 +202,59 @@ public class UploadResourceInterface {
 			if (e.errorCode==ERROR.NoSuchFile)
 				return response.Failure(AE.ae(AE.ERR_UNKNOWN_UR_KEY,e),Status.NOT_FOUND);
 		}
-		// Seek and write
-		File f = null;
+		// The content may not change once it is being imported.  The upload's lock is held
+		// until the write is recorded, so that finalizing waits for writes under way.
+		Lock writing = uploadLock(key).readLock();
+		writing.lock();
 		try {
-			f=new File(URBaseFilename(ur.key));
-			Util.copyStreamToFileAtPosition(input, f, offset);
-		} catch (U_Exception e) {
-			return response.Failure(AE.ae(AE.ERR_INTERNAL_IO_ERROR,e));
-		}
-		// Update and persist the UR
-		ur.checksum="";
-		ur.lastactivity=Instant.now();
-		ur.size=f.length();
-		try {
-			ur.persist();
-		} catch (U_Exception e) {
-			return response.Failure(AE.ae(AE.ERR_INTERNAL_IO_ERROR,e));
+			if (importing(key))
+				return response.Failure(AE.ae(AE.ERR_BAD_PARAMETER,"Upload has been finalized and is being imported"),Status.CONFLICT);
+			// Seek and write, digesting the content as it passes.  If this block continues the part
+			// of the content already digested, it is added to the running digest as well.
+			UploadBlocks blocks = ur.blocks;
+			MessageDigest prefix = blocks.claimPrefix(offset, offset+contentLength);
+			UploadBlocks.Receiver receiver = blocks.new Receiver(offset, prefix);
+			long prefixEnd = -1;
+			boolean recorded = false;
+			try {
+				File f=new File(URBaseFilename(ur.key));
+				long written = Util.copyStreamToFileAtPosition(input, f, offset, receiver);
+				// Record the range, then digest any blocks it completed that were not written whole
+				UploadStateStore store = UploadStateStore.getStore();
+				List<Integer> full = store.received(ur.key, offset, offset+written, prefix!=null, receiver.digests);
+				recorded = true;
+				prefixEnd = offset+written;
+				Map<Integer,byte[]> digests = new HashMap<Integer,byte[]>();
+				for (int block : full)
+					digests.put(block, blocks.digestBlock(f, block));
+				store.digested(ur.key, digests);
+				if (prefix!=null) {
+					blocks.releasePrefix(prefixEnd);
+					prefix = null;
+				}
+				blocks.advancePrefix(f);
+				ur = new UR(ur.key);
+			} catch (U_Exception e) {
+				return response.Failure(AE.ae(AE.ERR_INTERNAL_IO_ERROR,e));
+			} finally {
+				// A failed write may have changed bytes that were already digested
+				if (!recorded)
+					try {
+						UploadStateStore.getStore().overwritten(ur.key, offset, receiver.end());
+					} catch (U_Exception e) {
+						blocks.overwritten(offset, receiver.end());
+						L.log(L.W, this, "Could not record failed write to upload %s: %s", ur.key, e.getMessage());
+					}
+				if (prefix!=null)
+					blocks.releasePrefix(prefixEnd);
+			}
+		} finally {
+			writing.unlock();
 		}
 		// Return the UR
 		Element root = null;
 		try {
-			root = ur.getXmlRoot(response.doc);
+			root = ur.getXmlRoot(response.doc,false);
 		} catch (U_Exception e) {
 			return response.Failure(AE.ae(AE.ERR_INTERNAL_IO_ERROR,e));
 		}
@@ -230,84 +281,79 @@ public class UploadResourceInterface {
 		} catch (U_Exception e1) {
 			return response.Failure(AE.ae(AE.ERR_BAD_PARAMETER,"duplicatecheck='"+sduplicatecheck+"'"),Status.BAD_REQUEST);
 		}
-		UR ur = null;
+		// No write may be under way while the upload is checked and submitted
+		ImportJobs.Job job;
+		Lock finalizing = uploadLock(key).writeLock();
+		finalizing.lock();
 		try {
-			ur = new UR(key);
-		} catch (U_Exception e) {
-			if (e.errorCode==ERROR.NoSuchFile)
-				return response.Failure(AE.ae(AE.ERR_UNKNOWN_UR_KEY,e),Status.NOT_FOUND);
-		}
-		UriBuilder redirector=null;
-		try {
-		 redirector = 
-				uriInfo
-				.getBaseUriBuilder()
-				.path(ObjectResourceInterface.class)
-				.path(ObjectResourceInterface.class.getMethod("getObject", String.class));
-		} catch (NoSuchMethodException e) {
-			return response.Failure(AE.ae(AE.ERR_UNEXPECTED,"URI building failed",e));
-		}
-
-		try {
-			Document doc = Util.buildXmlFromInput(input);
-			XP xp = new XP(doc);
-			//Must have an /upload/filename element that is 
-			//  1. non empty/ non-null
-			//  2. Has no path separators in it "/" or "\"
-			//  3. Has a valid media extension
-			String filename = xp.el_text("/upload/filename").trim();
-			if (filename.equals("") ||
-				filename.contains("/") ||
-				filename.contains("\\") ||
-				Util.endsWithKnownVideoExtension(filename)==null)
-				return response.Failure(AE.ae(AE.ERR_BAD_PARAMETER,"Invalid filename: '"+filename+"'"));
-			ur.filename=filename;
-			//Is there a title specified?
-			String title = xp.el_text("upload/title").trim();
-			//Derive if not, and there wasn't one carried over from the previous version
-			if (!title.equals("")) {
-				ur.title=title;
-			} else if (ur.title.equals(""))
-				ur.title=Util.deriveTitle(filename);
-			//Try to identify the URI we'll return later - we won't be able
-			//to return an error after we invoke the repository
-			try (RepositoryManager rm = RepositoryManager.getRepositoryManager()) {
-				if (ur.handle!=0) {
-					rm.updateObject(ur.handle, ur.f_content.getAbsolutePath(),ur.filename, ur.title, duplicatecheck);
-				} else {
-					ur.handle=rm.createObject(ur.f_content.getAbsolutePath(), ur.filename, title, duplicatecheck);
-				}
+			UR ur = null;
+			try {
+				ur = new UR(key);
 			} catch (U_Exception e) {
-				switch (e.errorCode) {
-					case PotentialDuplicate: return response.Failure(AE.ae(AE.ERR_DUPLICATE,e),Status.BAD_REQUEST);
-					default: return response.Failure(AE.ae(AE.ERR_UNEXPECTED,e));
+				if (e.errorCode==ERROR.NoSuchFile)
+					return response.Failure(AE.ae(AE.ERR_UNKNOWN_UR_KEY,e),Status.NOT_FOUND);
+			}
+			// Every byte up to the end of the content must have arrived
+			List<long[]> missing = ur.blocks.missing();
+			if (!missing.isEmpty())
+				return response.Failure(AE.ae(AE.ERR_BAD_PARAMETER,String.format(
+						"Upload is missing %d range(s), the first being bytes %d-%d",
+						missing.size(), missing.get(0)[0], missing.get(0)[1]-1)),Status.BAD_REQUEST);
+			try {
+				Document doc = Util.buildXmlFromInput(input);
+				XP xp = new XP(doc);
+				//Must have an /upload/filename element that is 
+				//  1. non empty/ non-null
+				//  2. Has no path separators in it "/" or "\"
+				//  3. Has a valid media extension
+				String filename = xp.el_text("/upload/filename").trim();
+				if (filename.equals("") ||
+					filename.contains("/") ||
+					filename.contains("\\") ||
+					Util.endsWithKnownVideoExtension(filename)==null)
+					return response.Failure(AE.ae(AE.ERR_BAD_PARAMETER,"Invalid filename: '"+filename+"'"));
+				ur.filename=filename;
+				//Is there a title specified?
+				String title = xp.el_text("upload/title").trim();
+				//Derive if not, and there wasn't one carried over from the previous version
+				if (!title.equals("")) {
+					ur.title=title;
+				} else if (ur.title.equals(""))
+					ur.title=Util.deriveTitle(filename);
+				//If the content was digested as it arrived, the repository need not read it again.
+				//The digest is preferred to a checksum recorded by getUR().
+				String checksum = ur.blocks.checksum();
+				if (checksum==null && !ur.checksum.equals(""))
+					checksum = ur.checksum;
+				//The import runs in the background; the upload is discarded when it succeeds.
+				//The uploaded content is moved into the library rather than copied, since it
+				//is discarded afterwards anyway
+				try {
+					job = ImportJobs.getJobs().submit(ur.key, ur.handle, ur.f_content.getAbsolutePath(),
+							ur.filename, ur.title, duplicatecheck, checksum);
+				} catch (U_Exception e) {
+					if (e.errorCode==ERROR.Timeout)
+						return response.Failure(AE.ae(AE.ERR_UNEXPECTED,e),Status.SERVICE_UNAVAILABLE);
+					return response.Failure(AE.ae(AE.ERR_UNEXPECTED,e));
 				}
-			} catch (Exception e) {
-				return response.Failure(AE.ae(AE.ERR_UNEXPECTED,e));
+			} catch (U_Exception e) {
+				return response.Failure(AE.ae(AE.ERR_XML_PARSE_ERROR,"Uploaded XML not parseable",e),Status.BAD_REQUEST);
 			}
-
-		} catch (U_Exception e) {
-			return response.Failure(AE.ae(AE.ERR_XML_PARSE_ERROR,"Uploaded XML not parseable",e),Status.BAD_REQUEST);
+		} finally {
+			finalizing.unlock();
 		}
-		/** Make a best effort to clean up **/
+		String location;
 		try {
-			ur.f_content.delete();
-			ur.f_xml.delete();
-		} catch (Exception e) {
-			/* ignore */
-		}
-		Node elUpload = null;
-		try {
-			ur.copyToXml();
-			elUpload=ur.getXmlRoot(response.doc);
-		} catch (U_Exception e) {
-			elUpload=response.doc.createTextNode("Upload descriptor not available - "+e.getMessage());
+			location = uriInfo
+					.getBaseUriBuilder()
+					.path(JobResourceInterface.class)
+					.path(JobResourceInterface.class.getMethod("getJob", String.class))
+					.build(job.id)
+					.toString();
+		} catch (NoSuchMethodException e) {
+			return response.Failure(AE.ae(AE.ERR_UNEXPECTED,"URI building failed",e));
 		}
-		String redirect = uriInfo.getBaseUri().toString();
-		try {
-			redirect=redirector.build(ur.handle).toString();
-		} catch (Exception e) {}
-		return response.Redirect(redirect, elUpload);
+		return response.Accepted(location, job.xml(response.doc));
 	}
 	
 	@DELETE
@@ -325,11 +371,18 @@ public class UploadResourceInterface {
 				return response.Failure(AE.ae(AE.ERR_UNKNOWN_UR_KEY,e),Status.NOT_FOUND);
 			return response.Failure(AE.ae(AE.ERR_UNEXPECTED,e));
 		}
+		Lock discarding = uploadLock(key).writeLock();
+		discarding.lock();
 		try {
-			ur.f_content.delete();
-			ur.f_xml.delete();
-		} catch (Exception e) {
-			/* ignore */
+			if (importing(key))
+				return response.Failure(AE.ae(AE.ERR_BAD_PARAMETER,"Upload has been finalized and is being imported"),Status.CONFLICT);
+			try {
+				ur.discard();
+			} catch (Exception e) {
+				/* ignore */
+			}
+		} finally {
+			discarding.unlock();
 		}
 		Element elSuccess=response.doc.createElement("success");
 		return response.Success(elSuccess);
@@ -337,17 +390,28 @@ public class UploadResourceInterface {
 	
 //--------------- UR Object nested class
 	
+	/**
+	 * Determines if an upload has an import job that is queued or running.
+	 * @param key The key of the upload.
+	 * @return True if it does.
+	 */
+	private boolean importing(String key) {
+		try {
+			return ImportJobs.getJobs().activeJobFor(key)!=null;
+		} catch (U_Exception e) {
+			return false;
+		}
+	}
+	
 	private String URBaseFilename(String key) throws U_Exception {
 		return (new File(Config.getString(ConfigurationKey.SUBDIR_REPO_UPLOAD),key+"-"+callerid)).getAbsolutePath();
 	}
 
-	private interface GetHelper {
-		String op(String name) throws U_Exception;
-	}
-
+	/**
+	 * An upload resource: its content file, and its state, which is kept in the
+	 * {@link UploadStateStore}.
+	 */
 	private class UR {
-		DocumentBuilder db;
-		Document doc;
 		String key;
 		int handle;
 		String filename;
@@ -356,9 +420,9 @@ public class UploadResourceInterface {
 		Instant lastactivity;
 		long size;
 		String checksum;
+		UploadBlocks blocks;
 		
 		File f_content;
-		File f_xml;
 		
 		/** Creates a new UR with given handle and persists it.
 		 * 
@@ -369,76 +433,91 @@ public class UploadResourceInterface {
 		 * @throws U_Exception
 		 */
 		public UR(int handle) throws U_Exception {
-			try {
-				title="";
-				if (handle!=0) {
-					try (RepositoryManager rm = RepositoryManager.getRepositoryManager()) {
-						if (!rm.objectExists(handle))
-							throw new U_Exception(ERROR.NoSuchHandle,Integer.toString(handle));
-						VersionsTuple vt = rm.getLatestVersion(handle);
-						title=vt.title;
-					} catch (U_Exception e) {
-						throw e;
-					} catch (Exception e) {
-						throw new U_Exception(ERROR.Unexpected,e);
-					}
+			title="";
+			if (handle!=0) {
+				try (RepositoryManager rm = RepositoryManager.getRepositoryManager()) {
+					if (!rm.objectExists(handle))
+						throw new U_Exception(ERROR.NoSuchHandle,Integer.toString(handle));
+					VersionsTuple vt = rm.getLatestVersion(handle);
+					title=vt.title;
+				} catch (U_Exception e) {
+					throw e;
+				} catch (Exception e) {
+					throw new U_Exception(ERROR.Unexpected,e);
 				}
-				int tries=10;
-				do {
-					key=UUID.randomUUID().toString().substring(0, 8);
-					String basename = URBaseFilename(key);
-					f_content = new File(basename);
-					f_xml = new File(basename+".xml");
-					try {
-						if (f_content.createNewFile() && f_xml.createNewFile())
+			}
+			this.handle=handle;
+			filename="";
+			initiated=Instant.now();
+			lastactivity=Instant.now();
+			size=0;
+			checksum="";				
+			int blockSize = Config.getInt(ConfigurationKey.UPLOAD_BLOCK_SIZE);
+			if (blockSize<=0)
+				throw new U_Exception(ERROR.ConfigurationError,"UPLOAD_BLOCK_SIZE must be positive");
+			blocks=new UploadBlocks(blockSize);
+			UploadStateStore store = UploadStateStore.getStore();
+			int tries=10;
+			do {
+				key=UUID.randomUUID().toString().substring(0, 8);
+				f_content = new File(URBaseFilename(key));
+				try {
+					if (f_content.createNewFile()) {
+						if (store.create(state()))
 							break;
-					} catch (IOException e) {
-						/* ignore */
+						f_content.delete();
 					}
-					if (--tries == 0)
-						throw new U_Exception(ERROR.FileError,"Unable to create temporary files after multiple tries");
-				} while (tries>0);
-				this.handle=handle;
-				filename="";
-				initiated=Instant.now();
-				lastactivity=Instant.now();
-				size=0;
-				checksum="";				
-				DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-				dbf.setValidating(false);
-				dbf.setIgnoringComments(true);
-				db = dbf.newDocumentBuilder();
-				doc = db.newDocument();
-				persist();
-			} catch (ParserConfigurationException e) {
-				throw new U_Exception(ERROR.ParserError,e);				
-			}
+				} catch (IOException e) {
+					/* ignore */
+				}
+				if (--tries == 0)
+					throw new U_Exception(ERROR.FileError,"Unable to create temporary files after multiple tries");
+			} while (tries>0);
 		}
 		
 		public UR(String key) throws U_Exception {
-			try {
-				String bfn = URBaseFilename(key);
-				f_content = new File(bfn);
-				f_xml = new File(bfn+".xml");
-				if (!f_content.isFile() || !f_xml.isFile())
-					throw new U_Exception(ERROR.NoSuchFile,key);
-				DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-				dbf.setValidating(false);
-				dbf.setIgnoringComments(true);
-				db = dbf.newDocumentBuilder();
-				doc = db.parse(f_xml.getAbsolutePath());
-				copyFromXml();
-			} catch (ParserConfigurationException | SAXException e) {
-				throw new U_Exception(ERROR.ParserError,e);
-			} catch (IOException e) {
-				throw new U_Exception(ERROR.IOError,e);
-			} 
+			f_content = new File(URBaseFilename(key));
+			UploadStateStore.State s = UploadStateStore.getStore().get(key);
+			if (s==null || !f_content.isFile())
+				throw new U_Exception(ERROR.NoSuchFile,key);
+			this.key=s.key;
+			handle=s.handle;
+			filename=s.filename;
+			title=s.title;
+			initiated=s.initiated;
+			lastactivity=s.lastactivity;
+			size=s.size;
+			checksum=s.checksum;
+			blocks=s.blocks;
+		}
+		
+		private UploadStateStore.State state() {
+			UploadStateStore.State s = new UploadStateStore.State();
+			s.key=key;
+			s.handle=handle;
+			s.filename=filename;
+			s.title=title;
+			s.initiated=initiated;
+			s.lastactivity=lastactivity;
+			s.size=size;
+			s.checksum=checksum;
+			s.blocks=blocks;
+			return s;
 		}
 
-		public void copyToXml() {
-			doc = db.newDocument();
+		public Element getXmlRoot(Document doc) throws U_Exception {
+			return getXmlRoot(doc,false);
+		}
+		
+		/**
+		 * Renders the UR as XML, including the ranges of the content that have not arrived.
+		 * @param doc The document in which to create the elements.
+		 * @param withDigests If true, the SHA1 digest of each complete block is included.
+		 * @return The {@code upload} element.
+		 * @throws U_Exception
+		 */
+		public Element getXmlRoot(Document doc, boolean withDigests) throws U_Exception {
 			Element elUr = doc.createElement("upload");
-			doc.appendChild(elUr);
 			
 			LambdaTwoStrings i = (name,value) -> {
 				Element el = doc.createElement(name);
@@ -454,69 +533,36 @@ public class UploadResourceInterface {
 			i.op("lastactivity", lastactivity.toString());
 			i.op("size", Long.toString(size));
 			i.op("checksum", checksum);
-			
-			
-		}
-
-		public Element getXmlRoot(Document doc) throws U_Exception {
-			try {
-				XPath xp = XPathFactory.newInstance().newXPath();
-				Element el=(Element)(xp.compile("/upload").evaluate(this.doc,XPathConstants.NODE));
-				return (Element)doc.importNode(el, true);
-			} catch (XPathExpressionException e) {
-				throw new U_Exception(ERROR.ParserError,e);
+			i.op("blocksize", Integer.toString(blocks.blockSize));
+			Element elMissing = doc.createElement("missing");
+			for (long[] gap : blocks.missing()) {
+				Element elRange = doc.createElement("range");
+				elRange.setAttribute("first", Long.toString(gap[0]));
+				elRange.setAttribute("last", Long.toString(gap[1]-1));
+				elMissing.appendChild(elRange);
 			}
-		}
-		
-		public void copyFromXml() throws U_Exception {
-			XPath xp = XPathFactory.newInstance().newXPath();
-
-			
-			GetHelper i = (name) -> {
-				Element el=null;
-				try {
-					el = (Element)(xp.compile("/upload/"+name).evaluate(doc,XPathConstants.NODE));
-				} catch (XPathExpressionException e) {
-					throw new U_Exception(ERROR.Unexpected,"Xpath expression error",e);				
+			elUr.appendChild(elMissing);
+			if (withDigests) {
+				Element elBlocks = doc.createElement("blocks");
+				for (Map.Entry<Integer,byte[]> e : blocks.digests().entrySet()) {
+					Element elBlock = doc.createElement("block");
+					elBlock.setAttribute("index", Integer.toString(e.getKey()));
+					elBlock.setAttribute("sha1", Util.toHex(e.getValue()));
+					elBlocks.appendChild(elBlock);
 				}
-				if (el==null)
-					throw new U_Exception(ERROR.ParserError,"missing element at /upload/"+name);
-				Node t = el.getFirstChild();
-				if (t==null) return "";
-				if (t.getNodeType()!=Node.TEXT_NODE)
-					throw new U_Exception(ERROR.ParserError,"missing element at /upload/"+name);
-				return t.getNodeValue();
-			};
-			
-			try {
-				key = i.op("key");
-				handle = Integer.parseInt(i.op("handle"));
-				filename = i.op("filename");
-				title = i.op("title");
-				initiated = Instant.parse(i.op("initiated"));
-				lastactivity = Instant.parse(i.op("lastactivity"));
-				size=Long.parseLong(i.op("size"));
-				checksum=i.op("checksum");
-			} catch (NumberFormatException | DateTimeParseException e) {
-				throw new U_Exception(ERROR.ParserError,"while loading UR: "+key,e);
+				elUr.appendChild(elBlocks);
 			}
-		}		
+			return elUr;
+		}
+		
 		public void persist() throws U_Exception {
-			copyToXml();
-			try {
-				TransformerFactory tFactory = TransformerFactory.newInstance();
-			    Transformer transformer = tFactory.newTransformer();
-			    DOMSource source = new DOMSource(doc);
-			    File f = new File(URBaseFilename(key)+".xml");
-			    try (OutputStream os = new FileOutputStream(f,false)) {
-			    	StreamResult result = new StreamResult(os);
-			    	transformer.transform(source,result);
-			    } catch (IOException e) {
-			    	throw new U_Exception(ERROR.IOError,e);
-			    }
-			} catch (TransformerException e) {
-				throw new U_Exception(ERROR.ParserError,e);
-			}		    
+			UploadStateStore.getStore().put(state());
+		}
+		
+		/** Deletes the content and forgets the state **/
+		public void discard() throws U_Exception {
+			f_content.delete();
+			UploadStateStore.getStore().remove(key);
 		}
 		
 	}
@@ -0,0 +1,460 @@
+package com.craiglowery.java.vlib.api;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import com.craiglowery.java.vlib.common.Config;
+import com.craiglowery.java.vlib.common.ConfigurationKey;
+import com.craiglowery.java.vlib.common.L;
+import com.craiglowery.java.vlib.common.U_Exception;
+import com.craiglowery.java.vlib.common.U_Exception.ERROR;
+import com.craiglowery.java.vlib.common.Util;
+import com.craiglowery.java.vlib.common.XP;
+
+/**
+ * Keeps the state of upload resources in memory, backed by an append-only journal so that it
+ * survives a restart.<p>
+ *
+ * Each change to an upload is appended to the journal as one small binary record, and
+ * the journal is read back into the map when the store is opened.  Lookups never touch the
+ * disk.  A record is written with a single write and carries a CRC, so a record torn by a crash
+ * is detected when the journal is read, and discarded.  Only the last record can be torn that
+ * way; a bad record anywhere else means the journal is damaged, and it is not opened, rather
+ * than compacted without the records after the bad one.  Records are
+ * flushed to the operating system but not forced to the device, so a restart of the service loses
+ * nothing, while a crash of the host may lose the last few changes.<p>
+ *
+ * The journal is compacted, by writing the current state of each upload to a new journal
+ * and renaming it over the old one, when it is opened and whenever it holds several times
+ * more records than there are uploads.<p>
+ *
+ * Before the journal, each upload's state was kept in an XML file beside its content.  Such
+ * files found in the upload directory when the store is opened are imported and deleted.
+ */
+public class UploadStateStore {
+
+	/** The state of one upload resource.  The store holds its own copies. **/
+	public static class State {
+		public String key;
+		public int handle;
+		public String filename="";
+		public String title="";
+		public Instant initiated=Instant.now();
+		public Instant lastactivity=Instant.now();
+		public long size;
+		public String checksum="";
+		/** Which parts of the content have arrived.  Copies of a state share it. **/
+		public UploadBlocks blocks;
+
+		public State copy() {
+			State s = new State();
+			s.key=key;
+			s.handle=handle;
+			s.filename=filename;
+			s.title=title;
+			s.initiated=initiated;
+			s.lastactivity=lastactivity;
+			s.size=size;
+			s.checksum=checksum;
+			s.blocks=blocks;
+			return s;
+		}
+	}
+
+	private static final byte PUT=1, REMOVE=2, RANGE=3;
+
+	/** The journal is compacted once it holds this many more records than uploads **/
+	private static final int COMPACT_SLACK=1000;
+
+	private static UploadStateStore instance = null;
+
+	private final File journal;
+	private final ConcurrentHashMap<String,State> states = new ConcurrentHashMap<String,State>();
+	private FileOutputStream out = null;
+	private long records = 0;
+
+	/**
+	 * Returns the store for the upload directory, opening it on first use.
+	 * @return The store.
+	 * @throws U_Exception
+	 */
+	public static synchronized UploadStateStore getStore() throws U_Exception {
+		if (instance==null) {
+			File dir = new File(Config.getString(ConfigurationKey.SUBDIR_REPO_UPLOAD));
+			instance = new UploadStateStore(new File(dir,"uploads.journal"));
+			instance.importLegacy(dir);
+		}
+		return instance;
+	}
+
+	/**
+	 * Opens a store, reading and then compacting its journal.
+	 * @param journal The journal file, which is created if it does not exist.
+	 * @throws U_Exception
+	 */
+	public UploadStateStore(File journal) throws U_Exception {
+		this.journal = journal;
+		if (journal.isFile())
+			load();
+		compact();
+	}
+
+	/**
+	 * @param key The key of an upload.
+	 * @return A copy of its state, or null if there is no such upload.
+	 */
+	public State get(String key) {
+		State s = states.get(key);
+		return s==null ? null : s.copy();
+	}
+
+	/**
+	 * Records the state of an upload, replacing any it had.
+	 * @param state The state, which is copied.
+	 * @throws U_Exception
+	 */
+	public synchronized void put(State state) throws U_Exception {
+		State s = state.copy();
+		append(record(PUT,s));
+		states.put(s.key,s);
+	}
+
+	/**
+	 * Records the state of a new upload, unless one with the same key exists.
+	 * @param state The state, which is copied.
+	 * @return False if the key is already in use.
+	 * @throws U_Exception
+	 */
+	public synchronized boolean create(State state) throws U_Exception {
+		if (states.containsKey(state.key))
+			return false;
+		put(state);
+		return true;
+	}
+
+	/**
+	 * Records that a range of an upload's content has been written, along with the digests
+	 * of any whole blocks computed as it was written.  The upload's size becomes the end of the
+	 * content received, and its checksum is forgotten.
+	 * @param key The key of the upload.
+	 * @param first The position of the first byte written.
+	 * @param end The position after the last byte written.
+	 * @param digested True if the range was added to the running digest of the content.
+	 * @param digests The digests of whole blocks within the range, by block index.
+	 * @return The blocks that are now complete but whose digests are not known.
+	 * @throws U_Exception
+	 */
+	public synchronized List<Integer> received(String key, long first, long end, boolean digested, Map<Integer,byte[]> digests) throws U_Exception {
+		State s = states.get(key);
+		if (s==null)
+			throw new U_Exception(ERROR.NoSuchFile,key);
+		List<Integer> full = s.blocks.add(first, end, digested);
+		Map<Integer,byte[]> recorded = new TreeMap<Integer,byte[]>();
+		for (Iterator<Integer> i = full.iterator(); i.hasNext(); ) {
+			Integer block = i.next();
+			byte[] digest = digests.get(block);
+			if (digest!=null) {
+				s.blocks.digest(block, digest);
+				recorded.put(block, digest);
+				i.remove();
+			}
+		}
+		s.size=s.blocks.end();
+		s.lastactivity=Instant.now();
+		s.checksum="";
+		append(range(s, first, end, recorded));
+		return full;
+	}
+
+	/**
+	 * Records the digests of complete blocks of an upload.
+	 * @param key The key of the upload.
+	 * @param digests The digests, by block index.
+	 * @throws U_Exception
+	 */
+	public synchronized void digested(String key, Map<Integer,byte[]> digests) throws U_Exception {
+		State s = states.get(key);
+		if (s==null || digests.isEmpty())
+			return;
+		for (Map.Entry<Integer,byte[]> e : digests.entrySet())
+			s.blocks.digest(e.getKey(), e.getValue());
+		append(range(s, 0, 0, digests));
+	}
+
+	/**
+	 * Records that a range of an upload may have been partly written by a request that failed.
+	 * The range is not received, but any digests it overlaps are forgotten.
+	 * @param key The key of the upload.
+	 * @param first The position of the first byte that may have been written.
+	 * @param end The position after the last byte that may have been written.
+	 * @throws U_Exception
+	 */
+	public synchronized void overwritten(String key, long first, long end) throws U_Exception {
+		State s = states.get(key);
+		if (s==null || end<=first)
+			return;
+		s.blocks.overwritten(first, end);
+		s.checksum="";
+		append(record(PUT,s));
+	}
+
+	/**
+	 * Forgets an upload.
+	 * @param key The key of the upload.
+	 * @throws U_Exception
+	 */
+	public synchronized void remove(String key) throws U_Exception {
+		if (states.remove(key)==null)
+			return;
+		State s = new State();
+		s.key=key;
+		append(record(REMOVE,s));
+	}
+
+	/** @return The number of uploads. **/
+	public int size() {
+		return states.size();
+	}
+
+	private void append(byte[] record) throws U_Exception {
+		long before = -1;
+		try {
+			before = out.getChannel().size();
+			out.write(record);
+			out.flush();
+		} catch (IOException e) {
+			//Take back any part of the record that was written, so the records after it can be read
+			if (before>=0)
+				try {
+					out.getChannel().truncate(before);
+				} catch (IOException e2) {
+					L.log(L.E, this, "Could not remove a partly written record from upload journal %s: %s",
+							journal.getPath(), e2.getMessage());
+				}
+			throw new U_Exception(ERROR.IOError,"Could not write upload journal",e);
+		}
+		if (++records > states.size()*4+COMPACT_SLACK)
+			compact();
+	}
+
+	/**
+	 * Encodes a record of the whole state of an upload, or of its removal.
+	 */
+	private static byte[] record(byte type, State s) throws U_Exception {
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream(128);
+			DataOutputStream dos = new DataOutputStream(body);
+			dos.writeByte(type);
+			dos.writeUTF(s.key);
+			if (type==PUT) {
+				dos.writeInt(s.handle);
+				dos.writeUTF(s.filename);
+				dos.writeUTF(s.title);
+				dos.writeLong(s.initiated.getEpochSecond());
+				dos.writeInt(s.initiated.getNano());
+				dos.writeLong(s.lastactivity.getEpochSecond());
+				dos.writeInt(s.lastactivity.getNano());
+				dos.writeLong(s.size);
+				dos.writeUTF(s.checksum);
+				s.blocks.write(dos);
+			}
+			return frame(body.toByteArray());
+		} catch (IOException e) {
+			throw new U_Exception(ERROR.Unexpected,e);
+		}
+	}
+
+	/**
+	 * Encodes a record of a range received and of block digests, which are applied to the
+	 * upload's state when the journal is read.  An empty range records digests only.
+	 */
+	private static byte[] range(State s, long first, long end, Map<Integer,byte[]> digests) throws U_Exception {
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+			DataOutputStream dos = new DataOutputStream(body);
+			dos.writeByte(RANGE);
+			dos.writeUTF(s.key);
+			dos.writeLong(first);
+			dos.writeLong(end);
+			dos.writeLong(s.lastactivity.getEpochSecond());
+			dos.writeInt(s.lastactivity.getNano());
+			UploadBlocks.writeDigests(dos, digests);
+			return frame(body.toByteArray());
+		} catch (IOException e) {
+			throw new U_Exception(ERROR.Unexpected,e);
+		}
+	}
+
+	/**
+	 * Frames a record body as its length, the body and the CRC of the body.
+	 */
+	private static byte[] frame(byte[] b) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(b);
+		ByteArrayOutputStream record = new ByteArrayOutputStream(b.length+8);
+		DataOutputStream ros = new DataOutputStream(record);
+		ros.writeInt(b.length);
+		ros.write(b);
+		ros.writeInt((int)crc.getValue());
+		return record.toByteArray();
+	}
+
+	/**
+	 * Replays the journal into the map.  A last record that is incomplete or fails its CRC
+	 * is discarded.
+	 * @throws U_Exception IOError if any other record is bad.
+	 */
+	private void load() throws U_Exception {
+		long position = 0, length = journal.length();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+			while (position<length) {
+				byte[] b = null;
+				try {
+					int size = in.readInt();
+					if (size<=0)
+						throw damaged(position);
+					//A record running past the end of the journal was torn by a crash
+					if (size<=length-position-8) {
+						b = new byte[size];
+						in.readFully(b);
+						CRC32 crc = new CRC32();
+						crc.update(b);
+						if (in.readInt()!=(int)crc.getValue()) {
+							if (position+size+8<length)
+								throw damaged(position);
+							b = null;
+						}
+					}
+				} catch (EOFException e) {
+					b = null;
+				}
+				if (b==null) {
+					L.log(L.W, this, "Discarding a torn record of %d bytes at the end of upload journal %s",
+							length-position, journal.getPath());
+					break;
+				}
+				position += b.length+8;
+				DataInputStream body = new DataInputStream(new ByteArrayInputStream(b));
+				byte type = body.readByte();
+				State s = new State();
+				s.key = body.readUTF();
+				if (type==REMOVE) {
+					states.remove(s.key);
+					continue;
+				}
+				if (type==RANGE) {
+					State r = states.get(s.key);
+					long first = body.readLong(), end = body.readLong();
+					Instant when = Instant.ofEpochSecond(body.readLong(), body.readInt());
+					Map<Integer,byte[]> digests = UploadBlocks.readDigests(body);
+					if (r==null)
+						continue;
+					if (first<end) {
+						r.blocks.add(first, end, false);
+						r.size=r.blocks.end();
+						r.lastactivity=when;
+						r.checksum="";
+					}
+					for (Map.Entry<Integer,byte[]> e : digests.entrySet())
+						r.blocks.digest(e.getKey(), e.getValue());
+					continue;
+				}
+				s.handle = body.readInt();
+				s.filename = body.readUTF();
+				s.title = body.readUTF();
+				s.initiated = Instant.ofEpochSecond(body.readLong(), body.readInt());
+				s.lastactivity = Instant.ofEpochSecond(body.readLong(), body.readInt());
+				s.size = body.readLong();
+				s.checksum = body.readUTF();
+				s.blocks = UploadBlocks.read(body);
+				states.put(s.key,s);
+			}
+		} catch (IOException e) {
+			throw new U_Exception(ERROR.IOError,"Could not read upload journal",e);
+		}
+	}
+
+	private U_Exception damaged(long position) {
+		return new U_Exception(ERROR.IOError,String.format("Upload journal %s is damaged at byte %d",
+				journal.getPath(), position));
+	}
+
+	/**
+	 * Rewrites the journal with one record per upload.
+	 */
+	private synchronized void compact() throws U_Exception {
+		File temp = new File(journal.getPath()+".tmp");
+		try {
+			if (out!=null)
+				out.close();
+			out = null;
+			try (RandomAccessFile raf = new RandomAccessFile(temp,"rw")) {
+				raf.setLength(0);
+				for (State s : states.values())
+					raf.write(record(PUT,s));
+				raf.getFD().sync();
+			}
+			Files.move(temp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			out = new FileOutputStream(journal,true);
+			records = states.size();
+		} catch (IOException e) {
+			throw new U_Exception(ERROR.IOError,"Could not compact upload journal",e);
+		}
+	}
+
+	/**
+	 * Imports the XML state files of uploads begun before the journal.
+	 */
+	private void importLegacy(File dir) {
+		File[] files = dir.listFiles((d,name) -> name.endsWith(".xml"));
+		if (files==null)
+			return;
+		for (File f : files) {
+			try (InputStream is = new FileInputStream(f)) {
+				XP xp = new XP(Util.buildXmlFromInput(is));
+				State s = new State();
+				s.key = xp.el_text("/upload/key");
+				s.handle = Integer.parseInt(xp.el_text("/upload/handle"));
+				s.filename = xp.el_text("/upload/filename");
+				s.title = xp.el_text("/upload/title");
+				s.initiated = Instant.parse(xp.el_text("/upload/initiated"));
+				s.lastactivity = Instant.parse(xp.el_text("/upload/lastactivity"));
+				s.size = Long.parseLong(xp.el_text("/upload/size"));
+				s.checksum = xp.el_text("/upload/checksum");
+				//Which parts arrived was not recorded, so all of the content is taken as received
+				s.blocks = new UploadBlocks(Config.getInt(ConfigurationKey.UPLOAD_BLOCK_SIZE));
+				s.blocks.add(0, s.size, false);
+				create(s);
+				f.delete();
+			} catch (Exception e) {
+				L.log(L.W, this, "Could not import upload state file %s: %s", f.getName(), e.getMessage());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,190 @@
+package com.craiglowery.java.vlib.api;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.craiglowery.java.vlib.common.U_Exception;
+import com.craiglowery.java.vlib.common.U_Exception.ERROR;
+
+/**
+ * Unit test for the upload state journal.  No configuration is needed; each test uses
+ * a journal in a temporary directory.
+ *
+ */
+public class UploadStateStoreTest {
+
+	@BeforeClass
+	public static void logging() {
+		//Normally set up when the first U_Exception is made
+		if (U_Exception.logger==null)
+			U_Exception.logger = Logger.getLogger(UploadStateStoreTest.class);
+	}
+
+	private UploadStateStore.State state(String key, long size) {
+		UploadStateStore.State s = new UploadStateStore.State();
+		s.key=key;
+		s.handle=7;
+		s.filename="file-"+key;
+		s.title="Title "+key;
+		s.size=size;
+		s.blocks=new UploadBlocks(16);
+		return s;
+	}
+
+	private File journal() throws Exception {
+		File dir = File.createTempFile("uploads", "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+		File f = new File(dir,"uploads.journal");
+		f.deleteOnExit();
+		return f;
+	}
+
+	@Test
+	public void replay() throws Exception {
+		File f = journal();
+		UploadStateStore store = new UploadStateStore(f);
+		assertTrue(store.create(state("a",0)));
+		assertFalse(store.create(state("a",0)));
+		store.create(state("b",0));
+		store.put(state("a",100));
+		store.remove("b");
+		UploadStateStore.State before = store.get("a");
+
+		store = new UploadStateStore(f);
+		assertEquals(1, store.size());
+		assertNull(store.get("b"));
+		UploadStateStore.State after = store.get("a");
+		assertEquals(100, after.size);
+		assertEquals(before.filename, after.filename);
+		assertEquals(before.title, after.title);
+		assertEquals(before.initiated, after.initiated);
+		assertEquals(before.lastactivity, after.lastactivity);
+		assertEquals(7, after.handle);
+	}
+
+	@Test
+	public void tornRecord() throws Exception {
+		File f = journal();
+		UploadStateStore store = new UploadStateStore(f);
+		store.create(state("a",1));
+		long good = f.length();
+		store.put(state("a",2));
+		//Cut the last record short, as a crash in the middle of the write would
+		try (RandomAccessFile raf = new RandomAccessFile(f,"rw")) {
+			raf.setLength(f.length()-3);
+		}
+		store = new UploadStateStore(f);
+		assertEquals(1, store.get("a").size);
+		assertEquals(good, f.length());
+		store.put(state("a",3));
+		assertEquals(3, new UploadStateStore(f).get("a").size);
+	}
+
+	@Test
+	public void ranges() throws Exception {
+		File f = journal();
+		UploadStateStore store = new UploadStateStore(f);
+		store.create(state("a",0));
+		List<Integer> full = store.received("a", 16, 40, false, Collections.singletonMap(1, new byte[] {1}));
+		assertTrue(full.isEmpty());
+		full = store.received("a", 0, 10, false, Collections.<Integer,byte[]>emptyMap());
+		assertTrue(full.isEmpty());
+		full = store.received("a", 10, 16, false, Collections.<Integer,byte[]>emptyMap());
+		assertEquals(Arrays.asList(0), full);
+		store.digested("a", Collections.singletonMap(0, new byte[] {0}));
+		store.received("a", 64, 70, false, Collections.<Integer,byte[]>emptyMap());
+		assertEquals(70, store.get("a").size);
+
+		UploadStateStore.State s = new UploadStateStore(f).get("a");
+		assertEquals(70, s.size);
+		assertEquals(1, s.blocks.missing().size());
+		assertArrayEquals(new long[] {40,64}, s.blocks.missing().get(0));
+		assertEquals(2, s.blocks.digests().size());
+		assertArrayEquals(new byte[] {1}, s.blocks.digests().get(1));
+	}
+
+	/**
+	 * An upload with many block digests makes a record of more than a megabyte.  It and the
+	 * records after it must survive a reload, and the compaction that follows.
+	 */
+	@Test
+	public void largeRecord() throws Exception {
+		File f = journal();
+		UploadStateStore store = new UploadStateStore(f);
+		UploadStateStore.State big = state("big",0);
+		big.blocks.add(0, 16*60000, false);
+		for (int block=0; block<60000; block++)
+			big.blocks.digest(block, new byte[20]);
+		long before = f.length();
+		store.put(big);
+		assertTrue(f.length()-before > 1<<20);
+		store.create(state("after",5));
+		store.received("after", 0, 10, false, Collections.<Integer,byte[]>emptyMap());
+
+		for (int x=0; x<2; x++) {
+			store = new UploadStateStore(f);
+			assertEquals(2, store.size());
+			assertEquals(60000, store.get("big").blocks.digests().size());
+			assertEquals(10, store.get("after").size);
+		}
+	}
+
+	/**
+	 * A bad record followed by good ones is not a torn write, and the journal is not opened.
+	 */
+	@Test
+	public void damagedRecord() throws Exception {
+		File f = journal();
+		UploadStateStore store = new UploadStateStore(f);
+		store.create(state("a",1));
+		long second = f.length();
+		store.create(state("b",2));
+		store.create(state("c",3));
+		long length = f.length();
+		try (RandomAccessFile raf = new RandomAccessFile(f,"rw")) {
+			raf.seek(second+6);
+			raf.write(raf.read()^0xff);
+		}
+		try {
+			new UploadStateStore(f);
+			fail("a damaged journal was opened");
+		} catch (U_Exception e) {
+			assertEquals(ERROR.IOError, e.errorCode);
+		}
+		assertEquals("the journal is not compacted", length, f.length());
+	}
+
+	@Test
+	public void compaction() throws Exception {
+		File f = journal();
+		UploadStateStore store = new UploadStateStore(f);
+		store.create(state("a",0));
+		for (int x=1; x<=5000; x++)
+			store.put(state("a",x));
+		long oneRecord = new UploadStateStore(f).size()==1 ? f.length() : -1;
+		assertTrue(oneRecord>0);
+		store = new UploadStateStore(f);
+		for (int x=1; x<=5000; x++)
+			store.put(state("a",x));
+		assertTrue(f.length() < oneRecord*2000);
+		assertEquals(5000, new UploadStateStore(f).get("a").size);
+	}
+
+}
@@ -10,6 +10,8 @@ import javax.ws.rs.ApplicationPath;
 import javax.ws.rs.core.Application;
 
 import com.craiglowery.java.vlib.common.Util;
+import com.craiglowery.java.vlib.repository.HealthSweeper;
+import com.craiglowery.java.vlib.repository.RepositoryManager;
 
 import java.util.Set;
 import java.util.HashSet;
@@ -34,6 +36,10 @@ public class VlibServiceApplication extends Application {
 		resources.add(RepositoryManagerResourceInterface.class);
 		resources.add(AdminResourceInterface.class);
 		resources.add(QueryResourceInterface.class);
+		resources.add(JobResourceInterface.class);
+		HealthSweeper.resume();
+		ImportJobs.resume();
+		RepositoryManager.preloadFingerprintIndex();
 	}
 	
 	@Override
@@ -157,4 +157,24 @@ public class XmlResponse {
 		return b.build();
 	 }
 
-}
\ No newline at end of file
+	 /**
+	  * Returns a response object that indicates a request has been accepted for processing
+	  * which has not yet finished.
+	  * @param URL The URI at which the progress of the processing can be followed.
+	  * @param content The content of the response, or {@code null} for none.
+	  * @return A JAX-RS {@code Response} object.
+	  */
+	 public Response Accepted(String URL, Node content) {
+		ResponseBuilder b = Response.status(Status.ACCEPTED);
+		b.header("Location", URL);
+		Element elResult = doc.createElement("result");
+		if (content!=null) {
+			elResult.appendChild(content);
+		}
+		elResult.setAttribute("status", Status.ACCEPTED.toString());
+		doc.appendChild(elResult);
+		b.type(MediaType.APPLICATION_XML_TYPE).entity(new DOMSource(doc));
+		return b.build();
+	 }
+
+}
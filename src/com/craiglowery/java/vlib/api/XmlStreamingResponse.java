@@ -0,0 +1,137 @@
+package com.craiglowery.java.vlib.api;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+import java.io.OutputStream;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import com.craiglowery.java.vlib.common.L;
+
+/**
+ * A streaming counterpart of {@link XmlResponse} for responses too large to build as a whole
+ * document.  The response has the same {@code result} envelope, but its content is written
+ * with a StAX {@code XMLStreamWriter} as the container sends the response, so the first bytes
+ * go out before the last object has been read, and only the element being written is held in
+ * memory.<p>
+ *
+ * Content may be written directly to {@link #writer()}, or built as a DOM fragment in
+ * {@link #doc} with the same helpers the non-streaming responses use and passed to
+ * {@link #write(Node)}.<p>
+ *
+ * Because the status line has been sent by the time the content is written, an error while
+ * writing it cannot change the status.  Instead an {@code error} element, as {@code XmlResponse}
+ * would return, is written in place of the rest of the content and the document is closed, so
+ * it remains well formed.
+ *
+ * <pre>
+ *       {@code <result status="OK">}
+ *           {@code <element_you_write/>}
+ *           {@code <error>...</error>}   <i>only if writing failed</i>
+ *       {@code </result>}
+ * </pre>
+ */
+public class XmlStreamingResponse {
+
+	/** Writes the content of a streaming response **/
+	public interface Content {
+		void write(XmlStreamingResponse response) throws Exception;
+	}
+
+	private static final XMLOutputFactory factory = XMLOutputFactory.newInstance();
+
+	/** A document for building fragments to be passed to {@link #write(Node)} **/
+	public org.w3c.dom.Document doc = new XmlResponse().doc;
+
+	private XMLStreamWriter writer = null;
+
+	/**
+	 * Builds a response whose {@code result} element contains what {@code content} writes.
+	 * The HTTP Response code will be set to OK.
+	 * @param content Writes the XML to be returned inside the {@code result} element.
+	 * @return A JAX-RS {@code Response} object.
+	 */
+	public Response Success(Content content) {
+		return Response.status(Status.OK).type(MediaType.APPLICATION_XML_TYPE).entity(output(content)).build();
+	}
+
+	StreamingOutput output(Content content) {
+		return (OutputStream os) -> {
+			try {
+				writer = factory.createXMLStreamWriter(os, "UTF-8");
+				writer.writeStartDocument("UTF-8", "1.0");
+				writer.writeStartElement("result");
+				writer.writeAttribute("status", Status.OK.toString());
+				try {
+					content.write(this);
+				} catch (Exception e) {
+					L.log(L.E, this, "streaming response failed: %s", e.getMessage());
+					Element elError = doc.createElement("error");
+					elError.setAttribute("status", Status.INTERNAL_SERVER_ERROR.toString());
+					(e instanceof AE ? (AE)e : new AE(AE.ERR_UNEXPECTED,null,e)).Xml(elError);
+					write(elError);
+				}
+				writer.writeEndDocument();
+				writer.flush();
+				writer.close();
+			} catch (XMLStreamException e) {
+				throw new RuntimeException("Unexpected runtime exception",e);
+			}
+		};
+	}
+
+	/**
+	 * Returns the writer positioned inside the {@code result} element.  Only valid while
+	 * the content is being written.
+	 * @return The writer.
+	 */
+	public XMLStreamWriter writer() {
+		return writer;
+	}
+
+	/**
+	 * Writes a DOM element, its attributes and its descendants to the response.
+	 * @param node The node to write.
+	 * @throws XMLStreamException
+	 */
+	public void write(Node node) throws XMLStreamException {
+		switch (node.getNodeType()) {
+			case Node.ELEMENT_NODE:
+				writer.writeStartElement(node.getNodeName());
+				NamedNodeMap attributes = node.getAttributes();
+				for (int x=0; x<attributes.getLength(); x++) {
+					Node attribute = attributes.item(x);
+					writer.writeAttribute(attribute.getNodeName(), attribute.getNodeValue());
+				}
+				for (Node child=node.getFirstChild(); child!=null; child=child.getNextSibling())
+					write(child);
+				writer.writeEndElement();
+				break;
+			case Node.TEXT_NODE:
+				writer.writeCharacters(node.getNodeValue());
+				break;
+			case Node.CDATA_SECTION_NODE:
+				writer.writeCData(node.getNodeValue());
+				break;
+			case Node.COMMENT_NODE:
+				writer.writeComment(node.getNodeValue());
+				break;
+			default:
+		}
+	}
+
+}
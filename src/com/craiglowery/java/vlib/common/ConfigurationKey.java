@@ -102,9 +102,33 @@ public enum ConfigurationKey {
 	 */
 	@DefaultConfigurationValue("/usr/bin/sha1sum") EXTERNAL_CHECKSUM_COMMAND,
 	
+	/** If true, SHA1 checksums are computed inside the JVM with {@code MessageDigest},
+	 * and during import the digest is accumulated as the content is copied so the
+	 * file is only read once.  If false, {@code EXTERNAL_CHECKSUM_COMMAND} is run
+	 * against the file instead. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("yes") CHECKSUM_IN_PROCESS,
+	
+	/** If true, content being imported from a file that resides on the same file system
+	 * as {@code SUBDIR_REPO_TEMP} is hard linked into the repository instead of
+	 * copied.  The source file is left in place either way, but it then shares its content
+	 * with the library, so writing to it later changes the stored version.  Only turn this
+	 * on if imported files are never modified afterward.  Uploads are moved in and do not
+	 * depend on it.  OPTIONAL.
+	 */
+	@DefaultConfigurationValue("no") IMPORT_LINK_SAME_FILESYSTEM,
+	
+	/** If true, imported content is stored at a path derived from its sha1sum and length,
+	 * beneath {@code SUBDIR_REPO_LIB/cas}, and versions with identical content share one
+	 * file, which is moved to the trash only when the last version using it is removed.
+	 * Content imported while this is false stays where it is. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("no") LIBRARY_CONTENT_ADDRESSED,
+	
 	/** External shell command to which a file's path name can be appended
 	 * and then executed by the shell to write the inode number and link count
-	 * as two integers separated by a space on a single line to the {@code stdout}. OPTIONAL.
+	 * as two integers separated by a space on a single line to the {@code stdout}.
+	 * Only used if the JVM cannot read the {@code unix} file attribute view. OPTIONAL.
 	 */
 	@DefaultConfigurationValue("/usr/bin/stat -c '%i %h'") EXTERNAL_STAT_COMMAND,
 	
@@ -118,6 +142,17 @@ public enum ConfigurationKey {
 	 */
 	@DefaultConfigurationValue("10000") MAX_TABLE_RESULT_SIZE,
 	
+	/** The number of rows a TableAdapter reads from the database at a time when it passes
+	 * a selection to a {@code SelectionTransformer} or returns it through a {@code SelectionCursor}.
+	 * Such selections are not limited by {@code MAX_TABLE_RESULT_SIZE}.
+	 */
+	@DefaultConfigurationValue("1000") SELECT_FETCH_SIZE,
+	
+	/** The number of prepared statements each database connection keeps for reuse, least
+	 * recently used first out.  Zero disables the cache.
+	 */
+	@DefaultConfigurationValue("64") STATEMENT_CACHE_SIZE,
+	
 	/** A custom program that accepts four parameters:<p>
 	 * <ol>
 	 *    <li> The path to the root of the repository.  The value of {@code DIR_REPO_ROOT}
@@ -142,5 +177,104 @@ public enum ConfigurationKey {
 	 */
 	@RequiredConfigurationKey EXTERNAL_SEEK_AND_REPLACE_COMMAND,
 	
-	@DefaultConfigurationValue("1000000000") MAX_FILE_UPLOAD_SIZE
+	@DefaultConfigurationValue("1000000000") MAX_FILE_UPLOAD_SIZE,
+	
+	/** The size in bytes of the blocks into which an upload's content is divided to track
+	 * which parts of it have arrived and to digest them.  An upload keeps the size in effect
+	 * when it was created.
+	 */
+	@DefaultConfigurationValue("4194304") UPLOAD_BLOCK_SIZE,
+	
+	//---- RepositoryManager pool keys
+	
+	/** The maximum number of RepositoryManager instances (and so database
+	 * connections) that can be in use at one time. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("32") RM_POOL_MAX_SIZE,
+	
+	/** The number of seconds a request will wait for a RepositoryManager
+	 * when all {@code RM_POOL_MAX_SIZE} instances are in use before failing
+	 * with a timeout. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("30") RM_POOL_ACQUIRE_TIMEOUT_SECONDS,
+	
+	/** The number of seconds between passes of the background thread that
+	 * retires expired or invalid idle RepositoryManager instances. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("30") RM_POOL_REAPER_INTERVAL_SECONDS,
+	
+	//---- Health sweep keys
+	
+	/** The number of threads that check objects during a health sweep.  Each
+	 * holds one RepositoryManager while it checks an object. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("2") HEALTH_SWEEP_WORKERS,
+	
+	/** The maximum rate, in bytes per second, at which a health sweep reads content
+	 * from any one storage device when computing checksums. 0 means unlimited. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("52428800") HEALTH_SWEEP_DEVICE_BYTES_PER_SECOND,
+	
+	/** The number of checked versions a health sweep stores per transaction. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("50") HEALTH_SWEEP_BATCH_SIZE,
+	
+	/** The file in which a running health sweep records its progress so that
+	 * it can be resumed after a restart. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("{$DIR_REPO_ROOT}/healthsweep.checkpoint") HEALTH_SWEEP_CHECKPOINT_FILE,
+	
+	//---- Catalog snapshot keys
+	
+	/** If true, queries of the current versions of objects are answered from a memory
+	 * mapped snapshot of the {@code currentversions} view and the tag map, kept current as
+	 * changes commit, rather than by the database. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("false") CATALOG_SNAPSHOT,
+	
+	/** The file that holds the catalog snapshot. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("{$DIR_REPO_ROOT}/catalog.snapshot") CATALOG_SNAPSHOT_FILE,
+	
+	/** The number of seconds after a change that it is written into the catalog snapshot
+	 * file.  Until then it is held in memory. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("60") CATALOG_SNAPSHOT_FLUSH_SECONDS,
+	
+	//---- Entity cache keys
+	
+	/** The most objects, tags and tag values each that the RepositoryManager entity cache
+	 * holds.  The least recently used are dropped first.  0 disables the cache. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("10000") ENTITY_CACHE_SIZE,
+	
+	/** If true, the fingerprints of all versions are held in memory so that incoming content
+	 * can be checked for duplicates without a database query when it has none.  Loaded when
+	 * the application starts. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("yes") FINGERPRINT_INDEX,
+	
+	//---- Import job keys
+	
+	/** The number of threads that import finalized uploads into the library. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("2") IMPORT_JOB_WORKERS,
+	
+	/** The most imports that may run at once from any one storage volume. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("1") IMPORT_JOB_VOLUME_CONCURRENCY,
+	
+	/** The most imports that may be waiting to run.  Finalizing an upload fails
+	 * while this many are waiting. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("100") IMPORT_JOB_QUEUE_LIMIT,
+	
+	/** The directory in which the state of each import job is kept, so that jobs
+	 * survive a restart. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("{$DIR_REPO_ROOT}/jobs") IMPORT_JOB_DIR,
+	
+	/** The number of hours a finished import job can still be inquired about. OPTIONAL.
+	 */
+	@DefaultConfigurationValue("24") IMPORT_JOB_RETENTION_HOURS
 }
@@ -590,8 +590,9 @@ public class IntegerSet implements Iterable<Integer>, Set<Integer>, Collection<I
 	 */
 	@Override
 	public int size() {
-		if (setCardinality!=null) 
-			return setCardinality;
+		Integer known = setCardinality;
+		if (known!=null) 
+			return known;
 		return computeSetCardinality();
 	}
 	
@@ -870,7 +871,8 @@ public class IntegerSet implements Iterable<Integer>, Set<Integer>, Collection<I
 				for (int x=0; x<CHUNKS_PER_EXTENT; x++)
 					resultExtent.chunks[x] = thisExtent.chunks[x] & otherExtent.chunks[x];
 				resultExtent.invalidate();
-				result.addExtent(resultExtent);
+				if (resultExtent.extentSize()!=0)
+					result.addExtent(resultExtent);
 			}
 		}
 		return result;
@@ -962,7 +964,7 @@ public class IntegerSet implements Iterable<Integer>, Set<Integer>, Collection<I
 				result.addExtent(result.new Extent(number,EXTENT_CLONE_FUNCTION.COMPLEMENT));
 			}
 		}
-		result.minSetValue=maxSetValue=UNKNOWN;
+		result.minSetValue=result.maxSetValue=UNKNOWN;
 		result.setCardinality=null;
 		return result;
 	}
@@ -1135,6 +1137,8 @@ public class IntegerSet implements Iterable<Integer>, Set<Integer>, Collection<I
 		
 		@Override
 		public boolean hasNext() {
+			if (traverseExtentIterator==null)
+				return false;
 			if (traverseExtentIterator.hasNext()) 
 				return true;
 			return traverseSetIterator.hasNext();
@@ -1142,6 +1146,8 @@ public class IntegerSet implements Iterable<Integer>, Set<Integer>, Collection<I
 		
 		@Override
 		public Integer next() {
+			if (traverseExtentIterator==null)
+				throw new NoSuchElementException();
 			if (traverseExtentIterator.hasNext())
 				return traverseExtentIterator.next();
 			if (traverseSetIterator.hasNext()) {
@@ -1311,8 +1317,9 @@ public class IntegerSet implements Iterable<Integer>, Set<Integer>, Collection<I
 			/* We cache the min and max values.  If they are not known
 			 * we perform a search of the chunks array.
 			 */
-			if (minExtentValue!=null) 
-				return minExtentValue;
+			Integer known = minExtentValue;
+			if (known!=null) 
+				return known;
 			for (int x=0; x<CHUNKS_PER_EXTENT; x++)   	//For the min, search from the front to the back
 				if (chunks[x]!=0) {  					  //Quick test to see if there are any values in this chunk
 					int b=0; 								//Test each bit position from LSB to MSB
@@ -1333,8 +1340,9 @@ public class IntegerSet implements Iterable<Integer>, Set<Integer>, Collection<I
 			/* We cache the min and max values.  If they are not known
 			 * we perform a search of the chunks array.
 			 */
-			if (maxExtentValue!=null) 
-				return maxExtentValue;
+			Integer known = maxExtentValue;
+			if (known!=null) 
+				return known;
 			for (int x=CHUNKS_PER_EXTENT-1; x>=0; x--) 				//For the max, search from back to front
 				if (chunks[x]!=0) { 					  			  //Quick test to see if there are any values in this chunk
 					int b=VALUES_PER_CHUNK-1; 								//Test each bit position from MSB to LSB
@@ -1425,8 +1433,9 @@ public class IntegerSet implements Iterable<Integer>, Set<Integer>, Collection<I
 		}
 		
 		public int extentSize() {
-			if (extentCardinality!=null)
-				return extentCardinality;
+			Integer known = extentCardinality;   //Read once, so that a concurrent reader sees one value
+			if (known!=null)
+				return known;
 			int card = 0;
 			for (int n=0; n<CHUNKS_PER_EXTENT; n++)
 				card += Long.bitCount(chunks[n]);
@@ -1547,9 +1556,16 @@ public class IntegerSet implements Iterable<Integer>, Set<Integer>, Collection<I
 			minExtentValue=maxExtentValue=null;
 		}
 
+		/**
+		 * Determines if the extent is empty from its chunks, ignoring the cached cardinality.
+		 * The cache is left alone, since the extent may belong to a set that other threads are
+		 * reading.
+		 */
 		private boolean forcedIsEmpty() {
-			invalidate();
-			return extentSize()==0;
+			for (int n=0; n<CHUNKS_PER_EXTENT; n++)
+				if (chunks[n]!=0)
+					return false;
+			return true;
 		}
 		
 	}
@@ -10,8 +10,10 @@ import static org.junit.Assert.*;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.Stack;
@@ -88,6 +90,83 @@ public class IntegerSetTest {
 		}
 	}
 	
+	/**
+	 * Compares the tag membership index layout of TreeSet&lt;Integer&gt; handle sets with
+	 * IntegerSet bitmaps: the memory held by the sets, and the time to answer
+	 * "genre=Drama AND NOT rating=R" by testing each object and by set operations.
+	 */
+	@Test
+	public void tagIndexLayoutBenchmark() {
+		System.out.println("TEST: Tag index layout, TreeSet<Integer> versus IntegerSet");
+		final int OBJECTS=200000;
+		final int VALUES=40;
+		Random r = new Random(1);
+		int[][] members = new int[VALUES][];
+		for (int v=0; v<VALUES; v++) {
+			//Values range from very common to rare, as tag values do
+			int n = OBJECTS/(v+2);
+			members[v] = new int[n];
+			for (int x=0; x<n; x++)
+				members[v][x] = 1+r.nextInt(OBJECTS);
+		}
+
+		usedMemory();  //Let the heap settle before the first reading
+		long before = usedMemory();
+		mark();
+		IntegerSet[] bitmaps = new IntegerSet[VALUES];
+		for (int v=0; v<VALUES; v++) {
+			bitmaps[v] = new IntegerSet();
+			for (int h : members[v])
+				bitmaps[v].add(h);
+		}
+		IntegerSet universe = new IntegerSet();
+		for (int h=1; h<=OBJECTS; h++)
+			universe.add(h);
+		mark();
+		long bitmapBytes = usedMemory()-before;
+		System.out.println(String.format("  IntegerSet layout......: %,d bytes (including the universe), built in %s",bitmapBytes,duration()));
+
+		before = usedMemory();
+		mark();
+		List<Set<Integer>> trees = new ArrayList<Set<Integer>>(VALUES);
+		for (int v=0; v<VALUES; v++) {
+			Set<Integer> tree = new java.util.TreeSet<Integer>();
+			for (int h : members[v])
+				tree.add(h);
+			trees.add(tree);
+		}
+		mark();
+		long treeBytes = usedMemory()-before;
+		System.out.println(String.format("  TreeSet<Integer> layout: %,d bytes, built in %s",treeBytes,duration()));
+
+		mark();
+		int treeCount=0;
+		for (int h=1; h<=OBJECTS; h++)
+			if (trees.get(0).contains(h) && !trees.get(1).contains(h))
+				treeCount++;
+		mark();
+		System.out.println(String.format("  A AND NOT B by testing each object: %s",duration()));
+
+		mark();
+		IntegerSet result = bitmaps[0].intersect(universe.difference(bitmaps[1]));
+		mark();
+		System.out.println(String.format("  A AND NOT B by set operations.....: %s",duration()));
+		assertEquals(treeCount,result.size());
+		assertNotNull(bitmaps[VALUES-1]);
+	}
+
+	private long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		//Collection is only a request, so settle on the lowest reading
+		for (int x=0; x<5; x++) {
+			System.gc();
+			try { Thread.sleep(50); } catch (InterruptedException e) { /* ignore */ }
+			used = Math.min(used, rt.totalMemory()-rt.freeMemory());
+		}
+		return used;
+	}
+	
 	private boolean shorttest=true;
 	
 	@Test
@@ -16,16 +16,20 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -53,6 +57,7 @@ public class Util {
 	private static String vlibTrashDirectory=null;
 	private static String vlibTempDirectory=null;
 	private static String externalChecksumProgram=null;
+	private static boolean checksumInProcess=true;
 	private static boolean initialized=false;
 	
 	private final static String JNDI_configurationFile = "java:global/configurationFile";
@@ -108,7 +113,8 @@ public class Util {
 			stat(f.getAbsolutePath());
 
 			externalChecksumProgram = Config.getString(ConfigurationKey.EXTERNAL_CHECKSUM_COMMAND);
-			//Test the command by trying to compute a checksum
+			checksumInProcess = Config.getBoolean(ConfigurationKey.CHECKSUM_IN_PROCESS);
+			//Test the checksum facility by trying to compute a checksum
 			computeChecksum(f.getAbsolutePath());
 			
 		} catch (Exception e) {
@@ -173,6 +179,111 @@ public class Util {
 		
 	}
 	
+	/**
+	 * Determines whether two paths reside on the same file store (device), which
+	 * means one can be hard linked or renamed to the other.
+	 * @param a An existing file or directory.
+	 * @param b An existing file or directory.
+	 * @return True if both are known to be on the same file store.
+	 */
+	public static boolean sameFileStore(File a, File b) {
+		try {
+			return Files.getFileStore(a.toPath()).equals(Files.getFileStore(b.toPath()));
+		} catch (Exception e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Creates a hard link {@code link} to the existing file {@code existing}.  If {@code link}
+	 * already exists it is replaced.
+	 * @param existing The file to link to.
+	 * @param link The path of the new link.
+	 * @throws IOException if the link cannot be created, for example because the two paths
+	 * are on different file systems or the file system does not support links.
+	 */
+	public static void linkFile(File existing, File link) 
+		throws IOException 
+	{
+		Files.deleteIfExists(link.toPath());
+		try {
+			Files.createLink(link.toPath(), existing.toPath());
+		} catch (UnsupportedOperationException e) {
+			throw new IOException("Hard links are not supported",e);
+		}
+	}
+	
+	/** Size of the buffer used by {@link #copyFileContent} when a digest is being computed **/
+	private static final int COPY_BUFFER_SIZE = 1024*1024;
+	
+	/**
+	 * Copies the content of {@code from} to {@code to}, replacing any existing content.  If
+	 * {@code md} is null, the copy is done with {@code FileChannel.transferTo} so the kernel
+	 * moves the bytes without them passing through the heap.  Otherwise the content is copied
+	 * through a single fixed-size direct buffer and added to the digest as it goes.  In either
+	 * case memory use does not depend on the size of the file.
+	 * @param from The source file.
+	 * @param to The destination file.
+	 * @param md A digest to update with the content, or null.
+	 * @return The number of bytes copied.
+	 * @throws IOException
+	 */
+	public static long copyFileContent(File from, File to, MessageDigest md) 
+		throws IOException 
+	{
+		return copyFileContent(from, to, md, null);
+	}
+	
+	/**
+	 * Copies the content of {@code from} to {@code to} as {@link #copyFileContent(File, File, MessageDigest)}
+	 * does, reporting the bytes copied as it goes.
+	 * @param from The source file.
+	 * @param to The destination file.
+	 * @param md A digest to update with the content, or null.
+	 * @param progress If not null, is called with the number of bytes in each part of the content
+	 * as it is copied.
+	 * @return The number of bytes copied.
+	 * @throws IOException
+	 */
+	public static long copyFileContent(File from, File to, MessageDigest md, java.util.function.LongConsumer progress) 
+		throws IOException 
+	{
+		try (
+			FileChannel src = FileChannel.open(from.toPath(), StandardOpenOption.READ);
+			FileChannel dest = FileChannel.open(to.toPath(), StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		){
+			long copied = 0;
+			if (md==null) {
+				long size = src.size();
+				while (copied<size) {
+					long n = src.transferTo(copied, size-copied, dest);
+					if (n<=0)
+						break;  // The source was truncated underneath us
+					copied += n;
+					if (progress!=null)
+						progress.accept(n);
+				}
+			} else {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+				int read;
+				while ((read=src.read(buffer)) != -1) {
+					buffer.flip();
+					// Digest a duplicate so that the write below sees the same bytes
+					md.update(buffer.duplicate());
+					while (buffer.hasRemaining())
+						dest.write(buffer);
+					buffer.clear();
+					copied += read;
+					if (progress!=null)
+						progress.accept(read);
+				}
+			}
+			dest.force(false);
+			return copied;
+		}
+	}
+	
 	/**
 	 * Moves the specified file to the configured trash directory
 	 * @param f The file to move to the recycle bin.
@@ -238,9 +349,17 @@ public class Util {
 		public long linkcount;
 	}
 	
+	/** Set to false the first time the file system provider proves unable to supply unix attributes,
+	 * after which the external command is used. **/
+	private static volatile boolean nativeStatSupported = true;
+	
+	/** The attributes retrieved for a native stat **/
+	private static final String NATIVE_STAT_ATTRIBUTES = "unix:ino,nlink";
+	
 	/**
-	 * Calls an external program, usually stat(1), to retrieve *NIX specific information for a file, namely
-	 * the inode number and the hard link count.
+	 * Retrieves *NIX specific information for a file, namely the inode number and the hard link count.
+	 * The information is read in-process through the {@code unix} file attribute view.  If the
+	 * platform does not provide that view, an external program, usually stat(1), is called instead.
 	 * 
 	 * @param filename Path to the file to stat.
 	 * @return A StatBuf object with retrieved file-specific information.
@@ -248,6 +367,45 @@ public class Util {
 	public static StatBuf stat(String filename) 
 		throws Exception 
 	{
+		if (nativeStatSupported) {
+			try {
+				return nativeStat(new File(filename).toPath());
+			} catch (UnsupportedOperationException | IllegalArgumentException e) {
+				nativeStatSupported = false;
+				L.log(L.W, "Util", "unix file attributes are not available, falling back to %s",externalInodeCommand);
+			} catch (IOException e) {
+				throw new Exception("Native stat query failed for "+filename,e);
+			}
+		}
+		return externalStat(filename);
+	}
+	
+	/**
+	 * Reads the inode number and link count through the {@code unix} attribute view.
+	 * @param path The file to stat.
+	 * @return A populated StatBuf.
+	 * @throws IOException if the file cannot be read.
+	 * @throws UnsupportedOperationException if the view is not available on this platform.
+	 */
+	private static StatBuf nativeStat(java.nio.file.Path path) 
+		throws IOException 
+	{
+		java.util.Map<String,Object> attrs = Files.readAttributes(path, NATIVE_STAT_ATTRIBUTES);
+		StatBuf buf = new StatBuf();
+		buf.inode = ((Number)attrs.get("ino")).longValue();
+		buf.linkcount = ((Number)attrs.get("nlink")).longValue();
+		return buf;
+	}
+	
+	/**
+	 * Calls an external program, usually stat(1), to retrieve the inode number and the hard link count.
+	 * 
+	 * @param filename Path to the file to stat.
+	 * @return A StatBuf object with retrieved file-specific information.
+	 */
+	public static StatBuf externalStat(String filename) 
+		throws Exception 
+	{
 
 		StatBuf buf = new StatBuf();
 		try {
@@ -266,6 +424,37 @@ public class Util {
 		return buf;
 	}
 	
+	/**
+	 * Stats every regular file in a directory subtree in a single walk.  Files that vanish or
+	 * cannot be read during the walk are omitted rather than failing the whole walk.
+	 * 
+	 * @param root The directory at the top of the subtree.
+	 * @return A map from each regular file's absolute path name to its StatBuf.
+	 * @throws Exception if the subtree cannot be walked.
+	 */
+	public static java.util.Map<String,StatBuf> statTree(String root) 
+		throws Exception 
+	{
+		java.util.Map<String,StatBuf> result = new java.util.HashMap<String,StatBuf>();
+		try (java.util.stream.Stream<java.nio.file.Path> walk = Files.walk(new File(root).toPath())) {
+			java.util.Iterator<java.nio.file.Path> it = walk.iterator();
+			while (it.hasNext()) {
+				java.nio.file.Path p = it.next();
+				if (!Files.isRegularFile(p, java.nio.file.LinkOption.NOFOLLOW_LINKS))
+					continue;
+				String name = p.toAbsolutePath().toString();
+				try {
+					result.put(name, stat(name));
+				} catch (Exception e) {
+					L.log(L.W, "Util", "skipping '%s' in subtree stat: %s", name, e.getMessage());
+				}
+			}
+		} catch (java.io.UncheckedIOException e) {
+			throw new Exception("Subtree stat failed for "+root,e.getCause());
+		}
+		return result;
+	}
+	
 	public static String drainInputStream(InputStream s, int maxchars) throws IOException {
 		StringBuffer sb = new StringBuffer(maxchars);
 		
@@ -395,27 +584,127 @@ public class Util {
 	}
 	
 	/**
-	 * Computes the SHA1 checksum of a file on disk using an external program .
+	 * Indicates whether checksums are computed in-process, which means callers that are
+	 * already reading a file's content can accumulate the digest themselves with
+	 * {@link #newChecksumDigest()} rather than calling {@link #computeChecksum(String)}.
+	 * @return True if {@code CHECKSUM_IN_PROCESS} is configured.
+	 */
+	public static boolean isChecksumInProcess() {
+		return checksumInProcess;
+	}
+	
+	/**
+	 * Creates a new message digest of the algorithm used for content checksums (SHA1).
+	 * @return A freshly initialized {@code MessageDigest}.
+	 */
+	public static MessageDigest newChecksumDigest() 
+		throws U_Exception
+	{
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new U_Exception(ERROR.EncryptionError,"SHA-1 is not supported by this JVM",e);
+		}
+	}
+	
+	/**
+	 * Completes the digest and renders it in the same form as the external checksum
+	 * program: 40 lower case hexits.
+	 * @param md A digest created by {@link #newChecksumDigest()} that has been updated
+	 * with all of the content.
+	 * @return A string representation of the SHA1 checksum, with any letter hexits in lower case
+	 */
+	public static String checksumFromDigest(MessageDigest md) 
+		throws Exception
+	{
+		return validateChecksum(toHex(md.digest()));
+	}
+	
+	/**
+	 * Renders bytes as lower case hexits, two per byte.
+	 * @param bytes The bytes.
+	 * @return The hexits.
+	 */
+	public static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length*2);
+		for (byte b : bytes) {
+			sb.append(HEXITS[(b>>4)&0x0f]);
+			sb.append(HEXITS[b&0x0f]);
+		}
+		return sb.toString();
+	}
+	private static final char[] HEXITS = "0123456789abcdef".toCharArray();
+	
+	/**
+	 * Checks that a checksum is in the format stored in the {@code versions} table.
+	 * @param sha1 The checksum to test.
+	 * @return The checksum, in lower case.
+	 * @throws Exception if the checksum is not 40 hexadecimal characters.
+	 */
+	public static String validateChecksum(String sha1) 
+		throws Exception
+	{
+		sha1 = sha1.toLowerCase();
+		if (sha1.length()!=40)
+			throw new Exception("token should be 40 characters long");
+		if (!isHexidecimalString(sha1))
+			throw new Exception("invalid hexidecimal characters");
+		return sha1;
+	}
+	
+	/**
+	 * Computes the SHA1 checksum of a file on disk, either in-process or using an external
+	 * program, depending on {@code CHECKSUM_IN_PROCESS}.
 	 * 
 	 * @param f A <code>File</code> object associated with the disk file to be checked
 	 * @return A string representation of the SHA1 checksum, with any letter hexits in lower case
 	 */
 	public static String computeChecksum(String filename) 
 			throws Exception 
+	{
+		return computeChecksum(filename,null);
+	}
+	
+	/**
+	 * Computes the SHA1 checksum of a file on disk, either in-process or using an external
+	 * program, depending on {@code CHECKSUM_IN_PROCESS}, while allowing the caller to pace
+	 * the reads.
+	 * 
+	 * @param filename The path of the disk file to be checked
+	 * @param throttle If not null, is called with a byte count before that many bytes are read,
+	 * and may block to limit the read rate.  When the external program is used it is called
+	 * once with the length of the whole file.
+	 * @return A string representation of the SHA1 checksum, with any letter hexits in lower case
+	 */
+	public static String computeChecksum(String filename, java.util.function.LongConsumer throttle) 
+			throws Exception 
 	{
 		try {
+			if (checksumInProcess) {
+				MessageDigest md = newChecksumDigest();
+				try (ReadableByteChannel in = Files.newByteChannel(new File(filename).toPath(), StandardOpenOption.READ)) {
+					ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+					do {
+						if (throttle!=null)
+							throttle.accept(buffer.capacity());
+						buffer.clear();
+						if (in.read(buffer)==-1)
+							break;
+						buffer.flip();
+						md.update(buffer);
+					} while (true);
+				}
+				return checksumFromDigest(md);
+			}
+			if (throttle!=null)
+				throttle.accept(new File(filename).length());
 			String cmd = String.format("%s '%s'", externalChecksumProgram,filename);
 			String[] cmdarray = tokenizeAsShellWould(cmd).toArray(new String[0]);
 			String line = runExteranalProgram(cmdarray, 50);
 			String[] tokens = tokenizeAsShellWould(line).toArray(new String[0]);
 			if (tokens.length<1)
 				throw new Exception("wrong number of tokens output from checksum program: "+line);
-			String sha1 = tokens[0].toLowerCase();
-			if (sha1.length()!=40)
-				throw new Exception("token should be 40 characters long");
-			if (!isHexidecimalString(sha1))
-				throw new Exception("invalid hexidecimal characters");
-			return sha1;
+			return validateChecksum(tokens[0]);
 		} catch (Exception e) {
 			throw new Exception(String.format("Checksum computation of '%s' failed",filename==null?"(null)":filename),e);
 		}
@@ -570,6 +859,22 @@ public class Util {
 	
 	  public static void copyStreamToFileAtPosition(final InputStream input, File f, long offset) 
 		  throws U_Exception {
+		  	copyStreamToFileAtPosition(input, f, offset, null);
+		  }
+	
+	  /**
+	   * Copies a stream into an existing file, starting at a position in the file, and shows
+	   * each chunk of the content to a consumer before it is written.
+	   * @param input The stream, which is read to its end.
+	   * @param f The file.
+	   * @param offset The position in the file at which the first byte is written.
+	   * @param tap If not null, is given a read only view of each chunk, in order.
+	   * @return The number of bytes copied.
+	   * @throws U_Exception
+	   */
+	  public static long copyStreamToFileAtPosition(final InputStream input, File f, long offset, Consumer<ByteBuffer> tap) 
+		  throws U_Exception {
+		  	long copied = 0;
 		  	try (
 		  		final ReadableByteChannel src = Channels.newChannel(input);
 	  			final SeekableByteChannel dest = Files.newByteChannel(f.toPath(),EnumSet.of(StandardOpenOption.WRITE));
@@ -579,21 +884,17 @@ public class Util {
 			    while (src.read(buffer) != -1) {
 			      // prepare the buffer to be drained
 			      buffer.flip();
-			      // write to the channel, may block
-			      dest.write(buffer);
-			      // If partial transfer, shift remainder down
-			      // If buffer is empty, same as doing clear()
-			      buffer.compact();
-			    }
-			    // EOF will leave buffer in fill state
-			    buffer.flip();
-			    // make sure the buffer is fully drained.
-			    while (buffer.hasRemaining()) {
-			      dest.write(buffer);
+			      if (tap!=null)
+			    	  tap.accept(buffer.asReadOnlyBuffer());
+			      // write all of it, so that each byte is shown to the tap once
+			      while (buffer.hasRemaining())
+			    	  copied += dest.write(buffer);
+			      buffer.clear();
 			    }
 		    } catch (IOException e) {
 		    	throw new U_Exception(ERROR.IOError,e);
 		    }
+		  	return copied;
 		  }
 	
 	  /** 
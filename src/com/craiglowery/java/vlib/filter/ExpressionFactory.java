@@ -8,10 +8,18 @@ package com.craiglowery.java.vlib.filter;
  */
 
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Dictionary;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Set;
 import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -20,13 +28,17 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
+import com.craiglowery.java.vlib.common.IntegerSet;
 import com.craiglowery.java.vlib.common.U_Exception;
 import com.craiglowery.java.vlib.repository.RepositoryManager;
+import com.craiglowery.java.vlib.repository.TagMembershipIndex;
 import com.craiglowery.java.vlib.repository.TagsTuple;
 import com.craiglowery.java.vlib.repository.VersionsTuple;
 import com.craiglowery.java.vlib.tuple.TableAdapter;
 import com.craiglowery.java.vlib.tuple.Tuple;
+import com.craiglowery.java.vlib.tuple.filterexp.FilterExpressionException;
 import com.craiglowery.java.vlib.tuple.filterexp.SmartDateTimeParser;
+import com.craiglowery.java.vlib.tuple.filterexp.TupleExpressionFactory;
 
 /**
  * Used to create expression trees of the repository's attribute and tagging
@@ -68,18 +80,36 @@ public class ExpressionFactory {
 	private int handleFieldOffset=-1;
 	
 	public ExpressionFactory(RepositoryManager rm, TableAdapter<VersionsTuple> ta) throws ExprException {
+		this(rm, ta, tagNamesOf(rm));
+	}
+	
+	/**
+	 * Creates a factory that recognizes the given tag names, rather than those defined in the repository.
+	 * @param rm The repository manager whose tag cache is used to evaluate tag tests.
+	 * @param ta The table adapter for the table the expressions will be applied to.
+	 * @param tagNames The tag names.
+	 * @throws ExprException
+	 */
+	public ExpressionFactory(RepositoryManager rm, TableAdapter<VersionsTuple> ta, Collection<String> tagNames) throws ExprException {
 		this.ta=ta;
 		this.rm=rm;
-		tagNames = new HashSet<String>(50);
+		this.tagNames = new HashSet<String>(50);
+		for (String name : tagNames)
+			this.tagNames.add(name.toLowerCase());
+		handleFieldOffset = ta.attributeOffset("handle");
+		if ( ta.javaTypeOf(handleFieldOffset)!=Integer.class)
+			throw new ExprException("The table must have a 'handle' field of type Integer in order to support tagging");
+	}
+	
+	private static List<String> tagNamesOf(RepositoryManager rm) throws ExprException {
+		List<String> names = new ArrayList<String>(50);
 		try {
 			for (TagsTuple tt : rm.getTags())
-				tagNames.add(tt.name.toLowerCase());
+				names.add(tt.name);
 		} catch (U_Exception e) {
 			throw new ExprException("Error retrieving tag names",e);
 		}
-		handleFieldOffset = ta.attributeOffset("handle");
-		if ( ta.javaTypeOf(handleFieldOffset)!=Integer.class)
-			throw new ExprException("The table must have a 'handle' field of type Integer in order to support tagging");
+		return names;
 	}
 
 
@@ -305,6 +335,566 @@ public class ExpressionFactory {
 		}
 	}
 	
+//------------------------------------------------------------------------------------------	
+//-- Set evaluation 	
+//------------------------------------------------------------------------------------------	
+
+	/**
+	 * Evaluates a Boolean expression tree against the tag membership index as a whole, returning
+	 * the set of object handles for which it is true.  Only trees built from tag membership tests
+	 * ({@code tag = 'value'}, {@code tag != 'value'} and their case insensitive forms), Boolean
+	 * literals, AND, OR, NOT and Boolean equality can be evaluated this way.  Negation is taken
+	 * against the set of all objects.<p>
+	 * 
+	 * The index must be loaded (see {@code RepositoryManager.tm_freshenCache()}).
+	 * 
+	 * @param node The root of the tree.
+	 * @param index The tag membership index.
+	 * @return The set of matching handles, or null if the tree uses anything other than the
+	 * constructs listed above.
+	 */
+	public IntegerSet evalTagSet(Expr node, TagMembershipIndex index) {
+		IntegerSet universe = index.allObjects();
+		if (universe==null)
+			return null;
+		return evalTagSet(node, index, universe);
+	}
+
+	private IntegerSet evalTagSet(Expr node, TagMembershipIndex index, IntegerSet universe) {
+		if (node instanceof BooleanLiteralExpr)
+			return (Boolean)node.value ? universe : new IntegerSet();
+		if (node instanceof BooleanNotExpr) {
+			IntegerSet operand = evalTagSet(((BooleanNotExpr)node).operand, index, universe);
+			return operand==null ? null : universe.difference(operand);
+		}
+		if (node instanceof BooleanBinaryExpr) {
+			BooleanBinaryExpr b = (BooleanBinaryExpr)node;
+			IntegerSet a = evalTagSet(b.operandA, index, universe);
+			if (a==null)
+				return null;
+			IntegerSet c = evalTagSet(b.operandB, index, universe);
+			if (c==null)
+				return null;
+			switch (b.op) {
+				case BooleanBinaryExpr.AND: return a.intersect(c);
+				case BooleanBinaryExpr.OR: return a.union(c);
+				case BooleanBinaryExpr.EQ: return universe.difference(a.union(c)).union(a.intersect(c));
+				case BooleanBinaryExpr.NE: return a.union(c).difference(a.intersect(c));
+			}
+			return null;
+		}
+		if (node instanceof TagBinaryExpr) {
+			TagBinaryExpr t = (TagBinaryExpr)node;
+			if (!t.membershipTest || !(t.operandA instanceof TagAttributeExpr) || !t.operandB.isLiteral())
+				return null;
+			IntegerSet members = index.objectsTaggedWith((String)t.operandA.value, (String)t.operandB.value, t.ci);
+			if (members==null)
+				members = new IntegerSet();
+			return t.op==TagBinaryExpr.NINC ? universe.difference(members) : members;
+		}
+		return null;
+	}
+	
+	/**
+	 * Lists the attributes of the tuple that evaluating an expression tree reads.  Tags are not
+	 * attributes, but testing one reads the tuple's handle, so a tree that uses tags reads
+	 * {@code handle}.
+	 * @param root The root of a tree built by this factory.
+	 * @return The attribute names.
+	 */
+	public Set<String> attributesUsed(Expr root) {
+		Set<String> names = new HashSet<String>();
+		gatherAttributes(root, names);
+		return names;
+	}
+
+	private void gatherAttributes(Expr node, Set<String> names) {
+		if (node instanceof TagAttributeExpr)
+			names.add("handle");
+		else if (node instanceof AttributeExpr)
+			names.add((String)node.value);
+		else if (node instanceof BinaryExpr) {
+			gatherAttributes(((BinaryExpr)node).operandA, names);
+			gatherAttributes(((BinaryExpr)node).operandB, names);
+		} else if (node instanceof UnaryExpr)
+			gatherAttributes(((UnaryExpr)node).operand, names);
+	}
+	
+//------------------------------------------------------------------------------------------	
+//-- Query planning 	
+//------------------------------------------------------------------------------------------	
+
+	/**
+	 * The result of {@link ExpressionFactory#plan}.  A tuple passes the original expression
+	 * if and only if it is selected by {@code pushed} and then passes {@code residual}.
+	 */
+	public class Plan {
+		/** The part of the expression the backing store can evaluate, or null if there is none. **/
+		public final TupleExpressionFactory.Node pushed;
+		/** The part that must be evaluated for each tuple selected, or null if there is none. **/
+		public final Expr residual;
+		
+		Plan(TupleExpressionFactory.Node pushed, Expr residual) {
+			this.pushed = pushed;
+			this.residual = residual;
+		}
+	}
+	
+	/**
+	 * Splits a Boolean expression tree into a part that can be translated into a table adapter
+	 * filter, and so evaluated by the backing store, and a residual part to be evaluated for
+	 * each tuple the store returns.<p>
+	 * 
+	 * The top level conjuncts (terms joined by AND) are considered one at a time.  A conjunct is
+	 * pushed if every node in it can be translated, which is the case for:
+	 * <ul>
+	 *   <li>Boolean literals and attributes, AND, OR, NOT and Boolean equality;
+	 *   <li>Integer, Double and TimeStamp comparisons between attributes and literals;
+	 *   <li>String equality, inequality and substring tests, case sensitive or not;
+	 *   <li>tag membership tests against a string, which become a sub-select on the tagging table.
+	 * </ul>
+	 * String ordering comparisons are not pushed, since the backing store's collation need not
+	 * agree with Java's, nor are tag equality tests against tag literals.
+	 * 
+	 * @param root The root of a Boolean expression tree built by this factory.
+	 * @param ef The expression factory of the table the tree will be applied to.
+	 * @param tagTable The name of the tagging table.
+	 * @param tagEf The expression factory of the tagging table.
+	 * @return The plan.
+	 * @throws ExprException
+	 */
+	public Plan plan(Expr root, TupleExpressionFactory ef, String tagTable, TupleExpressionFactory tagEf)
+		throws ExprException
+	{
+		List<Expr> conjuncts = new ArrayList<Expr>();
+		gatherConjuncts(root, conjuncts);
+		List<TupleExpressionFactory.Node> pushed = new ArrayList<TupleExpressionFactory.Node>();
+		Expr residual = null;
+		for (Expr conjunct : conjuncts) {
+			TupleExpressionFactory.Node node = null;
+			try {
+				node = push(conjunct, ef, tagTable, tagEf);
+			} catch (FilterExpressionException e) {
+				node = null;   //Leave it to the residual
+			}
+			if (node!=null)
+				pushed.add(node);
+			else
+				residual = residual==null ? conjunct : new BooleanBinaryExpr(residual, Operator.BooleanAnd, conjunct);
+		}
+		try {
+			TupleExpressionFactory.Node filter = null;
+			if (pushed.size()==1)
+				filter = pushed.get(0);
+			else if (pushed.size()>1)
+				filter = ef.and(pushed.toArray());
+			return new Plan(filter, residual);
+		} catch (FilterExpressionException e) {
+			throw new ExprException("Unable to combine pushed query terms",e);
+		}
+	}
+	
+	private void gatherConjuncts(Expr node, List<Expr> conjuncts) {
+		if (node instanceof BooleanBinaryExpr && ((BooleanBinaryExpr)node).op==BooleanBinaryExpr.AND) {
+			gatherConjuncts(((BooleanBinaryExpr)node).operandA, conjuncts);
+			gatherConjuncts(((BooleanBinaryExpr)node).operandB, conjuncts);
+		} else
+			conjuncts.add(node);
+	}
+	
+	/**
+	 * Translates an expression tree into a table adapter filter.
+	 * @return The filter, or null if some part of the tree cannot be translated.
+	 */
+	private TupleExpressionFactory.Node push(Expr node, TupleExpressionFactory ef, String tagTable, TupleExpressionFactory tagEf)
+		throws FilterExpressionException
+	{
+		if (node.type!=Type.Boolean)
+			return null;
+		if (node.isConstant())
+			return ef.litBoolean((Boolean)node.value);
+		if (node instanceof BooleanAttributeExpr)
+			return ef.comp(ef.attribute((String)node.value), "=", ef.litBoolean(true));
+		if (node instanceof BooleanNotExpr) {
+			TupleExpressionFactory.Node operand = push(((BooleanNotExpr)node).operand, ef, tagTable, tagEf);
+			return operand==null ? null : ef.not(operand);
+		}
+		if (node instanceof BooleanBinaryExpr) {
+			BooleanBinaryExpr b = (BooleanBinaryExpr)node;
+			TupleExpressionFactory.Node a = push(b.operandA, ef, tagTable, tagEf);
+			if (a==null)
+				return null;
+			TupleExpressionFactory.Node c = push(b.operandB, ef, tagTable, tagEf);
+			if (c==null)
+				return null;
+			switch (b.op) {
+				case BooleanBinaryExpr.AND: return ef.and(a,c);
+				case BooleanBinaryExpr.OR: return ef.or(a,c);
+				case BooleanBinaryExpr.EQ: return ef.or(ef.and(a,c), ef.and(ef.not(a),ef.not(c)));
+				case BooleanBinaryExpr.NE: return ef.or(ef.and(a,ef.not(c)), ef.and(ef.not(a),c));
+			}
+			return null;
+		}
+		if (node instanceof TagBinaryExpr) {
+			TagBinaryExpr t = (TagBinaryExpr)node;
+			if (!t.membershipTest || !(t.operandA instanceof TagAttributeExpr) || !t.operandB.isLiteral())
+				return null;
+			TupleExpressionFactory.Node tagged = ef.in(ef.attribute("handle"), tagTable, "handle",
+					tagEf.and(
+						tagEf.comp(tagEf.attribute("name"), "=", tagEf.litString((String)t.operandA.value)),
+						tagEf.comp(tagEf.attribute("value"), t.ci?"~=":"=", tagEf.litString((String)t.operandB.value))));
+			return t.op==TagBinaryExpr.NINC ? ef.not(tagged) : tagged;
+		}
+		if (node instanceof StringBinaryExpr) {
+			switch (((StringBinaryExpr)node).operator) {
+				case Equals: case CI_Equals:
+				case DoesNotEqual: case CI_DoesNotEqual:
+				case IsASubstringOf: case CI_IsASubstringOf:
+					break;
+				default:
+					return null;
+			}
+		}
+		if (node instanceof StringBinaryExpr || node instanceof IntegerBinaryExpr 
+				|| node instanceof DoubleBinaryExpr || node instanceof TimeStampBinaryExpr) {
+			BinaryExpr b = (BinaryExpr)node;
+			com.craiglowery.java.vlib.tuple.filterexp.Operator op = mapOperator(b.operator);
+			TupleExpressionFactory.Node left = pushOperand(b.operandA, ef);
+			TupleExpressionFactory.Node right = pushOperand(b.operandB, ef);
+			if (op==null || left==null || right==null)
+				return null;
+			//The generator expects a literal time stamp on the right
+			if (node instanceof TimeStampBinaryExpr && b.operandA.isLiteral()) {
+				TupleExpressionFactory.Node swap = left;
+				left = right;
+				right = swap;
+				op = mirrorOperator(op);
+			}
+			return ef.comp(left, op, right);
+		}
+		return null;
+	}
+	
+	private TupleExpressionFactory.Node pushOperand(Expr operand, TupleExpressionFactory ef)
+		throws FilterExpressionException
+	{
+		if (operand.isAttribute() && operand.type!=Type.Tag)
+			return ef.attribute((String)operand.value);
+		if (!operand.isLiteral())
+			return null;
+		switch (operand.type) {
+			case Integer: return ef.litLong((Long)operand.value);
+			case Double: return ef.litDouble((Double)operand.value);
+			case String: return ef.litString((String)operand.value);
+			case TimeStamp: return ef.ConvertLiteral(((TimeStampType)operand.value).instant);
+			default: return null;
+		}
+	}
+	
+	private static com.craiglowery.java.vlib.tuple.filterexp.Operator mapOperator(Operator operator) {
+		switch (operator) {
+			case Equals: return com.craiglowery.java.vlib.tuple.filterexp.Operator.EQUAL_TO;
+			case CI_Equals: return com.craiglowery.java.vlib.tuple.filterexp.Operator.CI_EQUAL_TO;
+			case DoesNotEqual: return com.craiglowery.java.vlib.tuple.filterexp.Operator.NOT_EQUAL_TO;
+			case CI_DoesNotEqual: return com.craiglowery.java.vlib.tuple.filterexp.Operator.CI_NOT_EQUAL_TO;
+			case LessThan: return com.craiglowery.java.vlib.tuple.filterexp.Operator.LESS_THAN;
+			case LessThanOrEqualTo: return com.craiglowery.java.vlib.tuple.filterexp.Operator.LESS_THAN_OR_EQUAL_TO;
+			case GreaterThan: return com.craiglowery.java.vlib.tuple.filterexp.Operator.GREATER_THAN;
+			case GreaterThanOrEqualTo: return com.craiglowery.java.vlib.tuple.filterexp.Operator.GREATER_THAN_OR_EQUAL_TO;
+			case IsASubstringOf: return com.craiglowery.java.vlib.tuple.filterexp.Operator.IS_SUBSTRING_OF;
+			case CI_IsASubstringOf: return com.craiglowery.java.vlib.tuple.filterexp.Operator.CI_IS_SUBSTRING_OF;
+			default: return null;
+		}
+	}
+	
+	private static com.craiglowery.java.vlib.tuple.filterexp.Operator mirrorOperator(com.craiglowery.java.vlib.tuple.filterexp.Operator op) {
+		switch (op) {
+			case LESS_THAN: return com.craiglowery.java.vlib.tuple.filterexp.Operator.GREATER_THAN;
+			case LESS_THAN_OR_EQUAL_TO: return com.craiglowery.java.vlib.tuple.filterexp.Operator.GREATER_THAN_OR_EQUAL_TO;
+			case GREATER_THAN: return com.craiglowery.java.vlib.tuple.filterexp.Operator.LESS_THAN;
+			case GREATER_THAN_OR_EQUAL_TO: return com.craiglowery.java.vlib.tuple.filterexp.Operator.LESS_THAN_OR_EQUAL_TO;
+			default: return op;
+		}
+	}
+	
+//------------------------------------------------------------------------------------------	
+//-- Compilation 	
+//------------------------------------------------------------------------------------------	
+
+	/**
+	 * A Boolean expression tree compiled by {@link ExpressionFactory#compile}.  Unlike the tree
+	 * itself, a compiled filter keeps no per-evaluation state and can be shared between threads.
+	 */
+	public interface CompiledFilter {
+		/**
+		 * Tests a tuple against the filter.
+		 * @param t The tuple, which must be an instance of the class serviced by the factory's table adapter.
+		 * @return True if the tuple passes the filter.
+		 * @throws ExprException
+		 */
+		boolean test(Tuple t) throws ExprException;
+	}
+
+	/* The compiled forms of the typed nodes.  Integer values are carried as long, Double values as
+	 * double and Boolean values as boolean, so evaluating a compiled tree boxes nothing. */
+	private interface BooleanCode { boolean eval(Tuple t) throws Throwable; }
+	private interface LongCode { long eval(Tuple t) throws Throwable; }
+	private interface DoubleCode { double eval(Tuple t) throws Throwable; }
+	private interface ObjectCode<T> { T eval(Tuple t) throws Throwable; }
+
+	private static final int C_EQ=0;
+	private static final int C_NE=1;
+	private static final int C_LT=2;
+	private static final int C_GT=3;
+	private static final int C_LTE=4;
+	private static final int C_GTE=5;
+
+	/**
+	 * Compiles a Boolean expression tree into a predicate that does not allocate as it runs.
+	 * Attributes are read through method handles resolved once here rather than by name for each
+	 * tuple, literals are unwrapped once, constant subtrees are folded, and comparisons are
+	 * specialized by type so Integer and Double tests are made on primitives.  AND and OR
+	 * short-circuit.  Tag membership tests against string literals look the tuple's tag values up
+	 * in the repository's tag cache with a pre-folded key.  Any node not covered (currently only
+	 * tag equality against another tag value) is evaluated by the tree itself, so the compiled
+	 * filter always agrees with {@link Expr#eval}.
+	 * 
+	 * @param root The root of a Boolean expression tree built by this factory.
+	 * @return The compiled filter.
+	 * @throws ExprException
+	 */
+	public CompiledFilter compile(Expr root) throws ExprException {
+		if (root.type!=Type.Boolean)
+			throw new ExprException("Only Boolean expressions can be compiled");
+		if (root.usesTagType()) {
+			try {
+				rm.tm_freshenCache();
+			} catch (U_Exception e) {
+				throw new ExprException("Could not prepare tag membership testing cache",e);
+			}
+		}
+		final BooleanCode code = compileBoolean(root);
+		return (t) -> {
+			try {
+				return code.eval(t);
+			} catch (ExprException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new ExprException("Error evaluating compiled filter",e);
+			}
+		};
+	}
+
+	private BooleanCode compileBoolean(final Expr node) throws ExprException {
+		if (node.isConstant()) {
+			final boolean k = (Boolean)node.value;
+			return (t) -> k;
+		}
+		if (node instanceof BooleanAttributeExpr) {
+			final MethodHandle mh = getter(node, boolean.class);
+			return (t) -> (boolean)mh.invokeExact(t);
+		}
+		if (node instanceof BooleanNotExpr) {
+			final BooleanCode a = compileBoolean(((BooleanNotExpr)node).operand);
+			return (t) -> !a.eval(t);
+		}
+		if (node instanceof BooleanBinaryExpr) {
+			BooleanBinaryExpr b = (BooleanBinaryExpr)node;
+			final BooleanCode a = compileBoolean(b.operandA);
+			final BooleanCode c = compileBoolean(b.operandB);
+			switch (b.op) {
+				case BooleanBinaryExpr.AND: return (t) -> a.eval(t) && c.eval(t);
+				case BooleanBinaryExpr.OR: return (t) -> a.eval(t) || c.eval(t);
+				case BooleanBinaryExpr.EQ: return (t) -> a.eval(t) == c.eval(t);
+				case BooleanBinaryExpr.NE: return (t) -> a.eval(t) != c.eval(t);
+			}
+		}
+		if (node instanceof IntegerBinaryExpr) {
+			BinaryExpr b = (BinaryExpr)node;
+			return compareLongs(compileLong(b.operandA), b.operator, compileLong(b.operandB));
+		}
+		if (node instanceof DoubleBinaryExpr) {
+			BinaryExpr b = (BinaryExpr)node;
+			return compareDoubles(compileDouble(b.operandA), b.operator, compileDouble(b.operandB));
+		}
+		if (node instanceof StringBinaryExpr) {
+			StringBinaryExpr s = (StringBinaryExpr)node;
+			final ObjectCode<String> a = compileString(s.operandA);
+			if (s.op==StringBinaryExpr.SUB) {
+				if (s.operandA.isConstant()) {
+					final String k = s.ci ? ((String)s.operandA.value).toLowerCase() : (String)s.operandA.value;
+					final ObjectCode<String> c = compileString(s.operandB);
+					if (s.ci)
+						return (t) -> c.eval(t).toLowerCase().contains(k);
+					return (t) -> c.eval(t).contains(k);
+				}
+				final ObjectCode<String> c = compileString(s.operandB);
+				if (s.ci)
+					return (t) -> c.eval(t).toLowerCase().contains(a.eval(t).toLowerCase());
+				return (t) -> c.eval(t).contains(a.eval(t));
+			}
+			final ObjectCode<String> c = compileString(s.operandB);
+			if (s.ci)
+				return relation(s.operator, (t) -> a.eval(t).compareToIgnoreCase(c.eval(t)));
+			return relation(s.operator, (t) -> a.eval(t).compareTo(c.eval(t)));
+		}
+		if (node instanceof TimeStampBinaryExpr) {
+			BinaryExpr b = (BinaryExpr)node;
+			final ObjectCode<Instant> a = compileInstant(b.operandA);
+			final ObjectCode<Instant> c = compileInstant(b.operandB);
+			return relation(b.operator, (t) -> a.eval(t).compareTo(c.eval(t)));
+		}
+		if (node instanceof TagBinaryExpr) {
+			TagBinaryExpr tb = (TagBinaryExpr)node;
+			if (tb.membershipTest && tb.operandA instanceof TagAttributeExpr) {
+				final ObjectCode<TreeSet<String>[]> a = compileTag(tb.operandA);
+				final int which = tb.ci ? 1 : 0;
+				final boolean negate = tb.op==TagBinaryExpr.NINC;
+				if (tb.operandB.isConstant()) {
+					final String k = tb.ci ? ((String)tb.operandB.value).toLowerCase() : (String)tb.operandB.value;
+					return (t) -> {
+						TreeSet<String>[] values = a.eval(t);
+						return (values!=null && values[which].contains(k)) != negate;
+					};
+				}
+				final ObjectCode<String> c = compileString(tb.operandB);
+				final boolean ci = tb.ci;
+				return (t) -> {
+					TreeSet<String>[] values = a.eval(t);
+					return (values!=null && values[which].contains(ci ? c.eval(t).toLowerCase() : c.eval(t))) != negate;
+				};
+			}
+		}
+		return (t) -> (Boolean)node.subordinateEval(t).object;
+	}
+
+	private LongCode compileLong(final Expr node) throws ExprException {
+		if (node.isConstant()) {
+			final long k = (Long)node.value;
+			return (t) -> k;
+		}
+		if (node instanceof IntegerAttributeExpr) {
+			if (((AttributeExpr)node).backingType==Tuple.Type.Integer) {
+				final MethodHandle mh = getter(node, int.class);
+				return (t) -> (int)mh.invokeExact(t);
+			}
+			final MethodHandle mh = getter(node, long.class);
+			return (t) -> (long)mh.invokeExact(t);
+		}
+		return (t) -> (Long)node.subordinateEval(t).object;
+	}
+
+	private DoubleCode compileDouble(final Expr node) throws ExprException {
+		if (node.type==Type.Integer) {
+			final LongCode l = compileLong(node);
+			return (t) -> (double)l.eval(t);
+		}
+		if (node.isConstant()) {
+			final double k = (Double)node.value;
+			return (t) -> k;
+		}
+		if (node instanceof DoubleAttributeExpr) {
+			final MethodHandle mh = getter(node, double.class);
+			return (t) -> (double)mh.invokeExact(t);
+		}
+		return (t) -> (Double)node.subordinateEval(t).object;
+	}
+
+	private ObjectCode<String> compileString(final Expr node) throws ExprException {
+		if (node.isConstant()) {
+			final String k = (String)node.value;
+			return (t) -> k;
+		}
+		if (node instanceof StringAttributeExpr) {
+			final MethodHandle mh = getter(node, String.class);
+			return (t) -> (String)mh.invokeExact(t);
+		}
+		return (t) -> (String)node.subordinateEval(t).object;
+	}
+
+	private ObjectCode<Instant> compileInstant(final Expr node) throws ExprException {
+		if (node.isConstant()) {
+			final Instant k = ((TimeStampType)node.value).instant;
+			return (t) -> k;
+		}
+		if (node instanceof TimeStampAttributeExpr) {
+			final MethodHandle mh = getter(node, Instant.class);
+			return (t) -> (Instant)mh.invokeExact(t);
+		}
+		return (t) -> ((TimeStampType)node.subordinateEval(t).object).instant;
+	}
+
+	private ObjectCode<TreeSet<String>[]> compileTag(final Expr node) throws ExprException {
+		final String name = (String)node.value;
+		final MethodHandle mh = getter(ta.attributesArray()[handleFieldOffset], Integer.class);
+		return (t) -> rm.tm_valuesOfTagForHandle((Integer)mh.invokeExact(t), name);
+	}
+
+	private BooleanCode compareLongs(final LongCode a, Operator operator, final LongCode c) {
+		switch (comparison(operator)) {
+			case C_EQ: return (t) -> a.eval(t) == c.eval(t);
+			case C_NE: return (t) -> a.eval(t) != c.eval(t);
+			case C_LT: return (t) -> a.eval(t) < c.eval(t);
+			case C_GT: return (t) -> a.eval(t) > c.eval(t);
+			case C_LTE: return (t) -> a.eval(t) <= c.eval(t);
+			default: return (t) -> a.eval(t) >= c.eval(t);
+		}
+	}
+
+	/* Double.compare() rather than the primitive operators, to keep Double.compareTo()'s ordering of NaN and -0.0 */
+	private BooleanCode compareDoubles(final DoubleCode a, Operator operator, final DoubleCode c) {
+		switch (comparison(operator)) {
+			case C_EQ: return (t) -> Double.compare(a.eval(t), c.eval(t)) == 0;
+			case C_NE: return (t) -> Double.compare(a.eval(t), c.eval(t)) != 0;
+			case C_LT: return (t) -> Double.compare(a.eval(t), c.eval(t)) < 0;
+			case C_GT: return (t) -> Double.compare(a.eval(t), c.eval(t)) > 0;
+			case C_LTE: return (t) -> Double.compare(a.eval(t), c.eval(t)) <= 0;
+			default: return (t) -> Double.compare(a.eval(t), c.eval(t)) >= 0;
+		}
+	}
+
+	private interface ComparisonCode { int eval(Tuple t) throws Throwable; }
+
+	private BooleanCode relation(Operator operator, final ComparisonCode comp) {
+		switch (comparison(operator)) {
+			case C_EQ: return (t) -> comp.eval(t) == 0;
+			case C_NE: return (t) -> comp.eval(t) != 0;
+			case C_LT: return (t) -> comp.eval(t) < 0;
+			case C_GT: return (t) -> comp.eval(t) > 0;
+			case C_LTE: return (t) -> comp.eval(t) <= 0;
+			default: return (t) -> comp.eval(t) >= 0;
+		}
+	}
+
+	private static int comparison(Operator operator) {
+		switch (operator) {
+			case Equals: case CI_Equals: return C_EQ;
+			case DoesNotEqual: case CI_DoesNotEqual: return C_NE;
+			case LessThan: case CI_LessThan: return C_LT;
+			case GreaterThan: case CI_GreaterThan: return C_GT;
+			case LessThanOrEqualTo: case CI_LessThanOrEqualTo: return C_LTE;
+			default: return C_GTE;
+		}
+	}
+
+	private MethodHandle getter(Expr attribute, Class<?> as) throws ExprException {
+		return getter((String)attribute.value, as);
+	}
+
+	/**
+	 * Resolves a getter for a field of the serviced class, adapted to take a {@code Tuple} and
+	 * return {@code as}, unboxing if {@code as} is primitive.
+	 */
+	private MethodHandle getter(String name, Class<?> as) throws ExprException {
+		try {
+			Field field = ta.servicedClass.getDeclaredField(name);
+			field.setAccessible(true);
+			return MethodHandles.lookup().unreflectGetter(field).asType(MethodType.methodType(as, Tuple.class));
+		} catch (NoSuchFieldException | IllegalAccessException | SecurityException e) {
+			throw new ExprException("Cannot access attribute "+name,e);
+		}
+	}
+	
 //------------------------------------------------------------------------------------------	
 //-- Expr 	
 //------------------------------------------------------------------------------------------	
@@ -733,7 +1323,7 @@ public class ExpressionFactory {
 			boolean res=false;
 			switch (op) {
 				case EQ: res=opA.equals(opB); break;
-				case NE: res= !(opA.equals(opB));
+				case NE: res= !(opA.equals(opB)); break;
 				case AND: res = opA && opB; break;
 				case OR: res = opA || opB; break;
 			}
@@ -783,7 +1373,7 @@ public class ExpressionFactory {
 		public Result subordinateEval(Tuple t)  throws ExprException  {
 			if (constantFlag)
 				return new Result(value,Type.Boolean);
-			return new Result(value=!(Boolean)operand.value,Type.Boolean);
+			return new Result(value=!(Boolean)operand.subordinateEval(t).object,Type.Boolean);
 		}
 		
 		@Override
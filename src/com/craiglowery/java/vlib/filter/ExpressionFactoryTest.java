@@ -0,0 +1,138 @@
+package com.craiglowery.java.vlib.filter;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.craiglowery.java.vlib.common.U_Exception;
+import com.craiglowery.java.vlib.repository.VersionsTuple;
+import com.craiglowery.java.vlib.tuple.SelectionTransformer;
+import com.craiglowery.java.vlib.tuple.SortDirective;
+import com.craiglowery.java.vlib.tuple.TableAdapter;
+import com.craiglowery.java.vlib.tuple.filterexp.TupleExpressionFactory.Node;
+
+/**
+ * Unit test for filter compilation.  No repository is needed, as the filters used do
+ * not test tags.
+ *
+ */
+public class ExpressionFactoryTest {
+
+	private static final String[] FILTERS = {
+		"length > 1000000 AND hm_missing = FALSE",
+		"versioncount >= 3 OR NOT hm_corrupt",
+		"'the' ~$ title AND imported > '2015-06-01'",
+		"title ~< 'M' AND hm_linkcount <> 1",
+		"(length < 500 OR length > 2000000) AND '/media/' $ path AND hm_unhealthy != hm_corrupt",
+		"TRUE OR length = 0"
+	};
+
+	@Test
+	public void compiledFiltersAgreeWithTrees() throws Exception {
+		ExpressionFactory ef = factory();
+		VersionsTuple[] rows = rows(20000);
+		for (String filter : FILTERS) {
+			ExpressionFactory.Expr tree = WhereConditionParser.parseFilterExpression(filter, ef);
+			ExpressionFactory.CompiledFilter compiled = ef.compile(tree);
+			int passed=0;
+			for (VersionsTuple vt : rows) {
+				boolean expected = (Boolean)tree.eval(vt).object;
+				assertEquals(filter+" on handle "+vt.handle, expected, compiled.test(vt));
+				if (expected)
+					passed++;
+			}
+			System.out.println(String.format("  %-85s %,6d rows pass",filter,passed));
+		}
+	}
+
+	/**
+	 * Compares the per-row cost of evaluating a filter by walking its expression tree
+	 * with that of the compiled filter.
+	 */
+	@Test
+	public void compiledFilterBenchmark() throws Exception {
+		System.out.println("TEST: Filter evaluation, expression tree versus compiled");
+		final int ROUNDS=20;
+		ExpressionFactory ef = factory();
+		VersionsTuple[] rows = rows(100000);
+		for (String filter : new String[] {FILTERS[0], FILTERS[4]}) {
+			ExpressionFactory.Expr tree = WhereConditionParser.parseFilterExpression(filter, ef);
+			ExpressionFactory.CompiledFilter compiled = ef.compile(tree);
+			long treeBest=Long.MAX_VALUE, compiledBest=Long.MAX_VALUE;
+			int treeCount=0, compiledCount=0;
+			//The early rounds warm up both paths; the best round is reported
+			for (int round=0; round<ROUNDS; round++) {
+				Instant start = Instant.now();
+				treeCount=0;
+				for (VersionsTuple vt : rows)
+					if ((Boolean)tree.eval(vt).object)
+						treeCount++;
+				treeBest = Math.min(treeBest, Duration.between(start, Instant.now()).toNanos());
+				start = Instant.now();
+				compiledCount=0;
+				for (VersionsTuple vt : rows)
+					if (compiled.test(vt))
+						compiledCount++;
+				compiledBest = Math.min(compiledBest, Duration.between(start, Instant.now()).toNanos());
+			}
+			assertEquals(treeCount, compiledCount);
+			System.out.println(String.format("  %s",filter));
+			System.out.println(String.format("     Expression tree: %6.1f ns/row",(double)treeBest/rows.length));
+			System.out.println(String.format("     Compiled.......: %6.1f ns/row",(double)compiledBest/rows.length));
+		}
+	}
+
+	private ExpressionFactory factory() throws Exception {
+		TableAdapter<VersionsTuple> ta = new TableAdapter<VersionsTuple>(VersionsTuple.class, null) {
+			@Override
+			public List<VersionsTuple> select(Node filter, SortDirective[] sort, int limit,
+					SelectionTransformer<VersionsTuple> xform) throws U_Exception {
+				return null;
+			}
+			@Override public int delete(Node filter) throws U_Exception { return 0; }
+			@Override public boolean delete(VersionsTuple t) throws U_Exception { return false; }
+			@Override public boolean update(VersionsTuple t) throws U_Exception { return false; }
+			@Override public void insert(VersionsTuple t) throws U_Exception { }
+			@Override public void insertIfNew(VersionsTuple t) throws U_Exception { }
+			@Override public boolean[] insertAll(List<VersionsTuple> t) throws U_Exception { return null; }
+			@Override public boolean[] insertIfNewAll(List<VersionsTuple> t) throws U_Exception { return null; }
+			@Override public boolean[] updateAll(List<VersionsTuple> t) throws U_Exception { return null; }
+			@Override public boolean[] deleteAll(List<VersionsTuple> t) throws U_Exception { return null; }
+		};
+		return new ExpressionFactory(null, ta, Collections.<String>emptyList());
+	}
+
+	private VersionsTuple[] rows(int n) {
+		final String[] words = {"The", "Quiet", "man", "Sundown", "theory", "Mars", "Attack", "Other"};
+		Random r = new Random(1);
+		VersionsTuple[] rows = new VersionsTuple[n];
+		for (int x=0; x<n; x++) {
+			VersionsTuple vt = new VersionsTuple();
+			vt.handle = x+1;
+			vt.imported = Instant.parse("2014-01-01T00:00:00Z").plusSeconds(r.nextInt(3*365*86400));
+			vt.length = (long)r.nextInt(4000000);
+			vt.title = words[r.nextInt(words.length)]+" "+words[r.nextInt(words.length)];
+			vt.path = (r.nextBoolean() ? "/media/" : "/archive/")+vt.title;
+			vt.hm_missing = r.nextInt(10)==0;
+			vt.hm_corrupt = r.nextInt(20)==0;
+			vt.hm_unhealthy = r.nextInt(15)==0;
+			vt.hm_linkcount = (long)r.nextInt(3);
+			vt.versioncount = r.nextInt(5);
+			rows[x] = vt;
+		}
+		return rows;
+	}
+
+}
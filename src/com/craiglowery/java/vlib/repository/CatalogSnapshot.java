@@ -0,0 +1,960 @@
+package com.craiglowery.java.vlib.repository;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.craiglowery.java.vlib.common.Config;
+import com.craiglowery.java.vlib.common.ConfigurationKey;
+import com.craiglowery.java.vlib.common.IntegerSet;
+import com.craiglowery.java.vlib.common.L;
+import com.craiglowery.java.vlib.common.LambdaTwoStrings;
+import com.craiglowery.java.vlib.common.U_Exception;
+import com.craiglowery.java.vlib.common.U_Exception.ERROR;
+import com.craiglowery.java.vlib.filter.ExprException;
+import com.craiglowery.java.vlib.filter.ExpressionFactory;
+import com.craiglowery.java.vlib.tuple.SelectionTransformer;
+import com.craiglowery.java.vlib.tuple.SortDirective;
+import com.craiglowery.java.vlib.tuple.TableAdapter;
+import com.craiglowery.java.vlib.tuple.Tuple;
+import com.craiglowery.java.vlib.tuple.filterexp.FilterExpressionException;
+
+/**
+ * The process-wide catalog snapshot: the rows of the {@code currentversions} view and the tag
+ * map, held in a memory mapped file under {@code DIR_REPO_ROOT} so that queries of the current
+ * versions of objects can be answered without the database.  It is used only if
+ * {@code CATALOG_SNAPSHOT} is configured.<p>
+ *
+ * The file is columnar.  Each attribute of {@link VersionsTuple} is stored as a primitive
+ * array, with a bitmap of nulls; strings are stored as offsets into a block of UTF-8 text.
+ * Rows are in handle order, so an object is found by a binary search of the handle column.
+ * A query reads only the columns its filter uses for each row, into one reused tuple, and
+ * builds a complete tuple only for the rows that pass.  Tag tests are answered by the
+ * {@link TagMembershipIndex} as usual, and the tag map in the file lets the index be loaded
+ * from the snapshot rather than from the database.<p>
+ *
+ * The file itself is never changed in place.  The RepositoryManager reports the objects whose
+ * current version a transaction changed once the transaction has committed, and their rows
+ * are re-read from the view into a map held in memory, which queries consult before the
+ * file.  Some time after a change ({@code CATALOG_SNAPSHOT_FLUSH_SECONDS}) the file is
+ * rewritten with the changes merged in, and renamed over the old one.  The first change after
+ * a file is written clears a flag in it, which the rewrite sets again, so a file left behind
+ * by a crash before its changes were written is known to be stale and is rebuilt from the
+ * database when the webapp starts.  A clean file is simply mapped.  A change made before the
+ * snapshot is loaded clears the flag in the file left by the last run, so the load rebuilds it
+ * rather than mapping rows that are out of date.<p>
+ *
+ * Like the tag index, the snapshot assumes that this process is the only one that changes the
+ * catalog.  Strings are ordered by Java's {@code String.compareTo()} when a query is sorted,
+ * which need not agree with the database's collation.<p>
+ *
+ * Readers take no locks.  Writers, the rewrite and loading are serialized on the snapshot
+ * monitor.
+ */
+public class CatalogSnapshot {
+
+	/** The single snapshot for this process **/
+	private static final CatalogSnapshot instance = new CatalogSnapshot();
+
+	/**
+	 * Returns the process-wide snapshot.
+	 * @return The snapshot.
+	 */
+	public static CatalogSnapshot getCatalog() {
+		return instance;
+	}
+
+	private static final long MAGIC = 0x564c494243415431L;   // "VLIBCAT1"
+	private static final int FORMAT = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int CLEAN_OFFSET = 12;
+
+	/** Marks an object removed in the map of changes **/
+	private static final VersionsTuple REMOVED = new VersionsTuple();
+
+	private volatile Boolean enabled = null;
+	private File file;
+	private int flushSeconds;
+
+	/** The file as mapped, and the changes made since it was written **/
+	private volatile Generation current = null;
+
+	private ScheduledExecutorService flusher = null;
+	private boolean flushScheduled = false;
+
+	/** Set when a tag change was missed because the tag index was not loaded, so that the tag
+	 *  map held in the file may be out of date.  Cleared when the map is next taken from the index. **/
+	private volatile boolean tagsStale = false;
+
+	/** Set once the flag in the file has been cleared for a change made while not loaded **/
+	private volatile boolean fileStale = false;
+
+	private volatile Instant loaded = null;
+	private final AtomicLong metricQueries = new AtomicLong(0);
+	private final AtomicLong metricRefreshes = new AtomicLong(0);
+	private final AtomicLong metricFlushes = new AtomicLong(0);
+	private final AtomicLong metricBuilds = new AtomicLong(0);
+
+	private CatalogSnapshot() {}
+
+	/**
+	 * Creates a snapshot kept in {@code file}, without reading the configuration.  For tests.
+	 * @param file The snapshot file.
+	 */
+	CatalogSnapshot(File file) {
+		this.file = file;
+		flushSeconds = 1;
+		flusher = newFlusher();
+		enabled = true;
+	}
+
+	private static ScheduledExecutorService newFlusher() {
+		return Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r,"CatalogSnapshot-flusher");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Determines if the snapshot is configured to be used.
+	 * @return True if {@code CATALOG_SNAPSHOT} is configured.
+	 * @throws U_Exception
+	 */
+	public boolean isEnabled() throws U_Exception {
+		if (enabled==null)
+			synchronized (this) {
+				if (enabled==null) {
+					boolean on = Config.getBoolean(ConfigurationKey.CATALOG_SNAPSHOT);
+					if (on) {
+						file = new File(Config.getString(ConfigurationKey.CATALOG_SNAPSHOT_FILE));
+						flushSeconds = Math.max(1, Config.getInt(ConfigurationKey.CATALOG_SNAPSHOT_FLUSH_SECONDS));
+						flusher = newFlusher();
+					}
+					enabled = on;
+				}
+			}
+		return enabled;
+	}
+
+	/**
+	 * Determines if the snapshot is loaded.
+	 * @return True if the snapshot is loaded and current.
+	 */
+	public boolean isLoaded() {
+		return current!=null;
+	}
+
+	/**
+	 * Maps the snapshot file, or builds it from the {@code currentversions} view if there is
+	 * no clean one, unless it is already loaded or is not configured.
+	 * @param currentVersions The {@code currentversions} view, as seen by the calling RepositoryManager.
+	 * @return True if the snapshot is loaded.
+	 * @throws U_Exception
+	 */
+	public boolean ensureLoaded(TableAdapter<VersionsTuple> currentVersions) throws U_Exception {
+		if (current!=null)
+			return true;
+		if (!isEnabled())
+			return false;
+		synchronized (this) {
+			if (current==null)
+				load(currentVersions);
+		}
+		return true;
+	}
+
+	/**
+	 * Discards the snapshot, and the file, which will be rebuilt the next time it is needed.
+	 */
+	public synchronized void invalidate() {
+		current = null;
+		loaded = null;
+		if (file!=null)
+			file.delete();
+	}
+
+	private void load(TableAdapter<VersionsTuple> currentVersions) throws U_Exception {
+		Instant start = Instant.now();
+		Schema schema = new Schema(currentVersions);
+		if (file.isFile()) {
+			try {
+				Image image = new Image(file, schema);
+				if (image.clean()) {
+					current = new Generation(image);
+					loaded = Instant.now();
+					L.log(L.I, this, "Catalog snapshot of %d objects mapped from %s in %s", image.rows,
+							file.getPath(), Duration.between(start, loaded).toString());
+					return;
+				}
+				L.log(L.W, this, "Catalog snapshot %s has changes that were never written, and will be rebuilt", file.getPath());
+			} catch (Exception e) {
+				L.log(L.W, this, "Catalog snapshot %s cannot be used, and will be rebuilt: %s", file.getPath(), e.getMessage());
+			}
+		}
+		List<VersionsTuple> rows = new ArrayList<VersionsTuple>();
+		currentVersions.applySelection(null, SortDirective.build("handle",SortDirective.Order.Ascending), 0,
+				(vt) -> { rows.add(vt); return true; });
+		write(schema, rows, tagSource(null));
+		current = new Generation(new Image(file, schema));
+		loaded = Instant.now();
+		metricBuilds.incrementAndGet();
+		L.log(L.I, this, "Catalog snapshot of %d objects built in %s", rows.size(),
+				Duration.between(start, loaded).toString());
+	}
+
+	//------------------------------------------------------------------------------------------
+	//-- Readers
+	//------------------------------------------------------------------------------------------
+
+	/**
+	 * Returns the current version of an object.
+	 * @param handle The object.
+	 * @return A new tuple, or null if there is no such object or the snapshot is not loaded.
+	 * @throws U_Exception
+	 */
+	public VersionsTuple get(int handle) throws U_Exception {
+		Generation g = current;
+		if (g==null)
+			return null;
+		VersionsTuple changed = g.changes.get(handle);
+		if (changed!=null)
+			return changed==REMOVED ? null : copy(g.image.schema, changed);
+		int row = g.image.find(handle);
+		return row<0 ? null : g.image.tuple(row);
+	}
+
+	/**
+	 * Passes the current version of each object that passes a filter to {@code xform}, in the
+	 * order given, or in no particular order if none is.
+	 * @param filter The filter, or null to pass every object.
+	 * @param used The attributes the filter reads (see {@link ExpressionFactory#attributesUsed}).
+	 * @param sort The order.
+	 * @param xform Called for each object that passes.  Returning false stops the scan.
+	 * @return False if the snapshot is not loaded, in which case nothing was passed to {@code xform}.
+	 * @throws U_Exception
+	 */
+	public boolean scan(ExpressionFactory.CompiledFilter filter, Set<String> used, SortDirective[] sort,
+			SelectionTransformer<VersionsTuple> xform) throws U_Exception {
+		Generation g = current;
+		if (g==null)
+			return false;
+		metricQueries.incrementAndGet();
+		Image image = g.image;
+		Comparator<VersionsTuple> order = comparator(image.schema, sort);
+		List<VersionsTuple> sorted = order==null ? null : new ArrayList<VersionsTuple>();
+		List<Column> probeColumns = new ArrayList<Column>();
+		if (filter!=null)
+			for (Column c : image.columns)
+				if (used.contains(c.name))
+					probeColumns.add(c);
+		VersionsTuple probe = new VersionsTuple();
+		boolean checkChanges = !g.changes.isEmpty();
+		try {
+			for (int row=0; row<image.rows; row++) {
+				if (checkChanges && g.changes.containsKey(image.handles.get(row)))
+					continue;
+				if (filter!=null) {
+					for (Column c : probeColumns)
+						c.load(row, probe);
+					if (!filter.test(probe))
+						continue;
+				}
+				VersionsTuple vt = image.tuple(row);
+				if (sorted!=null)
+					sorted.add(vt);
+				else if (!xform.action(vt))
+					return true;
+			}
+			for (VersionsTuple changed : g.changes.values()) {
+				if (changed==REMOVED)
+					continue;
+				VersionsTuple vt = copy(image.schema, changed);
+				if (filter!=null && !filter.test(vt))
+					continue;
+				if (sorted!=null)
+					sorted.add(vt);
+				else if (!xform.action(vt))
+					return true;
+			}
+		} catch (ExprException e) {
+			throw new U_Exception(ERROR.ExpressionError,"during evaluation against the catalog snapshot",e);
+		}
+		if (sorted!=null) {
+			sorted.sort(order);
+			for (VersionsTuple vt : sorted)
+				if (!xform.action(vt))
+					break;
+		}
+		return true;
+	}
+
+	/**
+	 * Orders tuples as the database would for a sort directive, but with strings compared by
+	 * Java.  Nulls sort after other values in ascending order, and before them in descending.
+	 */
+	private static Comparator<VersionsTuple> comparator(Schema schema, SortDirective[] sort) throws U_Exception {
+		if (sort==null || sort.length==0)
+			return null;
+		int[] fields = new int[sort.length];
+		boolean[] descending = new boolean[sort.length];
+		for (int x=0; x<sort.length; x++) {
+			Integer field = schema.index.get(sort[x].attribute);
+			if (field==null)
+				throw new U_Exception(ERROR.ExpressionError,"Unknown sort attribute: "+sort[x].attribute);
+			fields[x] = field;
+			descending[x] = sort[x].order==SortDirective.Order.Descending;
+		}
+		return (a,b) -> {
+			for (int x=0; x<fields.length; x++) {
+				int c = compare(attribute(a,fields[x]), attribute(b,fields[x]));
+				if (c!=0)
+					return descending[x] ? -c : c;
+			}
+			return 0;
+		};
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static int compare(Object a, Object b) {
+		if (a==null || b==null)
+			return a==null ? (b==null ? 0 : 1) : -1;
+		return ((Comparable)a).compareTo(b);
+	}
+
+	private static Object attribute(Tuple t, int field) {
+		try {
+			return t.getAttributeValue(field);
+		} catch (U_Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Determines if the snapshot holds the tag map.
+	 * @return True if {@link #forEachTagging} and {@link #allObjects()} can be used.
+	 */
+	public boolean hasTags() {
+		Generation g = current;
+		return g!=null && g.image.tagRows>=0 && !tagsStale;
+	}
+
+	/**
+	 * Passes each tagging in the snapshot to {@code xform}, sorted by tag name and value.
+	 * @param xform Called for each tagging.
+	 * @throws U_Exception
+	 */
+	public void forEachTagging(SelectionTransformer<Object_tagsTuple> xform) throws U_Exception {
+		Generation g = current;
+		if (g==null || g.image.tagRows<0 || tagsStale)
+			return;
+		Image image = g.image;
+		for (int row=0; row<image.tagRows; row++) {
+			Object_tagsTuple ot = new Object_tagsTuple();
+			ot.handle = image.tagHandles.get(row);
+			ot.name = image.tagNames.string(row);
+			ot.value = image.tagValues.string(row);
+			if (!xform.action(ot))
+				return;
+		}
+	}
+
+	/**
+	 * Returns the handles of every object in the library, as recorded with the tag map.
+	 * @return A new set, or null if the snapshot does not hold the tag map.
+	 */
+	public IntegerSet allObjects() {
+		Generation g = current;
+		if (g==null || g.image.tagRows<0 || tagsStale)
+			return null;
+		IntegerSet all = new IntegerSet();
+		IntBuffer objects = g.image.objects;
+		for (int x=0; x<objects.limit(); x++)
+			all.add(objects.get(x));
+		return all;
+	}
+
+	//------------------------------------------------------------------------------------------
+	//-- Writers.  These must only be called once the change is committed.
+	//------------------------------------------------------------------------------------------
+
+	/**
+	 * Re-reads the current versions of objects whose rows in the {@code currentversions}
+	 * view have changed.  If the snapshot is not loaded the file is marked stale instead, so
+	 * that it is rebuilt when loaded.  A change committed while the snapshot is loading waits
+	 * for the load to finish.
+	 * @param currentVersions The {@code currentversions} view, as seen by the calling RepositoryManager.
+	 * @param handles The objects.  An object no longer in the view is removed.
+	 * @throws U_Exception
+	 */
+	public synchronized void refresh(TableAdapter<VersionsTuple> currentVersions, Collection<Integer> handles)
+		throws U_Exception
+	{
+		if (handles.isEmpty())
+			return;
+		Generation g = current;
+		if (g==null) {
+			//The load, when it comes, must not map rows this change has made stale
+			if (isEnabled())
+				markStale();
+			return;
+		}
+		Map<Integer,VersionsTuple> fresh = new HashMap<Integer,VersionsTuple>();
+		try {
+			currentVersions.applySelection(currentVersions.EF.in("@handle", handles), SortDirective.NONE, 0,
+					(vt) -> { fresh.put(vt.handle, vt); return true; });
+		} catch (FilterExpressionException e) {
+			throw new U_Exception(ERROR.ExpressionError,e);
+		}
+		for (Integer handle : handles) {
+			VersionsTuple vt = fresh.get(handle);
+			g.changes.put(handle, vt==null ? REMOVED : vt);
+		}
+		metricRefreshes.incrementAndGet();
+		changed(g);
+	}
+
+	/**
+	 * Records that a tag change was committed while the tag index was not loaded, so the tag
+	 * map in the file can no longer be used, now or after a restart.  Called while holding the
+	 * tag index monitor, and so must not take the snapshot monitor to wait for a load.
+	 */
+	void tagsMissed() {
+		tagsStale = true;
+		try {
+			if (isEnabled())
+				markStale();
+		} catch (U_Exception e) {
+			L.log(L.W, this, "Could not read the catalog snapshot configuration: %s", e.getMessage());
+		}
+	}
+
+	/**
+	 * Clears the flag in the file that says it holds every change, so that it is rebuilt
+	 * rather than mapped when next loaded.  If that fails the file is deleted.
+	 */
+	private void markStale() {
+		if (fileStale || !file.isFile())
+			return;
+		fileStale = true;
+		try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			fc.write(ByteBuffer.wrap(new byte[] {0}), CLEAN_OFFSET);
+			fc.force(false);
+		} catch (IOException e) {
+			L.log(L.W, this, "Could not mark catalog snapshot %s stale, deleting it: %s", file.getPath(), e.getMessage());
+			file.delete();
+		}
+	}
+
+	/**
+	 * Records that the tag map has changed, so that the file is rewritten.
+	 */
+	public synchronized void tagsChanged() {
+		Generation g = current;
+		if (g!=null)
+			changed(g);
+	}
+
+	/**
+	 * Marks the file as no longer holding everything, and schedules it to be rewritten.
+	 */
+	private void changed(Generation g) {
+		if (!g.dirty) {
+			g.dirty = true;
+			g.image.setClean(false);
+		}
+		if (!flushScheduled) {
+			flushScheduled = true;
+			flusher.schedule(this::flush, flushSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Rewrites the file with the changes merged in, and maps the new one.  Run by the flusher
+	 * thread, and by tests.
+	 */
+	synchronized void flush() {
+		flushScheduled = false;
+		Generation g = current;
+		if (g==null || !g.dirty)
+			return;
+		try {
+			Image image = g.image;
+			List<VersionsTuple> rows = new ArrayList<VersionsTuple>(image.rows+g.changes.size());
+			for (int row=0; row<image.rows; row++)
+				if (!g.changes.containsKey(image.handles.get(row)))
+					rows.add(image.tuple(row));
+			for (VersionsTuple vt : g.changes.values())
+				if (vt!=REMOVED)
+					rows.add(vt);
+			rows.sort((a,b) -> Integer.compare(a.handle, b.handle));
+			write(image.schema, rows, tagSource(image));
+			current = new Generation(new Image(file, image.schema));
+			metricFlushes.incrementAndGet();
+		} catch (Exception e) {
+			L.log(L.E, this, "Could not write catalog snapshot %s, discarding it: %s", file.getPath(), e.getMessage());
+			invalidate();
+		}
+	}
+
+	//------------------------------------------------------------------------------------------
+	//-- The file
+	//------------------------------------------------------------------------------------------
+
+	/** The attributes of the view, in tuple field order **/
+	private static class Schema {
+		final String[] names;
+		final Tuple.Type[] types;
+		final Map<String,Integer> index = new HashMap<String,Integer>();
+
+		Schema(TableAdapter<VersionsTuple> ta) {
+			names = ta.attributesArray();
+			types = new Tuple.Type[names.length];
+			for (int f=0; f<names.length; f++) {
+				types[f] = ta.tupleTypeOf(f);
+				index.put(names[f], f);
+			}
+		}
+	}
+
+	/** A mapped snapshot file **/
+	private static class Image {
+		final Schema schema;
+		final MappedByteBuffer buffer;
+		final int rows;
+		final Column[] columns;
+		final IntBuffer handles;
+		final int tagRows;
+		IntBuffer tagHandles = null;
+		Column tagNames = null;
+		Column tagValues = null;
+		IntBuffer objects = null;
+
+		Image(File file, Schema schema) throws U_Exception {
+			this.schema = schema;
+			try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				buffer = fc.map(FileChannel.MapMode.READ_WRITE, 0, fc.size());
+			} catch (IOException e) {
+				throw new U_Exception(ERROR.IOError,"Could not map catalog snapshot "+file.getPath(),e);
+			}
+			if (buffer.capacity()<HEADER_SIZE || buffer.getLong(0)!=MAGIC || buffer.getInt(8)!=FORMAT)
+				throw new U_Exception(ERROR.ParserError,"Not a catalog snapshot of this format");
+			rows = buffer.getInt(16);
+			tagRows = buffer.getInt(24);
+			int objectCount = buffer.getInt(28);
+			long directory = buffer.getLong(40);
+			byte[] d = new byte[buffer.capacity()-(int)directory];
+			ByteBuffer dup = buffer.duplicate();
+			dup.position((int)directory);
+			dup.get(d);
+			try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(d))) {
+				int count = dis.readInt();
+				if (count!=schema.names.length)
+					throw new U_Exception(ERROR.ParserError,"Catalog snapshot attributes do not match the view");
+				columns = new Column[count];
+				for (int f=0; f<count; f++) {
+					String name = dis.readUTF();
+					Tuple.Type type = Tuple.Type.values()[dis.readByte()];
+					if (!name.equals(schema.names[f]) || type!=schema.types[f])
+						throw new U_Exception(ERROR.ParserError,"Catalog snapshot attributes do not match the view");
+					columns[f] = new Column(name, type, f, rows, buffer, dis);
+				}
+				if (tagRows>=0) {
+					tagHandles = ints(buffer, dis.readLong(), tagRows);
+					tagNames = new Column("name", Tuple.Type.String, 0, tagRows, buffer, dis);
+					tagValues = new Column("value", Tuple.Type.String, 0, tagRows, buffer, dis);
+					objects = ints(buffer, dis.readLong(), objectCount);
+				}
+			} catch (IOException e) {
+				throw new U_Exception(ERROR.ParserError,"Catalog snapshot directory is damaged",e);
+			}
+			handles = columns[schema.index.get("handle")].ints;
+		}
+
+		boolean clean() {
+			return buffer.get(CLEAN_OFFSET)==1;
+		}
+
+		void setClean(boolean clean) {
+			buffer.put(CLEAN_OFFSET, (byte)(clean?1:0));
+			buffer.force();
+		}
+
+		/** @return The row of an object, or a negative number if it is not in the file **/
+		int find(int handle) {
+			int low=0, high=rows-1;
+			while (low<=high) {
+				int mid = (low+high)>>>1;
+				int h = handles.get(mid);
+				if (h<handle)
+					low = mid+1;
+				else if (h>handle)
+					high = mid-1;
+				else
+					return mid;
+			}
+			return -1;
+		}
+
+		VersionsTuple tuple(int row) throws U_Exception {
+			VersionsTuple vt = new VersionsTuple();
+			for (Column c : columns)
+				c.load(row, vt);
+			return vt;
+		}
+	}
+
+	/** One column of a mapped file **/
+	private static class Column {
+		final String name;
+		final Tuple.Type type;
+		final int field;
+		final ByteBuffer nulls;
+		IntBuffer ints = null;
+		LongBuffer longs = null;
+		ByteBuffer bytes = null;
+		IntBuffer offsets = null;
+		ByteBuffer text = null;
+
+		Column(String name, Tuple.Type type, int field, int rows, ByteBuffer buffer, DataInputStream dis) throws IOException {
+			this.name = name;
+			this.type = type;
+			this.field = field;
+			nulls = slice(buffer, dis.readLong(), (rows+7)/8);
+			long data = dis.readLong();
+			switch (type) {
+				case Integer:
+					ints = ints(buffer, data, rows);
+					break;
+				case Long:
+				case Double:
+				case Instant:
+					longs = slice(buffer, data, rows*8L).asLongBuffer();
+					break;
+				case Boolean:
+					bytes = slice(buffer, data, rows);
+					break;
+				case String:
+					offsets = ints(buffer, data, rows+1);
+					text = slice(buffer, dis.readLong(), offsets.get(rows));
+					break;
+				default:
+					throw new IOException("Unsupported column type "+type);
+			}
+		}
+
+		boolean isNull(int row) {
+			return (nulls.get(row>>>3) & (1<<(row&7)))!=0;
+		}
+
+		Object value(int row) {
+			if (isNull(row))
+				return null;
+			switch (type) {
+				case Integer:	return ints.get(row);
+				case Long:		return longs.get(row);
+				case Double:	return Double.longBitsToDouble(longs.get(row));
+				case Boolean:	return bytes.get(row)!=0;
+				case Instant:	return fromMicros(longs.get(row));
+				case String:	return string(row);
+				default:		return null;
+			}
+		}
+
+		String string(int row) {
+			int start = offsets.get(row);
+			byte[] b = new byte[offsets.get(row+1)-start];
+			ByteBuffer t = text.duplicate();
+			t.position(start);
+			t.get(b);
+			return new String(b, StandardCharsets.UTF_8);
+		}
+
+		void load(int row, Tuple t) throws U_Exception {
+			t.setAttributeValue(field, value(row));
+		}
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, long offset, long length) {
+		ByteBuffer b = buffer.duplicate();
+		b.position((int)offset);
+		b.limit((int)(offset+length));
+		return b.slice();
+	}
+
+	private static IntBuffer ints(ByteBuffer buffer, long offset, int count) {
+		return slice(buffer, offset, count*4L).asIntBuffer();
+	}
+
+	private static long toMicros(Instant i) {
+		return Math.addExact(Math.multiplyExact(i.getEpochSecond(), 1000000L), i.getNano()/1000);
+	}
+
+	private static Instant fromMicros(long micros) {
+		return Instant.ofEpochSecond(Math.floorDiv(micros, 1000000L), Math.floorMod(micros, 1000000L)*1000);
+	}
+
+	private static VersionsTuple copy(Schema schema, VersionsTuple vt) throws U_Exception {
+		VersionsTuple c = new VersionsTuple();
+		for (int f=0; f<schema.names.length; f++)
+			c.setAttributeValue(f, vt.getAttributeValue(f));
+		return c;
+	}
+
+	/** The taggings and object handles to write with a snapshot **/
+	private static class Tags {
+		final List<Object_tagsTuple> taggings = new ArrayList<Object_tagsTuple>();
+		final List<Integer> objects = new ArrayList<Integer>();
+	}
+
+	/**
+	 * Gathers the tag map to write: from the tag index if it is loaded, otherwise from the
+	 * file being replaced if it has one and no tag change has been missed since.
+	 * @return The tag map, or null if neither has one.
+	 */
+	private Tags tagSource(Image previous) throws U_Exception {
+		Tags tags = new Tags();
+		TagMembershipIndex index = TagMembershipIndex.getIndex();
+		if (index.isLoaded()) {
+			//Cleared first, so a change missed while the index is read is not forgotten
+			tagsStale = false;
+			if (!index.forEachTagging((ot) -> { tags.taggings.add(ot); return true; }))
+				return null;
+			IntegerSet all = index.allObjects();
+			if (all==null)
+				return null;
+			for (Integer h : all)
+				tags.objects.add(h);
+			return tags;
+		}
+		if (previous==null || previous.tagRows<0 || tagsStale)
+			return null;
+		forEachTagging((ot) -> { tags.taggings.add(ot); return true; });
+		for (int x=0; x<previous.objects.limit(); x++)
+			tags.objects.add(previous.objects.get(x));
+		return tags;
+	}
+
+	/**
+	 * Writes a snapshot file, marked clean, in place of the current one.
+	 */
+	private void write(Schema schema, List<VersionsTuple> rows, Tags tags) throws U_Exception {
+		File temp = new File(file.getPath()+".tmp");
+		try (FileChannel fc = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			Writer w = new Writer(fc);
+			ByteArrayOutputStream dbytes = new ByteArrayOutputStream();
+			DataOutputStream directory = new DataOutputStream(dbytes);
+			directory.writeInt(schema.names.length);
+			int n = rows.size();
+			for (int f=0; f<schema.names.length; f++) {
+				directory.writeUTF(schema.names[f]);
+				directory.writeByte(schema.types[f].ordinal());
+				Object[] values = new Object[n];
+				for (int row=0; row<n; row++)
+					values[row] = rows.get(row).getAttributeValue(f);
+				w.column(schema.types[f], values, directory);
+			}
+			if (tags!=null) {
+				int t = tags.taggings.size();
+				int[] handles = new int[t];
+				Object[] names = new Object[t], values = new Object[t];
+				for (int row=0; row<t; row++) {
+					Object_tagsTuple ot = tags.taggings.get(row);
+					handles[row] = ot.handle;
+					names[row] = ot.name;
+					values[row] = ot.value;
+				}
+				directory.writeLong(w.ints(handles));
+				w.column(Tuple.Type.String, names, directory);
+				w.column(Tuple.Type.String, values, directory);
+				int[] objects = new int[tags.objects.size()];
+				for (int x=0; x<objects.length; x++)
+					objects[x] = tags.objects.get(x);
+				directory.writeLong(w.ints(objects));
+			}
+			directory.flush();
+			long directoryOffset = w.block(dbytes.toByteArray());
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putLong(0, MAGIC);
+			header.putInt(8, FORMAT);
+			header.put(CLEAN_OFFSET, (byte)1);
+			header.putInt(16, n);
+			header.putInt(20, schema.names.length);
+			header.putInt(24, tags==null ? -1 : tags.taggings.size());
+			header.putInt(28, tags==null ? -1 : tags.objects.size());
+			header.putLong(32, System.currentTimeMillis());
+			header.putLong(40, directoryOffset);
+			while (header.hasRemaining())
+				fc.write(header, header.position());
+			if (fc.size()>Integer.MAX_VALUE)
+				throw new U_Exception(ERROR.IOError,"Catalog snapshot would exceed 2GB");
+			fc.force(true);
+		} catch (IOException e) {
+			throw new U_Exception(ERROR.IOError,"Could not write catalog snapshot "+temp.getPath(),e);
+		}
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new U_Exception(ERROR.IOError,"Could not replace catalog snapshot "+file.getPath(),e);
+		}
+		fileStale = false;
+		//A tag change missed while the file was written may have marked the old one
+		if (tags!=null && tagsStale)
+			markStale();
+	}
+
+	/** Appends the sections of a snapshot file, each aligned to 8 bytes **/
+	private static class Writer {
+		final FileChannel fc;
+		long position = HEADER_SIZE;
+
+		Writer(FileChannel fc) {
+			this.fc = fc;
+		}
+
+		long block(byte[] b) throws IOException {
+			return block(ByteBuffer.wrap(b));
+		}
+
+		long block(ByteBuffer b) throws IOException {
+			long at = position;
+			while (b.hasRemaining())
+				position += fc.write(b, position);
+			position = (position+7) & ~7L;
+			return at;
+		}
+
+		long ints(int[] values) throws IOException {
+			ByteBuffer b = ByteBuffer.allocate(values.length*4);
+			b.asIntBuffer().put(values);
+			return block(b);
+		}
+
+		/**
+		 * Writes the null bitmap and data of a column, and their offsets to the directory.
+		 */
+		void column(Tuple.Type type, Object[] values, DataOutputStream directory) throws IOException {
+			int n = values.length;
+			byte[] nulls = new byte[(n+7)/8];
+			for (int row=0; row<n; row++)
+				if (values[row]==null)
+					nulls[row>>>3] |= 1<<(row&7);
+			directory.writeLong(block(nulls));
+			ByteBuffer b;
+			switch (type) {
+				case Integer:
+					b = ByteBuffer.allocate(n*4);
+					for (Object v : values)
+						b.putInt(v==null ? 0 : (Integer)v);
+					break;
+				case Long:
+				case Double:
+				case Instant:
+					b = ByteBuffer.allocate(n*8);
+					for (Object v : values)
+						b.putLong(v==null ? 0
+								: type==Tuple.Type.Long ? (Long)v
+								: type==Tuple.Type.Double ? Double.doubleToLongBits((Double)v)
+								: toMicros((Instant)v));
+					break;
+				case Boolean:
+					b = ByteBuffer.allocate(n);
+					for (Object v : values)
+						b.put((byte)(v!=null && (Boolean)v ? 1 : 0));
+					break;
+				case String:
+					ByteArrayOutputStream text = new ByteArrayOutputStream();
+					b = ByteBuffer.allocate((n+1)*4);
+					for (Object v : values) {
+						b.putInt(text.size());
+						if (v!=null)
+							text.write(((String)v).getBytes(StandardCharsets.UTF_8));
+					}
+					b.putInt(text.size());
+					b.flip();
+					directory.writeLong(block(b));
+					directory.writeLong(block(text.toByteArray()));
+					return;
+				default:
+					throw new IOException("Unsupported column type "+type);
+			}
+			b.flip();
+			directory.writeLong(block(b));
+		}
+	}
+
+	/** A mapped file and the changes made since it was written **/
+	private static class Generation {
+		final Image image;
+		final ConcurrentHashMap<Integer,VersionsTuple> changes = new ConcurrentHashMap<Integer,VersionsTuple>();
+		boolean dirty = false;
+
+		Generation(Image image) {
+			this.image = image;
+		}
+	}
+
+	/**
+	 * Creates a report on the snapshot for administrators.
+	 * @param doc The {@code Document} that owns the report nodes.
+	 * @return The {@code <catalogsnapshot>} element, to be inserted by the caller.
+	 */
+	public Element statusXml(Document doc) {
+		Element elCatalog = doc.createElement("catalogsnapshot");
+		LambdaTwoStrings add = (name,value) -> {
+			Element el = doc.createElement(name);
+			el.appendChild(doc.createTextNode(value));
+			elCatalog.appendChild(el);
+		};
+		Instant when = loaded;
+		Generation g = current;
+		add.op("enabled", enabled==null ? "unknown" : enabled ? "yes" : "no");
+		add.op("loaded", when==null?"no":when.toString());
+		add.op("objects", Integer.toString(g==null?0:g.image.rows));
+		add.op("taggings", Integer.toString(g==null?0:Math.max(0,g.image.tagRows)));
+		add.op("pendingchanges", Integer.toString(g==null?0:g.changes.size()));
+		add.op("filebytes", Integer.toString(g==null?0:g.image.buffer.capacity()));
+		add.op("queries", Long.toString(metricQueries.get()));
+		add.op("refreshes", Long.toString(metricRefreshes.get()));
+		add.op("flushes", Long.toString(metricFlushes.get()));
+		add.op("builds", Long.toString(metricBuilds.get()));
+		return elCatalog;
+	}
+}
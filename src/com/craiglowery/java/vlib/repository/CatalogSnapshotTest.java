@@ -0,0 +1,142 @@
+package com.craiglowery.java.vlib.repository;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.craiglowery.java.vlib.common.U_Exception;
+
+/**
+ * Unit test for the tag map kept in the catalog snapshot.  The tables are lists in memory,
+ * and the snapshot is kept in a temporary file.
+ *
+ */
+public class CatalogSnapshotTest {
+
+	private static Object_tagsTuple tagging(int handle, String name, String value) {
+		Object_tagsTuple ot = new Object_tagsTuple();
+		ot.handle = handle;
+		ot.name = name;
+		ot.value = value;
+		return ot;
+	}
+
+	@BeforeClass
+	public static void logging() {
+		//Normally set up when the first U_Exception is made
+		if (U_Exception.logger==null)
+			U_Exception.logger = Logger.getLogger(CatalogSnapshotTest.class);
+	}
+
+	@After
+	public void discardIndex() {
+		TagMembershipIndex.getIndex().invalidate();
+	}
+
+	/**
+	 * Maps a snapshot holding the tag map, tags an object while the tag index is not loaded,
+	 * and checks that the index is then loaded from the table rather than from the snapshot.
+	 */
+	@Test
+	public void tagChangeBeforeIndexLoads() throws Exception {
+		ListTable<VersionsTuple> versions = new ListTable<VersionsTuple>(VersionsTuple.class,
+				Comparator.comparing((VersionsTuple vt) -> vt.handle));
+		ListTable<ObjectsTuple> objects = new ListTable<ObjectsTuple>(ObjectsTuple.class,
+				Comparator.comparing((ObjectsTuple o) -> o.handle));
+		ListTable<Object_tagsTuple> object_tags = new ListTable<Object_tagsTuple>(Object_tagsTuple.class,
+				Comparator.comparing((Object_tagsTuple ot) -> ot.name).thenComparing((Object_tagsTuple ot) -> ot.value));
+		for (int handle=1; handle<=2; handle++) {
+			VersionsTuple vt = new VersionsTuple();
+			vt.handle = handle;
+			vt.title = "Title "+handle;
+			versions.rows.add(vt);
+			ObjectsTuple o = new ObjectsTuple();
+			o.handle = handle;
+			objects.rows.add(o);
+		}
+		object_tags.rows.add(tagging(1, "genre", "comedy"));
+
+		File file = File.createTempFile("catalog", ".snap");
+		file.delete();
+		file.deleteOnExit();
+		TagMembershipIndex index = TagMembershipIndex.getIndex();
+		index.invalidate();
+		index.ensureLoaded(object_tags, objects);
+		CatalogSnapshot built = new CatalogSnapshot(file);
+		assertTrue(built.ensureLoaded(versions));
+		assertTrue(built.hasTags());
+
+		//As after a restart: the file is mapped, and the index is not yet loaded
+		index.invalidate();
+		CatalogSnapshot catalog = new CatalogSnapshot(file);
+		assertTrue(catalog.ensureLoaded(versions));
+		assertTrue(catalog.hasTags());
+
+		object_tags.rows.add(tagging(2, "genre", "drama"));
+		index.apply(() -> index.tagged(2, "genre", "drama"), catalog);
+		catalog.tagsChanged();
+		assertFalse("a missed change makes the tag map unusable", catalog.hasTags());
+		catalog.flush();
+		assertFalse("the stale tag map is not carried into the new file", catalog.hasTags());
+
+		index.ensureLoaded(object_tags, objects, catalog);
+		assertTrue(index.isTagged(1, "genre", "comedy", false));
+		assertTrue(index.isTagged(2, "genre", "drama", false));
+		assertTrue(index.isTagged(2, "genre", "DRAMA", true));
+		assertFalse(index.isTagged(1, "genre", "drama", false));
+
+		//Once written from the loaded index, the tag map is usable again
+		catalog.flush();
+		assertTrue(catalog.hasTags());
+		List<String> taggings = new ArrayList<String>();
+		catalog.forEachTagging((ot) -> taggings.add(ot.handle+":"+ot.name+"="+ot.value));
+		assertEquals("[1:genre=comedy, 2:genre=drama]", taggings.toString());
+	}
+
+	/**
+	 * Changes the title of an object before the snapshot is loaded, and checks that the clean
+	 * file left by the last run is rebuilt rather than mapped, even after another restart.
+	 */
+	@Test
+	public void rowChangeBeforeLoad() throws Exception {
+		ListTable<VersionsTuple> versions = new ListTable<VersionsTuple>(VersionsTuple.class,
+				Comparator.comparing((VersionsTuple vt) -> vt.handle));
+		VersionsTuple vt = new VersionsTuple();
+		vt.handle = 1;
+		vt.title = "Old title";
+		versions.rows.add(vt);
+
+		File file = File.createTempFile("catalog", ".snap");
+		file.delete();
+		file.deleteOnExit();
+		CatalogSnapshot built = new CatalogSnapshot(file);
+		assertTrue(built.ensureLoaded(versions));
+		assertEquals("Old title", built.get(1).title);
+
+		//As after a restart: the change is committed before anything loads the snapshot
+		CatalogSnapshot unloaded = new CatalogSnapshot(file);
+		vt.title = "New title";
+		unloaded.refresh(versions, Collections.singletonList(1));
+		assertFalse(unloaded.isLoaded());
+
+		//And after another, before it was ever loaded
+		CatalogSnapshot catalog = new CatalogSnapshot(file);
+		assertTrue(catalog.ensureLoaded(versions));
+		assertEquals("New title", catalog.get(1).title);
+	}
+}
@@ -0,0 +1,299 @@
+package com.craiglowery.java.vlib.repository;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.craiglowery.java.vlib.common.Config;
+import com.craiglowery.java.vlib.common.ConfigurationKey;
+import com.craiglowery.java.vlib.common.LambdaTwoStrings;
+import com.craiglowery.java.vlib.common.U_Exception;
+
+/**
+ * The process-wide cache of rows from the {@code objects}, {@code tags} and {@code tag_values}
+ * tables, shared by every RepositoryManager in the pool, so that the existence checks made by
+ * nearly every RepositoryManager method need not go to the database.<p>
+ *
+ * Only rows that exist are cached, keyed by primary key, each kind in its own map of at most
+ * {@code ENTITY_CACHE_SIZE} entries from which the least recently used are dropped.  Rows are
+ * cached as they are read outside of a transaction, and forgotten when changed; see
+ * {@code RepositoryManager.entityChange()}.  A read that was in flight while a row was
+ * forgotten could put back what it read before the change, so each change advances an epoch,
+ * and a row read before the current epoch began is not cached.<p>
+ *
+ * Like the tag index, the cache assumes that this process is the only one that changes these
+ * tables.  Tuples are copied in and out, so callers may change what they are given.
+ */
+public class EntityCache {
+
+	/** The single cache for this process **/
+	private static final EntityCache instance = new EntityCache();
+
+	/**
+	 * Returns the process-wide cache.
+	 * @return The cache.
+	 */
+	public static EntityCache getCache() {
+		return instance;
+	}
+
+	/** A map of at most {@code capacity} entries in least recently used order **/
+	private static class Lru<K,V> extends LinkedHashMap<K,V> {
+		private static final long serialVersionUID = 1L;
+		final int capacity;
+
+		Lru(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
+			return size()>capacity;
+		}
+	}
+
+	/** Hit and miss counts for one kind of row **/
+	private static class Metrics {
+		final AtomicLong hits = new AtomicLong(0);
+		final AtomicLong misses = new AtomicLong(0);
+		final AtomicLong invalidations = new AtomicLong(0);
+
+		void count(boolean hit) {
+			(hit ? hits : misses).incrementAndGet();
+		}
+	}
+
+	private volatile Integer capacity = null;
+	private Lru<Integer,ObjectsTuple> objects = null;
+	private Lru<String,TagsTuple> tags = null;
+	/** Keyed by name and value joined with a NUL **/
+	private Lru<String,Boolean> tagValues = null;
+
+	private final Metrics objectMetrics = new Metrics();
+	private final Metrics tagMetrics = new Metrics();
+	private final Metrics tagValueMetrics = new Metrics();
+
+	/** Advanced by every change **/
+	private long epoch = 0;
+
+	private EntityCache() {}
+
+	/**
+	 * Determines if the cache is in use, reading its size from the configuration the first time.
+	 * @return True if {@code ENTITY_CACHE_SIZE} is not 0.
+	 */
+	public boolean isEnabled() {
+		if (capacity==null)
+			synchronized (this) {
+				if (capacity==null) {
+					int size;
+					try {
+						size = Math.max(0, Config.getInt(ConfigurationKey.ENTITY_CACHE_SIZE));
+					} catch (U_Exception e) {
+						size = 0;
+					}
+					objects = new Lru<Integer,ObjectsTuple>(size);
+					tags = new Lru<String,TagsTuple>(size);
+					tagValues = new Lru<String,Boolean>(size);
+					capacity = size;
+				}
+			}
+		return capacity>0;
+	}
+
+	/**
+	 * Returns the epoch to pass to the {@code put} methods for a row about to be read.
+	 * @return The current epoch.
+	 */
+	public synchronized long epoch() {
+		return epoch;
+	}
+
+	private static String tagValueKey(String name, String value) {
+		return name+'\0'+value;
+	}
+
+	//------------------------------------------------------------------------------------------
+	//-- Readers
+	//------------------------------------------------------------------------------------------
+
+	/**
+	 * @param handle An object handle.
+	 * @return A copy of the cached {@code objects} row, or null if it is not cached.
+	 */
+	public synchronized ObjectsTuple getObject(int handle) {
+		if (!isEnabled())
+			return null;
+		ObjectsTuple ot = objects.get(handle);
+		objectMetrics.count(ot!=null);
+		return ot==null ? null : copy(ot);
+	}
+
+	/**
+	 * @param name A tag name.
+	 * @return A copy of the cached {@code tags} row, or null if it is not cached.
+	 */
+	public synchronized TagsTuple getTag(String name) {
+		if (!isEnabled())
+			return null;
+		TagsTuple tt = tags.get(name);
+		tagMetrics.count(tt!=null);
+		return tt==null ? null : copy(tt);
+	}
+
+	/**
+	 * @param name A tag name.
+	 * @param value A tag value.
+	 * @return True if the name=value pair is cached as defined.
+	 */
+	public synchronized boolean tagValueExists(String name, String value) {
+		if (!isEnabled())
+			return false;
+		boolean hit = tagValues.get(tagValueKey(name,value))!=null;
+		tagValueMetrics.count(hit);
+		return hit;
+	}
+
+	//------------------------------------------------------------------------------------------
+	//-- Writers
+	//------------------------------------------------------------------------------------------
+
+	/**
+	 * Caches an {@code objects} row read from the database.
+	 * @param ot The row.
+	 * @param epoch The epoch returned by {@link #epoch()} before the row was read.
+	 */
+	public synchronized void putObject(ObjectsTuple ot, long epoch) {
+		if (isEnabled() && epoch==this.epoch)
+			objects.put(ot.handle, copy(ot));
+	}
+
+	/**
+	 * Caches a {@code tags} row read from the database.
+	 * @param tt The row.
+	 * @param epoch The epoch returned by {@link #epoch()} before the row was read.
+	 */
+	public synchronized void putTag(TagsTuple tt, long epoch) {
+		if (isEnabled() && epoch==this.epoch)
+			tags.put(tt.name, copy(tt));
+	}
+
+	/**
+	 * Caches a name=value pair found defined in the database.
+	 * @param epoch The epoch returned by {@link #epoch()} before the pair was read.
+	 */
+	public synchronized void putTagValue(String name, String value, long epoch) {
+		if (isEnabled() && epoch==this.epoch)
+			tagValues.put(tagValueKey(name,value), Boolean.TRUE);
+	}
+
+	/**
+	 * Forgets an {@code objects} row that has changed or been deleted.
+	 * @param handle The object.
+	 */
+	public synchronized void objectChanged(int handle) {
+		epoch++;
+		if (isEnabled() && objects.remove(handle)!=null)
+			objectMetrics.invalidations.incrementAndGet();
+	}
+
+	/**
+	 * Forgets a {@code tags} row that has changed or been deleted, and its values.
+	 * @param name The tag name.
+	 */
+	public synchronized void tagChanged(String name) {
+		epoch++;
+		if (!isEnabled())
+			return;
+		if (tags.remove(name)!=null)
+			tagMetrics.invalidations.incrementAndGet();
+		String prefix = name+'\0';
+		for (Iterator<String> i = tagValues.keySet().iterator(); i.hasNext(); )
+			if (i.next().startsWith(prefix)) {
+				i.remove();
+				tagValueMetrics.invalidations.incrementAndGet();
+			}
+	}
+
+	/**
+	 * Forgets a name=value pair that has been deleted.
+	 * @param name The tag name.
+	 * @param value The tag value.
+	 */
+	public synchronized void tagValueChanged(String name, String value) {
+		epoch++;
+		if (isEnabled() && tagValues.remove(tagValueKey(name,value))!=null)
+			tagValueMetrics.invalidations.incrementAndGet();
+	}
+
+	/**
+	 * Forgets everything.
+	 */
+	public synchronized void invalidate() {
+		epoch++;
+		if (!isEnabled())
+			return;
+		objects.clear();
+		tags.clear();
+		tagValues.clear();
+	}
+
+	private static ObjectsTuple copy(ObjectsTuple ot) {
+		ObjectsTuple c = new ObjectsTuple();
+		c.handle = ot.handle;
+		c.imported = ot.imported;
+		return c;
+	}
+
+	private static TagsTuple copy(TagsTuple tt) {
+		TagsTuple c = new TagsTuple();
+		c.name = tt.name;
+		c.description = tt.description;
+		c.type = tt.type;
+		c.browsing_priority = tt.browsing_priority;
+		c.type_as_enum = tt.type_as_enum;
+		return c;
+	}
+
+	/**
+	 * Creates a report on the cache for administrators.
+	 * @param doc The {@code Document} that owns the report nodes.
+	 * @return The {@code <entitycache>} element, to be inserted by the caller.
+	 */
+	public synchronized Element statusXml(Document doc) {
+		Element elCache = doc.createElement("entitycache");
+		elCache.setAttribute("capacity", capacity==null ? "unknown" : Integer.toString(capacity));
+		elCache.appendChild(metricsXml(doc, "objects", objects, objectMetrics));
+		elCache.appendChild(metricsXml(doc, "tags", tags, tagMetrics));
+		elCache.appendChild(metricsXml(doc, "tagvalues", tagValues, tagValueMetrics));
+		return elCache;
+	}
+
+	private static Element metricsXml(Document doc, String name, Map<?,?> map, Metrics m) {
+		Element elKind = doc.createElement(name);
+		LambdaTwoStrings add = (n,value) -> {
+			Element el = doc.createElement(n);
+			el.appendChild(doc.createTextNode(value));
+			elKind.appendChild(el);
+		};
+		long hits = m.hits.get(), misses = m.misses.get();
+		add.op("entries", Integer.toString(map==null ? 0 : map.size()));
+		add.op("hits", Long.toString(hits));
+		add.op("misses", Long.toString(misses));
+		add.op("hitrate", hits+misses==0 ? "0" : String.format("%.3f", (double)hits/(hits+misses)));
+		add.op("invalidations", Long.toString(m.invalidations.get()));
+		return elKind;
+	}
+}
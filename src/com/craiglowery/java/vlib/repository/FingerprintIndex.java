@@ -0,0 +1,343 @@
+package com.craiglowery.java.vlib.repository;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.craiglowery.java.vlib.common.L;
+import com.craiglowery.java.vlib.common.U_Exception;
+import com.craiglowery.java.vlib.tuple.SortDirective;
+import com.craiglowery.java.vlib.tuple.TableAdapter;
+
+/**
+ * The process-wide index of the fingerprints (length and sha1sum) of every version in the
+ * {@code versions} table, shared by every RepositoryManager in the pool, so that checking
+ * incoming content for duplicates need not go to the database.<p>
+ *
+ * The index answers only whether some version may have a fingerprint, or a length.  A "no" is
+ * exact, and is the answer for nearly all new content.  A "yes" is confirmed against the
+ * database by the caller, which also finds the version's handle, so the index keeps no handles
+ * and a count that drifts upward can never cause a duplicate to be missed.<p>
+ *
+ * Fingerprints are kept in an open addressing hash table of 20-byte digests with their lengths
+ * and use counts, and lengths in a second table of the same kind, so that at a million versions
+ * the index occupies a few tens of megabytes and no objects per version.  It is loaded on first
+ * use, and kept current by {@code RepositoryManager} as versions are added and trashed.  Like
+ * the tag index, it assumes that this process is the only one that changes the table.
+ */
+public class FingerprintIndex {
+
+	/** The single index for this process **/
+	private static final FingerprintIndex instance = new FingerprintIndex();
+
+	/**
+	 * Returns the process-wide index.
+	 * @return The index.
+	 */
+	public static FingerprintIndex getIndex() {
+		return instance;
+	}
+
+	/** The number of bytes in a SHA1 digest **/
+	private static final int DIGEST_BYTES = 20;
+
+	/** Fingerprints, or null if the index is not loaded **/
+	private Table fingerprints = null;
+	/** Lengths, or null if the index is not loaded **/
+	private Table lengths = null;
+	private volatile boolean loaded = false;
+
+	FingerprintIndex() {}
+
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Loads the index from the versions table if it is not already loaded.
+	 * @param versionsTable The versions table, as seen by the calling RepositoryManager.
+	 * @throws U_Exception
+	 */
+	public void ensureLoaded(TableAdapter<VersionsTuple> versionsTable)
+		throws U_Exception
+	{
+		if (!loaded)
+			synchronized (this) {
+				if (!loaded) {
+					long started = System.currentTimeMillis();
+					clear();
+					try {
+						versionsTable.select(null, SortDirective.NONE, 0, (vt) -> {
+							add(vt.sha1sum, vt.length);
+							return true;
+						});
+					} catch (U_Exception e) {
+						invalidate();
+						throw e;
+					}
+					loaded = true;
+					L.log(L.I, this, "loaded %d fingerprints in %d ms",
+							fingerprints.size, System.currentTimeMillis()-started);
+				}
+			}
+	}
+
+	/**
+	 * Discards the index.  It will be reloaded the next time it is needed.
+	 */
+	public synchronized void invalidate() {
+		loaded = false;
+		fingerprints = null;
+		lengths = null;
+	}
+
+	/**
+	 * Empties the index and marks it loaded, so that it may be filled without a database.
+	 */
+	synchronized void clear() {
+		fingerprints = new Table(DIGEST_BYTES);
+		lengths = new Table(0);
+		loaded = true;
+	}
+
+	//------------------------------------------------------------------------------------------
+	//-- Queries
+	//------------------------------------------------------------------------------------------
+
+	/**
+	 * @param sha1sum The checksum of some content, as 40 hexadecimal digits.
+	 * @param length The length of the content.
+	 * @return False if no version has this fingerprint.  True if one may have it, or if the
+	 *  index is not loaded.
+	 */
+	public synchronized boolean mayContain(String sha1sum, long length) {
+		if (!loaded)
+			return true;
+		byte[] digest = decode(sha1sum);
+		return digest==null || fingerprints.contains(length, digest);
+	}
+
+	/**
+	 * @param length The length of some content.
+	 * @return False if no version has this length.  True if one may, or if the index is not loaded.
+	 */
+	public synchronized boolean mayContainLength(long length) {
+		return !loaded || lengths.contains(length, null);
+	}
+
+	//------------------------------------------------------------------------------------------
+	//-- Writers, called once a change to the versions table is committed
+	//------------------------------------------------------------------------------------------
+
+	/**
+	 * Records that a version with this fingerprint was added.
+	 * @param sha1sum The version's checksum.
+	 * @param length The version's length.
+	 */
+	public synchronized void added(String sha1sum, long length) {
+		if (loaded)
+			add(sha1sum, length);
+	}
+
+	/**
+	 * Records that a version with this fingerprint was removed.
+	 * @param sha1sum The version's checksum.
+	 * @param length The version's length.
+	 */
+	public synchronized void removed(String sha1sum, long length) {
+		if (!loaded)
+			return;
+		byte[] digest = decode(sha1sum);
+		if (digest!=null && fingerprints.remove(length, digest))
+			lengths.remove(length, null);
+	}
+
+	private void add(String sha1sum, long length) {
+		byte[] digest = decode(sha1sum);
+		//A version without a valid checksum cannot be a duplicate of anything
+		if (digest==null)
+			return;
+		fingerprints.add(length, digest);
+		lengths.add(length, null);
+	}
+
+	/**
+	 * @param sha1sum A checksum as 40 hexadecimal digits, in either case.
+	 * @return The digest, or null if {@code sha1sum} is not a valid checksum.
+	 */
+	static byte[] decode(String sha1sum) {
+		if (sha1sum==null || sha1sum.length()!=2*DIGEST_BYTES)
+			return null;
+		byte[] digest = new byte[DIGEST_BYTES];
+		for (int i=0; i<DIGEST_BYTES; i++) {
+			int hi = Character.digit(sha1sum.charAt(2*i),16);
+			int lo = Character.digit(sha1sum.charAt(2*i+1),16);
+			if (hi<0 || lo<0)
+				return null;
+			digest[i] = (byte)((hi<<4)|lo);
+		}
+		return digest;
+	}
+
+	/**
+	 * Creates a report on the index for administrators.
+	 * @param doc The {@code Document} that owns the report nodes.
+	 * @return The {@code <fingerprintindex>} element, to be inserted by the caller.
+	 */
+	public synchronized Element statusXml(Document doc) {
+		Element elIndex = doc.createElement("fingerprintindex");
+		elIndex.setAttribute("loaded", loaded ? "yes" : "no");
+		if (loaded) {
+			elIndex.setAttribute("fingerprints", Integer.toString(fingerprints.size));
+			elIndex.setAttribute("lengths", Integer.toString(lengths.size));
+			elIndex.setAttribute("bytes", Long.toString(fingerprints.bytes()+lengths.bytes()));
+		}
+		return elIndex;
+	}
+
+	//------------------------------------------------------------------------------------------
+	//-- The hash table
+	//------------------------------------------------------------------------------------------
+
+	/**
+	 * A set of keys, each a length and a digest of a fixed number of bytes (possibly none),
+	 * with a use count for each.  Keys are kept in parallel arrays with linear probing, and a
+	 * slot is empty if its count is 0.  Removal shifts later keys of the same probe sequence
+	 * back, so there are no tombstones and lookups never slow down as keys come and go.
+	 */
+	static class Table {
+		private static final int INITIAL_CAPACITY = 1024;
+
+		final int digestBytes;
+		int size = 0;
+		private int mask;
+		private long[] lengths;
+		private byte[] digests;
+		private int[] counts;
+
+		Table(int digestBytes) {
+			this(digestBytes, INITIAL_CAPACITY);
+		}
+
+		private Table(int digestBytes, int capacity) {
+			this.digestBytes = digestBytes;
+			mask = capacity-1;
+			lengths = new long[capacity];
+			digests = new byte[capacity*digestBytes];
+			counts = new int[capacity];
+		}
+
+		long bytes() {
+			return (long)counts.length*(8+4+digestBytes);
+		}
+
+		private int home(long length, byte[] digest, int offset) {
+			long h = length;
+			//Digests are already uniformly distributed, so their first 8 bytes suffice
+			for (int i=0; i<Math.min(8,digestBytes); i++)
+				h = h*31 + (digest[offset+i]&0xff);
+			h *= 0x9E3779B97F4A7C15L;
+			return (int)(h ^ (h>>>32)) & mask;
+		}
+
+		private boolean matches(int slot, long length, byte[] digest) {
+			if (lengths[slot]!=length)
+				return false;
+			int base = slot*digestBytes;
+			for (int i=0; i<digestBytes; i++)
+				if (digests[base+i]!=digest[i])
+					return false;
+			return true;
+		}
+
+		/** @return The slot holding the key, or the empty slot where it would go **/
+		private int find(long length, byte[] digest) {
+			int slot = home(length, digest, 0);
+			while (counts[slot]!=0 && !matches(slot, length, digest))
+				slot = (slot+1)&mask;
+			return slot;
+		}
+
+		boolean contains(long length, byte[] digest) {
+			return counts[find(length, digest)]!=0;
+		}
+
+		int count(long length, byte[] digest) {
+			return counts[find(length, digest)];
+		}
+
+		void add(long length, byte[] digest) {
+			if ((size+1)*4L > counts.length*3L)
+				grow();
+			int slot = find(length, digest);
+			if (counts[slot]==0) {
+				lengths[slot] = length;
+				if (digestBytes>0)
+					System.arraycopy(digest, 0, digests, slot*digestBytes, digestBytes);
+				size++;
+			}
+			counts[slot]++;
+		}
+
+		/**
+		 * Counts one fewer use of a key, removing it when none remain.
+		 * @return True if the key was present.
+		 */
+		boolean remove(long length, byte[] digest) {
+			int slot = find(length, digest);
+			if (counts[slot]==0)
+				return false;
+			if (--counts[slot]==0) {
+				shiftBack(slot);
+				size--;
+			}
+			return true;
+		}
+
+		/** Fills the slot just emptied from later in its probe sequence **/
+		private void shiftBack(int hole) {
+			int next = hole;
+			while (true) {
+				next = (next+1)&mask;
+				if (counts[next]==0)
+					break;
+				int home = home(lengths[next], digests, next*digestBytes);
+				//The key stays put if its home lies cyclically after the hole, up to where it is
+				boolean stays = hole<=next ? (hole<home && home<=next) : (hole<home || home<=next);
+				if (stays)
+					continue;
+				lengths[hole] = lengths[next];
+				counts[hole] = counts[next];
+				if (digestBytes>0)
+					System.arraycopy(digests, next*digestBytes, digests, hole*digestBytes, digestBytes);
+				hole = next;
+			}
+			counts[hole] = 0;
+		}
+
+		private void grow() {
+			Table bigger = new Table(digestBytes, counts.length*2);
+			byte[] digest = new byte[digestBytes];
+			for (int slot=0; slot<counts.length; slot++)
+				if (counts[slot]!=0) {
+					if (digestBytes>0)
+						System.arraycopy(digests, slot*digestBytes, digest, 0, digestBytes);
+					int to = bigger.find(lengths[slot], digest);
+					bigger.lengths[to] = lengths[slot];
+					bigger.counts[to] = counts[slot];
+					if (digestBytes>0)
+						System.arraycopy(digest, 0, bigger.digests, to*digestBytes, digestBytes);
+				}
+			mask = bigger.mask;
+			lengths = bigger.lengths;
+			digests = bigger.digests;
+			counts = bigger.counts;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package com.craiglowery.java.vlib.repository;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Unit test and benchmark for the fingerprint index, filled directly rather than from the
+ * versions table.
+ *
+ */
+public class FingerprintIndexTest {
+
+	private static String sha1(Random r) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<20; i++)
+			sb.append(String.format("%02x", r.nextInt(256)));
+		return sb.toString();
+	}
+
+	@Test
+	public void basics() {
+		FingerprintIndex index = new FingerprintIndex();
+		assertTrue("an unloaded index rules nothing out", index.mayContain(sha1(new Random(1)), 10));
+		index.clear();
+		String a = sha1(new Random(2));
+		assertFalse(index.mayContain(a, 100));
+		assertFalse(index.mayContainLength(100));
+		index.added(a, 100);
+		index.added(a, 100);
+		assertTrue(index.mayContain(a, 100));
+		assertTrue(index.mayContain(a.toUpperCase(), 100));
+		assertFalse(index.mayContain(a, 101));
+		assertTrue(index.mayContainLength(100));
+		//Two versions share the fingerprint, so it stays until both are gone
+		index.removed(a, 100);
+		assertTrue(index.mayContain(a, 100));
+		index.removed(a, 100);
+		assertFalse(index.mayContain(a, 100));
+		assertFalse(index.mayContainLength(100));
+		//Versions without a valid checksum are not indexed, and cannot be ruled out
+		index.added("(notcomputed)", 5);
+		assertFalse(index.mayContainLength(5));
+		assertTrue(index.mayContain("(notcomputed)", 5));
+	}
+
+	/**
+	 * Adds and removes keys at random, many with shared lengths so that probe sequences
+	 * collide, and compares the table with a map as it goes.
+	 */
+	@Test
+	public void againstMap() {
+		Random r = new Random(3);
+		FingerprintIndex.Table table = new FingerprintIndex.Table(20);
+		Map<String,Integer> expected = new HashMap<String,Integer>();
+		String[] pool = new String[5000];
+		for (int i=0; i<pool.length; i++)
+			pool[i] = sha1(r);
+		for (int step=0; step<100000; step++) {
+			String s = pool[r.nextInt(pool.length)];
+			long length = r.nextInt(50);
+			String key = s+length;
+			byte[] digest = FingerprintIndex.decode(s);
+			if (r.nextInt(3)==0) {
+				boolean present = expected.containsKey(key);
+				assertEquals(present, table.remove(length, digest));
+				if (present)
+					expected.compute(key, (k,n) -> n==1 ? null : n-1);
+			} else {
+				table.add(length, digest);
+				expected.merge(key, 1, Integer::sum);
+			}
+			if (step%5000==0)
+				for (String p : pool)
+					for (long l=0; l<50; l+=7) {
+						Integer n = expected.get(p+l);
+						assertEquals(n==null ? 0 : n.intValue(), table.count(l, FingerprintIndex.decode(p)));
+					}
+		}
+		assertEquals(expected.size(), table.size);
+	}
+
+	/**
+	 * Loads a million fingerprints and times lookups of present and absent content, and
+	 * removal of half of them.
+	 */
+	@Test
+	public void benchmark() {
+		final int N = 1000000;
+		Random r = new Random(4);
+		String[] sums = new String[N];
+		long[] lengths = new long[N];
+		for (int i=0; i<N; i++) {
+			sums[i] = sha1(r);
+			lengths[i] = 100000000L + r.nextInt(1000000000);
+		}
+		FingerprintIndex index = new FingerprintIndex();
+		index.clear();
+
+		long t0 = System.nanoTime();
+		for (int i=0; i<N; i++)
+			index.added(sums[i], lengths[i]);
+		long t1 = System.nanoTime();
+		int hits = 0;
+		for (int i=0; i<N; i++)
+			if (index.mayContain(sums[i], lengths[i]))
+				hits++;
+		long t2 = System.nanoTime();
+		int falseHits = 0;
+		for (int i=0; i<N; i++)
+			if (index.mayContain(sums[(i+1)%N], lengths[i]))
+				falseHits++;
+		long t3 = System.nanoTime();
+		for (int i=0; i<N; i+=2)
+			index.removed(sums[i], lengths[i]);
+		long t4 = System.nanoTime();
+
+		assertEquals(N, hits);
+		assertEquals(0, falseHits);
+		for (int i=0; i<N; i++)
+			assertEquals(i%2==1, index.mayContain(sums[i], lengths[i]));
+
+		System.out.println(String.format(
+				"FingerprintIndex, %d versions: add %.0f ns, hit %.0f ns, miss %.0f ns, remove %.0f ns per operation",
+				N, (t1-t0)/(double)N, (t2-t1)/(double)N, (t3-t2)/(double)N, (t4-t3)/(N/2.0)));
+	}
+}
@@ -0,0 +1,375 @@
+package com.craiglowery.java.vlib.repository;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.craiglowery.java.vlib.common.Config;
+import com.craiglowery.java.vlib.common.ConfigurationKey;
+import com.craiglowery.java.vlib.common.L;
+import com.craiglowery.java.vlib.common.LambdaTwoStrings;
+import com.craiglowery.java.vlib.common.U_Exception;
+import com.craiglowery.java.vlib.common.U_Exception.ERROR;
+
+/**
+ * Drives {@code RepositoryManager.assessHealth()} across every current version in the library.<p>
+ *
+ * A sweep is started with {@link #start(boolean)}.  The handles to visit are listed once, in
+ * priority order (least recently fingerprinted first for a full validation sweep, least recently
+ * validated first otherwise), and are consumed by a pool of {@code HEALTH_SWEEP_WORKERS} threads.
+ * Each worker borrows a RepositoryManager from the pool for one object at a time, so a sweep
+ * never holds more than that many connections and REST requests are served in between.<p>
+ *
+ * Checksum reads are paced per storage device so that no device is read faster than
+ * {@code HEALTH_SWEEP_DEVICE_BYTES_PER_SECOND}.  Observations are stored in batches of
+ * {@code HEALTH_SWEEP_BATCH_SIZE} versions per transaction.<p>
+ *
+ * The sweep's start time and mode are kept in the {@code HEALTH_SWEEP_CHECKPOINT_FILE}.  Because
+ * every version visited has its {@code hm_lastvalidationattempt} set to a time after the sweep
+ * started, resuming only requires listing the versions not attempted since then.  {@link #resume()}
+ * does that when the application starts.  The checkpoint is removed when a sweep finishes or is
+ * stopped.
+ */
+public class HealthSweeper {
+
+	/** The single sweeper for this process **/
+	private static HealthSweeper instance = null;
+
+	/**
+	 * Returns the process-wide sweeper.
+	 * @return The sweeper.
+	 * @throws U_Exception if the sweeper is not properly configured.
+	 */
+	public static synchronized HealthSweeper getHealthSweeper()
+		throws U_Exception
+	{
+		if (instance==null)
+			instance = new HealthSweeper();
+		return instance;
+	}
+
+	/**
+	 * Restarts a sweep that was in progress when the application last stopped, if any.
+	 * Failures are logged rather than thrown, since this is called during start up.
+	 */
+	public static void resume() {
+		try {
+			HealthSweeper hs = getHealthSweeper();
+			Properties p = hs.readCheckpoint();
+			if (p!=null) {
+				Instant started = Instant.parse(p.getProperty("started"));
+				boolean full = Boolean.parseBoolean(p.getProperty("fullvalidation"));
+				L.log(L.I,hs,"resuming health sweep started %s", started);
+				hs.launch(started, full);
+			}
+		} catch (Exception e) {
+			L.log(L.E,HealthSweeper.class,"could not resume health sweep: %s",e.getMessage());
+		}
+	}
+
+	/** Configuration **/
+	private final int workers;
+	private final long deviceBytesPerSecond;
+	private final int batchSize;
+	private final File checkpointFile;
+
+	/** State of the current or most recent sweep **/
+	private volatile boolean running = false;
+	private volatile boolean stopRequested = false;
+	private volatile Instant started = null;
+	private volatile Instant finished = null;
+	private volatile boolean fullValidation = false;
+	private volatile String lastError = null;
+	private final AtomicInteger total = new AtomicInteger();
+	private final AtomicInteger checked = new AtomicInteger();
+	private final AtomicInteger unhealthy = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicLong bytesHashed = new AtomicLong();
+
+	private ExecutorService pool = null;
+	private ConcurrentLinkedQueue<Integer> work = null;
+	private AtomicInteger activeWorkers = new AtomicInteger();
+
+	/** Assessed versions waiting to be stored **/
+	private final List<VersionsTuple> pending = new ArrayList<VersionsTuple>();
+
+	/** One read-rate limiter per storage device **/
+	private final ConcurrentHashMap<Object,DeviceThrottle> throttles = new ConcurrentHashMap<Object,DeviceThrottle>();
+
+	private HealthSweeper()
+		throws U_Exception
+	{
+		workers = Config.getInt(ConfigurationKey.HEALTH_SWEEP_WORKERS);
+		if (workers<1)
+			throw new U_Exception(ERROR.ConfigurationError,"HEALTH_SWEEP_WORKERS must be at least 1");
+		deviceBytesPerSecond = Config.getLong(ConfigurationKey.HEALTH_SWEEP_DEVICE_BYTES_PER_SECOND);
+		batchSize = Math.max(1,Config.getInt(ConfigurationKey.HEALTH_SWEEP_BATCH_SIZE));
+		checkpointFile = new File(Config.getString(ConfigurationKey.HEALTH_SWEEP_CHECKPOINT_FILE));
+	}
+
+	/**
+	 * Starts a new sweep of every current version in the library.
+	 * @param fullValidation If true, checksums are recomputed and compared.
+	 * @throws U_Exception with IllegalRequest if a sweep is already running.
+	 */
+	public void start(boolean fullValidation)
+		throws U_Exception
+	{
+		launch(Instant.now(), fullValidation);
+	}
+
+	/**
+	 * Asks a running sweep to stop after the objects currently being checked.  The
+	 * checkpoint is removed, so the sweep is not resumed on restart.
+	 */
+	public void stop() {
+		stopRequested = true;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	private synchronized void launch(Instant since, boolean full)
+		throws U_Exception
+	{
+		if (running)
+			throw new U_Exception(ERROR.IllegalRequest,"A health sweep is already running");
+		List<Integer> handles;
+		try (RepositoryManager rm = RepositoryManager.getRepositoryManager()) {
+			handles = rm.getHealthSweepCandidates(since, full);
+		} catch (U_Exception e) {
+			throw e;
+		} catch (Exception e) {
+			throw new U_Exception(ERROR.Unexpected,e);
+		}
+		started = since;
+		finished = null;
+		fullValidation = full;
+		lastError = null;
+		stopRequested = false;
+		total.set(handles.size());
+		checked.set(0);
+		unhealthy.set(0);
+		failed.set(0);
+		bytesHashed.set(0);
+		work = new ConcurrentLinkedQueue<Integer>(handles);
+		writeCheckpoint();
+		running = true;
+
+		pool = Executors.newFixedThreadPool(workers, r -> {
+			Thread t = new Thread(r,"HealthSweeper-worker");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		});
+		activeWorkers.set(workers);
+		for (int x=0; x<workers; x++)
+			pool.submit(this::workerLoop);
+		pool.shutdown();
+	}
+
+	/**
+	 * Body of each worker thread.  Takes handles off the work queue until it is empty or a stop
+	 * is requested.  The last worker to finish stores any remaining observations and retires
+	 * the sweep.
+	 */
+	private void workerLoop() {
+		try {
+			Integer handle;
+			while (!stopRequested && (handle=work.poll())!=null) {
+				try (RepositoryManager rm = RepositoryManager.getRepositoryManager()) {
+					VersionsTuple vt = rm.getConsistentLatestVersion(handle);
+					if (!rm.assessHealth(vt, fullValidation, throttleFor(vt.path)))
+						unhealthy.incrementAndGet();
+					checked.incrementAndGet();
+					List<VersionsTuple> batch = null;
+					synchronized (pending) {
+						pending.add(vt);
+						if (pending.size()>=batchSize) {
+							batch = new ArrayList<VersionsTuple>(pending);
+							pending.clear();
+						}
+					}
+					if (batch!=null)
+						rm.putHealthAssessments(batch);
+				} catch (Exception e) {
+					failed.incrementAndGet();
+					lastError = String.format("handle %d: %s",handle,e.getMessage());
+					L.log(L.W,this,"health sweep could not check handle %d: %s",handle,e.getMessage());
+				}
+			}
+		} finally {
+			if (activeWorkers.decrementAndGet()==0)
+				finish();
+		}
+	}
+
+	/**
+	 * Stores whatever observations remain and marks the sweep as finished.
+	 */
+	private void finish() {
+		List<VersionsTuple> batch;
+		synchronized (pending) {
+			batch = new ArrayList<VersionsTuple>(pending);
+			pending.clear();
+		}
+		if (batch.size()>0)
+			try (RepositoryManager rm = RepositoryManager.getRepositoryManager()) {
+				rm.putHealthAssessments(batch);
+			} catch (Exception e) {
+				lastError = "storing final batch: "+e.getMessage();
+				L.log(L.E,this,"health sweep could not store final batch: %s",e.getMessage());
+			}
+		checkpointFile.delete();
+		finished = Instant.now();
+		running = false;
+	}
+
+	/**
+	 * Returns the read pacer for the device holding {@code path}, or null if no limit is configured.
+	 * Devices are identified by the {@code unix:dev} attribute if it is available, and otherwise
+	 * by file store.
+	 */
+	private LongConsumer throttleFor(String path) {
+		if (deviceBytesPerSecond<=0 || path==null)
+			return bytesHashed::addAndGet;
+		Object device;
+		Path p = new File(path).toPath();
+		try {
+			device = Files.getAttribute(p, "unix:dev");
+		} catch (Exception e) {
+			try {
+				device = Files.getFileStore(p).name();
+			} catch (IOException e1) {
+				device = "unknown";
+			}
+		}
+		DeviceThrottle dt = throttles.computeIfAbsent(device, d -> new DeviceThrottle(deviceBytesPerSecond));
+		return bytes -> {
+			bytesHashed.addAndGet(bytes);
+			dt.acquire(bytes);
+		};
+	}
+
+	/**
+	 * Paces reads from one device so that, taken together, all readers stay at or under
+	 * a fixed number of bytes per second.  Each request reserves the next slot of time on the
+	 * device and sleeps until that slot begins.
+	 */
+	private static class DeviceThrottle {
+		private final double nanosPerByte;
+		private long nextFree = System.nanoTime();
+
+		DeviceThrottle(long bytesPerSecond) {
+			nanosPerByte = 1e9/bytesPerSecond;
+		}
+
+		private synchronized long reserve(long bytes) {
+			long now = System.nanoTime();
+			if (nextFree<now)
+				nextFree = now;
+			long wait = nextFree-now;
+			nextFree += (long)(bytes*nanosPerByte);
+			return wait;
+		}
+
+		void acquire(long bytes) {
+			long wait = reserve(bytes);
+			if (wait>0)
+				try {
+					Thread.sleep(wait/1000000, (int)(wait%1000000));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+		}
+	}
+
+	private void writeCheckpoint()
+		throws U_Exception
+	{
+		Properties p = new Properties();
+		p.setProperty("started", started.toString());
+		p.setProperty("fullvalidation", Boolean.toString(fullValidation));
+		File tmp = new File(checkpointFile.getAbsolutePath()+".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			p.store(out, "vlib health sweep checkpoint");
+		} catch (IOException e) {
+			throw new U_Exception(ERROR.IOError,"Writing health sweep checkpoint",e);
+		}
+		try {
+			Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new U_Exception(ERROR.FileRenameFailed,"Writing health sweep checkpoint",e);
+		}
+	}
+
+	private Properties readCheckpoint()
+		throws U_Exception
+	{
+		if (!checkpointFile.isFile())
+			return null;
+		Properties p = new Properties();
+		try (FileInputStream in = new FileInputStream(checkpointFile)) {
+			p.load(in);
+		} catch (IOException e) {
+			throw new U_Exception(ERROR.IOError,"Reading health sweep checkpoint",e);
+		}
+		if (p.getProperty("started")==null)
+			return null;
+		return p;
+	}
+
+	/**
+	 * Creates a report of the current or most recent sweep.
+	 * @param doc The {@code Document} that owns the report nodes which will be created.
+	 * @return The root node of the report, which must be inserted into {@code doc} by the caller.
+	 */
+	public Element statusXml(Document doc) {
+		Element elSweep = doc.createElement("healthsweep");
+		LambdaTwoStrings add = (name,value) -> {
+			Element el = doc.createElement(name);
+			el.appendChild(doc.createTextNode(value));
+			elSweep.appendChild(el);
+		};
+		add.op("running", running?"yes":"no");
+		add.op("fullvalidation", fullValidation?"yes":"no");
+		add.op("started", started==null?"":started.toString());
+		add.op("finished", finished==null?"":finished.toString());
+		add.op("total", Integer.toString(total.get()));
+		add.op("checked", Integer.toString(checked.get()));
+		add.op("unhealthy", Integer.toString(unhealthy.get()));
+		add.op("failed", Integer.toString(failed.get()));
+		add.op("bytesread", Long.toString(bytesHashed.get()));
+		add.op("workers", Integer.toString(workers));
+		add.op("devicebytespersecond", Long.toString(deviceBytesPerSecond));
+		add.op("lasterror", lastError==null?"":lastError);
+		return elSweep;
+	}
+
+}
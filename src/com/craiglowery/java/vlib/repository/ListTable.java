@@ -0,0 +1,83 @@
+package com.craiglowery.java.vlib.repository;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import com.craiglowery.java.vlib.common.U_Exception;
+import com.craiglowery.java.vlib.common.U_Exception.ERROR;
+import com.craiglowery.java.vlib.tuple.SelectionTransformer;
+import com.craiglowery.java.vlib.tuple.SortDirective;
+import com.craiglowery.java.vlib.tuple.TableAdapter;
+import com.craiglowery.java.vlib.tuple.Tuple;
+import com.craiglowery.java.vlib.tuple.filterexp.FilterExpressionException;
+import com.craiglowery.java.vlib.tuple.filterexp.PostgresqlExpressionGenerator;
+import com.craiglowery.java.vlib.tuple.filterexp.TupleExpressionFactory;
+
+/**
+ * A table kept in a list in memory, for unit tests that need a table but no database.  Rows
+ * are selected in a fixed order.  Filters are not evaluated unless {@link #matches} is
+ * overridden, and it is given only the filter's literal values.
+ *
+ */
+class ListTable<T extends Tuple> extends TableAdapter<T> {
+	final List<T> rows = new ArrayList<T>();
+	private final Comparator<T> order;
+
+	ListTable(Class<T> tupleClass, Comparator<T> order) throws U_Exception {
+		super(tupleClass, null);
+		this.order = order;
+	}
+
+	/**
+	 * Decides whether a row satisfies a filter.
+	 * @param t The row.
+	 * @param literals The literal values in the filter, in the order they appear.
+	 * @return True, unless overridden.
+	 */
+	boolean matches(T t, List<Object> literals) {
+		return true;
+	}
+
+	@Override
+	public List<T> select(TupleExpressionFactory.Node filter, SortDirective[] sort, int limit,
+			SelectionTransformer<T> xform) throws U_Exception
+	{
+		List<Object> literals = new ArrayList<Object>();
+		if (filter!=null && filter!=EF.TRUE)
+			try {
+				PostgresqlExpressionGenerator.expand(filter, literals);
+			} catch (FilterExpressionException e) {
+				throw new U_Exception(ERROR.ExpressionError,e);
+			}
+		List<T> selected = new ArrayList<T>();
+		for (T t : rows)
+			if (matches(t, literals))
+				selected.add(t);
+		selected.sort(order);
+		if (limit>0 && selected.size()>limit)
+			selected = selected.subList(0, limit);
+		if (xform==null)
+			return selected;
+		for (T t : selected)
+			if (!xform.action(t))
+				break;
+		return null;
+	}
+
+	@Override public int delete(TupleExpressionFactory.Node filter) { return 0; }
+	@Override public boolean delete(T t) { return rows.remove(t); }
+	@Override public boolean update(T t) { return rows.contains(t); }
+	@Override public void insert(T t) { rows.add(t); }
+	@Override public void insertIfNew(T t) { if (!rows.contains(t)) rows.add(t); }
+	@Override public boolean[] insertAll(List<T> tuples) { return null; }
+	@Override public boolean[] insertIfNewAll(List<T> tuples) { return null; }
+	@Override public boolean[] updateAll(List<T> tuples) { return null; }
+	@Override public boolean[] deleteAll(List<T> tuples) { return null; }
+}
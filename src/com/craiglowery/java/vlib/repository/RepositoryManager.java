@@ -12,14 +12,32 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.security.MessageDigest;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 
 import java.util.TreeSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -79,12 +97,39 @@ public class RepositoryManager implements AutoCloseable {
 	/** The next serial number to be given to a newly constructed instance. **/
 	private static Integer serialNumberCounter = 0;   
 	
-	/** The pool of instances which are reused before new ones are constructed. **/
-	private static java.util.ArrayList<RepositoryManager> pool = new java.util.ArrayList<RepositoryManager>();
+	/** Idle instances which are reused before new ones are constructed.  The most recently
+	 * returned instance is at the head, so that warm connections are reused first and the
+	 * cold ones at the tail age out and are reaped. **/
+	private static ConcurrentLinkedDeque<RepositoryManager> idle = new ConcurrentLinkedDeque<RepositoryManager>();
+	
+	/** Every live instance, idle or in use.  Only used for reporting. **/
+	private static Set<RepositoryManager> members = ConcurrentHashMap.newKeySet();
+	
+	/** Bounds the number of instances that can be checked out at one time. **/
+	private static Semaphore permits = null;
+	
+	/** Maximum number of instances that can be in use at once. **/
+	private static int poolMaxSize;
+	
+	/** How long a caller will wait for an instance when the pool is exhausted. **/
+	private static int poolAcquireTimeoutSeconds;
+	
+	/** Background thread that retires expired and invalid idle instances. **/
+	private static ScheduledExecutorService reaper = null;
+	
+	/** Pool metrics **/
+	private static final AtomicLong metricAcquisitions = new AtomicLong();
+	private static final AtomicLong metricAcquireWaitNanos = new AtomicLong();
+	private static final AtomicLong metricMaxAcquireWaitNanos = new AtomicLong();
+	private static final AtomicLong metricAcquireTimeouts = new AtomicLong();
+	private static final AtomicLong metricCreated = new AtomicLong();
+	private static final AtomicLong metricReaped = new AtomicLong();
 	
 	/** Frequently used Configuration values from the configuration file. **/
 	private static String dirRepoLib;
 	private static String dirRepoTemp;
+	private static boolean importLinkSameFileSystem;
+	private static boolean contentAddressed;
 	private static boolean classInitialized=false;
 	private static U_Exception initializationError=null;
 	private static String dataBaseName;
@@ -105,7 +150,9 @@ public class RepositoryManager implements AutoCloseable {
 	 * 
 	 * @throws U_Exception
 	 */
-	private static void initializeClass() throws U_Exception {
+	private static synchronized void initializeClass() throws U_Exception {
+		if (classInitialized)
+			return;
 		dirRepoLib = Config.getString(ConfigurationKey.SUBDIR_REPO_LIB);
 		if (dirRepoLib.length()==0)
 			throw new U_Exception(U_Exception.ERROR.ConfigurationError,"SUBDIR_REPO_LIB is not configured");
@@ -121,16 +168,37 @@ public class RepositoryManager implements AutoCloseable {
 		if (hostName.length()==0)
 			throw new U_Exception(U_Exception.ERROR.ConfigurationError,"HOSTNAME is not configured.");
 
+		importLinkSameFileSystem = Config.getBoolean(ConfigurationKey.IMPORT_LINK_SAME_FILESYSTEM);
+		contentAddressed = Config.getBoolean(ConfigurationKey.LIBRARY_CONTENT_ADDRESSED);
+
+		poolMaxSize = Config.getInt(ConfigurationKey.RM_POOL_MAX_SIZE);
+		if (poolMaxSize<1)
+			throw new U_Exception(U_Exception.ERROR.ConfigurationError,"RM_POOL_MAX_SIZE must be at least 1");
+		poolAcquireTimeoutSeconds = Config.getInt(ConfigurationKey.RM_POOL_ACQUIRE_TIMEOUT_SECONDS);
+		int reaperInterval = Config.getInt(ConfigurationKey.RM_POOL_REAPER_INTERVAL_SECONDS);
+		if (reaperInterval<1)
+			throw new U_Exception(U_Exception.ERROR.ConfigurationError,"RM_POOL_REAPER_INTERVAL_SECONDS must be at least 1");
+		permits = new Semaphore(poolMaxSize,true);
+		
+		reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r,"RepositoryManager-reaper");
+			t.setDaemon(true);
+			return t;
+		});
+		reaper.scheduleWithFixedDelay(RepositoryManager::reapIdle, reaperInterval, reaperInterval, TimeUnit.SECONDS);
 		
 		classInitialized=true;
 	}
 	
 	/**
-	 * Looks in the pool for an unused repository manager. If it finds one, then
-	 * it reuses it, unless it has expired.
+	 * Takes an unused repository manager from the pool, or constructs a new one if there
+	 * are none idle.  If {@code RM_POOL_MAX_SIZE} instances are already in use, the caller
+	 * blocks for up to {@code RM_POOL_ACQUIRE_TIMEOUT_SECONDS} waiting for one to be returned.
+	 * Expiry and validity checking are done by a background reaper, so this path only
+	 * takes an idle instance off the deque.
 	 * @return An instance of {@code RepositoryManager} ready for use by a client.
 	 */
-	public static synchronized RepositoryManager getRepositoryManager()
+	public static RepositoryManager getRepositoryManager()
 		throws U_Exception
 	{
 			if (initializationError!=null)
@@ -140,44 +208,97 @@ public class RepositoryManager implements AutoCloseable {
 				
 			if (U_Exception.logger==null)
 				U_Exception.ConfigureLogger();
-			// 1. Scan the pool closing and nulling out expired entries, and looking for a not-in-use one
-			java.util.LinkedList<RepositoryManager> expiry = new LinkedList<RepositoryManager>();
-			RepositoryManager suitable = null;
-			for (RepositoryManager rm : pool) {
-				if (!rm.inuse) {
-					Instant now = Instant.now();
-					if (rm.expires.isBefore(now)) {
-						// The RM has expired - add it to the expiry list
-						expiry.add(rm);
-					} else {
-						// The RM has not expired and is not in use.  Double check that it is valid.
-						if (rm.connection==null || !rm.connection.isValid())
-							expiry.add(rm);
-						else {
-							if (suitable==null) {
-								// This is the first suitable, non-expired RM
-								suitable=rm;
-							}
-						}
-					}
+			
+			// 1. Obtain a permit, waiting if the pool is exhausted
+			long started = System.nanoTime();
+			try {
+				if (!permits.tryAcquire(poolAcquireTimeoutSeconds, TimeUnit.SECONDS)) {
+					metricAcquireTimeouts.incrementAndGet();
+					throw new U_Exception(U_Exception.ERROR.Timeout,
+							String.format("No RepositoryManager became available within %d seconds",poolAcquireTimeoutSeconds));
 				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new U_Exception(U_Exception.ERROR.Timeout,"Interrupted while waiting for a RepositoryManager",e);
 			}
-		
-			// If we found any expired RM's, we need to close them out and remove them from the pool
-			for (RepositoryManager rm : expiry) {
-				pool.remove(rm);
-				rm.dispose();
-			}
-			// If we found no suitable rm, we must construct one and place it in the pool
-			if (suitable==null) {
-				suitable = new RepositoryManager();
-				pool.add(suitable);
+			long waited = System.nanoTime()-started;
+			metricAcquisitions.incrementAndGet();
+			metricAcquireWaitNanos.addAndGet(waited);
+			metricMaxAcquireWaitNanos.accumulateAndGet(waited, Math::max);
+			
+			// 2. Take the most recently used idle instance, discarding any that expired since the last reaping
+			RepositoryManager suitable = null;
+			try {
+				Instant now = Instant.now();
+				while ((suitable = idle.pollFirst())!=null) {
+					if (suitable.expires.isAfter(now))
+						break;
+					suitable.dispose();
+					metricReaped.incrementAndGet();
+				}
+				// If we found no suitable rm, we must construct one
+				if (suitable==null) {
+					suitable = new RepositoryManager();
+					members.add(suitable);
+					metricCreated.incrementAndGet();
+				}
+			} catch (U_Exception e) {
+				permits.release();
+				throw e;
 			}
 			// Mark it as in-use
 			suitable.inuse = true;
 			return suitable;
 	}
 	
+	/**
+	 * Run periodically by the reaper thread.  Removes idle instances that have expired or
+	 * whose connections are no longer valid, and disposes of them.  An instance is only
+	 * examined after it has been removed from the idle deque, so a client can never be
+	 * handed an instance the reaper is working on.
+	 */
+	private static void reapIdle() {
+		try {
+			Instant now = Instant.now();
+			reapIdle(idle,
+					(rm) -> {
+						if (!rm.expires.isAfter(now))
+							return false;
+						try {
+							return rm.connection!=null && rm.connection.isValid();
+						} catch (Exception e) {
+							return false;
+						}
+					},
+					(rm) -> {
+						rm.dispose();
+						metricReaped.incrementAndGet();
+					});
+		} catch (Throwable t) {
+			// Never let an exception kill the scheduled task
+			L.log(L.E,RepositoryManager.class,"unexpected exception while reaping idle instances",t);
+		}
+	}
+	
+	/**
+	 * Makes one pass over the instances idle when it starts.  Each is taken off the deque,
+	 * tested, and either put back at the tail or disposed of.  The pass works from a copy of
+	 * the deque, since its iterator would also visit the instances put back, and never end.
+	 * @param idle The idle instances.
+	 * @param keep Decides whether an instance is still fit for use.
+	 * @param dispose Disposes of an instance that is not.
+	 */
+	static <T> void reapIdle(Deque<T> idle, Predicate<T> keep, Consumer<T> dispose) {
+		for (T rm : new ArrayList<T>(idle)) {
+			if (!idle.removeFirstOccurrence(rm))
+				continue;   // A client got to it first
+			if (keep.test(rm))
+				idle.offerLast(rm);
+			else
+				dispose.accept(rm);
+		}
+	}
+	
 	/** Returns the next serial number to be assigned to an instance.
 	 * @return The next serial number.
 	 */
@@ -216,11 +337,36 @@ public class RepositoryManager implements AutoCloseable {
 		rootadd.op("lifetimeseconds",Integer.toString(RM_LIFETIME_SECONDS));
 		rootadd.op("serialcounter",Integer.toString(serialNumberCounter));
 		
+		Element elMetrics = doc.createElement("poolmetrics");
+		LambdaTwoStrings metricadd = (name,value) -> {
+			Element el = doc.createElement(name);
+			el.appendChild(doc.createTextNode(value));
+			elMetrics.appendChild(el);
+		};
+		long acquisitions = metricAcquisitions.get();
+		metricadd.op("maxsize", Integer.toString(poolMaxSize));
+		metricadd.op("inuse", Integer.toString(permits==null?0:poolMaxSize-permits.availablePermits()));
+		metricadd.op("idle", Integer.toString(idle.size()));
+		metricadd.op("waiting", Integer.toString(permits==null?0:permits.getQueueLength()));
+		metricadd.op("acquisitions", Long.toString(acquisitions));
+		metricadd.op("acquiretimeouts", Long.toString(metricAcquireTimeouts.get()));
+		metricadd.op("meanacquirewaitmicros", Long.toString(acquisitions==0?0:metricAcquireWaitNanos.get()/acquisitions/1000));
+		metricadd.op("maxacquirewaitmicros", Long.toString(metricMaxAcquireWaitNanos.get()/1000));
+		metricadd.op("created", Long.toString(metricCreated.get()));
+		metricadd.op("reaped", Long.toString(metricReaped.get()));
+		metricadd.op("statementcachehits", Long.toString(PostgresqlConnection.totalStatementCacheHits()));
+		metricadd.op("statementcachemisses", Long.toString(PostgresqlConnection.totalStatementCacheMisses()));
+		elRMStatus.appendChild(elMetrics);
+		elRMStatus.appendChild(TagMembershipIndex.getIndex().statusXml(doc));
+		elRMStatus.appendChild(CatalogSnapshot.getCatalog().statusXml(doc));
+		elRMStatus.appendChild(EntityCache.getCache().statusXml(doc));
+		elRMStatus.appendChild(FingerprintIndex.getIndex().statusXml(doc));
+		
 		Element elPool = doc.createElement("pool");
-		elPool.setAttribute("size", Integer.toString(pool.size()));
+		elPool.setAttribute("size", Integer.toString(members.size()));
 		
 		int seq = 0;
-		for (RepositoryManager rm : pool) {
+		for (RepositoryManager rm : members) {
 			Element elRM = doc.createElement("repositorymanager");
 			
 			LambdaTwoStrings rmadd = (name,value) -> {
@@ -235,11 +381,18 @@ public class RepositoryManager implements AutoCloseable {
 			long ttl = rm.expires.toEpochMilli() - Instant.now().toEpochMilli();
 			rmadd.op("timetolive", Long.toString(ttl/1000));
 			rmadd.op("inuse", rm.inuse?"yes":"no");
+			// Only probe idle instances; an in-use connection belongs to another thread
 			boolean valid=false;
-			try {
-				valid=rm.connection!=null && rm.connection.isValid();
-			} catch (Exception e) {	}
-			rmadd.op("isvalid", valid?"yes":"no");
+			if (!rm.inuse)
+				try {
+					valid=rm.connection!=null && rm.connection.isValid();
+				} catch (Exception e) {	}
+			rmadd.op("isvalid", rm.inuse?"inuse":valid?"yes":"no");
+			if (rm.connection instanceof PostgresqlConnection) {
+				PostgresqlConnection pc = (PostgresqlConnection)rm.connection;
+				rmadd.op("statementcachehits", Long.toString(pc.statementCacheHits()));
+				rmadd.op("statementcachemisses", Long.toString(pc.statementCacheMisses()));
+			}
 			
 			elPool.appendChild(elRM);
 		}
@@ -278,10 +431,21 @@ public class RepositoryManager implements AutoCloseable {
 	
 	/** True if this instance is currently in use (somewhere
 	 * between {@code getRepositoryManager()} and {@code close()}. **/
-	private boolean inuse;
+	private volatile boolean inuse;
 	
 	/** When this instance is considered stale and should be retired **/
-	private Instant expires;
+	private volatile Instant expires;
+	
+	/** Tag index changes made in the open transaction, applied when it commits **/
+	private final List<Runnable> pendingTagIndexChanges = new ArrayList<Runnable>();
+
+	/** Objects whose current version the open transaction changed, refreshed in the catalog snapshot when it commits **/
+	private final Set<Integer> pendingCatalogChanges = new HashSet<Integer>();
+
+	/** Entity cache invalidations made in the open transaction, made again when it commits **/
+	private final List<Runnable> pendingEntityChanges = new ArrayList<Runnable>();
+	/** Changes to the fingerprint index held until the current transaction commits **/
+	private final List<Runnable> pendingFingerprintChanges = new ArrayList<Runnable>();
 
 	
 	/**
@@ -326,24 +490,39 @@ public class RepositoryManager implements AutoCloseable {
 	 * RM's for other clients.
 	 */
 	public void close() throws Exception {
-		if (!inuse) 
+		if (!inuse) {
 			L.log(L.E,this,"call to close but already marked unused");
+			return;
+		}
 
-		if (connection.transactionInProgress()) {
-			connection.rollbackTransaction();
-			L.log(L.E,this,"ResourceManager was closed with open transaction");
+		try {
+			if (connection.transactionInProgress()) {
+				rollbackTransaction();
+				L.log(L.E,this,"ResourceManager was closed with open transaction");
+			}
+		} catch (Exception e) {
+			// The connection is in an unknown state, so don't return it to the pool
+			L.log(L.E,this,"unable to roll back open transaction on close",e);
+			inuse=false;
+			dispose();
+			permits.release();
+			return;
 		}
 		inuse=false;
+		idle.offerFirst(this);
+		permits.release();
 	}
 	
 	/**
 	 * Closes the associated database connection.  Used to REALLY
-	 * shut down this RepositoryManager
+	 * shut down this RepositoryManager.  The instance must not be in
+	 * the idle deque or checked out when this is called.
 	 */
 	private void dispose() {
+		members.remove(this);
 		try {
-			close();
-			connection.close();
+			if (connection!=null)
+				connection.close();
 		} catch (Exception e) {
 			L.log(L.E,this,"unexpected exception thrown during proxy close",e);
 			// Ignore
@@ -401,6 +580,95 @@ public class RepositoryManager implements AutoCloseable {
 		return newFileLocation;
 	}
 
+	/** Serializes the sharing and releasing of each content-addressed file; see {@link #contentLock(String)} **/
+	private static final Object[] contentLocks = new Object[64];
+	static {
+		for (int i=0; i<contentLocks.length; i++)
+			contentLocks[i] = new Object();
+	}
+
+	/**
+	 * Returns the lock that must be held while deciding whether a content file is in use and
+	 * acting on that decision: from checking that a shared file exists until the version using it
+	 * is committed, and from counting a file's users until it is moved to the trash.  Otherwise an
+	 * import could share a file just as the last version using it is trashed.
+	 * @param path The path of the content file.
+	 * @return The lock object.
+	 */
+	private static Object contentLock(String path) {
+		return contentLocks[(path.hashCode() & 0x7fffffff) % contentLocks.length];
+	}
+
+	/**
+	 * Returns the path at which content is stored when {@code LIBRARY_CONTENT_ADDRESSED} is set.
+	 * It is {@code cas/xx/yy/<sha1sum>-<length>} beneath lib/, where {@code xx} and {@code yy} are the
+	 * first four hex digits of the checksum, so identical content always has the same path and the
+	 * files are spread evenly across 65536 subdirectories.
+	 * 
+	 * @param sha1sum The checksum of the content.
+	 * @param length The length of the content.
+	 * @return The File object having the absolute path for the content.
+	 */
+	private File contentAddressedLocation(String sha1sum, long length) {
+		return new File(dirRepoLib+"/cas/"+sha1sum.substring(0,2)+"/"+sha1sum.substring(2,4)+"/"+sha1sum+"-"+length);
+	}
+
+	/**
+	 * Moves a content file to the trash if no version refers to it any longer.  This must be called
+	 * after the transaction that removed a reference has committed.  Every trashed version that
+	 * refers to the file is updated to refer to it in the trash; that update is best effort.<p>
+	 * 
+	 * Every content file is released this way, whatever the current setting of
+	 * {@code LIBRARY_CONTENT_ADDRESSED}, since files stored while it was set may be shared.
+	 * 
+	 * @param path The path of the content file.
+	 * @return The path of the file in the trash, or null if the file is still in use.
+	 * @throws U_Exception
+	 */
+	private String releaseContent(String path)
+		throws U_Exception
+	{
+		return releaseContent(path, versionsTable, trashVersionsTable, Util::moveToTrash);
+	}
+
+	/** Moves a file to the trash, returning its path there **/
+	interface Trash {
+		String move(File f) throws U_Exception;
+	}
+
+	/**
+	 * Does the work of {@link #releaseContent(String)} against the given tables.
+	 * @param path The path of the content file.
+	 * @param versions The {@code versions} table.
+	 * @param trashVersions The {@code trashversions} table.
+	 * @param trash Moves the file to the trash.
+	 * @return The path of the file in the trash, or null if the file is still in use.
+	 * @throws U_Exception
+	 */
+	static String releaseContent(String path, TableAdapter<VersionsTuple> versions,
+			TableAdapter<VersionsTuple> trashVersions, Trash trash)
+		throws U_Exception
+	{
+		synchronized (contentLock(path)) {
+			try {
+				if (!versions.select(versions.EF.comp("@path", "=", path), 1).isEmpty())
+					return null;
+				String trashName = trash.move(new File(path));
+				try {
+					for (VersionsTuple tvt : trashVersions.select(trashVersions.EF.comp("@path", "=", path))) {
+						tvt.path=(trashName);
+						trashVersions.update(tvt);
+					}
+				} catch (U_Exception e) {
+					L.log(L.I,trashVersions,"Unable to update path of trashed object '%s'",trashName);
+				}
+				return trashName;
+			} catch (FilterExpressionException e) {
+				throw new U_Exception(ERROR.ExpressionError,e);
+			}
+		}
+	}
+
 	
 	/**
 	 * Creates a new object in the repository with content copied from local file <code>filename</code>.
@@ -422,7 +690,63 @@ public class RepositoryManager implements AutoCloseable {
 			throws U_Exception 
 	{
 
-		return importObjectContent(0,sourceFilename,suggestedFilename,title,duplicateCheck);
+		return importObjectContent(0,sourceFilename,suggestedFilename,title,duplicateCheck,false,null,null);
+	}
+	
+	/**
+	 * Creates a new object in the repository, optionally adopting the local file rather than
+	 * copying it.  See {@link #updateObject(int, String, String, String, boolean, boolean)}
+	 * for a description of move-in mode.
+	 * 
+	 * @param sourceFilename   The local file from which content will be imported
+	 * @param suggestedFilename  A suggested filename to be used for this file in the repository.
+	 * @param title The title for this content (version). If null or empty, then a title will
+	 * 				be derived from {@code suggestedFilename}.
+	 * @param duplicateCheck  If true, then the operation will fail if there is an object in the repository
+	 *                        with the same length and checksum.
+	 * @param moveIn If true, {@code sourceFilename} is renamed into the library instead of being copied.
+	 * @return The handle of the newly created object.
+	 * @throws U_Exception
+	 */
+	public int createObject(
+			String sourceFilename,
+			String suggestedFilename,
+			String title,
+			boolean duplicateCheck,
+			boolean moveIn)
+			throws U_Exception 
+	{
+
+		return importObjectContent(0,sourceFilename,suggestedFilename,title,duplicateCheck,moveIn,null,null);
+	}
+	
+	/**
+	 * Creates a new object in the repository, optionally adopting the local file rather than
+	 * copying it, from content whose checksum the caller has already computed.  See
+	 * {@link #updateObject(int, String, String, String, boolean, boolean, String)}.
+	 * 
+	 * @param sourceFilename   The local file from which content will be imported
+	 * @param suggestedFilename  A suggested filename to be used for this file in the repository.
+	 * @param title The title for this content (version). If null or empty, then a title will
+	 * 				be derived from {@code suggestedFilename}.
+	 * @param duplicateCheck  If true, then the operation will fail if there is an object in the repository
+	 *                        with the same length and checksum.
+	 * @param moveIn If true, {@code sourceFilename} is renamed into the library instead of being copied.
+	 * @param sha1sum The checksum of the content, or null if it is not known.
+	 * @return The handle of the newly created object.
+	 * @throws U_Exception
+	 */
+	public int createObject(
+			String sourceFilename,
+			String suggestedFilename,
+			String title,
+			boolean duplicateCheck,
+			boolean moveIn,
+			String sha1sum)
+			throws U_Exception 
+	{
+
+		return importObjectContent(0,sourceFilename,suggestedFilename,title,duplicateCheck,moveIn,sha1sum,null);
 	}
 		
 
@@ -451,9 +775,128 @@ public class RepositoryManager implements AutoCloseable {
 			boolean duplicateCheck )
 		throws U_Exception 
 	{
-		return importObjectContent(handle, sourceFilename, suggestedFilename, title, duplicateCheck);
+		return importObjectContent(handle, sourceFilename, suggestedFilename, title, duplicateCheck, false, null, null);
 			
 	}
+	
+	/**
+	 * Updates the object with new content from local file <code>filename</code>, optionally
+	 * adopting the file rather than copying it.<p>
+	 * 
+	 * In move-in mode, a source file that is on the same file system as the library is not
+	 * copied.  Its checksum and inode are taken in place, and it is renamed into its permanent
+	 * location as the last step before the new version is committed, exactly as a copied
+	 * temporary file would be.  If the import fails the source file is left where it was.  If it
+	 * succeeds, the source path no longer exists.  A source on a different file system is imported
+	 * by copying as usual.
+	 * 
+	 * @param handle     The handle of an existing object.
+	 * @param sourceFilename   The local file from which content will be imported
+	 * @param suggestedFilename  A suggested filename to be used for this file in the repository.
+	 * @param title The title for this content (version). If null or empty, then a title will
+	 * 				be derived from {@code suggestedFilename}.
+	 * @param duplicateCheck  If true, then the operation will fail if there is an object in the repository
+	 *                        with the same length and checksum.
+	 * @param moveIn If true, {@code sourceFilename} is renamed into the library instead of being copied.
+	 * @return The handle of the object (same as handle passed in).
+	 */
+	public int updateObject(
+			int handle, 
+			String sourceFilename, 
+			String suggestedFilename, 
+			String title, 
+			boolean duplicateCheck,
+			boolean moveIn)
+		throws U_Exception 
+	{
+		return importObjectContent(handle, sourceFilename, suggestedFilename, title, duplicateCheck, moveIn, null, null);
+	}
+	
+	/**
+	 * Updates the object with new content from local file <code>filename</code>, optionally
+	 * adopting the file rather than copying it, when the caller has already computed the
+	 * content's checksum.<p>
+	 * 
+	 * If the file is adopted or linked rather than copied, the checksum given is used and the
+	 * file is not read again to compute it.  It is the caller's responsibility that the checksum
+	 * is that of the file's content.
+	 * 
+	 * @param handle     The handle of an existing object.
+	 * @param sourceFilename   The local file from which content will be imported
+	 * @param suggestedFilename  A suggested filename to be used for this file in the repository.
+	 * @param title The title for this content (version). If null or empty, then a title will
+	 * 				be derived from {@code suggestedFilename}.
+	 * @param duplicateCheck  If true, then the operation will fail if there is an object in the repository
+	 *                        with the same length and checksum.
+	 * @param moveIn If true, {@code sourceFilename} is renamed into the library instead of being copied.
+	 * @param sha1sum The checksum of the content, or null if it is not known.
+	 * @return The handle of the object (same as handle passed in).
+	 */
+	public int updateObject(
+			int handle, 
+			String sourceFilename, 
+			String suggestedFilename, 
+			String title, 
+			boolean duplicateCheck,
+			boolean moveIn,
+			String sha1sum)
+		throws U_Exception 
+	{
+		return importObjectContent(handle, sourceFilename, suggestedFilename, title, duplicateCheck, moveIn, sha1sum, null);
+	}
+
+	/**
+	 * Receives news of an import's progress from {@link #importObject}.  It is called on the
+	 * importing thread, and should return promptly.
+	 */
+	public interface ImportProgress {
+		/**
+		 * Called as the import enters each of its phases, in order: {@code copying} (only if the
+		 * content is copied), {@code hashing} (only if the checksum is computed from the file),
+		 * {@code inspecting}, {@code checking} (only if duplicates are checked for) and
+		 * {@code committing}.
+		 * @param phase The phase.
+		 */
+		void phase(String phase);
+		
+		/**
+		 * Called as content is read to compute its checksum.
+		 * @param bytes The number of bytes just read.
+		 */
+		void hashed(long bytes);
+	}
+	
+	/**
+	 * Imports content as a new object, as {@link #createObject(String, String, String, boolean, boolean, String)}
+	 * does, or as a new version of an existing one, as {@link #updateObject(int, String, String, String, boolean, boolean, String)}
+	 * does, reporting its progress as it goes.
+	 * 
+	 * @param handle     The handle of an existing object, or 0 to create a new one.
+	 * @param sourceFilename   The local file from which content will be imported
+	 * @param suggestedFilename  A suggested filename to be used for this file in the repository.
+	 * @param title The title for this content (version). If null or empty, then a title will
+	 * 				be derived from {@code suggestedFilename}.
+	 * @param duplicateCheck  If true, then the operation will fail if there is an object in the repository
+	 *                        with the same length and checksum.
+	 * @param moveIn If true, {@code sourceFilename} is renamed into the library instead of being copied.
+	 * @param sha1sum The checksum of the content, or null if it is not known.
+	 * @param progress Receives the import's progress, or null.
+	 * @return The handle of the object.
+	 * @throws U_Exception
+	 */
+	public int importObject(
+			int handle, 
+			String sourceFilename, 
+			String suggestedFilename, 
+			String title, 
+			boolean duplicateCheck,
+			boolean moveIn,
+			String sha1sum,
+			ImportProgress progress)
+		throws U_Exception 
+	{
+		return importObjectContent(handle, sourceFilename, suggestedFilename, title, duplicateCheck, moveIn, sha1sum, progress);
+	}
 
 	/**
 	 * Updates a tuple in the Versions table.
@@ -462,6 +905,7 @@ public class RepositoryManager implements AutoCloseable {
 	 */
 	public void putVersion(VersionsTuple vt) throws U_Exception {
 		versionsTable.update(vt);
+		catalogChange(vt.handle);
 	}
 	
 	/**
@@ -480,15 +924,21 @@ public class RepositoryManager implements AutoCloseable {
 	 * @param duplicateCheck  If true, then the operation will fail if there is an object in the repository
 	 *                        with the same length and checksum.
 	 *                        
-	 * @param trial  If {@code true}, then the function runs normally except nothing is actually imported.
-	 *               Typically used to test the import first to see if it will fail.
+	 * @param moveIn If {@code true} and the source is on the library's file system, the source file
+	 *               itself is renamed into the library rather than copied.
+	 * @param knownSha1sum The checksum of the source's content if the caller has computed it, or null.
+	 *               It is used in place of reading a linked or adopted file again.
+	 * @param progress Receives the import's progress, or null.
 	 */
 	private int importObjectContent(
 			int handle,
 			String sourceFilename,
 			String suggestedFilename,
 			String title,
-			boolean duplicateCheck)
+			boolean duplicateCheck,
+			boolean moveIn,
+			String knownSha1sum,
+			ImportProgress progress)
 		throws U_Exception 
 	{
 		//Sanitize parameters
@@ -505,85 +955,160 @@ public class RepositoryManager implements AutoCloseable {
 			throw new U_Exception(U_Exception.ERROR.NoSuchFile,
 					String.format("'%s' does not exist/is not a normal file.",sourceFilename));
 		
-		//Try to open the file - this try block makes sure the input file gets closed
-		try (java.io.FileInputStream in = new java.io.FileInputStream(copiedFrom)){		
-		    
-			//The input file was successfully opened.  
-			
-			//Now, follow closely, because here is what we are going to do next:
-			//  1. Create a temporary file on the same filesystem as the repository files are stored
-			//  2. Copy the sourcefile to this temporary file
-			//  3. (deprecated - moved to external prog for perf.) Compute the sha1sum as we are copying
-			//  4. If successful, we will link the temporary file into its permanent directory
-			//  5. Unlink it from the temporary directory
-			
-			java.io.File tmpDir = new java.io.File(dirRepoTemp);
-			
-			//Get a unique temporary file name in VLIB_TMP directory
-			java.io.File newContentFileInTemp;
+		//Now, follow closely, because here is what we are going to do next:
+		//  1. Create a temporary file on the same filesystem as the repository files are stored
+		//  2. If the source is already on that filesystem and IMPORT_LINK_SAME_FILESYSTEM is set,
+		//     hard link it to the temporary file.  Otherwise copy the sourcefile to this temporary file
+		//  3. Compute the sha1sum as we are copying (unless configured to use the external program)
+		//  4. If successful, we will link the temporary file into its permanent directory
+		//  5. Unlink it from the temporary directory
+		//
+		//In move-in mode steps 1, 2 and 5 are skipped and the source file plays the part of the
+		//temporary file, so on failure it is simply left where it is.
+		
+		//Content of a length no version has cannot be a duplicate.  Content whose checksum the
+		//caller knows is checked now, before anything is copied or read.
+		if (duplicateCheck) {
+			FingerprintIndex index = fingerprintIndex();
+			if (index!=null && !index.mayContainLength(copiedFrom.length()))
+				duplicateCheck = false;
+			else if (knownSha1sum!=null) {
+				String sha1sum;
+				try {
+					sha1sum = Util.validateChecksum(knownSha1sum);
+				} catch (Exception e) {
+					throw new U_Exception(U_Exception.ERROR.BadParameter,"Invalid checksum: "+knownSha1sum);
+				}
+				checkForDuplicate(sha1sum, copiedFrom.length(), sourceFilename);
+				duplicateCheck = false;
+			}
+		}
+		
+		java.io.File tmpDir = new java.io.File(dirRepoTemp);
+		
+		final boolean adopt = moveIn && Util.sameFileStore(copiedFrom, tmpDir);
+		if (moveIn && !adopt)
+			L.log(L.W,this,"'%s' is not on the library file system and will be copied",sourceFilename);
+		
+		//Get a unique temporary file name in VLIB_TMP directory
+		java.io.File newContentFileInTemp;
+		if (adopt) {
+			newContentFileInTemp = copiedFrom;
+		} else {
 			try {
 				newContentFileInTemp = java.io.File.createTempFile("vrm_", ".tmp", tmpDir);
 			} catch (Exception e) {
 				throw new U_Exception(U_Exception.ERROR.FileError,
 						"Could not create temporary file",e);
 			}
-			
-			//Open the temporary file for writing
-			try (java.io.FileOutputStream out= new java.io.FileOutputStream(newContentFileInTemp)){
-				
-				//Perform a copy from the source file to the temp file
-				final int BUFFER_SIZE = 256*1024*1024;
-				byte[] data = new byte[BUFFER_SIZE];
-				int read=0;
+		}
+		
+		try {
+			//Link or copy from the source file to the temp file.  No content buffer larger than
+			//the copy engine's fixed-size one is ever allocated.
+			MessageDigest md = null;
+			boolean linked = adopt;
+			if (!linked && importLinkSameFileSystem && Util.sameFileStore(copiedFrom, tmpDir)) {
 				try {
-					while ((read = in.read(data)) != -1) {
-						out.write(data, 0, read);
-						// If we were computing the sha1sum, we'd add to the digest here
-					}
-					in.close();  //We force a close here, even though the try block will do it later
-					out.close(); //This is so we can further manipulate the out file in a closed state
-				} catch (IOException ioe) {
-					throw new U_Exception(U_Exception.ERROR.IOError,"While copying from source file",ioe);
+					Util.linkFile(copiedFrom, newContentFileInTemp);
+					linked = true;
+				} catch (IOException e) {
+					L.log(L.W,this,"Could not link '%s' into the repository, copying instead: %s",
+							sourceFilename,e.getMessage());
 				}
-				
-				//Get the sha1sum of the file we just copied
-				String sha1sum = null;
+			}
+			if (!linked) {
+				md = Util.isChecksumInProcess() ? Util.newChecksumDigest() : null;
+				if (progress!=null)
+					progress.phase("copying");
 				try {
-					sha1sum = Util.computeChecksum(newContentFileInTemp.getAbsolutePath());
-				} catch (Exception e) {
-					throw new U_Exception(U_Exception.ERROR.EncryptionError,"Computing checksum",e);
+					Util.copyFileContent(copiedFrom, newContentFileInTemp, md,
+							md==null || progress==null ? null : progress::hashed);
+				} catch (FileNotFoundException | java.nio.file.NoSuchFileException e) {
+					throw new U_Exception(U_Exception.ERROR.NoSuchFile,e);
+				} catch (IOException ioe) {
+					throw new U_Exception(U_Exception.ERROR.IOError,"While copying from source file",ioe);
 				}
-				//Get the inode number
-				Util.StatBuf statBuf = null;
-				try {
-					statBuf = Util.stat(newContentFileInTemp.getAbsolutePath());
-				} catch (Exception e) {
-					throw new U_Exception(U_Exception.ERROR.IOError,"Querying for inode number of temporary file",e);
+			}
+			
+			//Get the sha1sum of the file we just copied (or read the linked file once, unless
+			//the caller already knows it)
+			String sha1sum = null;
+			try {
+				if (md!=null)
+					sha1sum = Util.checksumFromDigest(md);
+				else if (linked && knownSha1sum!=null)
+					sha1sum = Util.validateChecksum(knownSha1sum);
+				else {
+					if (progress!=null)
+						progress.phase("hashing");
+					sha1sum = Util.computeChecksum(newContentFileInTemp.getAbsolutePath(),
+							progress==null ? null : progress::hashed);
 				}
-				//
-				if (duplicateCheck) {
-					int collisionHandle=fingerprintExists(sha1sum,copiedFrom.length());
-					if (collisionHandle!=0)
-						throw new U_Exception(U_Exception.ERROR.PotentialDuplicate,
-							String.format("A version of object %d has the same fingerprint (sha1sum and length) as incoming content '%s'",
-									collisionHandle,sourceFilename));
+			} catch (Exception e) {
+				throw new U_Exception(U_Exception.ERROR.EncryptionError,"Computing checksum",e);
+			}
+			//Get the inode number
+			if (progress!=null)
+				progress.phase("inspecting");
+			Util.StatBuf statBuf = null;
+			try {
+				statBuf = Util.stat(newContentFileInTemp.getAbsolutePath());
+			} catch (Exception e) {
+				throw new U_Exception(U_Exception.ERROR.IOError,"Querying for inode number of temporary file",e);
+			}
+			//
+			if (duplicateCheck) {
+				if (progress!=null)
+					progress.phase("checking");
+				checkForDuplicate(sha1sum, copiedFrom.length(), sourceFilename);
+			}
+			
+			//Determine a permanent file name
+			File newContentFileFinalPath = contentAddressed 
+					? contentAddressedLocation(sha1sum,newContentFileInTemp.length())
+					: generateNewLibraryLocation(suggestedFilename);
+			
+			//Construct a new version record
+			VersionsTuple vt = new VersionsTuple();
+			
+			
+			vt.handle=(handle);
+			vt.path=(newContentFileFinalPath.getAbsolutePath());
+			vt.sha1sum=(sha1sum);
+			vt.length=(newContentFileInTemp.length());
+			vt.title=title;
+			vt.copiedfrom=(copiedFrom.getAbsolutePath());
+			vt.inode=(statBuf.inode);
+			
+			if (progress!=null)
+				progress.phase("committing");
+			if (contentAddressed) {
+				//If the content is already in the library, the new version shares its file and no
+				//bytes are moved.  The lock keeps the file from being trashed until the version
+				//sharing it is committed.
+				synchronized (contentLock(vt.path)) {
+					final boolean share = newContentFileFinalPath.isFile() && newContentFileFinalPath.length()==vt.length;
+					if (share)
+						try {
+							vt.inode=(Util.stat(vt.path).inode);
+						} catch (Exception e) {
+							throw new U_Exception(U_Exception.ERROR.IOError,"Querying for inode number of shared content file",e);
+						}
+					addVersion(vt,
+							() -> {
+								if (!share)
+									try {
+										Util.renameFile(newContentFileInTemp,newContentFileFinalPath);
+									} catch (Exception e) {
+										throw new U_Exception(U_Exception.ERROR.FileRenameFailed,e);
+									}
+							});
+					//A file being moved in is given up by the caller, even if its content was not needed
+					if (share && adopt)
+						newContentFileInTemp.delete();
 				}
-				
-				//Determine a permanent file name
-				File newContentFileFinalPath = generateNewLibraryLocation(suggestedFilename);
-				
-				//Construct a new version record
-				VersionsTuple vt = new VersionsTuple();
-				
-				
-				vt.handle=(handle);
-				vt.path=(newContentFileFinalPath.getAbsolutePath());
-				vt.sha1sum=(sha1sum);
-				vt.length=(newContentFileInTemp.length());
-				vt.title=title;
-				vt.copiedfrom=(copiedFrom.getAbsolutePath());
-				vt.inode=(statBuf.inode);
-				
+			} else {
 				addVersion(vt,
 						//This is a Lambda code block, being passed as a parameter to addVersion.	
 						//It will be called before addVersion commits the new database changes.
@@ -596,27 +1121,35 @@ public class RepositoryManager implements AutoCloseable {
 								throw new U_Exception(U_Exception.ERROR.FileRenameFailed,e);
 							}
 						});
+			}
 
-				handle=vt.handle;
+			handle=vt.handle;
 
-			} catch (FileNotFoundException e) {
-				throw new U_Exception(U_Exception.ERROR.NoSuchFile,e);
-			} finally { // --ensures the output file has been closed and deleted if still existent in the temp directory
-				try {
+		} finally { // --ensures the temporary file is deleted if still existent in the temp directory
+			try {
+				if (!adopt)
 					newContentFileInTemp.delete();
-				} catch (Exception e) { 
-					/*ignore*/
-				}	
-			}
-			//--End of FileOutpuStream try block
-		} catch (IOException e1) {
-			throw new U_Exception(U_Exception.ERROR.IOError,e1);
-		} 
-		//--End of FileInputStream try block
+			} catch (Exception e) { 
+				/*ignore*/
+			}	
+		}
 		
 		return handle;
 	}
 
+	/**
+	 * Throws PotentialDuplicate if a version has the same fingerprint as incoming content.
+	 */
+	private void checkForDuplicate(String sha1sum, long length, String sourceFilename)
+		throws U_Exception
+	{
+		int collisionHandle=fingerprintExists(sha1sum,length);
+		if (collisionHandle!=0)
+			throw new U_Exception(U_Exception.ERROR.PotentialDuplicate,
+				String.format("A version of object %d has the same fingerprint (sha1sum and length) as incoming content '%s'",
+						collisionHandle,sourceFilename));
+	}
+
 	/**
 	 * Removes an older version of the object and moves its contents to trash.
 	 * This operation differs from rolling back a version because no metadata
@@ -769,23 +1302,27 @@ public class RepositoryManager implements AutoCloseable {
 				   trashObject_tagsTable.insert(ot);
 				   object_tagsTable.delete(ot);
 			   }
+			   tagIndexChange(() -> TagMembershipIndex.getIndex().retired(handle));
 				   
 			   // Move all version records from versions to trashversions
 			   for (VersionsTuple vt : versions) {
 				   trashVersionsTable.insert(vt);
 				   versionsTable.delete(vt);
+				   fingerprintChange(() -> FingerprintIndex.getIndex().removed(vt.sha1sum, vt.length));
 			   }
 			   // Delete the objects record
 			   ObjectsTuple ot = getObject(handle);
 			   objectsTable.delete(ot);
+			   entityChange(() -> EntityCache.getCache().objectChanged(handle));
+			   catalogChange(handle);
 			   // Commit transaction
 			   commitTransaction();
-			   // Move files to trash content directory
+			   // Move files to trash content directory, unless other versions share them
+			   Set<String> released = new HashSet<String>();
 			   for (VersionsTuple vt: versions) {
-				   if (vt.path!=null)
+				   if (vt.path!=null && released.add(vt.path))
 				   try {
-					   File f = new File(vt.path);
-					   Util.moveToTrash(f);
+					   releaseContent(vt.path);
 				   } catch (Exception e) {
 					   L.log(L.W, this, "Failed to move file to trash %s", vt.path);
 					   /* best effort, but we should at least log it */
@@ -870,21 +1407,54 @@ public class RepositoryManager implements AutoCloseable {
 	public boolean check(int v_handle, boolean fullValidation) 
 		throws U_Exception 
 	{
-		ObjectsTuple ot = getObject(v_handle);
-		VersionsTuple vt = getLatestVersion(v_handle);
-		if (!ot.imported.equals(vt.imported))
+		VersionsTuple vt = getConsistentLatestVersion(v_handle);
+		boolean healthy = assessHealth(vt, fullValidation, null);
+		versionsTable.update(vt);
+		catalogChange(vt.handle);
+		return healthy;
+	}
+	
+	/**
+	 * Returns the latest version of an object after confirming that the object master record
+	 * agrees with it.
+	 * @param handle The handle of the object.
+	 * @return The versions tuple of the current version.
+	 * @throws U_Exception with InconsistentDatabase if the master and version records disagree.
+	 */
+	VersionsTuple getConsistentLatestVersion(int handle) 
+		throws U_Exception
+	{
+		ObjectsTuple ot = getObject(handle);
+		VersionsTuple vt = getLatestVersion(handle);
+		if (ot==null || vt==null || !ot.imported.equals(vt.imported))
 			throw new U_Exception(ERROR.InconsistentDatabase);
-
+		return vt;
+	}
+	
+	/**
+	 * Performs the content health check of {@code check()} against a version tuple, recording the
+	 * observations in the tuple's health monitoring attributes but not storing it.  The recorded
+	 * checksum is never replaced, since it is the known good value the content is validated against.
+	 * 
+	 * @param vt The version to check, which is updated in place.
+	 * @param fullValidation If true, computes a new checksum and compares to the recorded (known good) checksum.
+	 * @param throttle If not null, called with the number of bytes about to be read from the
+	 *        content during checksum computation, and may block to limit the read rate.
+	 * @return True if the object content is deemed healthy.
+	 */
+	boolean assessHealth(VersionsTuple vt, boolean fullValidation, LongConsumer throttle) 
+		throws U_Exception 
+	{
 		/* these are the newer observed values for the health monitoring data */
 		/* Initially, we consider the worst case scenario, and update values as we perform the validation */
 		boolean n_hm_missing = true;
 		boolean n_hm_unhealthy = true;
 		boolean n_hm_lengthmismatch = true;
-		boolean n_hm_corrupt = true;
+		boolean n_hm_corrupt = fullValidation ? true : vt.hm_corrupt;
 		Instant n_hm_lastvalidationattempt = Instant.now();
 		Instant n_hm_lastsuccessfulvalidation=vt.hm_lastsuccessfulvalidation;
 		Instant n_hm_lastseen = vt.hm_lastseen;
-		Instant n_hm_lastfingerprinted = null;
+		Instant n_hm_lastfingerprinted = vt.hm_lastfingerprinted;
 		long n_hm_linkcount=0;
 		long n_inode=0;
 		String n_hm_message = "Validation did not complete - reason unknown";
@@ -915,7 +1485,7 @@ public class RepositoryManager implements AutoCloseable {
 			/* if we're doing full validation, we need to compute the checksum */
 			if (fullValidation) {
 				try {
-					n_sha1sum=Util.computeChecksum(f.getAbsolutePath());
+					n_sha1sum=Util.computeChecksum(f.getAbsolutePath(),throttle);
 				} catch (Exception e) {
 					throw new U_Exception(U_Exception.ERROR.ValidationError,
 						String.format("Validation failed for %d: error during computeChecksum: %s",
@@ -1018,12 +1588,86 @@ public class RepositoryManager implements AutoCloseable {
 			vt.hm_linkcount=(n_hm_linkcount);
 			vt.inode=(n_inode);
 			vt.hm_message=(n_hm_message);
-			vt.sha1sum=(n_sha1sum);
 			vt.hm_healthchanged=(n_hm_healthchanged);
-			
-			versionsTable.update(vt);
 		}
-		return !n_hm_unhealthy;
+		return !n_hm_unhealthy;
+	}
+	
+	/**
+	 * Stores the health monitoring observations of several versions in a single transaction.
+	 * Each version is re-read inside the transaction and only the attributes set by
+	 * {@code assessHealth()} are copied onto it, so changes made to other attributes since
+	 * the assessment was taken are not lost.  Versions that no longer exist are skipped.
+	 * @param assessed Versions that have been through {@code assessHealth()}.
+	 * @return The number of versions updated.
+	 * @throws U_Exception
+	 */
+	public int putHealthAssessments(List<VersionsTuple> assessed) 
+		throws U_Exception 
+	{
+		int updated=0;
+		try (TransactionManager tm = new TransactionManager()) {
+			TupleExpressionFactory ef = versionsTable.EF;
+			for (VersionsTuple a : assessed) {
+				List<VersionsTuple> l;
+				try {
+					l = versionsTable.select(
+						ef.and(ef.comp("@handle", "=", a.handle),ef.comp("@imported","=",a.imported)),
+						SortDirective.NONE);
+				} catch (FilterExpressionException e) {
+					throw new U_Exception(U_Exception.ERROR.ExpressionError,e);
+				}
+				if (l.size()==0)
+					continue;
+				VersionsTuple vt = l.get(0);
+				vt.inode=a.inode;
+				vt.hm_lastseen=a.hm_lastseen;
+				vt.hm_missing=a.hm_missing;
+				vt.hm_lastfingerprinted=a.hm_lastfingerprinted;
+				vt.hm_unhealthy=a.hm_unhealthy;
+				vt.hm_lengthmismatch=a.hm_lengthmismatch;
+				vt.hm_linkcount=a.hm_linkcount;
+				vt.hm_lastsuccessfulvalidation=a.hm_lastsuccessfulvalidation;
+				vt.hm_lastvalidationattempt=a.hm_lastvalidationattempt;
+				vt.hm_corrupt=a.hm_corrupt;
+				vt.hm_message=a.hm_message;
+				vt.hm_healthchanged=a.hm_healthchanged;
+				vt.hm_lastobservedchanges=a.hm_lastobservedchanges;
+				if (versionsTable.update(vt)) {
+					updated++;
+					catalogChange(vt.handle);
+				}
+			}
+			tm.commit();
+		}
+		return updated;
+	}
+	
+	/**
+	 * Lists the handles of objects whose current version has not had a validation attempt since
+	 * {@code notAttemptedSince}, in the order a health sweep should visit them.  For a full
+	 * validation sweep the least recently fingerprinted come first, otherwise the least recently
+	 * validated come first.
+	 * @param notAttemptedSince Objects validated at or after this time are omitted.
+	 * @param fullValidation The kind of sweep the list is for.
+	 * @return The handles in priority order.
+	 * @throws U_Exception
+	 */
+	public List<Integer> getHealthSweepCandidates(Instant notAttemptedSince, boolean fullValidation) 
+		throws U_Exception 
+	{
+		List<Integer> handles = new java.util.ArrayList<Integer>();
+		TupleExpressionFactory ef = currentVersionsTable.EF;
+		try {
+			currentVersionsTable.applySelection(
+				ef.comp("@hm_lastvalidationattempt","<",notAttemptedSince), 
+				SortDirective.build(fullValidation?"hm_lastfingerprinted ASC":"hm_lastvalidationattempt ASC"), 
+				0, 
+				vt -> handles.add(vt.handle));
+		} catch (FilterExpressionException e) {
+			throw new U_Exception(U_Exception.ERROR.ExpressionError,e);
+		}
+		return handles;
 	}
 
 	/**
@@ -1207,11 +1851,21 @@ public class RepositoryManager implements AutoCloseable {
 	 * @return The tag tuple for the specified tag, or null if it does not exist.
 	 */
 	public TagsTuple getTag(String name) throws U_Exception {
+		EntityCache cache = transactionInProgress() ? null : EntityCache.getCache();
+		if (cache!=null) {
+			TagsTuple tt = cache.getTag(name);
+			if (tt!=null)
+				return tt;
+		}
 		try {
+			long epoch = cache==null ? 0 : cache.epoch();
 			List<TagsTuple> ltt = 
 					tagsTable.select(tagsTable.EF.comp("@name","=",name), SortDirective.NONE);
-			if (ltt.size()>0) 
+			if (ltt.size()>0) {
+				if (cache!=null)
+					cache.putTag(ltt.get(0), epoch);
 				return ltt.get(0);
+			}
 			return null;
 		} catch (FilterExpressionException e) {
 			throw new U_Exception(ERROR.ExpressionError,e);
@@ -1234,6 +1888,7 @@ public class RepositoryManager implements AutoCloseable {
 			TagsTuple tt = new TagsTuple();
 			tt.name=name;
 			tagsTable.delete(tt);
+			entityChange(() -> EntityCache.getCache().tagChanged(name));
 			tm.commit();
 			return;
 		} catch (U_Exception e) {
@@ -1266,6 +1921,36 @@ public class RepositoryManager implements AutoCloseable {
 		}
 	}	
 
+	/**
+	 * Creates each name=value pair that doesn't already exist, in as few round trips to the
+	 * database as possible.  Throws an exception if the tag name isn't defined.
+	 * @param name
+	 * @param values
+	 * @return The number of pairs created.
+	 * @throws U_Exception
+	 */
+	public int createTagValues(String name, Collection<String> values)
+		throws U_Exception 
+	{
+		vetTagName(name);
+		List<Tag_valuesTuple> tuples = new ArrayList<Tag_valuesTuple>(values.size());
+		for (String value : values) {
+			Tag_valuesTuple tvt = new Tag_valuesTuple();
+			tvt.name=(name);
+			tvt.value=(value);
+			tuples.add(tvt);
+		}
+		try {
+			int created=0;
+			for (boolean inserted : tag_valuesTable.insertIfNewAll(tuples))
+				if (inserted)
+					created++;
+			return created;
+		} catch (Exception e) { 
+			throw new U_Exception(ERROR.Unexpected,"An unexpected database error occured during name=value creation",e);
+		}
+	}
+
 	/**
 	 * Determines if a tag/value pair has been defined.
 	 * @param name The name of the pair.
@@ -1274,9 +1959,16 @@ public class RepositoryManager implements AutoCloseable {
 	 * @throws U_Exception
 	 */
 	public boolean tagValueExists(String name, String value) throws U_Exception {
+		EntityCache cache = transactionInProgress() ? null : EntityCache.getCache();
+		if (cache!=null && cache.tagValueExists(name, value))
+			return true;
 		try {
+			long epoch = cache==null ? 0 : cache.epoch();
 			TupleExpressionFactory ef = tag_valuesTable.EF;
-			return tag_valuesTable.select(ef.and(ef.comp("@name","=",name),ef.comp("@value","=",value)),SortDirective.NONE).size()>0;
+			boolean exists = tag_valuesTable.select(ef.and(ef.comp("@name","=",name),ef.comp("@value","=",value)),SortDirective.NONE).size()>0;
+			if (exists && cache!=null)
+				cache.putTagValue(name, value, epoch);
+			return exists;
 		} catch (FilterExpressionException e) {
 			throw new U_Exception(ERROR.ExpressionError,e);
 		}
@@ -1354,6 +2046,8 @@ public class RepositoryManager implements AutoCloseable {
 		} catch (U_Exception e) {
 			throw new U_Exception(ERROR.Unexpected,"Unexpected database error during tag value deltion",e);
 		}
+		entityChange(() -> EntityCache.getCache().tagValueChanged(name, value));
+		tagIndexChange(() -> TagMembershipIndex.getIndex().valueDeleted(name, value));
 	}
 
 	
@@ -1379,6 +2073,7 @@ public class RepositoryManager implements AutoCloseable {
 		vtt.value=(value);
 		vtt.handle=(handle);
 		object_tagsTable.insertIfNew(vtt);
+		tagIndexChange(() -> TagMembershipIndex.getIndex().tagged(handle, name, value));
 	}
 
 	/**
@@ -1402,6 +2097,61 @@ public class RepositoryManager implements AutoCloseable {
 		}
 	}
 	
+	/**
+	 * Returns the tag/value records for a number of objects at once, each list ordered as
+	 * {@code getTagValuesForObject(int)} orders it.  Unlike that method, the handles are not
+	 * vetted: an unassigned handle simply has no tags.  The records are read from the tag
+	 * membership index, or if this manager is in a transaction, and so may have tagging
+	 * changes the index has not yet seen, with a single select of the tagging table.
+	 * @param handles The objects of interest.
+	 * @return A map from each handle to its list of records, which is empty if it has none.
+	 * @throws U_Exception
+	 */
+	public Map<Integer,List<Object_tagsTuple>> getTagValuesForObjects(Collection<Integer> handles) throws U_Exception {
+		Map<Integer,List<Object_tagsTuple>> result = new HashMap<Integer,List<Object_tagsTuple>>(handles.size()*2);
+		for (Integer handle : handles)
+			result.put(handle, new ArrayList<Object_tagsTuple>());
+		if (result.isEmpty())
+			return result;
+		if (!transactionInProgress()) {
+			tm_freshenCache();
+			TagMembershipIndex index = TagMembershipIndex.getIndex();
+			for (Map.Entry<Integer,List<Object_tagsTuple>> entry : result.entrySet()) {
+				Map<String,TreeSet<String>[]> tags = index.tagsOfHandle(entry.getKey());
+				if (tags==null)
+					continue;
+				for (String name : new TreeSet<String>(tags.keySet())) {
+					TreeSet<String>[] values = tags.get(name);
+					if (values==null)
+						continue;
+					for (String value : values[TagMembershipIndex.CS]) {
+						Object_tagsTuple ott = new Object_tagsTuple();
+						ott.handle = entry.getKey();
+						ott.name = name;
+						ott.value = value;
+						entry.getValue().add(ott);
+					}
+				}
+			}
+			//If the index was discarded while it was being read, the lists may be incomplete
+			if (index.isLoaded())
+				return result;
+			for (List<Object_tagsTuple> list : result.values())
+				list.clear();
+		}
+		try {
+			object_tagsTable.applySelection(
+					object_tagsTable.EF.in("@handle", result.keySet()),
+					SortDirective.build("handle",Order.Ascending,"name",Order.Ascending,"value",Order.Ascending),
+					0,
+					(ott) -> { result.get(ott.handle).add(ott); return true; }
+					);
+		} catch (FilterExpressionException e) {
+			throw new U_Exception(U_Exception.ERROR.Unexpected,e);
+		}
+		return result;
+	}
+	
 	/**
 	 * Returns a list of tag/value records for a specific object and tag name.
 	 * Throws an exception if the object or tag name do not exist.
@@ -1557,7 +2307,126 @@ public class RepositoryManager implements AutoCloseable {
 		try {
 			object_tagsTable.delete(vtt);
 		} catch (U_Exception e) { /* ignore */ }
+		tagIndexChange(() -> TagMembershipIndex.getIndex().untagged(handle, name, value));
+
+	}
+
+	/**
+	 * The number of tags {@link #replaceTags(int, Collection)} added to and removed from an object.
+	 */
+	public static class TagDelta {
+		public final int added;
+		public final int removed;
+
+		TagDelta(int added, int removed) {
+			this.added = added;
+			this.removed = removed;
+		}
+	}
+
+	/**
+	 * Makes an object's tags exactly a given set of name=value pairs, each of which must be
+	 * defined.  Only the differences from the object's current tags are written: the pairs
+	 * it no longer has are deleted, and the pairs it did not have are inserted, each in as few
+	 * round trips to the database as possible.  The change is made in one transaction, or as
+	 * part of the caller's.  The pairs are vetted before the transaction begins, so that when
+	 * the caller has none, pairs known to the entity cache need no query.
+	 * @param handle The object.
+	 * @param pairs The tags the object is to have.  Duplicates are ignored.
+	 * @return The number of tags added and removed.
+	 * @throws U_Exception
+	 */
+	public TagDelta replaceTags(int handle, Collection<Tag_valuesTuple> pairs)
+		throws U_Exception
+	{
+		vetHandle(handle);
+		Map<String,Tag_valuesTuple> wanted = new HashMap<String,Tag_valuesTuple>();
+		for (Tag_valuesTuple tvt : pairs) {
+			if (tvt.name==null || tvt.value==null)
+				throw new U_Exception(ERROR.NoSuchTagValuePair,
+						String.format("%s=%s",Util.nullWrapShow(tvt.name), Util.nullWrapShow(tvt.value)));
+			wanted.put(tvt.name+'\0'+tvt.value, tvt);
+		}
+		vetTagValues(wanted.values());
+		try (TransactionManager tm = new TransactionManager()) {
+			List<Object_tagsTuple> removals = new ArrayList<Object_tagsTuple>();
+			try {
+				object_tagsTable.applySelection(object_tagsTable.EF.comp("@handle", "=", handle), SortDirective.NONE, 0,
+						(ot) -> {
+							if (wanted.remove(ot.name+'\0'+ot.value)==null)
+								removals.add(ot);
+							return true;
+						});
+			} catch (FilterExpressionException e) {
+				throw new U_Exception(ERROR.Unexpected,e);
+			}
+			List<Object_tagsTuple> additions = new ArrayList<Object_tagsTuple>(wanted.size());
+			for (Tag_valuesTuple tvt : wanted.values()) {
+				Object_tagsTuple ot = new Object_tagsTuple();
+				ot.handle = handle;
+				ot.name = tvt.name;
+				ot.value = tvt.value;
+				additions.add(ot);
+			}
+			int removed = 0, added = 0;
+			boolean[] deleted = object_tagsTable.deleteAll(removals);
+			for (int x=0; x<deleted.length; x++)
+				if (deleted[x]) {
+					Object_tagsTuple ot = removals.get(x);
+					tagIndexChange(() -> TagMembershipIndex.getIndex().untagged(handle, ot.name, ot.value));
+					removed++;
+				}
+			boolean[] inserted = object_tagsTable.insertIfNewAll(additions);
+			for (int x=0; x<inserted.length; x++)
+				if (inserted[x]) {
+					Object_tagsTuple ot = additions.get(x);
+					tagIndexChange(() -> TagMembershipIndex.getIndex().tagged(handle, ot.name, ot.value));
+					added++;
+				}
+			tm.commit();
+			return new TagDelta(added, removed);
+		}
+	}
 
+	/**
+	 * Vets a number of tag name/values at once, with one query for those not known to the
+	 * entity cache.  Inside a transaction the cache is not consulted, since the transaction
+	 * may have changed the tag values.
+	 * @param pairs The name/values.
+	 * @throws U_Exception If any is not defined.
+	 */
+	private void vetTagValues(Collection<Tag_valuesTuple> pairs) throws U_Exception {
+		EntityCache cache = transactionInProgress() ? null : EntityCache.getCache();
+		Map<String,Set<String>> unknown = new HashMap<String,Set<String>>();
+		Set<String> values = new HashSet<String>();
+		for (Tag_valuesTuple tvt : pairs)
+			if (cache==null || !cache.tagValueExists(tvt.name, tvt.value)) {
+				Set<String> s = unknown.get(tvt.name);
+				if (s==null)
+					unknown.put(tvt.name, s = new HashSet<String>());
+				s.add(tvt.value);
+				values.add(tvt.value);
+			}
+		if (unknown.isEmpty())
+			return;
+		long epoch = cache==null ? 0 : cache.epoch();
+		TupleExpressionFactory ef = tag_valuesTable.EF;
+		try {
+			tag_valuesTable.applySelection(ef.and(ef.in("@name", unknown.keySet()), ef.in("@value", values)), 
+					SortDirective.NONE, 0,
+					(tvt) -> {
+						Set<String> s = unknown.get(tvt.name);
+						if (s!=null && s.remove(tvt.value) && cache!=null)
+							cache.putTagValue(tvt.name, tvt.value, epoch);
+						return true;
+					});
+		} catch (FilterExpressionException e) {
+			throw new U_Exception(ERROR.Unexpected,e);
+		}
+		for (Map.Entry<String,Set<String>> e : unknown.entrySet())
+			for (String value : e.getValue())
+				throw new U_Exception(ERROR.NoSuchTagValuePair,
+						String.format("%s=%s",Util.nullWrapShow(e.getKey()), Util.nullWrapShow(value)));
 	}
 	
 //------------------------------------------------------------------------------------------	
@@ -1584,6 +2453,10 @@ public class RepositoryManager implements AutoCloseable {
 	 */
 	
 	public int fingerprintExists(String sha1sum, long length) throws U_Exception {
+		//Nearly all content is new, and the index says so without a query
+		FingerprintIndex index = fingerprintIndex();
+		if (index!=null && !index.mayContain(sha1sum, length))
+			return 0;
 		try {
 			TupleExpressionFactory ef = versionsTable.EF;
 			List<VersionsTuple> l = versionsTable.select(
@@ -1635,6 +2508,10 @@ public class RepositoryManager implements AutoCloseable {
 	 */
 	public VersionsTuple getLatestVersion(int handle) throws U_Exception {
 		vetHandle(handle);
+		
+		CatalogSnapshot catalog = transactionInProgress() ? null : catalog();
+		if (catalog!=null)
+			return catalog.get(handle);
 			
 		List<VersionsTuple> l = getVersions(handle);
 		if (l.size()==0) return null;
@@ -1643,7 +2520,12 @@ public class RepositoryManager implements AutoCloseable {
 	
 	
 	public List<VersionsTuple> getLatestVersions() throws U_Exception {
-		return currentVersionsTable.select();
+		//Read through a cursor, as a plain select() is limited to MAX_TABLE_RESULT_SIZE rows
+		List<VersionsTuple> l = new ArrayList<VersionsTuple>();
+		CatalogSnapshot catalog = transactionInProgress() ? null : catalog();
+		if (catalog==null || !catalog.scan(null, null, null, (vt) -> l.add(vt)))
+			currentVersionsTable.applySelection(null, null, 0, (vt) -> l.add(vt));
+		return l;
 	}
 		
 	/**
@@ -1653,10 +2535,18 @@ public class RepositoryManager implements AutoCloseable {
 	 * @throws U_Exception
 	 */
 	public ObjectsTuple getObject(int handle) throws U_Exception {
+		EntityCache cache = transactionInProgress() ? null : EntityCache.getCache();
+		if (cache!=null) {
+			ObjectsTuple ot = cache.getObject(handle);
+			if (ot!=null)
+				return ot;
+		}
 		try {
-			
+			long epoch = cache==null ? 0 : cache.epoch();
 			List<ObjectsTuple> l = objectsTable.select(objectsTable.EF.comp("@handle", "=", handle),SortDirective.NONE);
 			if (l.size()==0) return null;
+			if (cache!=null)
+				cache.putObject(l.get(0), epoch);
 			return l.get(0);
 		} catch (FilterExpressionException e) {
 			throw new U_Exception(U_Exception.ERROR.ExpressionError,e);
@@ -1691,7 +2581,7 @@ public class RepositoryManager implements AutoCloseable {
 	public void addVersion(VersionsTuple vt, LambdaNoParmsU preCommitLambda)
 		throws U_Exception
 	{
-		connection.startTransaction();
+		startTransaction();
 		try /* protect transaction with finally */ {
 			
 			//Regardless of whether old or new, the import time will be NOW
@@ -1716,6 +2606,8 @@ public class RepositoryManager implements AutoCloseable {
 					vt.title=(Util.deriveTitle(vt.path));
 				objectsTable.insert(ot);
 				vt.handle=(ot.handle);
+				int handle = ot.handle;
+				tagIndexChange(() -> TagMembershipIndex.getIndex().objectCreated(handle));
 				versionsTable.insert(vt);
 			} 
 			
@@ -1742,16 +2634,23 @@ public class RepositoryManager implements AutoCloseable {
 				
 				ot.imported=(vt.imported);
 				objectsTable.update(ot);
+				int handle = ot.handle;
+				entityChange(() -> EntityCache.getCache().objectChanged(handle));
 			}
 			
+			catalogChange(vt.handle);
+			String sha1sum = vt.sha1sum;
+			long length = vt.length;
+			fingerprintChange(() -> FingerprintIndex.getIndex().added(sha1sum, length));
+
 			//Call additional code prior to commit  
 			//It will throw a U_Exception if we should not commit
 			preCommitLambda.op();
 			
-			connection.commitTransaction();
+			commitTransaction();
 		} finally {
-			if (connection.transactionInProgress())
-				connection.rollbackTransaction();
+			if (transactionInProgress())
+				rollbackTransaction();
 		}
 	}
 
@@ -1779,8 +2678,8 @@ public class RepositoryManager implements AutoCloseable {
 		 * 2. Begin transaction
 		 * 3.    Copy the version record to trashversions
 		 * 4.    Delete the version record from versions
-		 * 5.    Move the file to its trash location
-		 * 6. Commit the transaction
+		 * 5. Commit the transaction
+		 * 6. Move the file to its trash location, unless another version shares it
 		 * 7. Atempt to update the path value for the trashed record (best effort)
 		 */
 
@@ -1792,11 +2691,8 @@ public class RepositoryManager implements AutoCloseable {
 			trashVersionsTable.insert(vt);
 			versionsTable.delete(vt);
 				
-			//Move current path to the trash
-			String trashName = null;
-
-			trashName = Util.moveToTrash(new File(vt.path));
-			
+			//The content file may be shared with other versions, so it is released once this
+			//change is committed
 			if (updateVideoImported!=null) {
 				ObjectsTuple ot = new ObjectsTuple();
 				ot.handle=(handle);
@@ -1805,12 +2701,15 @@ public class RepositoryManager implements AutoCloseable {
 			}
 				
 			connection.commitTransaction();
+			if (updateVideoImported!=null)
+				EntityCache.getCache().objectChanged(handle);
+			catalogChange(handle);
+			FingerprintIndex.getIndex().removed(vt.sha1sum, vt.length);
 			
-			vt.path=(trashName);
 			try {
-				trashVersionsTable.update(vt);
+				releaseContent(vt.path);
 			} catch (U_Exception e) {
-				 L.log(L.I,this,"Unable to update path of trashed object '%s'",trashName);
+				L.log(L.W, this, "Failed to move file to trash %s", vt.path);
 			}
 		} finally {
 			if (connection.transactionInProgress())
@@ -1842,164 +2741,226 @@ public class RepositoryManager implements AutoCloseable {
 	/*
 	 * Determination of tag set membership (is an integer handle i in the set name:value)
 	 * can be very expensive when querying underlying table sources.  The tag membership
-	 * testing cache loads tagging data in set relationship form into memory. When the cache
-	 * is avaiable, methods that perform tag membership tests will use it. Over time, the
-	 * cache may be come stale and must be refreshed.  There are settings (variables) that
-	 * can enable auto-refresh when stale, auto-turn off when stale, and set the expiration
-	 * time, used to determine when the cache as gone stale.
+	 * testing cache is the process-wide TagMembershipIndex, shared by every RepositoryManager
+	 * in the pool.  It is loaded on first use and kept current by the tagging methods below,
+	 * which pass their changes to it when their transaction commits.  See tagIndexChange().
 	 * 
-	 * The tm_* testing methods do NOT check that the cache is loaded or fresh.  If they are
+	 * The tm_* testing methods do NOT check that the cache is loaded.  If they are
 	 * called directly, then it is up to the caller to ensure the cache is in an appropriate
-	 * state by calling tm_refreshCache().
+	 * state by calling tm_freshenCache().
 	 */
 	
-	private final int CI=1;  //Case insensitive
-	private final int CS=0;  //Case sensitive
-	public TreeSet<Integer>tm_all_objects = null;
-	
-	public HashMap<String,HashMap<String,TreeSet<Integer>>[]> tm_name_value_objects= null;
-	//              tag            value     handles       0=the CS map, 1=the CI map
-	
-	public HashMap<Integer,HashMap<String,TreeSet<String>[]>> tm_values_by_handle= null;
-	//              handle          tag        values     0=the CS map, 1=the CI map
-	
-	private long tm_load_time = 0;;
-	private int tm_secondsFromLoadUntilStale=15*60;  //15 minutes
-	
 	public boolean tm_cacheLoaded() {
-		return tm_all_objects!=null;
+		return TagMembershipIndex.getIndex().isLoaded();
 	}
 	
 	public void tm_destroyCache() {
-		tm_all_objects = null;
-		tm_name_value_objects = null;
-		tm_load_time = 0;
-		tm_values_by_handle = null;
+		TagMembershipIndex.getIndex().invalidate();
 	}
 	
 	public boolean tm_cacheIsValid() {
-		return tm_load_time + tm_secondsFromLoadUntilStale > Instant.now().getEpochSecond();
+		return tm_cacheLoaded();
 	}
 	
-	/**
-	 * Called by an applySelection method which visits the tagging table sorted by tag name
-	 * sorted by value.  Loads the membership testing cache data in the outer class private
-	 * variables above.
-	 * @author vlibrarian
-	 *
-	 */
-	private class Tm_Xform_LoadMembershipData implements SelectionTransformer<Object_tagsTuple>  {
-		String lastName="";   //The last tag name we saw
-		String lastValue="";  //The last value we saw
-		
-		//The current map of tag names to (CS/CI value maps to handle sets)
-		HashMap<String,TreeSet<Integer>> currentTagSet[] = null;
-		//       value    handles                      0=CS, 1=CI (forced-lower case)
-		
-		//Both the CS and CI will share the same handle set
-		TreeSet<Integer> currentValueSet = null;
-		
-		
-		@SuppressWarnings({ "unchecked" })
-		public boolean action(Object_tagsTuple tuple) {
-			int handle = tuple.handle;   // Avoid multiple retrievals - they can be expensive
-			String name = tuple.name;
-			String value = tuple.value;
-			String civalue = value.toLowerCase();
-
-			if (!name.equals(lastName)) {
-				lastValue="";
-				currentTagSet = new HashMap[2];
-				currentTagSet[CS] = new HashMap<String, TreeSet<Integer>>();
-				currentTagSet[CI] = new HashMap<String, TreeSet<Integer>>();
-				tm_name_value_objects.put(name, currentTagSet);
-				lastName=name;
-			}
-			if (!value.equals(lastValue)) {
-				currentValueSet = new TreeSet<Integer>();
-				currentTagSet[CS].put(value, currentValueSet);
-				currentTagSet[CI].put(civalue, currentValueSet);
-				lastValue=value;
-			}
-			tm_all_objects.add(handle);
-			currentValueSet.add(handle);
-			
-			TreeSet<String>[] valuesForThisHandle = new TreeSet[2];	
-			
-			//Have we seen this handle yet?
-			HashMap<String,TreeSet<String>[]> tagsForThisHandle= tm_values_by_handle.get(handle);
-			if (tagsForThisHandle==null) {
-				//If not, we need to create a map of tag names to value sets
-
-				tagsForThisHandle = new HashMap<String, TreeSet<String>[]>();
-				//Put this new map into the master map, keyed by the handle
-				tm_values_by_handle.put(handle,tagsForThisHandle);
-				//We know for certain we'll need a new valueset for this tag
-				valuesForThisHandle=new TreeSet[2];
-				valuesForThisHandle[CS]=new  TreeSet<String>();
-				valuesForThisHandle[CI]=new TreeSet<String>();
-				//And that this value will be in it
-				valuesForThisHandle[CS].add(value);
-				valuesForThisHandle[CI].add(civalue);
-				//And we need to put it into the map for this handle's tag values
-				tagsForThisHandle.put(name,valuesForThisHandle);
-			} else {
-				//We've seen this handle. Have we seen this tag for this handle?
-				valuesForThisHandle = tagsForThisHandle.get(name);
-				//If not, we need to create a value set
-				if (valuesForThisHandle==null) {
-					valuesForThisHandle = new TreeSet[2];
-					valuesForThisHandle[CS]=new TreeSet<String>();
-					valuesForThisHandle[CI]=new TreeSet<String>();
-					tagsForThisHandle.put(name, valuesForThisHandle);
-				}
-				//put the value into the set
-				valuesForThisHandle[CS].add(value);
-				valuesForThisHandle[CI].add(civalue);
-			}
-			return true;
-		}
-	}	
-	
 	public void tm_loadCache() throws U_Exception {
-		tm_load_time = Instant.now().getEpochSecond();
-		tm_all_objects = new TreeSet<Integer>();
-		tm_name_value_objects = new HashMap<String, HashMap<String,TreeSet<Integer>>[]>();
-		tm_values_by_handle = new HashMap<Integer, HashMap<String,TreeSet<String>[]>>();
-		object_tagsTable.select(
-				null,
-				SortDirective.build("name",Order.Ascending,"value",Order.Ascending),
-				0,
-				new Tm_Xform_LoadMembershipData());
+		TagMembershipIndex.getIndex().reload(object_tagsTable,objectsTable);
+		CatalogSnapshot.getCatalog().tagsChanged();
 	}
 	
 	public void tm_freshenCache() throws U_Exception {
-		if (!tm_cacheLoaded() || !tm_cacheIsValid())
-			tm_loadCache();
+		TagMembershipIndex.getIndex().ensureLoaded(object_tagsTable,objectsTable,catalog());
 	}
 	
-	
 	public boolean tm_isTagged(int handle, String name, String value, boolean ci) {
-		try {
-			if (ci)
-				return tm_name_value_objects.get(name)[CI].get(value.toLowerCase()).contains(handle);
-			return tm_name_value_objects.get(name)[CS].get(value).contains(handle);
-		} catch (Exception e) {
-			return false;
-		}
+		return TagMembershipIndex.getIndex().isTagged(handle, name, value, ci);
 	}
 	
 	public TreeSet<String>[] tm_valuesOfTagForHandle(Integer handle, String name) {
+		return TagMembershipIndex.getIndex().valuesOfTagForHandle(handle, name);
+	}
+
+	/**
+	 * <p>Returns the handles of the objects that satisfy a tag expression, evaluated entirely with
+	 * set operations on the tag membership index rather than by testing each object.  The expression
+	 * uses the filter syntax, restricted to tag membership tests combined with AND, OR and NOT, for
+	 * example {@code genre='Drama' AND NOT rating='R'}.</p>
+	 * <p>{@code U_Exception} codes thrown directly from this method:</p>
+	 * <ul>
+	 *    <li>ExpressionError</Li>
+	 * </ul>
+	 *
+	 * @param expression The tag expression.
+	 * @return The set of matching handles.
+	 * @throws U_Exception
+	 */
+	public IntegerSet getObjectsMatching(String expression) throws U_Exception {
+		ExpressionFactory.Expr node = null;
 		try {
-			return tm_values_by_handle.get(handle).get(name);
+			node = WhereConditionParser.parseFilterExpression(expression, versionsTupleExpressionFactory);
 		} catch (Exception e) {
+			throw new U_Exception(U_Exception.ERROR.ExpressionError,e);
+		}
+		if (node.type!=ExpressionFactory.Type.Boolean)
+			throw new U_Exception(ERROR.ExpressionError,"Tag expression must evaluate to type Boolean");
+		tm_freshenCache();
+		IntegerSet result = versionsTupleExpressionFactory.evalTagSet(node, TagMembershipIndex.getIndex());
+		if (result==null)
+			throw new U_Exception(ERROR.ExpressionError,"Tag expressions may only combine tag membership tests with AND, OR and NOT");
+		//The result may be one of the index's own sets
+		return result.clone();
+	}
+
+	/**
+	 * Passes a change to the tag membership index once it is durable.  Outside of a
+	 * transaction the statement that made the change has already been committed, so the
+	 * change is applied at once.  Inside one it is held until {@link #commitTransaction()},
+	 * and discarded by a rollback.
+	 * @param change The change to apply to the index.
+	 * @throws U_Exception
+	 */
+	private void tagIndexChange(Runnable change) throws U_Exception {
+		Runnable applied = () -> {
+			CatalogSnapshot catalog = CatalogSnapshot.getCatalog();
+			TagMembershipIndex.getIndex().apply(change, catalog);
+			catalog.tagsChanged();
+		};
+		if (transactionInProgress())
+			pendingTagIndexChanges.add(applied);
+		else
+			applied.run();
+	}
+
+	/**
+	 * Makes the process-wide EntityCache forget rows that have changed.  Rows are only cached
+	 * as they are read outside of a transaction, so other RepositoryManagers may cache the
+	 * row as it was until a transaction commits.  The invalidation is made at once, and again
+	 * when the transaction commits.
+	 * @param invalidation The invalidation to make.
+	 * @throws U_Exception
+	 */
+	private void entityChange(Runnable invalidation) throws U_Exception {
+		invalidation.run();
+		if (transactionInProgress())
+			pendingEntityChanges.add(invalidation);
+	}
+
+	//------ fingerprint index --------------------------------------------------------------
+	//
+	/*
+	 * If FINGERPRINT_INDEX is configured, the process-wide FingerprintIndex rules out
+	 * duplicates of incoming content without a query of the versions table.  Every method that
+	 * adds or removes a version reports its fingerprint with fingerprintChange(), and the index
+	 * applies the change once it is committed.
+	 */
+
+	/**
+	 * Returns the fingerprint index, loading it if need be.
+	 * @return The index, or null if it is not configured or cannot be loaded.
+	 */
+	private FingerprintIndex fingerprintIndex() {
+		FingerprintIndex index = FingerprintIndex.getIndex();
+		try {
+			if (!Config.getBoolean(ConfigurationKey.FINGERPRINT_INDEX))
+				return null;
+			index.ensureLoaded(versionsTable);
+			return index;
+		} catch (U_Exception e) {
+			L.log(L.E, this, "Could not load the fingerprint index: %s", e.getMessage());
 			return null;
 		}
 	}
 
+	/**
+	 * Loads the fingerprint index, if it is configured, in the background, so that the first
+	 * import need not wait for it.  Called when the application starts.
+	 */
+	public static void preloadFingerprintIndex() {
+		Thread t = new Thread(() -> {
+			try (RepositoryManager rm = getRepositoryManager()) {
+				rm.fingerprintIndex();
+			} catch (Exception e) {
+				L.log(L.E, RepositoryManager.class, "Could not preload the fingerprint index: %s", e.getMessage());
+			}
+		}, "FingerprintIndex-loader");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Passes a change to the fingerprint index once it is durable: at once outside of a
+	 * transaction, and otherwise when the transaction commits.
+	 * @param change The change to make.
+	 * @throws U_Exception
+	 */
+	private void fingerprintChange(Runnable change) throws U_Exception {
+		if (transactionInProgress())
+			pendingFingerprintChanges.add(change);
+		else
+			change.run();
+	}
+
+	//------ catalog snapshot ---------------------------------------------------------------
+	//
+	/*
+	 * If CATALOG_SNAPSHOT is configured, the process-wide CatalogSnapshot answers queries of
+	 * the current versions of objects outside of transactions, in place of the currentversions
+	 * view.  Every method that changes a row of the view reports the object with
+	 * catalogChange(), and the snapshot re-reads the row once the change is committed.
+	 * Inside a transaction the view is always used, so the transaction sees its own changes.
+	 */
+
+	/**
+	 * Returns the catalog snapshot, loading it if need be.
+	 * @return The snapshot, or null if it is not configured or cannot be loaded.
+	 */
+	private CatalogSnapshot catalog() {
+		CatalogSnapshot catalog = CatalogSnapshot.getCatalog();
+		try {
+			if (catalog.ensureLoaded(currentVersionsTable))
+				return catalog;
+		} catch (U_Exception e) {
+			L.log(L.W, this, "Catalog snapshot unavailable, using the database: %s", e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Reports that the row of an object in the {@code currentversions} view has changed, or
+	 * may have.  Like {@link #tagIndexChange(Runnable)}, the snapshot is refreshed at once
+	 * outside of a transaction, and when it commits inside one.  That is so even if the
+	 * snapshot is not loaded, as the change must still make the file stale.
+	 * @param handle The object.
+	 * @throws U_Exception
+	 */
+	private void catalogChange(int handle) throws U_Exception {
+		if (!CatalogSnapshot.getCatalog().isEnabled())
+			return;
+		if (transactionInProgress())
+			pendingCatalogChanges.add(handle);
+		else
+			refreshCatalog(Collections.singleton(handle));
+	}
+
+	/**
+	 * Refreshes objects in the catalog snapshot.  If that fails the snapshot is discarded,
+	 * rather than left to answer queries wrongly, and rebuilt when next needed.
+	 */
+	private void refreshCatalog(Collection<Integer> handles) {
+		CatalogSnapshot catalog = CatalogSnapshot.getCatalog();
+		try {
+			catalog.refresh(currentVersionsTable, handles);
+		} catch (U_Exception e) {
+			L.log(L.E, this, "Could not refresh the catalog snapshot, discarding it: %s", e.getMessage());
+			catalog.invalidate();
+		}
+	}
+
 	/**
 	 * <p>Performs a query against the {@code versions} table, returning tuples that match the provided filter
-	 * and ordered according to the sort directive.</p>
+	 * and ordered according to the sort directive.  The parts of the filter the database can evaluate,
+	 * including tag tests, are passed to it, so only the rows they select are read. See
+	 * {@code ExpressionFactory.plan()}.  The rest is compiled before the rows are read; see
+	 * {@code ExpressionFactory.compile()}.</p>
 	 * <p>{@code U_Exception} codes thrown directly from this method:</p>
 	 * <ul>
 	 *    <li>ExpressionError</Li>
@@ -2011,32 +2972,97 @@ public class RepositoryManager implements AutoCloseable {
 	 * @throws U_Exception
 	 */
 	public List<VersionsTuple> processQuery(String filter, String orderby) throws U_Exception {
-		ExpressionFactory.Expr node = null;
-		try {
-			node = WhereConditionParser.parseFilterExpression(filter, versionsTupleExpressionFactory);
-		} catch (Exception e) {
-			throw new U_Exception(U_Exception.ERROR.ExpressionError,e);
+		final LinkedList<VersionsTuple> result = new LinkedList<>();
+		processQuery(filter, orderby, (vt) -> { result.add(vt); return true; });
+		return result;
+	}
+
+	/**
+	 * <p>Performs a query against the {@code versions} table as {@link #processQuery(String, String)} does,
+	 * but passes each matching tuple to {@code xform} as it is read rather than collecting them.</p>
+	 * <p>{@code U_Exception} codes thrown directly from this method:</p>
+	 * <ul>
+	 *    <li>ExpressionError</Li>
+	 * </ul>
+	 *
+	 * @param filter A filter expression that can be parsed by the {@code VersionsTuple} expression factory.
+	 * @param orderby An order by expression of the form {@code "attribute ASCending|DESCending, ..."}.
+	 * @param xform Called for each matching tuple, in order.  Returning false stops the query.
+	 * @throws U_Exception
+	 */
+	public void processQuery(String filter, String orderby, SelectionTransformer<VersionsTuple> xform) throws U_Exception {
+		ExpressionFactory.Expr node = parseFilter(filter);
+		
+		//Outside of a transaction the catalog snapshot, if it is in use, can answer the query
+		CatalogSnapshot catalog = transactionInProgress() ? null : catalog();
+		if (catalog!=null) {
+			ExpressionFactory.CompiledFilter whole;
+			try {
+				whole = versionsTupleExpressionFactory.compile(node);
+			} catch (ExprException e) {
+				throw new U_Exception(ERROR.ExpressionError,e);
+			}
+			if (catalog.scan(whole, versionsTupleExpressionFactory.attributesUsed(node), SortDirective.build(orderby), xform))
+				return;
 		}
-		if (node.type!=ExpressionFactory.Type.Boolean)
-			throw new U_Exception(ERROR.ExpressionError,"Filter expression must evaluate to type Boolean");
 		
-		final ExpressionFactory.Expr filterNode = node;
-		final LinkedList<VersionsTuple> result = new LinkedList<>();
+		ExpressionFactory.Plan plan = planQuery(node);
+		ExpressionFactory.CompiledFilter compiled = null;
+		try {
+			if (plan.residual!=null)
+				compiled = versionsTupleExpressionFactory.compile(plan.residual);
+		} catch (ExprException e) {
+			throw new U_Exception(ERROR.ExpressionError,e);
+		}
+		final ExpressionFactory.CompiledFilter residual = compiled;
 		
 		SortDirective sort[] = SortDirective.build(orderby);
 		
 		SelectionTransformer<VersionsTuple> collector = (vt) -> {
 			try {
-				if ((Boolean)(filterNode.eval(vt).object))
-					result.add(vt);
+				if (residual==null || residual.test(vt))
+					return xform.action(vt);
 			} catch (ExprException e) {
 				throw new U_Exception(ERROR.ExpressionError,"during evaluation of latest version of object "+vt.handle,e);
 			}
 			return true;
 		};
 
-		currentVersionsTable.applySelection(null /* the xform filters */, sort, 0, collector);
-		return result;
+		currentVersionsTable.applySelection(plan.pushed, sort, 0, collector);
+	}
+
+	/**
+	 * Checks a query's filter and order by expressions without running it, so that errors
+	 * in them can be reported before any results are.  Throws the exception
+	 * {@link #processQuery(String, String)} would throw for them.
+	 * @param filter A filter expression that can be parsed by the {@code VersionsTuple} expression factory.
+	 * @param orderby An order by expression of the form {@code "attribute ASCending|DESCending, ..."}.
+	 * @throws U_Exception
+	 */
+	public void checkQuery(String filter, String orderby) throws U_Exception {
+		planQuery(parseFilter(filter));
+		SortDirective.build(orderby);
+	}
+
+	private ExpressionFactory.Expr parseFilter(String filter) throws U_Exception {
+		ExpressionFactory.Expr node = null;
+		try {
+			node = WhereConditionParser.parseFilterExpression(filter, versionsTupleExpressionFactory);
+		} catch (Exception e) {
+			throw new U_Exception(U_Exception.ERROR.ExpressionError,e);
+		}
+		if (node.type!=ExpressionFactory.Type.Boolean)
+			throw new U_Exception(ERROR.ExpressionError,"Filter expression must evaluate to type Boolean");
+		return node;
+	}
+
+	private ExpressionFactory.Plan planQuery(ExpressionFactory.Expr node) throws U_Exception {
+		//Let the database evaluate as much of the filter as it can, and check the rest here
+		try {
+			return versionsTupleExpressionFactory.plan(node, currentVersionsTable.EF, "object_tags", object_tagsTable.EF);
+		} catch (ExprException e) {
+			throw new U_Exception(ERROR.ExpressionError,e);
+		}
 	}
 	
 	/**
@@ -2132,9 +3158,26 @@ public class RepositoryManager implements AutoCloseable {
 	
 	public void commitTransaction() throws U_Exception {
 		connection.commitTransaction();
+		for (Runnable change : pendingTagIndexChanges)
+			change.run();
+		pendingTagIndexChanges.clear();
+		for (Runnable invalidation : pendingEntityChanges)
+			invalidation.run();
+		pendingEntityChanges.clear();
+		for (Runnable change : pendingFingerprintChanges)
+			change.run();
+		pendingFingerprintChanges.clear();
+		if (!pendingCatalogChanges.isEmpty()) {
+			refreshCatalog(new ArrayList<Integer>(pendingCatalogChanges));
+			pendingCatalogChanges.clear();
+		}
 	}
 	
 	public void rollbackTransaction() throws U_Exception {
+		pendingTagIndexChanges.clear();
+		pendingEntityChanges.clear();
+		pendingFingerprintChanges.clear();
+		pendingCatalogChanges.clear();
 		connection.rollbackTransaction();
 	}
 	
@@ -2196,6 +3239,7 @@ public class RepositoryManager implements AutoCloseable {
 				Element elTag = doc.createElement("tag");
 				elTag.setAttribute("name", tag.name);
 				elPass.appendChild(elTag);
+				List<Tag_valuesTuple> unused = new ArrayList<Tag_valuesTuple>();
 				for (Tag_valuesTuple tvt : getTagValues(tag.name)) {
 					if (!tagValueInUse(tvt.name, tvt.value)) {
 						if (reportOnly) {
@@ -2207,9 +3251,15 @@ public class RepositoryManager implements AutoCloseable {
 							elDeleted.setAttribute("value", tvt.value);
 							elTag.appendChild(elDeleted);
 						}
-						deleteTagValue(tvt.name, tvt.value);
+						unused.add(tvt);
 					}
 				}
+				//The values were found unused inside this transaction, so they are deleted together
+				tag_valuesTable.deleteAll(unused);
+				for (Tag_valuesTuple tvt : unused) {
+					entityChange(() -> EntityCache.getCache().tagValueChanged(tvt.name, tvt.value));
+					tagIndexChange(() -> TagMembershipIndex.getIndex().valueDeleted(tvt.name, tvt.value));
+				}
 			}
 			
 			
@@ -0,0 +1,122 @@
+package com.craiglowery.java.vlib.repository;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import org.apache.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.craiglowery.java.vlib.common.U_Exception;
+
+/**
+ * Unit test for reaping idle instances, and for releasing content files shared by versions.
+ * The tables are lists in memory, and the library and trash are temporary directories.
+ *
+ */
+public class RepositoryManagerTest {
+
+	@BeforeClass
+	public static void logging() {
+		//Normally set up when the first U_Exception is made
+		if (U_Exception.logger==null)
+			U_Exception.logger = Logger.getLogger(RepositoryManagerTest.class);
+	}
+
+	/** A versions table that evaluates {@code @path = ...} filters **/
+	private static ListTable<VersionsTuple> versionsTable() throws U_Exception {
+		return new ListTable<VersionsTuple>(VersionsTuple.class,
+				Comparator.comparing((VersionsTuple vt) -> vt.imported)) {
+			@Override
+			boolean matches(VersionsTuple vt, List<Object> literals) {
+				return literals.isEmpty() || literals.contains(vt.path);
+			}
+		};
+	}
+
+	private static VersionsTuple version(int handle, String path, int second) {
+		VersionsTuple vt = new VersionsTuple();
+		vt.handle = handle;
+		vt.path = path;
+		vt.imported = Instant.ofEpochSecond(second);
+		return vt;
+	}
+
+	private static File directory(String prefix) throws Exception {
+		File dir = Files.createTempDirectory(prefix).toFile();
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	/**
+	 * Two versions share one file.  Trashing the first must leave the file for the second,
+	 * and trashing the second moves it to the trash.
+	 */
+	@Test
+	public void sharedContentOutlivesOneVersion() throws Exception {
+		File lib = directory("lib");
+		File trashDir = directory("trash");
+		File content = new File(lib, "shared");
+		Files.write(content.toPath(), "content".getBytes(StandardCharsets.UTF_8));
+		String path = content.getAbsolutePath();
+		RepositoryManager.Trash trash = (f) -> {
+			File to = new File(trashDir, f.getName());
+			assertTrue(f.renameTo(to));
+			return to.getAbsolutePath();
+		};
+
+		ListTable<VersionsTuple> versions = versionsTable();
+		ListTable<VersionsTuple> trashVersions = versionsTable();
+		VersionsTuple first = version(1, path, 1);
+		VersionsTuple second = version(2, path, 2);
+		versions.insert(first);
+		versions.insert(second);
+
+		versions.delete(first);
+		trashVersions.insert(first);
+		assertNull(RepositoryManager.releaseContent(path, versions, trashVersions, trash));
+		assertEquals("content", new String(Files.readAllBytes(content.toPath()), StandardCharsets.UTF_8));
+
+		versions.delete(second);
+		trashVersions.insert(second);
+		String trashed = RepositoryManager.releaseContent(path, versions, trashVersions, trash);
+		assertNotNull(trashed);
+		assertFalse(content.exists());
+		assertEquals("content", new String(Files.readAllBytes(new File(trashed).toPath()), StandardCharsets.UTF_8));
+		assertEquals(trashed, first.path);
+		assertEquals(trashed, second.path);
+		new File(trashed).deleteOnExit();
+	}
+
+	/**
+	 * A reaping pass puts the instances it keeps back on the deque, and must still end after
+	 * looking at each instance once.
+	 */
+	@Test(timeout=10000)
+	public void reapPassEnds() {
+		ConcurrentLinkedDeque<String> idle = new ConcurrentLinkedDeque<String>(Arrays.asList("a", "expired", "b"));
+		List<String> tested = new ArrayList<String>();
+		List<String> disposed = new ArrayList<String>();
+		RepositoryManager.reapIdle(idle,
+				(rm) -> { tested.add(rm); return !rm.equals("expired"); },
+				disposed::add);
+		assertEquals(Arrays.asList("a", "expired", "b"), tested);
+		assertEquals(Arrays.asList("expired"), disposed);
+		assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(idle));
+	}
+}
@@ -0,0 +1,563 @@
+package com.craiglowery.java.vlib.repository;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.craiglowery.java.vlib.common.IntegerSet;
+import com.craiglowery.java.vlib.common.L;
+import com.craiglowery.java.vlib.common.LambdaTwoStrings;
+import com.craiglowery.java.vlib.common.U_Exception;
+import com.craiglowery.java.vlib.tuple.SelectionTransformer;
+import com.craiglowery.java.vlib.tuple.SortDirective;
+import com.craiglowery.java.vlib.tuple.SortDirective.Order;
+import com.craiglowery.java.vlib.tuple.TableAdapter;
+
+/**
+ * The process-wide tag membership index used for fast tag testing during query evaluation.<p>
+ *
+ * The index is loaded once, with a single sorted scan of the {@code object_tags} table, and
+ * is then kept current by the RepositoryManager tagging methods.  Those methods hand their
+ * changes to the index only after the transaction that made them has committed, so a query
+ * that starts after a tagging call has returned always sees its effect, and a rolled back
+ * change is never seen at all.<p>
+ *
+ * Readers take no locks.  The maps are concurrent, and the handle and value sets they hold are
+ * never modified once published: a writer copies the set, changes the copy and puts the copy
+ * in place of the original.  Reading an {@link IntegerSet}, even as the operand of a set
+ * operation, only fills in its cached sizes and bounds, each of which can only go from unknown
+ * to its one correct value; the sizes are computed before a set is published.  Writers are
+ * serialized on the index monitor, which is also held during a load so that changes
+ * committed while the scan is running are applied on top of it.
+ * Changing a set is idempotent, so a change the scan already saw does no harm when it is
+ * applied again.<p>
+ *
+ * Handle sets are {@link IntegerSet} bitmaps, so tag expressions can be answered with set
+ * operations (see {@link RepositoryManager#getObjectsMatching(String)}).  The index also keeps
+ * the set of all object handles, which is the universe against which NOT is evaluated.<p>
+ *
+ * Sets returned by the accessors are shared and must not be modified by the caller.
+ */
+public class TagMembershipIndex {
+
+	public static final int CS=0;  //Case sensitive
+	public static final int CI=1;  //Case insensitive
+
+	/** The single index for this process **/
+	private static final TagMembershipIndex instance = new TagMembershipIndex();
+
+	/**
+	 * Returns the process-wide index.
+	 * @return The index.
+	 */
+	public static TagMembershipIndex getIndex() {
+		return instance;
+	}
+
+	//            tag          value   handles        0=CS, 1=CI (forced lower case)
+	private volatile ConcurrentHashMap<String,ConcurrentHashMap<String,IntegerSet>[]> byNameValue = null;
+
+	//            handle          tag     values      0=CS, 1=CI (forced lower case)
+	private volatile ConcurrentHashMap<Integer,ConcurrentHashMap<String,TreeSet<String>[]>> byHandle = null;
+
+	//            every object handle, tagged or not
+	private volatile IntegerSet allObjects = null;
+
+	private volatile Instant loaded = null;
+	private final AtomicLong metricLoads = new AtomicLong(0);
+	private final AtomicLong metricChanges = new AtomicLong(0);
+
+	private TagMembershipIndex() {}
+
+	/**
+	 * Determines if the index has been loaded.
+	 * @return True if the index is loaded and current.
+	 */
+	public boolean isLoaded() {
+		return loaded!=null;
+	}
+
+	/**
+	 * Applies a committed change to the index.  If the index is not loaded the change is
+	 * not recorded anywhere, so the catalog snapshot is told that the tag map it holds is no
+	 * longer complete.  That is done while holding the index monitor, so the index cannot be
+	 * loaded from the snapshot in between.
+	 * @param change The change, which calls one of the mutators below.
+	 * @param catalog The catalog snapshot.
+	 */
+	public synchronized void apply(Runnable change, CatalogSnapshot catalog) {
+		if (loaded==null)
+			catalog.tagsMissed();
+		else
+			change.run();
+	}
+
+	/**
+	 * Loads the index from the {@code object_tags} table if it is not already loaded.
+	 * @param object_tagsTable The tagging table, as seen by the calling RepositoryManager.
+	 * @param objectsTable The objects table, as seen by the calling RepositoryManager.
+	 * @throws U_Exception
+	 */
+	public void ensureLoaded(TableAdapter<Object_tagsTuple> object_tagsTable, TableAdapter<ObjectsTuple> objectsTable)
+		throws U_Exception
+	{
+		if (loaded==null)
+			synchronized (this) {
+				if (loaded==null)
+					load(object_tagsTable,objectsTable);
+			}
+	}
+
+	/**
+	 * Loads the index if it is not already loaded: from the catalog snapshot if it holds the
+	 * tag map, otherwise from the {@code object_tags} table, after which the snapshot is told
+	 * that its tag map should be written.
+	 * @param object_tagsTable The tagging table, as seen by the calling RepositoryManager.
+	 * @param objectsTable The objects table, as seen by the calling RepositoryManager.
+	 * @param catalog The loaded catalog snapshot, or null if it is not in use.
+	 * @throws U_Exception
+	 */
+	public void ensureLoaded(TableAdapter<Object_tagsTuple> object_tagsTable, TableAdapter<ObjectsTuple> objectsTable,
+			CatalogSnapshot catalog) throws U_Exception
+	{
+		if (catalog==null) {
+			ensureLoaded(object_tagsTable,objectsTable);
+			return;
+		}
+		boolean fromTable = false;
+		if (loaded==null)
+			synchronized (this) {
+				if (loaded==null) {
+					IntegerSet all = catalog.hasTags() ? catalog.allObjects() : null;
+					if (all!=null)
+						publish(all, (xform) -> catalog.forEachTagging(xform), "catalog snapshot");
+					else {
+						load(object_tagsTable,objectsTable);
+						fromTable = true;
+					}
+				}
+			}
+		//Outside the monitor, as the snapshot reads the index while holding its own
+		if (fromTable)
+			catalog.tagsChanged();
+	}
+
+	/**
+	 * Discards and reloads the index.  Only needed if {@code object_tags} has been changed
+	 * by something other than this process.
+	 * @param object_tagsTable The tagging table, as seen by the calling RepositoryManager.
+	 * @param objectsTable The objects table, as seen by the calling RepositoryManager.
+	 * @throws U_Exception
+	 */
+	public synchronized void reload(TableAdapter<Object_tagsTuple> object_tagsTable, TableAdapter<ObjectsTuple> objectsTable)
+		throws U_Exception
+	{
+		invalidate();
+		load(object_tagsTable,objectsTable);
+	}
+
+	/**
+	 * Discards the index.  It will be reloaded the next time it is needed.
+	 */
+	public synchronized void invalidate() {
+		loaded = null;
+		byNameValue = null;
+		byHandle = null;
+		allObjects = null;
+	}
+
+	private void load(TableAdapter<Object_tagsTuple> object_tagsTable, TableAdapter<ObjectsTuple> objectsTable)
+		throws U_Exception
+	{
+		IntegerSet all = new IntegerSet();
+		objectsTable.select(null, SortDirective.NONE, 0, (ot) -> { all.add(ot.handle); return true; });
+		publish(all, (xform) -> object_tagsTable.select(
+				null,
+				SortDirective.build("name",Order.Ascending,"value",Order.Ascending),
+				0,
+				xform), "object_tags");
+	}
+
+	/** Passes every tagging, sorted by tag name and value, to a transformer **/
+	private interface TaggingSource {
+		void visit(SelectionTransformer<Object_tagsTuple> xform) throws U_Exception;
+	}
+
+	/**
+	 * Builds the maps from the taggings and publishes them.
+	 * @param all The handles of every object.
+	 * @param taggings The taggings, sorted by tag name and value.
+	 * @param from Where the taggings came from, for the log.
+	 */
+	private void publish(IntegerSet all, TaggingSource taggings, String from) throws U_Exception {
+		Instant start = Instant.now();
+		ConcurrentHashMap<String,ConcurrentHashMap<String,IntegerSet>[]> nv = new ConcurrentHashMap<>();
+		ConcurrentHashMap<Integer,ConcurrentHashMap<String,TreeSet<String>[]>> bh = new ConcurrentHashMap<>();
+		taggings.visit(new Xform_Load(nv,bh));
+		all.size();
+		for (ConcurrentHashMap<String,IntegerSet>[] maps : nv.values())
+			for (ConcurrentHashMap<String,IntegerSet> map : maps)
+				for (IntegerSet handles : map.values())
+					handles.size();
+		allObjects = all;
+		byNameValue = nv;
+		byHandle = bh;
+		loaded = Instant.now();
+		metricLoads.incrementAndGet();
+		L.log(L.I, this, "Tag membership index loaded from %s for %d objects (%d tagged) in %s", from, all.size(),
+				bh.size(), Duration.between(start, loaded).toString());
+	}
+
+	/**
+	 * Visits the tagging table sorted by tag name and value, building the maps.  During a
+	 * load nothing else can see the maps, so the sets are filled in place.  Set cardinalities
+	 * are computed before the maps are published, since IntegerSet caches them lazily.
+	 */
+	private static class Xform_Load implements SelectionTransformer<Object_tagsTuple> {
+		final ConcurrentHashMap<String,ConcurrentHashMap<String,IntegerSet>[]> nv;
+		final ConcurrentHashMap<Integer,ConcurrentHashMap<String,TreeSet<String>[]>> bh;
+		String lastName=null;
+		String lastValue=null;
+		ConcurrentHashMap<String,IntegerSet> currentTagSet[] = null;
+		IntegerSet currentValueSet = null;
+
+		Xform_Load(ConcurrentHashMap<String,ConcurrentHashMap<String,IntegerSet>[]> nv,
+				   ConcurrentHashMap<Integer,ConcurrentHashMap<String,TreeSet<String>[]>> bh) {
+			this.nv = nv;
+			this.bh = bh;
+		}
+
+		public boolean action(Object_tagsTuple tuple) {
+			int handle = tuple.handle;   // Avoid multiple retrievals - they can be expensive
+			String name = tuple.name;
+			String value = tuple.value;
+			String civalue = value.toLowerCase();
+
+			if (!name.equals(lastName)) {
+				lastValue=null;
+				currentTagSet = newValueMaps();
+				nv.put(name, currentTagSet);
+				lastName=name;
+			}
+			if (!value.equals(lastValue)) {
+				currentValueSet = new IntegerSet();
+				currentTagSet[CS].put(value, currentValueSet);
+				lastValue=value;
+			}
+			currentValueSet.add(handle);
+			//Several case sensitive values may share one case insensitive value
+			IntegerSet ciSet = currentTagSet[CI].get(civalue);
+			if (ciSet==null)
+				currentTagSet[CI].put(civalue, ciSet = new IntegerSet());
+			ciSet.add(handle);
+
+			ConcurrentHashMap<String,TreeSet<String>[]> tagsForThisHandle = bh.get(handle);
+			if (tagsForThisHandle==null)
+				bh.put(handle, tagsForThisHandle = new ConcurrentHashMap<String,TreeSet<String>[]>());
+			TreeSet<String>[] valuesForThisHandle = tagsForThisHandle.get(name);
+			if (valuesForThisHandle==null)
+				tagsForThisHandle.put(name, valuesForThisHandle = newValueSets());
+			valuesForThisHandle[CS].add(value);
+			valuesForThisHandle[CI].add(civalue);
+			return true;
+		}
+	}
+
+	/** Allocates the case sensitive and insensitive value maps of a tag name **/
+	private static ConcurrentHashMap<String,IntegerSet>[] newValueMaps() {
+		//Arrays of a generic type can only be made from the wildcard type, which is safe here
+		//as the array never leaves this class
+		@SuppressWarnings("unchecked")
+		ConcurrentHashMap<String,IntegerSet>[] maps = (ConcurrentHashMap<String,IntegerSet>[])new ConcurrentHashMap<?,?>[2];
+		maps[CS] = new ConcurrentHashMap<String,IntegerSet>();
+		maps[CI] = new ConcurrentHashMap<String,IntegerSet>();
+		return maps;
+	}
+
+	/** Allocates the case sensitive and insensitive value sets of a tag on an object **/
+	private static TreeSet<String>[] newValueSets() {
+		@SuppressWarnings("unchecked")
+		TreeSet<String>[] sets = (TreeSet<String>[])new TreeSet<?>[2];
+		sets[CS] = new TreeSet<String>();
+		sets[CI] = new TreeSet<String>();
+		return sets;
+	}
+
+	//------------------------------------------------------------------------------------------
+	//-- Readers
+	//------------------------------------------------------------------------------------------
+
+	/**
+	 * Determines if an object is tagged with name=value.
+	 * @param handle The object.
+	 * @param name The tag name.
+	 * @param value The tag value.
+	 * @param ci True to compare the value case insensitively.
+	 * @return True if the object is tagged.  False if it is not, or the index is not loaded.
+	 */
+	public boolean isTagged(int handle, String name, String value, boolean ci) {
+		IntegerSet handles = objectsTaggedWith(name, value, ci);
+		return handles!=null && handles.contains(handle);
+	}
+
+	/**
+	 * Returns the handles of the objects tagged with name=value.
+	 * @param name The tag name.
+	 * @param value The tag value.
+	 * @param ci True to compare the value case insensitively.
+	 * @return The (shared, unmodifiable) handle set, or null if there are none.
+	 */
+	public IntegerSet objectsTaggedWith(String name, String value, boolean ci) {
+		ConcurrentHashMap<String,ConcurrentHashMap<String,IntegerSet>[]> nv = byNameValue;
+		if (nv==null)
+			return null;
+		ConcurrentHashMap<String,IntegerSet>[] maps = nv.get(name);
+		if (maps==null)
+			return null;
+		return ci ? maps[CI].get(value.toLowerCase()) : maps[CS].get(value);
+	}
+
+	/**
+	 * Returns the handles of every object in the library.
+	 * @return The (shared, unmodifiable) handle set, or null if the index is not loaded.
+	 */
+	public IntegerSet allObjects() {
+		return allObjects;
+	}
+
+	/**
+	 * Returns the values an object is tagged with for one tag name.
+	 * @param handle The object.
+	 * @param name The tag name.
+	 * @return The (shared, unmodifiable) value sets, indexed by {@link #CS} and {@link #CI},
+	 * or null if the object has no values for the tag.
+	 */
+	public TreeSet<String>[] valuesOfTagForHandle(Integer handle, String name) {
+		ConcurrentHashMap<Integer,ConcurrentHashMap<String,TreeSet<String>[]>> bh = byHandle;
+		if (bh==null)
+			return null;
+		ConcurrentHashMap<String,TreeSet<String>[]> tags = bh.get(handle);
+		return tags==null ? null : tags.get(name);
+	}
+
+	/**
+	 * Returns every tag an object is tagged with.
+	 * @param handle The object.
+	 * @return The (shared, unmodifiable) map from tag name to value sets, indexed by {@link #CS}
+	 * and {@link #CI}, or null if the object has no tags or the index is not loaded.
+	 */
+	public Map<String,TreeSet<String>[]> tagsOfHandle(Integer handle) {
+		ConcurrentHashMap<Integer,ConcurrentHashMap<String,TreeSet<String>[]>> bh = byHandle;
+		return bh==null ? null : bh.get(handle);
+	}
+
+	//------------------------------------------------------------------------------------------
+	//-- Writers.  These must only be called once the change is committed.
+	//------------------------------------------------------------------------------------------
+
+	/**
+	 * Passes every tagging in the index to a transformer, sorted by tag name and value.
+	 * @param xform Called for each tagging.  Returning false stops the walk.
+	 * @return False if the index is not loaded.
+	 * @throws U_Exception
+	 */
+	public synchronized boolean forEachTagging(SelectionTransformer<Object_tagsTuple> xform) throws U_Exception {
+		if (loaded==null)
+			return false;
+		for (Map.Entry<String,ConcurrentHashMap<String,IntegerSet>[]> name : new TreeMap<>(byNameValue).entrySet())
+			for (Map.Entry<String,IntegerSet> value : new TreeMap<>(name.getValue()[CS]).entrySet())
+				for (Integer handle : value.getValue()) {
+					Object_tagsTuple ot = new Object_tagsTuple();
+					ot.handle = handle;
+					ot.name = name.getKey();
+					ot.value = value.getKey();
+					if (!xform.action(ot))
+						return true;
+				}
+		return true;
+	}
+
+	/**
+	 * Records that an object has been created.
+	 * @param handle The new object.
+	 */
+	public synchronized void objectCreated(int handle) {
+		if (loaded==null)
+			return;
+		metricChanges.incrementAndGet();
+		allObjects = withHandle(allObjects, handle);
+	}
+
+	/**
+	 * Records that an object has been tagged with name=value.
+	 * @param handle The object.
+	 * @param name The tag name.
+	 * @param value The tag value.
+	 */
+	public synchronized void tagged(int handle, String name, String value) {
+		if (loaded==null)
+			return;
+		metricChanges.incrementAndGet();
+		String civalue = value.toLowerCase();
+
+		ConcurrentHashMap<String,IntegerSet>[] maps = byNameValue.get(name);
+		if (maps==null)
+			byNameValue.put(name, maps = newValueMaps());
+		maps[CS].put(value, withHandle(maps[CS].get(value), handle));
+		maps[CI].put(civalue, withHandle(maps[CI].get(civalue), handle));
+
+		ConcurrentHashMap<String,TreeSet<String>[]> tags = byHandle.get(handle);
+		if (tags==null)
+			byHandle.put(handle, tags = new ConcurrentHashMap<String,TreeSet<String>[]>());
+		TreeSet<String>[] old = tags.get(name);
+		TreeSet<String>[] sets = newValueSets();
+		if (old!=null) {
+			sets[CS].addAll(old[CS]);
+			sets[CI].addAll(old[CI]);
+		}
+		sets[CS].add(value);
+		sets[CI].add(civalue);
+		tags.put(name, sets);
+	}
+
+	/**
+	 * Records that the name=value tag has been removed from an object.
+	 * @param handle The object.
+	 * @param name The tag name.
+	 * @param value The tag value.
+	 */
+	public synchronized void untagged(int handle, String name, String value) {
+		if (loaded==null)
+			return;
+		metricChanges.incrementAndGet();
+		String civalue = value.toLowerCase();
+
+		//The object may still hold another value that is the same when case is ignored
+		boolean stillCI = false;
+		ConcurrentHashMap<String,TreeSet<String>[]> tags = byHandle.get(handle);
+		TreeSet<String>[] old = tags==null ? null : tags.get(name);
+		if (old!=null) {
+			TreeSet<String>[] sets = newValueSets();
+			for (String v : old[CS])
+				if (!v.equals(value)) {
+					sets[CS].add(v);
+					sets[CI].add(v.toLowerCase());
+				}
+			stillCI = sets[CI].contains(civalue);
+			if (sets[CS].isEmpty()) {
+				tags.remove(name);
+				if (tags.isEmpty())
+					byHandle.remove(handle);
+			} else
+				tags.put(name, sets);
+		}
+
+		ConcurrentHashMap<String,IntegerSet>[] maps = byNameValue.get(name);
+		if (maps==null)
+			return;
+		putOrRemove(maps[CS], value, withoutHandle(maps[CS].get(value), handle));
+		if (!stillCI)
+			putOrRemove(maps[CI], civalue, withoutHandle(maps[CI].get(civalue), handle));
+		if (maps[CS].isEmpty())
+			byNameValue.remove(name);
+	}
+
+	/**
+	 * Records that a name=value pair has been undefined.  Any object still recorded as tagged
+	 * with it is untagged.
+	 * @param name The tag name.
+	 * @param value The tag value.
+	 */
+	public synchronized void valueDeleted(String name, String value) {
+		if (loaded==null)
+			return;
+		IntegerSet handles = objectsTaggedWith(name, value, false);
+		if (handles!=null)
+			for (Integer handle : handles)
+				untagged(handle, name, value);
+	}
+
+	/**
+	 * Records that an object has been retired, removing all of its tags.
+	 * @param handle The object.
+	 */
+	public synchronized void retired(int handle) {
+		if (loaded==null)
+			return;
+		allObjects = withoutHandle(allObjects, handle);
+		ConcurrentHashMap<String,TreeSet<String>[]> tags = byHandle.get(handle);
+		if (tags==null)
+			return;
+		Map<String,TreeSet<String>> toRemove = new HashMap<>();
+		for (Map.Entry<String,TreeSet<String>[]> e : tags.entrySet())
+			toRemove.put(e.getKey(), e.getValue()[CS]);
+		for (Map.Entry<String,TreeSet<String>> e : toRemove.entrySet())
+			for (String value : e.getValue())
+				untagged(handle, e.getKey(), value);
+	}
+
+	private static IntegerSet withHandle(IntegerSet old, int handle) {
+		if (old!=null && old.contains(handle))
+			return old;
+		IntegerSet copy = old==null ? new IntegerSet() : old.clone();
+		copy.add(handle);
+		copy.size();
+		return copy;
+	}
+
+	private static IntegerSet withoutHandle(IntegerSet old, int handle) {
+		if (old==null || !old.contains(handle))
+			return old;
+		IntegerSet copy = old.clone();
+		copy.remove(handle);
+		copy.size();
+		return copy;
+	}
+
+	private static void putOrRemove(ConcurrentHashMap<String,IntegerSet> map, String key, IntegerSet set) {
+		if (set==null || set.isEmpty())
+			map.remove(key);
+		else
+			map.put(key, set);
+	}
+
+	/**
+	 * Creates a report on the index for administrators.
+	 * @param doc The {@code Document} that owns the report nodes.
+	 * @return The {@code <tagindex>} element, to be inserted by the caller.
+	 */
+	public Element statusXml(Document doc) {
+		Element elIndex = doc.createElement("tagindex");
+		LambdaTwoStrings add = (name,value) -> {
+			Element el = doc.createElement(name);
+			el.appendChild(doc.createTextNode(value));
+			elIndex.appendChild(el);
+		};
+		Instant when = loaded;
+		ConcurrentHashMap<Integer,ConcurrentHashMap<String,TreeSet<String>[]>> bh = byHandle;
+		ConcurrentHashMap<String,ConcurrentHashMap<String,IntegerSet>[]> nv = byNameValue;
+		add.op("loaded", when==null?"no":when.toString());
+		IntegerSet all = allObjects;
+		add.op("objects", Integer.toString(all==null?0:all.size()));
+		add.op("taggedobjects", Integer.toString(bh==null?0:bh.size()));
+		add.op("tagnames", Integer.toString(nv==null?0:nv.size()));
+		add.op("loads", Long.toString(metricLoads.get()));
+		add.op("changes", Long.toString(metricChanges.get()));
+		return elIndex;
+	}
+}
@@ -0,0 +1,119 @@
+package com.craiglowery.java.vlib.repository;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.craiglowery.java.vlib.common.U_Exception;
+import com.craiglowery.java.vlib.filter.ExpressionFactory;
+import com.craiglowery.java.vlib.filter.WhereConditionParser;
+
+/**
+ * Unit test for queries answered from the tag membership index, loaded from tables held in
+ * memory.
+ *
+ */
+public class TagMembershipIndexTest {
+
+	private static final String[] GENRES = {"comedy", "drama", "western"};
+
+	@BeforeClass
+	public static void logging() {
+		//Normally set up when the first U_Exception is made
+		if (U_Exception.logger==null)
+			U_Exception.logger = Logger.getLogger(TagMembershipIndexTest.class);
+	}
+
+	@After
+	public void discardIndex() {
+		TagMembershipIndex.getIndex().invalidate();
+	}
+
+	/**
+	 * Runs queries with NOT and != from several threads at once.  They take the difference of
+	 * the published handle sets, which must not disturb those sets for the other readers.
+	 */
+	@Test
+	public void concurrentNegatedQueries() throws Exception {
+		final int OBJECTS = 200000;
+		ListTable<VersionsTuple> versions = new ListTable<VersionsTuple>(VersionsTuple.class,
+				Comparator.comparing((VersionsTuple vt) -> vt.handle));
+		ListTable<ObjectsTuple> objects = new ListTable<ObjectsTuple>(ObjectsTuple.class,
+				Comparator.comparing((ObjectsTuple o) -> o.handle));
+		ListTable<Object_tagsTuple> object_tags = new ListTable<Object_tagsTuple>(Object_tagsTuple.class,
+				Comparator.comparing((Object_tagsTuple ot) -> ot.name).thenComparing((Object_tagsTuple ot) -> ot.value));
+		for (int handle=1; handle<=OBJECTS; handle++) {
+			ObjectsTuple o = new ObjectsTuple();
+			o.handle = handle;
+			objects.rows.add(o);
+			//Every seventh object is untagged, so the universe differs from the union of values
+			if (handle%7!=0) {
+				Object_tagsTuple ot = new Object_tagsTuple();
+				ot.handle = handle;
+				ot.name = "genre";
+				ot.value = GENRES[handle%GENRES.length];
+				object_tags.rows.add(ot);
+			}
+		}
+		TagMembershipIndex index = TagMembershipIndex.getIndex();
+		index.invalidate();
+		index.ensureLoaded(object_tags, objects);
+
+		ExpressionFactory ef = new ExpressionFactory(null, versions, Collections.singletonList("genre"));
+		String[] queries = {
+				"genre != 'comedy'",
+				"NOT genre = 'drama'",
+				"genre != 'comedy' AND genre != 'western'",
+				"NOT (genre = 'drama' OR genre = 'western')"
+		};
+		List<ExpressionFactory.Expr> trees = new ArrayList<ExpressionFactory.Expr>();
+		int[] expected = new int[queries.length];
+		for (int q=0; q<queries.length; q++) {
+			trees.add(WhereConditionParser.parseFilterExpression(queries[q], ef));
+			expected[q] = ef.evalTagSet(trees.get(q), index).size();
+		}
+		int perGenre = 0;
+		for (int handle=1; handle<=OBJECTS; handle++)
+			if (handle%7!=0 && handle%GENRES.length==0)
+				perGenre++;
+		assertEquals(OBJECTS-perGenre, expected[0]);
+
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<?>> runs = new ArrayList<Future<?>>();
+			for (int t=0; t<8; t++) {
+				final int first = t;
+				runs.add(pool.submit(() -> {
+					for (int x=0; x<1000; x++) {
+						int q = (first+x)%queries.length;
+						assertEquals(queries[q], expected[q], ef.evalTagSet(trees.get(q), index).size());
+					}
+					return null;
+				}));
+			}
+			for (Future<?> run : runs)
+				run.get();
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(10, TimeUnit.SECONDS);
+		}
+	}
+}
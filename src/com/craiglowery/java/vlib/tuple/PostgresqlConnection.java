@@ -8,8 +8,15 @@ package com.craiglowery.java.vlib.tuple;
  */
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.craiglowery.java.vlib.common.Config;
+import com.craiglowery.java.vlib.common.ConfigurationKey;
 import com.craiglowery.java.vlib.common.U_Exception;
 import com.craiglowery.java.vlib.common.U_Exception.ERROR;
 
@@ -22,6 +29,34 @@ public class PostgresqlConnection extends PersistenceConnection {
 	
 	public Connection db=null;
 	
+	/** True while a selection cursor holds a transaction of its own open on the connection.  That
+	 * transaction is not the caller's, so it is not reported by transactionInProgress(). **/
+	boolean cursorTransaction=false;
+	
+	/** Statement cache hits and misses across all connections **/
+	private static final AtomicLong metricStatementHits = new AtomicLong(0);
+	private static final AtomicLong metricStatementMisses = new AtomicLong(0);
+	
+	/** Statement cache hits and misses on this connection **/
+	private long statementHits=0, statementMisses=0;
+	
+	/** The most statements kept in the cache.  This can be overridden in the configuration file **/
+	private int statementCacheSize=64;
+	
+	/** Idle prepared statements, keyed by their SQL text, least recently used first.  A statement
+	 * is removed while it is checked out, so it is never shared by two open result sets. **/
+	private final LinkedHashMap<String,PreparedStatement> statementCache = 
+			new LinkedHashMap<String,PreparedStatement>(16,0.75f,true) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest) {
+					if (size()<=statementCacheSize)
+						return false;
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+			};
+	
 	/**
 	 * Creates a new instance of the VLIB database adapter.
 	 */
@@ -40,6 +75,104 @@ public class PostgresqlConnection extends PersistenceConnection {
 		} catch (SQLException | ClassNotFoundException e) {
 			throw new U_Exception(U_Exception.ERROR.DatabaseError,"Unable to connect to to Postgres database",e);
 		}
+		Integer scs = Config.getInt(ConfigurationKey.STATEMENT_CACHE_SIZE);
+		if (scs!=null && scs>=0)
+			statementCacheSize = scs;
+	}
+	
+	/**
+	 * Checks out a prepared statement for the SQL text, reusing a cached one if there is one.
+	 * The statement must be returned with {@link #release(String, PreparedStatement)}, not closed,
+	 * once its result set is no longer needed.  If the same text is checked out again before it
+	 * is released, a second statement is prepared.<p>
+	 * 
+	 * Reusing the statement lets the driver keep the plan it prepares on the server after a
+	 * statement has been executed a few times, so the text should contain placeholders rather
+	 * than literals wherever the values vary.
+	 * 
+	 * @param sql The SQL text.
+	 * @return The prepared statement, with no parameters bound.
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		return prepare(sql,null);
+	}
+	
+	/**
+	 * Checks out a prepared statement for the SQL text that returns the named columns of the
+	 * rows it changes through {@code getGeneratedKeys()}, including for each statement of a batch.
+	 * See {@link #prepare(String)}.  Statements are cached by their text alone, so a given text
+	 * must always be prepared with the same columns.
+	 * 
+	 * @param sql The SQL text of an INSERT, UPDATE or DELETE.
+	 * @param returning The columns to return, or null for none.
+	 * @return The prepared statement, with no parameters bound.
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepare(String sql, String[] returning) throws SQLException {
+		PreparedStatement pst = statementCache.remove(sql);
+		if (pst!=null && !pst.isClosed()) {
+			statementHits++;
+			metricStatementHits.incrementAndGet();
+			return pst;
+		}
+		statementMisses++;
+		metricStatementMisses.incrementAndGet();
+		return returning==null ? db.prepareStatement(sql) : db.prepareStatement(sql,returning);
+	}
+	
+	/**
+	 * Returns a statement checked out with {@link #prepare(String)} to the cache.  Its result set,
+	 * if any, is closed.  If the least recently used statement no longer fits, it is closed.
+	 * @param sql The SQL text the statement was prepared for.
+	 * @param pst The statement.  Ignored if null.
+	 */
+	public void release(String sql, PreparedStatement pst) {
+		if (pst==null)
+			return;
+		if (db==null || statementCacheSize==0) {
+			closeQuietly(pst);
+			return;
+		}
+		try {
+			pst.clearParameters();
+			pst.clearBatch();
+			pst.setFetchSize(0);
+		} catch (SQLException e) {
+			closeQuietly(pst);
+			return;
+		}
+		PreparedStatement other = statementCache.put(sql, pst);
+		if (other!=null && other!=pst)
+			closeQuietly(other);
+	}
+	
+	private static void closeQuietly(PreparedStatement pst) {
+		try {
+			pst.close();
+		} catch (SQLException e) {
+			/* ignore */
+		}
+	}
+	
+	/** @return The number of statements served from the cache of this connection. **/
+	public long statementCacheHits() {
+		return statementHits;
+	}
+	
+	/** @return The number of statements prepared because they were not in the cache of this connection. **/
+	public long statementCacheMisses() {
+		return statementMisses;
+	}
+	
+	/** @return The number of statements served from the caches of all connections. **/
+	public static long totalStatementCacheHits() {
+		return metricStatementHits.get();
+	}
+	
+	/** @return The number of statements prepared because they were not in the caches of all connections. **/
+	public static long totalStatementCacheMisses() {
+		return metricStatementMisses.get();
 	}
 
 	private void checkOpen() throws U_Exception {
@@ -50,6 +183,8 @@ public class PostgresqlConnection extends PersistenceConnection {
 		checkOpen();
 		if (transactionInProgress())
 			throw new U_Exception(U_Exception.ERROR.QueryError,"Transaction already in progress");
+		if (cursorTransaction)
+			throw new U_Exception(U_Exception.ERROR.QueryError,"A transaction cannot be started while a selection cursor is open");
 		try {
 			db.setAutoCommit(false);
 		} catch (SQLException e) {
@@ -98,7 +233,7 @@ public class PostgresqlConnection extends PersistenceConnection {
 		throws U_Exception
 	{
 		try {
-			return !db.getAutoCommit();
+			return !db.getAutoCommit() && !cursorTransaction;
 		} catch (SQLException se) {
 			throw new U_Exception(U_Exception.ERROR.QueryError,"SQL Error: "+se.getMessage());
 		}
@@ -113,6 +248,10 @@ public class PostgresqlConnection extends PersistenceConnection {
 	{
 		if (db!=null)
 		try {
+			for (Iterator<PreparedStatement> i=statementCache.values().iterator(); i.hasNext(); ) {
+				closeQuietly(i.next());
+				i.remove();
+			}
 			if (transactionInProgress())
 				db.rollback();
 			db.close();
@@ -7,6 +7,7 @@ package com.craiglowery.java.vlib.tuple;
  *         Binary Large Object Store system.
  *         
  */
+import java.lang.invoke.MethodHandle;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
@@ -15,9 +16,11 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import com.craiglowery.java.vlib.common.Config;
@@ -29,6 +32,7 @@ import com.craiglowery.java.vlib.tuple.SortDirective.Order;
 import com.craiglowery.java.vlib.tuple.filterexp.TupleExpressionFactory;
 import com.craiglowery.java.vlib.tuple.filterexp.FilterExpressionException;
 import com.craiglowery.java.vlib.tuple.filterexp.PostgresqlExpressionGenerator;
+import com.craiglowery.java.vlib.tuple.filterexp.PostgresqlExpressionGenerator.ArrayParameter;
 import com.craiglowery.java.vlib.tuple.Tuple.Type;
 
 /**
@@ -41,6 +45,10 @@ public class PostgresqlTableAdapter<T extends Tuple> extends TableAdapter<T> {
 	String tablename=null;
 	Connection db = null;
 	int maxTableResultSize = 1024*10;  //This can be overridden in the configuration file
+	int fetchSize = 1000;  //This can be overridden in the configuration file
+	
+	/** Reads each column of a selection into its attribute.  Columns are selected in attribute order. **/
+	private ColumnReader[] columnReaders=null;
 	
 	/** Comma separated list of all SQL attribute names for this tuple **/
 	private String selectAttributes=null;
@@ -89,13 +97,23 @@ public class PostgresqlTableAdapter<T extends Tuple> extends TableAdapter<T> {
 	/** A prepared PostgresSQL statement for performing SELECT using a primary key to identify a single tuple. **/
 	private String SELECT_BY_KEY=null;
 	
+	/** A prepared PostgresSQL statement for performing UPDATE of the non-key attributes of a single tuple. **/
+	private String UPDATE_BY_KEY=null;
+	
+	/** A prepared PostgresSQL statement for performing DELETE of a single tuple. **/
+	private String DELETE_BY_KEY=null;
+	
 	public PostgresqlTableAdapter(Class<? extends Tuple> tupleSubClass, PersistenceConnection store,  String tablename, boolean strict) throws U_Exception {
 		super(tupleSubClass, store);
 		db = ((PostgresqlConnection)store).db;
+		columnReaders = columnReaders(RD);
 		this.tablename = tablename;
 		Integer mtrs = Config.getInt(ConfigurationKey.MAX_TABLE_RESULT_SIZE);
 		if (mtrs!=null)
 			maxTableResultSize = mtrs;
+		Integer sfs = Config.getInt(ConfigurationKey.SELECT_FETCH_SIZE);
+		if (sfs!=null && sfs>0)
+			fetchSize = sfs;
 		
 		//For later performant lookup of field offsets, we will create fixed-length arrays of
 		//primitive ints and Strings.  However, we don't know the lengths of these arrays at this
@@ -175,7 +193,7 @@ public class PostgresqlTableAdapter<T extends Tuple> extends TableAdapter<T> {
 		SELECT_BY_KEY =
 				new StringBuilder()
 				.append("SELECT ")
-				.append(insertAttributes)
+				.append(selectAttributes)
 				.append(" FROM ")
 				.append(tablename)
 				.append(" WHERE ")
@@ -183,6 +201,19 @@ public class PostgresqlTableAdapter<T extends Tuple> extends TableAdapter<T> {
 				.append(";")
 				.toString();
 		
+		StringBuilder sb = new StringBuilder("UPDATE ").append(tablename).append(" SET ");
+		boolean first=true;
+		for (String attribute : RD.attributeNames) {
+			if (isInPrimaryKey(attribute)) continue;   // We don't update key values
+			if (!first)
+				sb.append(", ");
+			sb.append(attribute).append("=?");
+			first=false;
+		}
+		UPDATE_BY_KEY = sb.append(" WHERE ").append(selectWhere).append(";").toString();
+		
+		DELETE_BY_KEY = new StringBuilder("DELETE FROM ").append(tablename).append(" WHERE ").append(selectWhere).append(";").toString();
+		
 		vetTable(strict);
 	}
 	
@@ -297,8 +328,76 @@ public class PostgresqlTableAdapter<T extends Tuple> extends TableAdapter<T> {
 			SortDirective[] sort, 
 			int limit,
 			SelectionTransformer<T> xform) throws U_Exception {
+		List<Object> params = new ArrayList<Object>();
+		String sql = selectStatement(filter,sort,limit,params);
+		if (xform!=null) {
+			//Transformed selections are read through a cursor, and so are not size limited
+			try (Cursor cursor = new Cursor(sql,params)) {
+				T tuple;
+				while ((tuple=cursor.fetch())!=null)
+					try {
+						if (!xform.action(tuple))
+							break;
+					} catch (Exception e) {
+						if (e.getClass().equals(U_Exception.class))
+							throw (U_Exception)e;
+						throw new U_Exception(ERROR.Unexpected,e);
+					}
+			}
+			return null;
+		}
+		PostgresqlConnection pc = (PostgresqlConnection)store;
+		PreparedStatement pst = null;
+		try {
+			pst = pc.prepare(sql);
+			bind(pst,params);
+			try (ResultSet rs = pst.executeQuery()) {
+				LinkedList<T> result = new LinkedList<T>();
+				int count=0;
+				while (rs.next()) {
+					if (++count>maxTableResultSize)
+						throw new U_Exception(U_Exception.ERROR.QueryError,
+								String.format("Table adapter result set size %d limit exceeded",maxTableResultSize));
+					result.add(load(rs));
+				}
+				return result;
+			}
+		} catch (SQLException e) {
+			throw new U_Exception(U_Exception.ERROR.QueryError,"Select failed",e);
+		} finally {
+			pc.release(sql,pst);
+		}
+	}
+	
+	/**
+	 * Opens a server side cursor over a filtered selection.  The rows are read from the
+	 * database {@code SELECT_FETCH_SIZE} at a time as the cursor is read, so only that many
+	 * are held in memory however large the selection is.<p>
+	 * 
+	 * The PostgreSQL driver only reads through a cursor inside a transaction.  If the connection
+	 * is not in one, one is started for the life of the cursor and committed when it is closed.
+	 * Statements issued on the same connection while the cursor is open are part of it, and
+	 * so are not visible to other connections until then.  It is not reported by
+	 * {@code transactionInProgress()}, and no other transaction can be started until it ends.
+	 */
+	@Override
+	public SelectionCursor<T> iterate(TupleExpressionFactory.Node filter, SortDirective[] sort, int limit)
+		throws U_Exception
+	{
+		List<Object> params = new ArrayList<Object>();
+		return new Cursor(selectStatement(filter,sort,limit,params),params);
+	}
+	
+	/**
+	 * Builds the text of a SELECT statement.  The literals of the filter are replaced by
+	 * placeholders, so that selections which differ only in their values share a prepared statement.
+	 * @param params Receives the values to bind to the placeholders.
+	 */
+	private String selectStatement(TupleExpressionFactory.Node filter, SortDirective[] sort, int limit, List<Object> params) 
+		throws U_Exception 
+	{
 		try {
-			String sfilter = filter==null ? "true" : PostgresqlExpressionGenerator.expand(filter);
+			String sfilter = filter==null ? "true" : PostgresqlExpressionGenerator.expand(filter,params);
 			String ssort = "";
 			if (sort==null) {
 				sort = new SortDirective[RD.primaryKeysIndex.size()];
@@ -310,61 +409,213 @@ public class PostgresqlTableAdapter<T extends Tuple> extends TableAdapter<T> {
 				StringBuilder ssb = new StringBuilder(" ORDER BY ");
 				for (int x=0; x<sort.length; x++) {
 					if (x>0) ssb.append(", ");
-					ssb.append(sort[x].attribute).append(sort[x].order==Order.Ascending?" ASC":" DESC;");
+					ssb.append(sort[x].attribute).append(sort[x].order==Order.Ascending?" ASC":" DESC");
 				}
 				ssort=ssb.toString();
 			}
 			String limitClause = limit==0 ? "" : " LIMIT "+limit;
 			
-			StringBuilder sb = new StringBuilder("SELECT ").append(selectAttributes).append(" FROM ").append(tablename).append(" WHERE ")
-				.append(sfilter).append(ssort).append(limitClause).append(";");
-
-			try (Statement st = ((PostgresqlConnection)store).db.createStatement()) {
-				ResultSet rs = st.executeQuery(sb.toString());
-				LinkedList<T> result = null;
-				if (xform==null)
-					result = new LinkedList<T>();
-				int count=0;
-				while (rs.next()) {
-					if (xform==null && ++count>maxTableResultSize)
-						throw new U_Exception(U_Exception.ERROR.QueryError,
-								String.format("Table adapter result set size %d limit exceeded",maxTableResultSize));
-					//We will assume column names have been vetted and are congruent
-					@SuppressWarnings("unchecked")
-					T tuple = (T)servicedClass.newInstance();
-					for (int f=0; f<numberOfAttributes(); f++) {
-						// Load the tuple's field from the SQL result set
-						tuple.setAttributeValue(f,rs.getObject(RD.attributeNames.get(f)));  // The base Tuple class handles Timestamp to Instant automatically
-					}
-					try {
-						tuple.postLoad((Object[])null);
-					} catch (U_Exception e) {
-						/* ignore - best effort load */
-					}
-					if (xform==null)
-						result.add(tuple);
-					else 
-						try {
-							if (!xform.action(tuple))
-								break;
-						} catch (Exception e) {
-							if (e.getClass().equals(U_Exception.class))
-								throw (U_Exception)e;
-							throw new U_Exception(ERROR.Unexpected,e);
-						}
-				}
-				return result;
-			} 
-			
+			return new StringBuilder("SELECT ").append(selectAttributes).append(" FROM ").append(tablename).append(" WHERE ")
+				.append(sfilter).append(ssort).append(limitClause).append(";").toString();
 		} catch (FilterExpressionException e) {
 			throw new U_Exception(U_Exception.ERROR.ParserError,"Could not create postgres expression",e);
-		} catch (SQLException e) {
-			throw new U_Exception(U_Exception.ERROR.QueryError,"Select failed",e);
-		} catch (InstantiationException e) {
-			throw new U_Exception(U_Exception.ERROR.Unexpected,"Unable to create or populate new tuple",e);
-		} catch (IllegalAccessException e) {
+		}
+	}
+	
+	/**
+	 * Binds the values collected while expanding a filter to the placeholders of a statement.
+	 */
+	private static void bind(PreparedStatement pst, List<Object> params) throws SQLException {
+		for (int x=0; x<params.size(); x++) {
+			Object param = params.get(x);
+			if (param instanceof ArrayParameter) {
+				ArrayParameter array = (ArrayParameter)param;
+				pst.setArray(x+1, pst.getConnection().createArrayOf(array.sqlType, array.elements));
+			} else
+				pst.setObject(x+1, param);
+		}
+	}
+	
+	/**
+	 * Reads one column of the current row of a result set into an attribute of a tuple.
+	 */
+	interface ColumnReader {
+		void read(ResultSet rs, int column, Tuple t) throws Throwable;
+	}
+	
+	/**
+	 * Creates a reader for each attribute of a tuple class, in attribute order.  Each reads its
+	 * column by position with the getter for its type, and stores it straight into the field
+	 * through the setter handle, so loading a row involves no name lookups, type classification
+	 * or reflective calls.  The table has been vetted, so the column types are known to agree.
+	 */
+	static ColumnReader[] columnReaders(TupleSubClassReflectedData rd) {
+		ColumnReader[] readers = new ColumnReader[rd.tupleTypes.size()];
+		for (int f=0; f<readers.length; f++) {
+			MethodHandle set = rd.setters.get(f);
+			switch (rd.tupleTypes.get(f)) {
+				case String:
+					readers[f] = (rs,c,t) -> { set.invokeExact(t, (Object)rs.getString(c)); };
+					break;
+				case Integer:
+					readers[f] = (rs,c,t) -> { int v=rs.getInt(c); set.invokeExact(t, (Object)(rs.wasNull()?null:Integer.valueOf(v))); };
+					break;
+				case Long:
+					readers[f] = (rs,c,t) -> { long v=rs.getLong(c); set.invokeExact(t, (Object)(rs.wasNull()?null:Long.valueOf(v))); };
+					break;
+				case Double:
+					readers[f] = (rs,c,t) -> { double v=rs.getDouble(c); set.invokeExact(t, (Object)(rs.wasNull()?null:Double.valueOf(v))); };
+					break;
+				case Boolean:
+					readers[f] = (rs,c,t) -> { boolean v=rs.getBoolean(c); set.invokeExact(t, (Object)(rs.wasNull()?null:Boolean.valueOf(v))); };
+					break;
+				case Instant:
+					readers[f] = (rs,c,t) -> { Timestamp v=rs.getTimestamp(c); set.invokeExact(t, (Object)(v==null?null:v.toInstant())); };
+					break;
+				default:
+					throw new IllegalArgumentException("Unsupported type "+rd.tupleTypes.get(f).name());
+			}
+		}
+		return readers;
+	}
+	
+	/**
+	 * Reads the current row of a result set, whose columns are the attributes in order, into a tuple.
+	 */
+	static void read(ColumnReader[] readers, ResultSet rs, Tuple tuple) throws U_Exception, SQLException {
+		try {
+			for (int f=0; f<readers.length; f++)
+				readers[f].read(rs, f+1, tuple);
+		} catch (SQLException | RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			//Setter handles throw nothing else, so this is a checked exception
+			throw new U_Exception(U_Exception.ERROR.Unexpected,"Unable to populate tuple",(Exception)e);
+		}
+	}
+	
+	/**
+	 * Creates a tuple from the current row of a result set.
+	 */
+	private T load(ResultSet rs) throws U_Exception, SQLException {
+		T tuple;
+		try {
+			@SuppressWarnings("unchecked")
+			T t = (T)servicedClass.newInstance();
+			tuple = t;
+		} catch (InstantiationException | IllegalAccessException e) {
 			throw new U_Exception(U_Exception.ERROR.Unexpected,"Unable to create or populate new tuple",e);
 		}
+		read(columnReaders, rs, tuple);
+		try {
+			tuple.postLoad((Object[])null);
+		} catch (U_Exception e) {
+			/* ignore - best effort load */
+		}
+		return tuple;
+	}
+	
+	/**
+	 * A selection read through a server side cursor.  See {@link PostgresqlTableAdapter#iterate}.
+	 */
+	private class Cursor implements SelectionCursor<T> {
+		private final String sql;
+		private PreparedStatement st = null;
+		private ResultSet rs = null;
+		private boolean ownTransaction = false;
+		private boolean exhausted = false;
+		private T next = null;
+		
+		Cursor(String sql, List<Object> params) throws U_Exception {
+			this.sql = sql;
+			PostgresqlConnection pc = (PostgresqlConnection)store;
+			Connection c = pc.db;
+			try {
+				if (c.getAutoCommit()) {
+					c.setAutoCommit(false);
+					ownTransaction = true;
+					pc.cursorTransaction = true;
+				}
+				st = pc.prepare(sql);
+				bind(st,params);
+				st.setFetchSize(fetchSize);
+				rs = st.executeQuery();
+			} catch (SQLException e) {
+				close();
+				throw new U_Exception(U_Exception.ERROR.QueryError,"Select failed",e);
+			}
+		}
+		
+		@Override
+		public T fetch() throws U_Exception {
+			if (next!=null) {
+				T t = next;
+				next = null;
+				return t;
+			}
+			if (exhausted)
+				return null;
+			try {
+				if (rs.next())
+					return load(rs);
+			} catch (SQLException e) {
+				throw new U_Exception(U_Exception.ERROR.QueryError,"Select failed",e);
+			}
+			exhausted = true;
+			return null;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if (next==null)
+				try {
+					next = fetch();
+				} catch (U_Exception e) {
+					throw new CursorException(e);
+				}
+			return next!=null;
+		}
+		
+		@Override
+		public T next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			T t = next;
+			next = null;
+			return t;
+		}
+		
+		@Override
+		public void close() throws U_Exception {
+			PostgresqlConnection pc = (PostgresqlConnection)store;
+			Connection c = pc.db;
+			SQLException failure = null;
+			try {
+				if (rs!=null)
+					rs.close();
+			} catch (SQLException e) {
+				failure = e;
+			}
+			pc.release(sql,st);
+			st = null;
+			rs = null;
+			exhausted = true;
+			if (ownTransaction) {
+				ownTransaction = false;
+				try {
+					c.commit();
+				} catch (SQLException e) {
+					if (failure==null)
+						failure = e;
+					try { c.rollback(); } catch (SQLException e2) { /* reported below */ }
+				} finally {
+					pc.cursorTransaction = false;
+					try { c.setAutoCommit(true); } catch (SQLException e) { if (failure==null) failure = e; }
+				}
+			}
+			if (failure!=null)
+				throw new U_Exception(U_Exception.ERROR.QueryError,"Could not close selection cursor",failure);
+		}
 	}
 
 
@@ -388,14 +639,20 @@ public class PostgresqlTableAdapter<T extends Tuple> extends TableAdapter<T> {
 	 */
 	public int delete(TupleExpressionFactory.Node filter) throws U_Exception  {
 		try {
-			String sfilter = filter==null ? "true" : PostgresqlExpressionGenerator.expand(filter);
-			StringBuilder sb = new StringBuilder("DELETE FROM ").append(tablename).append(" WHERE ")
-				.append(sfilter).append(";");
+			List<Object> params = new ArrayList<Object>();
+			String sfilter = filter==null ? "true" : PostgresqlExpressionGenerator.expand(filter,params);
+			String sql = new StringBuilder("DELETE FROM ").append(tablename).append(" WHERE ")
+				.append(sfilter).append(";").toString();
 
-			try (Statement st = ((PostgresqlConnection)store).db.createStatement()) {
-				st.execute(sb.toString());
-				return st.getUpdateCount();
-			} 
+			PostgresqlConnection pc = (PostgresqlConnection)store;
+			PreparedStatement pst = null;
+			try {
+				pst = pc.prepare(sql);
+				bind(pst,params);
+				return pst.executeUpdate();
+			} finally {
+				pc.release(sql,pst);
+			}
 		} catch (FilterExpressionException e) {
 			throw new U_Exception(U_Exception.ERROR.ParserError,"Could not create postgres expression",e);
 		} catch (SQLException e) {
@@ -413,17 +670,16 @@ public class PostgresqlTableAdapter<T extends Tuple> extends TableAdapter<T> {
 	 */
 	public boolean delete(T t) throws U_Exception{
 		if (numberOfPrimaryKeys()==0) return false;
+		PostgresqlConnection pc = (PostgresqlConnection)store;
+		PreparedStatement pst = null;
 		try { 
-			StringBuilder sb = new StringBuilder("DELETE FROM ").append(tablename).append(" WHERE ")
-					.append(PostgresqlExpressionGenerator.expand(getPrimaryKeyExpression(t))).append(";");
-			try (Statement st = ((PostgresqlConnection)store).db.createStatement()) {
-				st.execute(sb.toString());
-				return st.getUpdateCount()!=0;
-			}
-		} catch (FilterExpressionException e) {
-			throw new U_Exception(U_Exception.ERROR.Unexpected,e);
+			pst = pc.prepare(DELETE_BY_KEY);
+			bindKey(pst,t,1);
+			return pst.executeUpdate()!=0;
 		} catch (SQLException e) {
 			throw new U_Exception(U_Exception.ERROR.QueryError,e);
+		} finally {
+			pc.release(DELETE_BY_KEY,pst);
 		}
 	}
 	
@@ -437,32 +693,22 @@ public class PostgresqlTableAdapter<T extends Tuple> extends TableAdapter<T> {
 	public boolean update(T t) throws U_Exception {
 		t.preStore((Object[])null);
 		if (numberOfPrimaryKeys()==0) return false;
+		PostgresqlConnection pc = (PostgresqlConnection)store;
+		PreparedStatement pst = null;
 		try { 
-			StringBuilder sb = new StringBuilder("UPDATE ").append(tablename).append(" SET ");
-			boolean first=true;
+			pst = pc.prepare(UPDATE_BY_KEY);
+			int parmnum=0;
 			for (int x=0; x<numberOfAttributes(); x++) {
 				String attribute = RD.attributeNames.get(x);
 				if (isInPrimaryKey(attribute)) continue;   // We don't update key values
-				if (!first)
-					sb.append(", ");
-				sb.append(attribute).append("=?");
-				first=false;
-			}
-			sb.append(" WHERE ").append(PostgresqlExpressionGenerator.expand(getPrimaryKeyExpression(t))).append(";");
-			try (PreparedStatement pst = (((PostgresqlConnection)store).db.prepareStatement(sb.toString()))) {
-				int parmnum=0;
-				for (int x=0; x<numberOfAttributes(); x++) {
-					String attribute = RD.attributeNames.get(x);
-					if (isInPrimaryKey(attribute)) continue;   // We don't update key values
-					setPreparedStatementParameterFromField(pst,t,++parmnum,x);
-				}
-				pst.execute();
-				return pst.getUpdateCount()!=0;
+				setPreparedStatementParameterFromField(pst,t,++parmnum,x);
 			}
-		} catch (FilterExpressionException e) {
-			throw new U_Exception(U_Exception.ERROR.Unexpected,e);
+			bindKey(pst,t,parmnum+1);
+			return pst.executeUpdate()!=0;
 		} catch (SQLException e) {
 			throw new U_Exception(U_Exception.ERROR.QueryError,e);
+		} finally {
+			pc.release(UPDATE_BY_KEY,pst);
 		}
 	}
 	
@@ -536,37 +782,203 @@ public class PostgresqlTableAdapter<T extends Tuple> extends TableAdapter<T> {
 	public void insertAux(T t, boolean onlyIfNew) throws U_Exception {
 		t.preStore((Object[])null);
 		
-		
-		try (PreparedStatement pst = ((PostgresqlConnection)store).db.prepareStatement(
-				onlyIfNew?INSERT_COMMAND_ON_CONFLICT:INSERT_COMMAND)) {
-			for (int parameterIndex=0; parameterIndex<insertAttributesArray.length; parameterIndex++) {
-				// We assign to the statement based on types of attributes - this is the safest way, and
-				// also helps us account for things like Instant->Timestamp conversion
-				setPreparedStatementParameterFromField(pst, t, parameterIndex+1, insertValueOffset[parameterIndex]);
+		PostgresqlConnection pc = (PostgresqlConnection)store;
+		String insertCommand = onlyIfNew?INSERT_COMMAND_ON_CONFLICT:INSERT_COMMAND;
+		PreparedStatement pst = null;
+		try {
+			//The inserted row is returned by the statement, in case there were default values, etc.
+			pst = pc.prepare(insertCommand,selectAttributesArray);
+			bindInsert(pst,t);
+			if (pst.executeUpdate()==0) {
+				//It was already present, so the tuple is loaded as it is in the table
+				reload(pc,t);
+				return;
 			}
-			pst.executeUpdate();
-			
-			try (PreparedStatement pst2 = db.prepareStatement(SELECT_BY_KEY)) {
-				for (int keyIndex=0; keyIndex<whereValueOffset.length; keyIndex++)
-					setPreparedStatementParameterFromField(pst2, t, keyIndex+1, whereValueOffset[keyIndex]);
-				ResultSet rs = pst2.executeQuery();
+			try (ResultSet rs = pst.getGeneratedKeys()) {
 				if (!rs.next())
 					throw new U_Exception(ERROR.Unexpected,"Could not retrieve inserted row subsequent to insertion");
-				//We now reload the ENTIRE tuple with the actual values returned, in case there were default values, etc.
-				for (int x=0; x<numberOfAttributes(); x++){
-					try {
-						t.setAttributeValue(x, rs.getObject(x+1));
-					} catch (Exception e) {
-						System.out.println(e.getMessage());
-					}
-				}
+				read(columnReaders, rs, t);
 			}
 		} catch (SQLException e) {
 			throw new U_Exception(U_Exception.ERROR.QueryError,"INSERT failed",e);
-		} 
+		} finally {
+			pc.release(insertCommand,pst);
+		}
 		
 	}
-
 	
+	private void bindInsert(PreparedStatement pst, T t) throws U_Exception {
+		for (int parameterIndex=0; parameterIndex<insertAttributesArray.length; parameterIndex++) {
+			// We assign to the statement based on types of attributes - this is the safest way, and
+			// also helps us account for things like Instant->Timestamp conversion
+			setPreparedStatementParameterFromField(pst, t, parameterIndex+1, insertValueOffset[parameterIndex]);
+		}
+	}
+	
+	private void bindKey(PreparedStatement pst, T t, int firstParameter) throws U_Exception {
+		for (int keyIndex=0; keyIndex<whereValueOffset.length; keyIndex++)
+			setPreparedStatementParameterFromField(pst, t, firstParameter+keyIndex, whereValueOffset[keyIndex]);
+	}
+	
+	/**
+	 * Loads a tuple with the row in the table that has its primary key values.
+	 */
+	private void reload(PostgresqlConnection pc, T t) throws U_Exception, SQLException {
+		PreparedStatement pst = null;
+		try {
+			pst = pc.prepare(SELECT_BY_KEY);
+			bindKey(pst,t,1);
+			try (ResultSet rs = pst.executeQuery()) {
+				if (!rs.next())
+					throw new U_Exception(ERROR.Unexpected,"Could not retrieve existing row subsequent to insertion");
+				read(columnReaders, rs, t);
+			}
+		} finally {
+			pc.release(SELECT_BY_KEY,pst);
+		}
+	}
+	
+//------------------------------------------------------------------------------------------	
+//-- Batched operations
+//------------------------------------------------------------------------------------------
+	
+	/** The most statements sent to the database in one batch **/
+	private static final int BATCH_SIZE = 500;
+	
+	/** Binds the parameters of one statement of a batch **/
+	private interface BatchBinder<T> {
+		void bind(PreparedStatement pst, T t) throws U_Exception;
+	}
+	
+	/** Loads the rows returned by one batch **/
+	private interface BatchLoader {
+		void load(int first, int[] counts, ResultSet rs) throws U_Exception, SQLException;
+	}
+	
+	/**
+	 * Runs a statement once for each tuple, {@code BATCH_SIZE} at a time, with JDBC batching, so that
+	 * each batch is one round trip to the database.
+	 * @param sql The statement.
+	 * @param returning Columns returned by the statement for each row it changes, or null.
+	 * @param tuples The tuples.
+	 * @param binder Binds the parameters of the statement for a tuple.
+	 * @param loaded If not null, called for each batch with the first tuple's index, the update counts,
+	 * and the rows returned.
+	 * @return For each tuple, in order, true if the statement changed a row.
+	 */
+	private boolean[] batch(String sql, String[] returning, List<T> tuples, BatchBinder<T> binder, BatchLoader loaded)
+		throws U_Exception, SQLException
+	{
+		boolean[] outcomes = new boolean[tuples.size()];
+		PostgresqlConnection pc = (PostgresqlConnection)store;
+		PreparedStatement pst = null;
+		try {
+			pst = pc.prepare(sql,returning);
+			for (int first=0; first<tuples.size(); first+=BATCH_SIZE) {
+				int last = Math.min(first+BATCH_SIZE, tuples.size());
+				for (int x=first; x<last; x++) {
+					binder.bind(pst,tuples.get(x));
+					pst.addBatch();
+				}
+				int[] counts = pst.executeBatch();
+				for (int x=first; x<last; x++)
+					outcomes[x] = counts[x-first]!=0;   //SUCCESS_NO_INFO is taken as changed
+				if (loaded!=null)
+					try (ResultSet rs = pst.getGeneratedKeys()) {
+						loaded.load(first,counts,rs);
+					}
+			}
+			return outcomes;
+		} finally {
+			pc.release(sql,pst);
+		}
+	}
+	
+	/**
+	 * Inserts the tuples as {@link #insert(Tuple)} would, in batches.  Each tuple is loaded with the
+	 * row inserted for it.
+	 * 
+	 * @return For each tuple, in order, true.  If a tuple cannot be inserted, an exception is thrown
+	 * instead; unless a transaction is in progress, tuples in earlier batches stay inserted.
+	 */
+	@Override
+	public boolean[] insertAll(List<T> tuples) throws U_Exception {
+		return insertAllAux(tuples,false);
+	}
+	
+	/**
+	 * Inserts the tuples as {@link #insertIfNew(Tuple)} would, in batches.  Each tuple is loaded with
+	 * the row inserted for it, or with the row already in the table.
+	 * 
+	 * @return For each tuple, in order, true if it was inserted or false if it was already present.
+	 */
+	@Override
+	public boolean[] insertIfNewAll(List<T> tuples) throws U_Exception {
+		return insertAllAux(tuples,true);
+	}
+	
+	private boolean[] insertAllAux(List<T> tuples, boolean onlyIfNew) throws U_Exception {
+		for (T t : tuples)
+			t.preStore((Object[])null);
+		PostgresqlConnection pc = (PostgresqlConnection)store;
+		try {
+			boolean[] outcomes = batch(onlyIfNew?INSERT_COMMAND_ON_CONFLICT:INSERT_COMMAND, selectAttributesArray, tuples, 
+				this::bindInsert,
+				(first,counts,rs) -> {
+					//A row is returned for each statement that inserted one, in order
+					for (int x=0; x<counts.length; x++)
+						if (counts[x]!=0) {
+							if (!rs.next())
+								throw new U_Exception(ERROR.Unexpected,"Could not retrieve inserted row subsequent to insertion");
+							read(columnReaders, rs, tuples.get(first+x));
+						}
+				});
+			for (int x=0; x<outcomes.length; x++)
+				if (!outcomes[x])
+					reload(pc,tuples.get(x));
+			return outcomes;
+		} catch (SQLException e) {
+			throw new U_Exception(U_Exception.ERROR.QueryError,"INSERT failed",e);
+		}
+	}
+	
+	/**
+	 * Updates the tuples as {@link #update(Tuple)} would, in batches.
+	 * @return For each tuple, in order, true if it exists and was updated.
+	 */
+	@Override
+	public boolean[] updateAll(List<T> tuples) throws U_Exception {
+		for (T t : tuples)
+			t.preStore((Object[])null);
+		if (numberOfPrimaryKeys()==0) return new boolean[tuples.size()];
+		try {
+			return batch(UPDATE_BY_KEY, null, tuples, 
+				(pst,t) -> {
+					int parmnum=0;
+					for (int x=0; x<numberOfAttributes(); x++) {
+						if (isInPrimaryKey(RD.attributeNames.get(x))) continue;   // We don't update key values
+						setPreparedStatementParameterFromField(pst,t,++parmnum,x);
+					}
+					bindKey(pst,t,parmnum+1);
+				}, 
+				null);
+		} catch (SQLException e) {
+			throw new U_Exception(U_Exception.ERROR.QueryError,e);
+		}
+	}
+	
+	/**
+	 * Deletes the tuples as {@link #delete(Tuple)} would, in batches.
+	 * @return For each tuple, in order, true if it was deleted or false if it was not found.
+	 */
+	@Override
+	public boolean[] deleteAll(List<T> tuples) throws U_Exception {
+		if (numberOfPrimaryKeys()==0) return new boolean[tuples.size()];
+		try {
+			return batch(DELETE_BY_KEY, null, tuples, (pst,t) -> bindKey(pst,t,1), null);
+		} catch (SQLException e) {
+			throw new U_Exception(U_Exception.ERROR.QueryError,e);
+		}
+	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,52 @@
+package com.craiglowery.java.vlib.tuple;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *         
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *         
+ */
+import java.util.Iterator;
+
+import com.craiglowery.java.vlib.common.U_Exception;
+
+/**
+ * An open selection from a backing table, returned by {@code TableAdapter.iterate()}, that
+ * produces tuples as they are consumed rather than collecting them all first.  The cursor
+ * holds database resources until it is closed, so it should be used in a try-with-resources
+ * block.<p>
+ * 
+ * {@link #fetch()} reports errors as {@code U_Exception}s.  The {@code Iterator} methods, which
+ * cannot, wrap them in a {@link CursorException}.
+ * @param <T> The type of tuple the backing table holds.
+ */
+public interface SelectionCursor<T extends Tuple> extends Iterator<T>, AutoCloseable {
+	
+	/**
+	 * Returns the next tuple of the selection.
+	 * @return The next tuple, or null if there are no more.
+	 * @throws U_Exception
+	 */
+	public T fetch() throws U_Exception;
+	
+	/**
+	 * Releases the resources held by the selection.
+	 * @throws U_Exception
+	 */
+	@Override
+	public void close() throws U_Exception;
+	
+	/** Thrown by the {@code Iterator} methods when the selection cannot be read **/
+	public static class CursorException extends RuntimeException {
+		private static final long serialVersionUID = -2984109355387201453L;
+		
+		public CursorException(U_Exception cause) {
+			super(cause);
+		}
+		
+		@Override
+		public U_Exception getCause() {
+			return (U_Exception)super.getCause();
+		}
+	}
+}
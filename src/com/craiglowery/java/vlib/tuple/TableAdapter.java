@@ -1,7 +1,12 @@
 package com.craiglowery.java.vlib.tuple;
 
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import com.craiglowery.java.vlib.common.U_Exception;
 import com.craiglowery.java.vlib.common.U_Exception.ERROR;
 import com.craiglowery.java.vlib.tuple.filterexp.TupleExpressionFactory;
@@ -256,6 +261,7 @@ public abstract class TableAdapter<T extends Tuple> {
 	 *   returns true, then this method will continue to the next tuple in the source if there
 	 *   is one.  Returning false causes traversal of the table to cease and is a way that 
 	 *   the action method can cancel traversal in the middle of it necessary.
+	 *   Tuples are passed to it as they are read, and the selection is not size limited.
 	 * @throws U_Exception
 	 */
 	public void applySelection(TupleExpressionFactory.Node tupleFilter,
@@ -286,6 +292,61 @@ public abstract class TableAdapter<T extends Tuple> {
 	}
 	
 
+	/**
+	 * Opens a cursor over a filtered selection.  Tuples are produced as the cursor is read, so
+	 * a selection of any size can be traversed without holding it all in memory, and the
+	 * size limit imposed on selections returned as lists does not apply.  This implementation
+	 * reads the selection as a list; backing stores that can do better override it.
+	 * @param filter The filter governing the selection, or null for all tuples in the table.
+	 * @param sort A sort directive, or null for the default order.
+	 * @param limit The maximum number of tuples to be returned, or 0 for all.
+	 * @return The open cursor, which the caller must close.
+	 * @throws U_Exception
+	 */
+	public SelectionCursor<T> iterate(TupleExpressionFactory.Node filter, SortDirective[] sort, int limit)
+		throws U_Exception
+	{
+		final Iterator<T> it = select(filter,sort,limit,null).iterator();
+		return new SelectionCursor<T>() {
+			public T fetch() { return it.hasNext() ? it.next() : null; }
+			public boolean hasNext() { return it.hasNext(); }
+			public T next() { return it.next(); }
+			public void close() { }
+		};
+	}
+	
+	/**
+	 * Opens a cursor over a filtered selection in the default sort order.
+	 * @param filter The filter governing the selection, or null for all tuples in the table.
+	 * @return The open cursor, which the caller must close.
+	 * @throws U_Exception
+	 */
+	public SelectionCursor<T> iterate(TupleExpressionFactory.Node filter) throws U_Exception {
+		return iterate(filter,null,0);
+	}
+	
+	/**
+	 * Returns a filtered selection as a sequential {@code Stream}.  Closing the stream closes
+	 * the cursor beneath it, so it should be used in a try-with-resources block.  Errors reading
+	 * the selection are thrown as {@code SelectionCursor.CursorException}s.
+	 * @param filter The filter governing the selection, or null for all tuples in the table.
+	 * @param sort A sort directive, or null for the default order.
+	 * @param limit The maximum number of tuples to be returned, or 0 for all.
+	 * @return The stream.
+	 * @throws U_Exception
+	 */
+	public Stream<T> stream(TupleExpressionFactory.Node filter, SortDirective[] sort, int limit) throws U_Exception {
+		SelectionCursor<T> cursor = iterate(filter,sort,limit);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED), false)
+			.onClose(() -> {
+				try {
+					cursor.close();
+				} catch (U_Exception e) {
+					throw new SelectionCursor.CursorException(e);
+				}
+			});
+	}
+
 	public abstract int delete(TupleExpressionFactory.Node filter) throws U_Exception;
 	
 	public abstract boolean delete(T t) throws U_Exception;
@@ -295,6 +356,42 @@ public abstract class TableAdapter<T extends Tuple> {
 	public abstract void insert(T t) throws U_Exception;
 	
 	public abstract void insertIfNew(T t) throws U_Exception;
+	
+	/**
+	 * Inserts each tuple as {@code insert} does, using as few round trips to the backing store
+	 * as the implementation allows.
+	 * @param tuples The tuples to insert.
+	 * @return For each tuple, in order, whether it was inserted.
+	 * @throws U_Exception If a tuple cannot be inserted.
+	 */
+	public abstract boolean[] insertAll(List<T> tuples) throws U_Exception;
+	
+	/**
+	 * Inserts each tuple that is not already present as {@code insertIfNew} does, using as few round
+	 * trips to the backing store as the implementation allows.
+	 * @param tuples The tuples to insert.
+	 * @return For each tuple, in order, true if it was inserted or false if it was already present.
+	 * @throws U_Exception
+	 */
+	public abstract boolean[] insertIfNewAll(List<T> tuples) throws U_Exception;
+	
+	/**
+	 * Updates each tuple as {@code update} does, using as few round trips to the backing store
+	 * as the implementation allows.
+	 * @param tuples The tuples to update.
+	 * @return For each tuple, in order, true if it exists and was updated.
+	 * @throws U_Exception
+	 */
+	public abstract boolean[] updateAll(List<T> tuples) throws U_Exception;
+	
+	/**
+	 * Deletes each tuple as {@code delete} does, using as few round trips to the backing store
+	 * as the implementation allows.
+	 * @param tuples The tuples to delete.
+	 * @return For each tuple, in order, true if it was deleted or false if it was not found.
+	 * @throws U_Exception
+	 */
+	public abstract boolean[] deleteAll(List<T> tuples) throws U_Exception;
 
 		
 
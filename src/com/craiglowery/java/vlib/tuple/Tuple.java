@@ -100,10 +100,12 @@ public abstract class Tuple {
 				}
 			}
 			try {
-				rd.fields.get(fieldIndex).set(this, value);
-			} catch (Exception e) {
+				rd.setters.get(fieldIndex).invokeExact(this, value);
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable e) {
 				throw new U_Exception(U_Exception.ERROR.Unexpected,"Could not set value on field "+
-						getReflectedData().attributeNames.get(fieldIndex),e);
+						getReflectedData().attributeNames.get(fieldIndex),(Exception)e);
 			}
 		}
 		
@@ -126,8 +128,8 @@ public abstract class Tuple {
 		 */
 		public Object getAttributeValue(Integer fieldIndex) throws U_Exception {
 			try {
-				return getReflectedData().fields.get(fieldIndex).get(this);
-			} catch (Exception e) {
+				return (Object)getReflectedData().getters.get(fieldIndex).invokeExact(this);
+			} catch (Throwable e) {
 				throw new U_Exception(U_Exception.ERROR.Unexpected,"Getting value of field at position "+
 					fieldIndex);
 			}
@@ -142,8 +144,8 @@ public abstract class Tuple {
 		public Object getAttributeValue(String fieldname) throws U_Exception {
 			TupleSubClassReflectedData rd = getReflectedData();
 			try{
-				return rd.fields.get(rd.attributesIndex.get(fieldname)).get(this);
-			} catch (Exception e) {
+				return (Object)rd.getters.get(rd.attributesIndex.get(fieldname)).invokeExact(this);
+			} catch (Throwable e) {
 				throw new U_Exception(U_Exception.ERROR.Unexpected,"Getting value of field "+
 					fieldname);
 			}
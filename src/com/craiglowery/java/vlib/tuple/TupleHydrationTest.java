@@ -0,0 +1,151 @@
+package com.craiglowery.java.vlib.tuple;
+/* Author: James Craig Lowery
+ *         January, 2016
+ *
+ *         This code is a personal endeavor and is part of the
+ *         Binary Large Object Store system.
+ *
+ */
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.craiglowery.java.vlib.repository.VersionsTuple;
+
+/**
+ * Unit test for loading tuples from result sets.  No database is needed; the result set is
+ * a stand-in holding rows in memory, so the measurements are of the tuple side of loading
+ * only, not of the driver.
+ *
+ */
+public class TupleHydrationTest {
+
+	@Test
+	public void columnReadersAgreeWithReflection() throws Exception {
+		TupleSubClassReflectedData rd = rd();
+		PostgresqlTableAdapter.ColumnReader[] readers = PostgresqlTableAdapter.columnReaders(rd);
+		ResultSet rs = resultSet(rd, rows(rd, 1000));
+		while (rs.next()) {
+			VersionsTuple expected = new VersionsTuple();
+			loadByReflection(rd, rs, expected);
+			VersionsTuple actual = new VersionsTuple();
+			PostgresqlTableAdapter.read(readers, rs, actual);
+			for (int f=0; f<rd.fields.size(); f++)
+				assertEquals(rd.attributeNames.get(f), expected.getAttributeValue(f), actual.getAttributeValue(f));
+		}
+	}
+
+	/**
+	 * Compares the rate at which rows are loaded by name through reflection, as they were
+	 * before the column readers, with that of the column readers.
+	 */
+	@Test
+	public void hydrationBenchmark() throws Exception {
+		System.out.println("TEST: VersionsTuple hydration, reflection by name versus column readers");
+		final int ROUNDS=20, ROWS=100000;
+		TupleSubClassReflectedData rd = rd();
+		PostgresqlTableAdapter.ColumnReader[] readers = PostgresqlTableAdapter.columnReaders(rd);
+		Object[][] rows = rows(rd, ROWS);
+		long reflectionBest=Long.MAX_VALUE, readerBest=Long.MAX_VALUE;
+		//The early rounds warm up both paths; the best round is reported
+		for (int round=0; round<ROUNDS; round++) {
+			ResultSet rs = resultSet(rd, rows);
+			Instant start = Instant.now();
+			while (rs.next())
+				loadByReflection(rd, rs, new VersionsTuple());
+			reflectionBest = Math.min(reflectionBest, Duration.between(start, Instant.now()).toNanos());
+			rs = resultSet(rd, rows);
+			start = Instant.now();
+			while (rs.next())
+				PostgresqlTableAdapter.read(readers, rs, new VersionsTuple());
+			readerBest = Math.min(readerBest, Duration.between(start, Instant.now()).toNanos());
+		}
+		System.out.println(String.format("     Reflection by name: %,12.0f rows/sec",ROWS*1e9/reflectionBest));
+		System.out.println(String.format("     Column readers....: %,12.0f rows/sec",ROWS*1e9/readerBest));
+	}
+
+	private TupleSubClassReflectedData rd() {
+		new VersionsTuple();  //Registers the class
+		return Tuple.getReflectedData(VersionsTuple.class);
+	}
+
+	/** Loads a row the way PostgresqlTableAdapter did before it had column readers **/
+	private void loadByReflection(TupleSubClassReflectedData rd, ResultSet rs, Tuple t) throws Exception {
+		for (int f=0; f<rd.fields.size(); f++) {
+			Object value = rs.getObject(rd.attributeNames.get(f));
+			if (value!=null) {
+				if (rd.tupleTypes.get(f)==Tuple.Type.Instant && value.getClass()==Timestamp.class)
+					value = ((Timestamp)value).toInstant();
+				else if (Tuple.classifyJavaType(value.getClass())!=rd.tupleTypes.get(f))
+					fail("type mismatch");
+			}
+			rd.fields.get(f).set(t, value);
+		}
+	}
+
+	private Object[][] rows(TupleSubClassReflectedData rd, int n) {
+		Random r = new Random(1);
+		Object[][] rows = new Object[n][rd.fields.size()];
+		for (int x=0; x<n; x++)
+			for (int f=0; f<rd.fields.size(); f++) {
+				if (r.nextInt(20)==0)
+					continue;  //Some nulls
+				Object value;
+				switch (rd.tupleTypes.get(f)) {
+					case String:	value = "value "+r.nextInt(100000);						break;
+					case Integer:	value = r.nextInt(100000);								break;
+					case Long:		value = (long)r.nextInt(4000000);						break;
+					case Double:	value = r.nextDouble();									break;
+					case Boolean:	value = r.nextBoolean();								break;
+					case Instant:	value = new Timestamp(1400000000000L+r.nextInt(1000000000)); break;
+					default:		value = null;
+				}
+				rows[x][f] = value;
+			}
+		return rows;
+	}
+
+	/**
+	 * A forward only result set over rows held in memory, with the columns named and ordered as the
+	 * attributes.  Like the driver's, lookups by name go through a map of column names.
+	 */
+	private ResultSet resultSet(TupleSubClassReflectedData rd, Object[][] rows) {
+		Map<String,Integer> columns = new HashMap<String,Integer>();
+		for (int f=0; f<rd.attributeNames.size(); f++)
+			columns.put(rd.attributeNames.get(f), f+1);
+		int[] row = {-1};
+		Object[] last = {null};
+		return (ResultSet)Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+			(proxy, method, args) -> {
+				String name = method.getName();
+				if (name.equals("next"))
+					return ++row[0]<rows.length;
+				if (name.equals("wasNull"))
+					return last[0]==null;
+				int column = args[0] instanceof String ? columns.get(args[0]) : (Integer)args[0];
+				Object value = last[0] = rows[row[0]][column-1];
+				switch (name) {
+					case "getObject":
+					case "getString":
+					case "getTimestamp":
+						return value;
+					case "getInt":		return value==null ? 0 : value;
+					case "getLong":		return value==null ? 0L : value;
+					case "getDouble":	return value==null ? 0.0 : value;
+					case "getBoolean":	return value==null ? false : value;
+					default:
+						throw new UnsupportedOperationException(name);
+				}
+			});
+	}
+
+}
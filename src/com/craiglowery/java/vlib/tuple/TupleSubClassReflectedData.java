@@ -6,6 +6,9 @@ package com.craiglowery.java.vlib.tuple;
  *         Binary Large Object Store system.
  *         
  */
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.time.Instant;
 import java.util.ArrayList;
@@ -26,6 +29,10 @@ import com.craiglowery.java.vlib.tuple.Tuple.Type;
 public class TupleSubClassReflectedData {
 
 	protected  ArrayList<Field>    fields = new ArrayList<Field>();
+	/** Getter for each field, of type {@code (Tuple)Object}, for use with {@code invokeExact} **/
+	protected  ArrayList<MethodHandle> getters = new ArrayList<MethodHandle>();
+	/** Setter for each field, of type {@code (Tuple,Object)void}, for use with {@code invokeExact} **/
+	protected  ArrayList<MethodHandle> setters = new ArrayList<MethodHandle>();
 	protected  ArrayList<Type>     tupleTypes = new ArrayList<Tuple.Type>();
 	protected  ArrayList<Class<?>> javaTypes = new ArrayList<Class<?>>();
 	protected  ArrayList<String>   attributeNames = new ArrayList<String>();
@@ -35,8 +42,12 @@ public class TupleSubClassReflectedData {
 	
 	private  int numberOfAttributes=0;
 	
+	private static final MethodType GETTER = MethodType.methodType(Object.class, Tuple.class);
+	private static final MethodType SETTER = MethodType.methodType(void.class, Tuple.class, Object.class);
+	
 	public TupleSubClassReflectedData(Class<? extends Tuple> clazz) throws U_Exception 
 	{
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
 		for (Field field : clazz.getDeclaredFields()) {
 			if (field.isAnnotationPresent(Ignore.class))  //Ignore fields annotated with @Ignore
 				continue;
@@ -45,6 +56,15 @@ public class TupleSubClassReflectedData {
 			if (isMarkedAttribute || isMarkedPrimaryKey) {
 				String name = field.getName();
 				fields.add(field);
+				//Method handles are resolved once here, so getting and setting an attribute is a direct
+				//field access rather than a reflective call that checks access on every use
+				try {
+					field.setAccessible(true);
+					getters.add(lookup.unreflectGetter(field).asType(GETTER));
+					setters.add(lookup.unreflectSetter(field).asType(SETTER));
+				} catch (IllegalAccessException | SecurityException e) {
+					throw new U_Exception(ERROR.ConfigurationError,"Cannot access field "+name,e);
+				}
 				attributesIndex.put(name, numberOfAttributes);
 				attributeNames.add(name);
 				if (isMarkedPrimaryKey)
@@ -12,5 +12,6 @@ public enum Kind {
 	AND,
 	OR,
 	NOT,
-	COMPARISON
+	COMPARISON,
+	IN
 }
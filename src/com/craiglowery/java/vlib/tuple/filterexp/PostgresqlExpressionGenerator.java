@@ -6,23 +6,72 @@ package com.craiglowery.java.vlib.tuple.filterexp;
  *         Binary Large Object Store system.
  *         
  */
+import java.sql.Timestamp;
 import java.time.Instant;
+import java.util.List;
 
 import com.craiglowery.java.vlib.tuple.Tuple.Type;
 
-/** Expands a Tuple expression tree into Postgresl SQL equiavlent. **/
+/** Expands a Tuple expression tree into Postgresl SQL equiavlent.<p>
+ * 
+ * The expansion can either inline the literals of the expression, or replace each with a
+ * {@code ?} placeholder and return its value in a parameter list to be bound to a
+ * {@code PreparedStatement}.  Expressions that differ only in their literals then expand to
+ * the same SQL text, so the statement can be prepared once and reused.  Boolean literals
+ * are always inlined, as they are part of the shape of the expression rather than a value
+ * compared against.
+ */
 
 public class PostgresqlExpressionGenerator {
 	
+	/**
+	 * A parameter bound as a SQL array, used for the value list of an IN node so that any
+	 * number of values shares one placeholder, as in {@code (handle) = ANY(?)}.
+	 */
+	public static class ArrayParameter {
+		/** The Postgresql name of the element type, as passed to {@code Connection.createArrayOf} **/
+		public final String sqlType;
+		public final Object[] elements;
+		
+		public ArrayParameter(String sqlType, Object[] elements) {
+			this.sqlType=sqlType;
+			this.elements=elements;
+		}
+	}
 
 	private static String par(String s) {
 		return new StringBuilder("(").append(s).append(")").toString();
 	}
 	
+	/**
+	 * Expands an expression with its literals inlined.
+	 * @param node The root of the expression.
+	 * @return The SQL text.
+	 * @throws FilterExpressionException
+	 */
 	public static String expand(TupleExpressionFactory.Node node)
 		throws FilterExpressionException
 	{
+		return expand(node,null);
+	}
+	
+	/**
+	 * Expands an expression with its literals replaced by placeholders.
+	 * @param node The root of the expression.
+	 * @param params The list to which the value of each placeholder is appended, in the order
+	 *   the placeholders appear in the text.  Instants are appended as {@code Timestamp}s, and value
+	 *   lists as {@link ArrayParameter}s.  If null, literals are inlined instead.
+	 * @return The SQL text.
+	 * @throws FilterExpressionException
+	 */
+	public static String expand(TupleExpressionFactory.Node node, List<Object> params)
+		throws FilterExpressionException
+	{
 		
+		if (node.kind==Kind.LITERAL && params!=null && node.type!=Type.Boolean) {
+			params.add(node.type==Type.Instant ? Timestamp.from(instant(node)) : node.asLiteral().value);
+			return par("?");
+		}
 		if (node.type==Type.String && node.kind==Kind.LITERAL) 
 			// Literal string must be quoted and escaped for SQL
 			return par(node.escapedAndQuoted("'", "''", "'"));
@@ -31,30 +80,88 @@ public class PostgresqlExpressionGenerator {
 			return par(node.toString());
 		if (node.kind==Kind.AND | node.kind==Kind.OR) 
 			//AND and OR multi operand nodes expand the same way, just the operator name is different
-			return par(multiArgExpand(node.asMultiArg()));
+			return par(multiArgExpand(node.asMultiArg(),params));
 		if (node.kind==Kind.NOT) 
-			return par("NOT("+expand(node.asNot().target)+")");
+			return par("NOT("+expand(node.asNot().target,params)+")");
 		if (node.kind==Kind.COMPARISON) 
-			return par(expandComparisonNode(node.asComparison()));
+			return par(expandComparisonNode(node.asComparison(),params));
+		if (node.kind==Kind.IN) {
+			TupleExpressionFactory.InNode in = node.asIn();
+			if (in.values!=null) {
+				//An empty list is not valid SQL, and nothing is a member of it
+				if (in.values.isEmpty())
+					return par("FALSE");
+				if (params!=null)
+					return par(expandInArray(in,params));
+				StringBuilder sb = new StringBuilder(expand(in.attribute)).append(" IN (");
+				for (int x=0; x<in.values.size(); x++)
+					sb.append(x==0?"":",").append(expand(in.values.get(x)));
+				return par(sb.append(")").toString());
+			}
+			return par(new StringBuilder(expand(in.attribute,params)).append(" IN (SELECT ").append(in.column)
+					.append(" FROM ").append(in.table).append(" WHERE ").append(expand(in.filter,params)).append(")").toString());
+		}
 		throw new FilterExpressionException(String.format("Node subclass '%s' not supported by SQLExpressionGenerator",node.getClass().getName()));
 	}
 	
-	private static String multiArgExpand(TupleExpressionFactory.MultiArgumentNode multiNode )
+	/**
+	 * Expands a value list as a single array parameter, so that the text does not depend on
+	 * the number of values.
+	 */
+	private static String expandInArray(TupleExpressionFactory.InNode in, List<Object> params)
+		throws FilterExpressionException
+	{
+		Type type = in.values.get(0).type;
+		String sqlType;
+		switch (type) {
+			case Integer: 	sqlType="integer"; 		break;
+			case Long:		sqlType="bigint";		break;
+			case Double:	sqlType="float8";		break;
+			case Boolean:	sqlType="boolean";		break;
+			case String:	sqlType="text";			break;
+			case Instant:	sqlType="timestamp";	break;
+			default:
+				throw new FilterExpressionException(String.format("IN list of type %s not supported",type.name()));
+		}
+		Object[] elements = new Object[in.values.size()];
+		for (int x=0; x<elements.length; x++) {
+			TupleExpressionFactory.Node value = in.values.get(x);
+			if (value.type!=type)
+				throw new FilterExpressionException(String.format("IN list mixes types %s and %s",type.name(),value.type.name()));
+			elements[x] = type==Type.Instant ? Timestamp.from(instant(value)) : value.asLiteral().value;
+		}
+		params.add(new ArrayParameter(sqlType,elements));
+		return new StringBuilder(expand(in.attribute,params)).append(" = ANY(?)").toString();
+	}
+	
+	/** Returns the value of an INSTANT literal, which may have been given as text **/
+	private static Instant instant(TupleExpressionFactory.Node node)
+		throws FilterExpressionException
+	{
+		if (node.asLiteral().value instanceof Instant)
+			return (Instant)node.asLiteral().value;
+		Instant i = SmartDateTimeParser.tryParse(node.toString());
+		if (i==null)
+			throw new FilterExpressionException(String.format("Datetime parse error for %s",node.toString()));
+		return i;
+	}
+	
+	private static String multiArgExpand(TupleExpressionFactory.MultiArgumentNode multiNode, List<Object> params)
 		throws FilterExpressionException
 	{
 		// The structure is   (leftexpanded)op(rightexpanded) for the first part (at least 2) args
 		String op=   (multiNode.kind==Kind.AND?"AND":"OR");
 		
 		StringBuilder sb = new StringBuilder
-				   (expand(multiNode.targets.get(0)))
+				   (expand(multiNode.targets.get(0),params))
 			.append(op)
-			.append(expand(multiNode.targets.get(1)));
+			.append(expand(multiNode.targets.get(1),params));
 		
 		// We then append addition args as  op(additional)
 		
 		for (int x=2; x<multiNode.targets.size(); x++) {
 			sb.append(op)
-			  .append(expand(multiNode.targets.get(x)));
+			  .append(expand(multiNode.targets.get(x),params));
 		}
 		return sb.toString();
 	}
@@ -76,15 +183,19 @@ public class PostgresqlExpressionGenerator {
 		null   //CI_IS_SUBSTRING_OF,						// ~$
 	};
 	
-	private static String expandComparisonNode(TupleExpressionFactory.ComparisonNode compNode)
+	private static String expandComparisonNode(TupleExpressionFactory.ComparisonNode compNode, List<Object> params)
 		throws FilterExpressionException
 	{
 		// With a few corner cases, the expansion is (left)op(right)
 		
-		//For most operations, the below are the appropriate operands. Just need an operator between them
+		//For most operations, the below are the appropriate operands. Just need an operator between them.
+		//Instant literals are expanded below, and a placeholder must not be added for them twice.
 		Boolean thisIsCiOp = compNode.op.ordinal()>=Operator.CI_EQUAL_TO.ordinal();
-		String left  = (thisIsCiOp?"lower":"") + expand(compNode.left);
-		String right = (thisIsCiOp?"lower":"") + expand(compNode.right);
+		boolean instants = compNode.left.type==Type.Instant || compNode.right.type==Type.Instant;
+		String left  = instants && compNode.left.kind==Kind.LITERAL ? null
+				     : (thisIsCiOp?"lower":"") + expand(compNode.left,params);
+		String right = instants && compNode.right.kind==Kind.LITERAL ? null
+				     : (thisIsCiOp?"lower":"") + expand(compNode.right,params);
 
 		switch (compNode.op) {
 			case EQUAL_TO:	
@@ -93,23 +204,15 @@ public class PostgresqlExpressionGenerator {
 			case GREATER_THAN:	
 			case LESS_THAN_OR_EQUAL_TO:	
 			case GREATER_THAN_OR_EQUAL_TO:
-				if (compNode.left.type==Type.Instant || compNode.left.type==Type.Instant) {
+				if (instants) {
 					if (compNode.right.type==Type.Instant ^ compNode.left.type==Type.Instant)
 						throw new FilterExpressionException(String.format("INSTANT comparison operands have type mismatch: %s(%s)%s%s(%s)",
 								left,compNode.left.type.name(),opStrings[compNode.op.ordinal()],right,compNode.right.type.name()));
 					// At this point, we know we have INSTANT's on both sides.
-					if (compNode.left.kind==Kind.LITERAL) {
-						Instant i = SmartDateTimeParser.tryParse(compNode.left.toString());
-						if (i==null)
-							throw new FilterExpressionException(String.format("Datetime parse error for %s",left));
-						left = par(i.toString());
-					}
-					if (compNode.right.kind==Kind.LITERAL) {
-						Instant i = SmartDateTimeParser.tryParse(compNode.right.toString());
-						if (i==null)
-							throw new FilterExpressionException(String.format("Datetime parse error for %s",right));
-						right = par("'"+i.toString()+"'");
-					}
+					if (compNode.left.kind==Kind.LITERAL)
+						left = instantLiteral(compNode.left,params);
+					if (compNode.right.kind==Kind.LITERAL)
+						right = instantLiteral(compNode.right,params);
 					return new StringBuilder(left).append(opStrings[compNode.op.ordinal()]).append(right).toString();
 				}
 			case CI_EQUAL_TO:	
@@ -129,5 +232,15 @@ public class PostgresqlExpressionGenerator {
 				throw new FilterExpressionException(String.format("Unknown comparison operator ordinal value %d",compNode.op.ordinal()));
 		}
 	}
+	
+	private static String instantLiteral(TupleExpressionFactory.Node node, List<Object> params)
+		throws FilterExpressionException
+	{
+		Instant i = instant(node);
+		if (params==null)
+			return par("'"+i.toString()+"'");
+		params.add(Timestamp.from(i));
+		return par("?");
+	}
 
 }
@@ -9,6 +9,7 @@ package com.craiglowery.java.vlib.tuple.filterexp;
 import java.io.PrintStream;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -77,6 +78,40 @@ public class TupleExpressionFactory {
 		return new ComparisonNode(ConvertLiteral(left), ConvertOperator(operator), ConvertLiteral(right));
 	}
 	
+	/**
+	 * Creates a node that is true when the value of an attribute of this tuple is among the
+	 * values of a column of another table, taken from the rows that pass a filter.
+	 * @param attribute The attribute of this tuple, as a node or an "@name" string.
+	 * @param table The name of the other table.
+	 * @param column The column of the other table.
+	 * @param filter A filter on the other table, built with that table's expression factory.
+	 * @return The new node.
+	 * @throws FilterExpressionException
+	 */
+	public InNode in(Object attribute, String table, String column, Node filter)
+		throws FilterExpressionException
+	{
+		return new InNode(ConvertLiteral(attribute), table, column, filter);
+	}
+	
+	/**
+	 * Creates a node that is true when the value of an attribute of this tuple is one of a
+	 * list of values.
+	 * @param attribute The attribute of this tuple, as a node or an "@name" string.
+	 * @param values The values, each of which must convert to a literal.
+	 * @return The new node.
+	 * @throws FilterExpressionException
+	 */
+	public InNode in(Object attribute, Collection<?> values)
+		throws FilterExpressionException
+	{
+		nullCheck(values);
+		List<Node> nodes = new ArrayList<Node>(values.size());
+		for (Object value : values)
+			nodes.add(ConvertLiteral(value));
+		return new InNode(ConvertLiteral(attribute), nodes);
+	}
+	
 	public AttributeLeafNode attribute(String name)
 		throws FilterExpressionException
 	{
@@ -271,6 +306,7 @@ public class TupleExpressionFactory {
 		public ComparisonNode asComparison() { return (ComparisonNode)this; }
 		public LiteralLeafNode asLiteral() { return (LiteralLeafNode)this; }
 		public NotNode asNot() { return (NotNode)this; }
+		public InNode asIn() { return (InNode)this; }
 		public OrNode asOr() { return (OrNode)this; }
 		public MultiArgumentNode asMultiArg() { return (MultiArgumentNode)this; }
 		
@@ -401,6 +437,63 @@ public class TupleExpressionFactory {
 		
 	}
 	
+//------------------------------------------------------------------------------------------	
+//-- InNode (Inner Class) 	
+//------------------------------------------------------------------------------------------
+	public class InNode extends Node {
+		
+		public Node attribute;
+		public String table;
+		public String column;
+		public Node filter;
+		/** The list of values, or null if the values are selected from another table **/
+		public List<Node> values;
+		
+		public InNode(Node attribute, String table, String column, Node filter)
+			throws FilterExpressionException
+		{
+			super(Type.Boolean, Kind.IN);
+			nullCheck(attribute,table,column,filter);
+			if (attribute.kind!=Kind.ATTRIBUTE)
+				throw new FilterExpressionException("IN can only be applied to an attribute");
+			if (filter.type!=Type.Boolean)
+				throw new FilterExpressionException("IN requires a BOOLEAN type filter");
+			this.attribute = attribute;
+			this.table = table;
+			this.column = column;
+			this.filter = filter;
+		}
+		
+		public InNode(Node attribute, List<Node> values)
+			throws FilterExpressionException
+		{
+			super(Type.Boolean, Kind.IN);
+			nullCheck(attribute,values);
+			if (attribute.kind!=Kind.ATTRIBUTE)
+				throw new FilterExpressionException("IN can only be applied to an attribute");
+			for (Node value : values)
+				if (value.kind!=Kind.LITERAL)
+					throw new FilterExpressionException("IN list values must be literals");
+			this.attribute = attribute;
+			this.values = values;
+		}
+		
+		public void treeView(PrintStream ps, int howmuch) {
+			indent(ps,howmuch);
+			if (values!=null) {
+				ps.println("IN list of "+values.size());
+				attribute.treeView(ps,howmuch+1);
+				for (Node value : values)
+					value.treeView(ps,howmuch+1);
+				return;
+			}
+			ps.println("IN "+table+"."+column);
+			attribute.treeView(ps,howmuch+1);
+			filter.treeView(ps,howmuch+1);
+		}
+		
+	}
+	
 //------------------------------------------------------------------------------------------	
 //-- LeafNode (Inner Class)
 //------------------------------------------------------------------------------------------